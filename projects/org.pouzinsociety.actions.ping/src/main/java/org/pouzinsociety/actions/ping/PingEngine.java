@@ -0,0 +1,273 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.actions.ping;
+
+import java.net.SocketException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.IPv4Service;
+import org.jnode.net.ipv4.icmp.ICMPConstants;
+import org.jnode.net.ipv4.icmp.ICMPEchoHeader;
+import org.jnode.net.ipv4.icmp.ICMPListener;
+import org.jnode.net.ipv4.icmp.ICMPProtocol;
+
+/**
+ * Pings any number of targets concurrently. All sends and timeouts are
+ * driven by a single timer wheel and replies are matched to their request
+ * by sequence number without taking a lock.
+ */
+public class PingEngine implements ICMPListener {
+
+    /** Number of distinct sequence numbers */
+    private static final int SEQ_SPACE = 0x10000;
+
+    private static final Log log = LogFactory.getLog(PingEngine.class);
+
+    private final IPv4Service ipService;
+    private final ICMPProtocol icmp;
+    /** Identifier of all requests of this engine */
+    private final int identifier = new Random().nextInt(SEQ_SPACE);
+    /** Outstanding requests, indexed by sequence number */
+    private final AtomicReferenceArray<Request> requests =
+        new AtomicReferenceArray<Request>(SEQ_SPACE);
+    private final AtomicInteger nextSeq = new AtomicInteger();
+    private final List<PingTarget> targets = new CopyOnWriteArrayList<PingTarget>();
+    private final PingTimerWheel wheel = new PingTimerWheel();
+    private int timeout = 5000;
+    private int ttl = 255;
+    private boolean dontFragment = false;
+
+    /**
+     * An outstanding echo request.
+     */
+    private final class Request extends PingTimerWheel.Timeout {
+        private final PingTarget target;
+        private final int seq;
+        private final long timestamp;
+
+        Request(PingTarget target, int seq) {
+            this.target = target;
+            this.seq = seq;
+            this.timestamp = System.nanoTime();
+        }
+
+        /**
+         * No reply in time.
+         */
+        void expire() {
+            if (requests.compareAndSet(seq, this, null)) {
+                target.recordLost();
+            }
+        }
+    }
+
+    /**
+     * Create a new instance
+     * 
+     * @param ipService
+     * @param icmp
+     */
+    public PingEngine(IPv4Service ipService, ICMPProtocol icmp) {
+        this.ipService = ipService;
+        this.icmp = icmp;
+    }
+
+    /**
+     * Add a target to ping.
+     * 
+     * @param address
+     * @param count Number of requests to send, 0 to ping until stopped
+     * @param interval Time in ms between requests
+     * @param size Number of data bytes of a request
+     * @return The target, to read its results from
+     */
+    public PingTarget addTarget(IPv4Address address, int count, int interval, int size) {
+        final PingTarget target = new PingTarget(this, address, count, interval, size);
+        targets.add(target);
+        return target;
+    }
+
+    /**
+     * Start pinging all targets. The first requests of the targets are
+     * spread over one interval, so they do not all leave at once.
+     */
+    public void start() {
+        icmp.addListener(this);
+        wheel.start();
+        final int n = targets.size();
+        int i = 0;
+        for (PingTarget target : targets) {
+            wheel.schedule(target, (long) target.getInterval() * i / n);
+            i++;
+        }
+    }
+
+    /**
+     * Wait until all targets have completed.
+     * 
+     * @param maxWait Maximum time to wait in ms
+     * @return True if all targets have completed, false on a timeout
+     */
+    public boolean awaitCompletion(long maxWait) throws InterruptedException {
+        final long end = System.currentTimeMillis() + maxWait;
+        while (!isComplete()) {
+            if (System.currentTimeMillis() >= end) {
+                return false;
+            }
+            Thread.sleep(PingTimerWheel.TICK * 10);
+        }
+        return true;
+    }
+
+    /**
+     * Have all targets completed?
+     */
+    public boolean isComplete() {
+        for (PingTarget target : targets) {
+            if (!target.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop pinging, outstanding requests are no longer matched.
+     */
+    public void stop() {
+        icmp.removeListener(this);
+        wheel.shutdown();
+    }
+
+    /**
+     * Send a request to the given target, called from the timer wheel.
+     * 
+     * @param target
+     */
+    final void send(PingTarget target) {
+        final int seq = nextSeq.getAndIncrement() & (SEQ_SPACE - 1);
+        final Request r = new Request(target, seq);
+        final Request old = requests.getAndSet(seq, r);
+        if (old != null) {
+            // The sequence numbers wrapped before the old request timed out
+            old.target.recordLost();
+        }
+
+        final SocketBuffer packet = new SocketBuffer();
+        packet.insert(target.getSize());
+        new ICMPEchoHeader(ICMPConstants.ICMP_ECHO, identifier, seq).prefixTo(packet);
+        final IPv4Header netHeader =
+            new IPv4Header(0, ttl, IPv4Constants.IPPROTO_ICMP, target.getAddress(), 0);
+        netHeader.setDontFragment(dontFragment);
+
+        wheel.schedule(r, timeout);
+        try {
+            ipService.transmit(netHeader, packet);
+        } catch (SocketException ex) {
+            log.debug("Cannot ping " + target.getAddress() + ": " + ex.getMessage());
+            if (requests.compareAndSet(seq, r, null)) {
+                target.recordLost();
+            }
+        }
+    }
+
+    /**
+     * Schedule the next request of a target.
+     * 
+     * @param target
+     * @param delay
+     */
+    final void schedule(PingTarget target, long delay) {
+        wheel.schedule(target, delay);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.icmp.ICMPListener#packetReceived(org.jnode.net.SocketBuffer)
+     */
+    public void packetReceived(SocketBuffer skbuf) {
+        final long now = System.nanoTime();
+        final ICMPEchoHeader hdr = (ICMPEchoHeader) skbuf.getTransportLayerHeader();
+        if (hdr.getIdentifier() != identifier) {
+            return;
+        }
+        final int seq = hdr.getSeqNumber() & (SEQ_SPACE - 1);
+        final Request r = requests.get(seq);
+        if (r == null) {
+            // Timed out already, or a duplicate
+            return;
+        }
+        final IPv4Header ipHdr = (IPv4Header) skbuf.getNetworkLayerHeader();
+        if (!r.target.getAddress().equals(ipHdr.getSource())) {
+            return;
+        }
+        if (requests.compareAndSet(seq, r, null)) {
+            r.target.recordReceived((now - r.timestamp) / 1000);
+        }
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout Time in ms to wait for a reply
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    public boolean isDontFragment() {
+        return dontFragment;
+    }
+
+    public void setDontFragment(boolean dontFragment) {
+        this.dontFragment = dontFragment;
+    }
+
+    /**
+     * Gets all targets of this engine.
+     */
+    public List<PingTarget> getTargets() {
+        return targets;
+    }
+}
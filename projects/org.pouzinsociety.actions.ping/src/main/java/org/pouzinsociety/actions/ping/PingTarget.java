@@ -0,0 +1,143 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.actions.ping;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jnode.net.ipv4.IPv4Address;
+
+/**
+ * A destination pinged by a ping engine, with its settings and results.
+ */
+public class PingTarget extends PingTimerWheel.Timeout {
+
+    private final PingEngine engine;
+    private final IPv4Address address;
+    private final int count;
+    private final int interval;
+    private final int size;
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger lost = new AtomicInteger();
+    private final RttHistogram rtt = new RttHistogram();
+
+    /**
+     * Create a new instance
+     * 
+     * @param engine
+     * @param address
+     * @param count Number of requests to send, 0 to ping until stopped
+     * @param interval Time in ms between requests
+     * @param size Number of data bytes of a request
+     */
+    PingTarget(PingEngine engine, IPv4Address address, int count, int interval, int size) {
+        this.engine = engine;
+        this.address = address;
+        this.count = count;
+        this.interval = interval;
+        this.size = size;
+    }
+
+    /**
+     * Send the next request, called from the timer wheel.
+     */
+    final void expire() {
+        if (isSendDone()) {
+            return;
+        }
+        final int nr = sent.incrementAndGet();
+        engine.send(this);
+        if ((count <= 0) || (nr < count)) {
+            engine.schedule(this, interval);
+        }
+    }
+
+    /**
+     * A reply has been received.
+     * 
+     * @param micros Round-trip time
+     */
+    final void recordReceived(long micros) {
+        rtt.record(micros);
+        received.incrementAndGet();
+    }
+
+    /**
+     * A request has not been answered in time, or could not be sent.
+     */
+    final void recordLost() {
+        lost.incrementAndGet();
+    }
+
+    private boolean isSendDone() {
+        return (count > 0) && (sent.get() >= count);
+    }
+
+    /**
+     * Have all requests been sent and answered or timed out?
+     */
+    public final boolean isComplete() {
+        return (count > 0) && (received.get() + lost.get() >= count);
+    }
+
+    public final IPv4Address getAddress() {
+        return address;
+    }
+
+    public final int getInterval() {
+        return interval;
+    }
+
+    public final int getSize() {
+        return size;
+    }
+
+    public final int getSent() {
+        return sent.get();
+    }
+
+    public final int getReceived() {
+        return received.get();
+    }
+
+    public final int getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Gets the round-trip times of the answered requests.
+     */
+    public final RttHistogram getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return address + ": " + sent.get() + " packets transmitted, " + received.get() +
+            " packets received, " + lost.get() + " lost, " + rtt;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.actions.ping;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hashed timer wheel driving all sends and timeouts of a ping engine from
+ * a single thread. Scheduling is lock-free and takes constant time, so
+ * thousands of outstanding requests do not need a timer thread each.
+ * Scheduled timeouts are queued and filed into the wheel by its own
+ * thread between ticks, so a timeout never lands in a slot being swept.
+ */
+final class PingTimerWheel extends Thread {
+
+    /** Duration of a tick in ms */
+    static final int TICK = 10;
+    /** Number of slots of the wheel, a power of two */
+    private static final int WHEEL_SIZE = 512;
+
+    private static final Log log = LogFactory.getLog(PingTimerWheel.class);
+    private static int autoNr = 0;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayList<Timeout>[] wheel = new ArrayList[WHEEL_SIZE];
+    /** Timeouts scheduled but not filed into the wheel yet */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final long start = System.currentTimeMillis();
+    /** The last tick processed, only used by the wheel thread */
+    private long currentTick = 0;
+    private volatile boolean stop = false;
+
+    /**
+     * Something to do when its time has come.
+     */
+    abstract static class Timeout {
+        /** Tick at which this timeout expires */
+        long deadline;
+
+        /**
+         * Called from the wheel thread when this timeout expires.
+         */
+        abstract void expire();
+    }
+
+    /**
+     * Create a new instance
+     */
+    PingTimerWheel() {
+        super(autoName());
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+        setDaemon(true);
+    }
+
+    /**
+     * Schedule a timeout.
+     * 
+     * @param timeout
+     * @param delay Delay in ms
+     */
+    void schedule(Timeout timeout, long delay) {
+        // The first tick at or after the time the timeout is due
+        final long due = System.currentTimeMillis() + Math.max(0, delay) - start;
+        timeout.deadline = (due + TICK - 1) / TICK;
+        pending.add(timeout);
+    }
+
+    /**
+     * Stop this wheel, pending timeouts never expire.
+     */
+    void shutdown() {
+        stop = true;
+        interrupt();
+    }
+
+    /**
+     * Expire the timeouts of each tick.
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        while (!stop) {
+            final long next = start + (currentTick + 1) * TICK;
+            final long wait = next - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+            final long tick = currentTick + 1;
+            transferPending(tick);
+            currentTick = tick;
+            final ArrayList<Timeout> slot = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+            final int size = slot.size();
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                final Timeout t = slot.get(i);
+                if (t.deadline > tick) {
+                    // Due in a later round of the wheel
+                    slot.set(kept++, t);
+                } else {
+                    try {
+                        t.expire();
+                    } catch (Throwable ex) {
+                        log.error("Error in ping timer", ex);
+                    }
+                }
+            }
+            slot.subList(kept, size).clear();
+        }
+    }
+
+    /**
+     * File the pending timeouts into the wheel, a timeout already due goes
+     * into the next tick.
+     * 
+     * @param next The tick about to be processed
+     */
+    private void transferPending(long next) {
+        Timeout t;
+        while ((t = pending.poll()) != null) {
+            if (t.deadline < next) {
+                t.deadline = next;
+            }
+            wheel[(int) (t.deadline & (WHEEL_SIZE - 1))].add(t);
+        }
+    }
+
+    private static synchronized String autoName() {
+        return "ping-timer-" + (autoNr++);
+    }
+}
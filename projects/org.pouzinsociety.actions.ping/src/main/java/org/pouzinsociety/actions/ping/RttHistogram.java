@@ -0,0 +1,159 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.actions.ping;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of round-trip times in microseconds, in the style of an HDR
+ * histogram: values are counted in buckets of a power of two, each split in
+ * 32 linear sub-buckets, so every recorded value is kept with a precision
+ * of about 3%. Recording is lock-free and takes constant time.
+ */
+public class RttHistogram {
+
+    /** Number of bits of the sub-bucket index */
+    private static final int SUB_BUCKET_BITS = 6;
+    /** Number of sub-buckets in the first bucket */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Number of sub-buckets in the other buckets */
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    /** Largest bucket index, values above it are counted in the last bucket */
+    private static final int MAX_BUCKET = 40;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray(((MAX_BUCKET + 1) << (SUB_BUCKET_BITS - 1)) + SUB_BUCKET_HALF);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a round-trip time.
+     * 
+     * @param micros
+     */
+    public void record(long micros) {
+        final long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value < (m = min.get()) && !min.compareAndSet(m, value)) {
+            // Retry
+        }
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Retry
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Gets the smallest recorded value, or 0 if nothing has been recorded.
+     */
+    public long getMin() {
+        return (total.get() == 0) ? 0 : min.get();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     */
+    public double getMean() {
+        final long n = total.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Gets the value below which the given percentage of the recorded values
+     * fall. The result is the highest value of its sub-bucket, capped at the
+     * largest recorded value.
+     * 
+     * @param percentile In the range 0..100
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        final double p = Math.min(100.0, Math.max(0.0, percentile));
+        final long target = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Gets the index of the sub-bucket counting the given value.
+     */
+    static int indexOf(long value) {
+        final int log2 = 63 - Long.numberOfLeadingZeros(value | 1);
+        final int bucket = Math.min(MAX_BUCKET, Math.max(0, log2 - (SUB_BUCKET_BITS - 1)));
+        final long sub = Math.min(SUB_BUCKET_COUNT - 1, value >>> bucket);
+        return (bucket << (SUB_BUCKET_BITS - 1)) + (int) sub;
+    }
+
+    /**
+     * Gets the highest value counted in the sub-bucket with the given index.
+     */
+    static long highestValueAt(int index) {
+        final int bucket = Math.max(0, (index >> (SUB_BUCKET_BITS - 1)) - 1);
+        final long sub = index - (bucket << (SUB_BUCKET_BITS - 1));
+        return ((sub + 1) << bucket) - 1;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return "rtt min/avg/max = " + ms(getMin()) + "/" + ms((long) getMean()) + "/" +
+            ms(getMax()) + " ms, p50/p90/p99/p99.9 = " + ms(getValueAtPercentile(50)) + "/" +
+            ms(getValueAtPercentile(90)) + "/" + ms(getValueAtPercentile(99)) + "/" +
+            ms(getValueAtPercentile(99.9)) + " ms";
+    }
+
+    private static String ms(long micros) {
+        final long frac = micros % 1000;
+        return (micros / 1000) + "." + ((frac < 10) ? "00" : (frac < 100) ? "0" : "") + frac;
+    }
+}
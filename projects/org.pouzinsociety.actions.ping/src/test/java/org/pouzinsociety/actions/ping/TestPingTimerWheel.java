@@ -0,0 +1,145 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.actions.ping;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Expiry of the timeouts of a ping timer wheel, and the per-target settings
+ * of the ping command.
+ */
+public class TestPingTimerWheel extends TestCase {
+
+	private PingTimerWheel wheel;
+
+	protected void setUp() {
+		wheel = new PingTimerWheel();
+		wheel.start();
+	}
+
+	protected void tearDown() {
+		wheel.shutdown();
+	}
+
+	/**
+	 * A timeout counting its expiries, and rescheduling itself a number
+	 * of times from the wheel thread.
+	 */
+	private final class Counter extends PingTimerWheel.Timeout {
+		final AtomicInteger expired = new AtomicInteger();
+		final CountDownLatch done;
+		final long delay;
+		long scheduled;
+		long late = Long.MAX_VALUE;
+
+		Counter(int times, long delay) {
+			this.done = new CountDownLatch(times);
+			this.delay = delay;
+		}
+
+		void schedule() {
+			scheduled = System.currentTimeMillis();
+			wheel.schedule(this, delay);
+		}
+
+		void expire() {
+			// Never early
+			late = Math.min(late, System.currentTimeMillis() - scheduled - delay);
+			expired.incrementAndGet();
+			done.countDown();
+			if (done.getCount() > 0) {
+				schedule();
+			}
+		}
+	}
+
+	public void testExpiresNotEarly() throws InterruptedException {
+		final Counter c = new Counter(1, 50);
+		c.schedule();
+		assertTrue(c.done.await(2, TimeUnit.SECONDS));
+		assertTrue(c.late >= -1);
+		Thread.sleep(PingTimerWheel.TICK * 5);
+		assertEquals(1, c.expired.get());
+	}
+
+	public void testZeroDelay() throws InterruptedException {
+		// Rescheduled from the slot being swept, each expires a tick later
+		final Counter c = new Counter(20, 0);
+		c.schedule();
+		assertTrue(c.done.await(2, TimeUnit.SECONDS));
+		assertEquals(20, c.expired.get());
+	}
+
+	public void testLaterRound() throws InterruptedException {
+		// Longer than a turn of the wheel
+		final Counter c = new Counter(1, PingTimerWheel.TICK * 600);
+		c.schedule();
+		assertFalse(c.done.await(PingTimerWheel.TICK * 500, TimeUnit.MILLISECONDS));
+		assertTrue(c.done.await(2, TimeUnit.SECONDS));
+		assertEquals(1, c.expired.get());
+	}
+
+	public void testManyFromOtherThreads() throws InterruptedException {
+		final Counter c = new Counter(1000, 0);
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 250; j++) {
+						wheel.schedule(new PingTimerWheel.Timeout() {
+							void expire() {
+								c.done.countDown();
+							}
+						}, j % 7);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		assertTrue(c.done.await(2, TimeUnit.SECONDS));
+	}
+
+	public void testTargetSettings() {
+		final String[] fields = "10.0.0.1:3::128".split(":");
+		assertEquals(3, PingCommand.setting(fields, 1, 4));
+		assertEquals(1000, PingCommand.setting(fields, 2, 1000));
+		assertEquals(128, PingCommand.setting(fields, 3, 64));
+		assertEquals(64, PingCommand.setting("10.0.0.1".split(":"), 3, 64));
+		try {
+			PingCommand.setting("10.0.0.1:x".split(":"), 1, 4);
+			fail("Bad count accepted");
+		} catch (NumberFormatException ex) {
+			// Expected
+		}
+	}
+}
@@ -43,12 +43,17 @@ public class DnsServerLauncher implements BootStrapCompleteAPI {
 		 * port 53
 		 */
 		try {
-		String primaryZoneDatabase = readResourceAsString("/DnsConfig/internal.db");
-		log.info("<PrimaryZone>\n" + primaryZoneDatabase + "\n</PrimaryZone>");
-		dnsServer.addPrimaryZone("internal", primaryZoneDatabase);
+		InputStream primaryZoneDatabase = this.getClass().getResourceAsStream("/DnsConfig/internal.db");
+		if (primaryZoneDatabase != null) {
+			try {
+				dnsServer.addPrimaryZone("internal", primaryZoneDatabase);
+			} finally {
+				primaryZoneDatabase.close();
+			}
+		}
 		
 		String cacheDatabase = readResourceAsString("/DnsConfig/cache.db");
-		log.info("<CacheDatabase>\n" + cacheDatabase + "\n</CacheDatabase>");
+		log.debug("<CacheDatabase>\n" + cacheDatabase + "\n</CacheDatabase>");
 		dnsServer.setCache(cacheDatabase);
 		
 		log.info("<TSIG>hmac-md5,xbill.org,1234</TSIG>");
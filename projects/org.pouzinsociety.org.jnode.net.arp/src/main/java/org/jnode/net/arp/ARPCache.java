@@ -40,48 +40,95 @@ package org.jnode.net.arp;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
 import org.jnode.net.HardwareAddress;
 import org.jnode.net.ProtocolAddress;
 
 /**
- * Cache of ARP entries
+ * Cache of ARP entries. Lookups are lock-free; updates of a mapping are
+ * serialized. Dynamic entries are expired by a timer wheel driven from
+ * the ARP timer, entries that are in use are refreshed before they expire.
  * 
  * @author epr
  */
-public class ARPCache {
+public class ARPCache implements ARPConstants {
 
     /** My logger */
     private static final Log log = LogFactory.getLog(ARPCache.class);
-    private final HashMap<HardwareAddress, ARPCacheEntry> hw2p =
-            new HashMap<HardwareAddress, ARPCacheEntry>();
-    private final HashMap<ProtocolAddress, ARPCacheEntry> p2hw =
-            new HashMap<ProtocolAddress, ARPCacheEntry>();
+    private final ConcurrentHashMap<HardwareAddress, ARPCacheEntry> hw2p =
+            new ConcurrentHashMap<HardwareAddress, ARPCacheEntry>();
+    private final ConcurrentHashMap<ProtocolAddress, ARPCacheEntry> p2hw =
+            new ConcurrentHashMap<ProtocolAddress, ARPCacheEntry>();
+    /** Neighbors being resolved, with their queued packets */
+    private final ConcurrentHashMap<ProtocolAddress, ARPPendingEntry> pending =
+            new ConcurrentHashMap<ProtocolAddress, ARPPendingEntry>();
+    /** Expiry of dynamic entries */
+    private final ARPTimerWheel wheel = new ARPTimerWheel(ARP_WHEEL_SIZE, ARP_TIMER_PERIOD);
+    /** Incremented every time a protocol address mapping changes */
+    private volatile int generation;
+    /** Number of threads in waitForChanges */
+    private int waiters;
 
     /**
-     * Remove all cached entries
+     * Remove all cached entries. Packets queued for unresolved neighbors
+     * are dropped.
      */
     public synchronized void clear() {
         hw2p.clear();
         p2hw.clear();
+        wheel.clear();
+        for (ARPPendingEntry entry : pending.values()) {
+            entry.close();
+        }
+        pending.clear();
+        generation++;
     }
 
     /**
-     * Update/Add an extry to the cache
+     * Update/Add an extry to the cache. Packets queued while the protocol
+     * address was being resolved are transmitted.
      * 
      * @param hwAddress
      * @param pAddress
      */
-    public synchronized void set(HardwareAddress hwAddress, ProtocolAddress pAddress,
-            boolean dynamic) {
-        final ARPCacheEntry entry = new ARPCacheEntry(hwAddress, pAddress, dynamic);
-        hw2p.put(hwAddress, entry);
-        p2hw.put(pAddress, entry);
-        // log.debug("Adding ARP cache " + hwAddress + " - " + pAddress);
-        notifyAll();
+    public void set(HardwareAddress hwAddress, ProtocolAddress pAddress, boolean dynamic) {
+        final long now = System.currentTimeMillis();
+        // Reconfirming an unchanged mapping is the common case, it needs no lock
+        final ARPCacheEntry current = p2hw.get(pAddress);
+        if ((current != null) && (current.isDynamic() == dynamic) &&
+                current.getHwAddress().equals(hwAddress) && !current.isExpired(now) &&
+                !pending.containsKey(pAddress)) {
+            current.confirm(now);
+            return;
+        }
+
+        final ARPPendingEntry resolved;
+        synchronized (this) {
+            final ARPCacheEntry entry = new ARPCacheEntry(hwAddress, pAddress, dynamic);
+            hw2p.put(hwAddress, entry);
+            final ARPCacheEntry old = p2hw.put(pAddress, entry);
+            if ((old == null) || !old.getHwAddress().equals(hwAddress)) {
+                generation++;
+            }
+            if (dynamic) {
+                wheel.schedule(entry, entry.getExpiryTime() - ARP_REFRESH_TIME);
+            }
+            resolved = pending.remove(pAddress);
+            // log.debug("Adding ARP cache " + hwAddress + " - " + pAddress);
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+        // Transmit outside the lock, the driver may block
+        if (resolved != null) {
+            resolved.flush(hwAddress);
+        }
     }
 
     /**
@@ -90,20 +137,112 @@ public class ARPCache {
      * 
      * @param pAddress
      */
-    public synchronized HardwareAddress get(ProtocolAddress pAddress) {
-        final ARPCacheEntry entry = (ARPCacheEntry) p2hw.get(pAddress);
+    public HardwareAddress get(ProtocolAddress pAddress) {
+        final ARPCacheEntry entry = getEntry(pAddress);
+        return (entry != null) ? entry.getHwAddress() : null;
+    }
+
+    /**
+     * Gets the cache entry for the given protocol address, or null if not
+     * found or expired.
+     * 
+     * @param pAddress
+     */
+    public ARPCacheEntry getEntry(ProtocolAddress pAddress) {
+        final ARPCacheEntry entry = p2hw.get(pAddress);
         if (entry == null) {
             return null;
         }
-        if (entry.isExpired()) {
-            log.debug("Removing expired ARP entry " + entry);
-            p2hw.remove(pAddress);
-            if (hw2p.get(entry.getHwAddress()) == entry) {
-                hw2p.remove(entry.getHwAddress());
-            }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            remove(entry);
             return null;
         }
-        return entry.getHwAddress();
+        return entry;
+    }
+
+    /**
+     * Gets the pending entry of an unresolved protocol address, creating
+     * it when needed. Returns null if the address has been resolved
+     * meanwhile.
+     * 
+     * @param pAddress
+     * @param myAddress
+     * @param device
+     * @param api
+     */
+    synchronized ARPPendingEntry getPending(ProtocolAddress pAddress, ProtocolAddress myAddress,
+            Device device, NetDeviceAPI api) {
+        if (getEntry(pAddress) != null) {
+            return null;
+        }
+        ARPPendingEntry entry = pending.get(pAddress);
+        if (entry == null) {
+            entry = new ARPPendingEntry(pAddress, myAddress, device, api);
+            pending.put(pAddress, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Gets all neighbors that are being resolved.
+     */
+    Collection<ARPPendingEntry> pendingEntries() {
+        return new ArrayList<ARPPendingEntry>(pending.values());
+    }
+
+    /**
+     * Remove the given pending entry, if it is still registered.
+     * 
+     * @param entry
+     */
+    boolean removePending(ARPPendingEntry entry) {
+        return pending.remove(entry.getAddress(), entry);
+    }
+
+    /**
+     * Expire the entries whose deadline has passed. Entries that have been
+     * reconfirmed meanwhile are rescheduled, entries in use that are about
+     * to expire are rescheduled at their expiry time and returned, so the
+     * caller can refresh them.
+     * 
+     * @param now
+     * @return The entries to refresh
+     */
+    List<ARPCacheEntry> expire(long now) {
+        final List<ARPCacheEntry> refresh = new ArrayList<ARPCacheEntry>();
+        for (ARPCacheEntry entry : wheel.advance(now)) {
+            if (p2hw.get(entry.getPAddress()) != entry) {
+                // Replaced by a newer entry
+                continue;
+            }
+            final long expires = entry.getExpiryTime();
+            if (now >= expires) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Removing expired ARP entry " + entry);
+                }
+                remove(entry);
+            } else if (now < expires - ARP_REFRESH_TIME) {
+                wheel.schedule(entry, expires - ARP_REFRESH_TIME);
+            } else {
+                wheel.schedule(entry, expires);
+                if (entry.isHot(now)) {
+                    refresh.add(entry);
+                }
+            }
+        }
+        return refresh;
+    }
+
+    /**
+     * Remove the given entry, if it is still the current mapping.
+     * 
+     * @param entry
+     */
+    private synchronized void remove(ARPCacheEntry entry) {
+        if (p2hw.remove(entry.getPAddress(), entry)) {
+            generation++;
+        }
+        hw2p.remove(entry.getHwAddress(), entry);
     }
 
     /**
@@ -112,25 +251,31 @@ public class ARPCache {
      * 
      * @param hwAddress
      */
-    public synchronized ProtocolAddress get(HardwareAddress hwAddress) {
-        final ARPCacheEntry entry = (ARPCacheEntry) hw2p.get(hwAddress);
+    public ProtocolAddress get(HardwareAddress hwAddress) {
+        final ARPCacheEntry entry = hw2p.get(hwAddress);
         if (entry == null) {
             return null;
         }
-        if (entry.isExpired()) {
-            hw2p.remove(hwAddress);
-            if (p2hw.get(entry.getPAddress()) == entry) {
-                p2hw.remove(entry.getPAddress());
-            }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            remove(entry);
             return null;
         }
         return entry.getPAddress();
     }
 
+    /**
+     * Gets the generation of this cache. The generation changes every time
+     * the hardware address of a protocol address changes or is removed, so
+     * cached resolutions can be validated by comparing generations.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
     /**
      * Return all cache-entries.
      */
-    public synchronized Collection<ARPCacheEntry> entries() {
+    public Collection<ARPCacheEntry> entries() {
         return new ArrayList<ARPCacheEntry>(hw2p.values());
     }
 
@@ -138,10 +283,13 @@ public class ARPCache {
      * Wait for any change in the cache
      */
     public synchronized void waitForChanges(long timeout) {
+        waiters++;
         try {
             wait(timeout);
         } catch (InterruptedException ex) {
             // Ignore
+        } finally {
+            waiters--;
         }
     }
 }
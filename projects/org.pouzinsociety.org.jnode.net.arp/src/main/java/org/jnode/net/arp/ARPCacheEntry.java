@@ -21,6 +21,7 @@
  
 package org.jnode.net.arp;
 
+import org.jnode.driver.Device;
 import org.jnode.net.HardwareAddress;
 import org.jnode.net.ProtocolAddress;
 
@@ -29,12 +30,23 @@ import org.jnode.net.ProtocolAddress;
  * 
  * @author epr
  */
-public class ARPCacheEntry {
+public class ARPCacheEntry implements ARPConstants {
 
     private final long creationTime;
     private final HardwareAddress hwAddress;
     private final ProtocolAddress pAddress;
     private final boolean dynamic;
+    /** Time the hardware address was last confirmed */
+    private volatile long confirmedTime;
+    /** Time this entry was last looked up by a sender */
+    private volatile long lastUsed;
+    /** Source address and device of the last sender, used for refreshes */
+    private volatile ProtocolAddress usedBy;
+    private volatile Device usedOn;
+    /** Time of the last reachability probe for this entry */
+    private long lastProbe;
+    /** Deadline in the expiry timer wheel, guarded by the wheel */
+    long deadline;
 
     /**
      * Create a new instance
@@ -47,6 +59,7 @@ public class ARPCacheEntry {
         this.hwAddress = hwAddress;
         this.pAddress = pAddress;
         this.creationTime = System.currentTimeMillis();
+        this.confirmedTime = creationTime;
         this.dynamic = dynamic;
     }
 
@@ -57,13 +70,112 @@ public class ARPCacheEntry {
         return creationTime;
     }
 
+    /**
+     * Gets the time the hardware address was last confirmed
+     */
+    public long getConfirmedTime() {
+        return confirmedTime;
+    }
+
+    /**
+     * The hardware address has been confirmed again.
+     * 
+     * @param now
+     */
+    final void confirm(long now) {
+        if (now > confirmedTime) {
+            confirmedTime = now;
+        }
+    }
+
+    /**
+     * Record that a sender has looked up this entry.
+     * 
+     * @param now
+     * @param myAddress
+     * @param device
+     */
+    final void use(long now, ProtocolAddress myAddress, Device device) {
+        lastUsed = now;
+        if (usedOn != device) {
+            usedOn = device;
+        }
+        if (usedBy != myAddress) {
+            usedBy = myAddress;
+        }
+    }
+
     /**
      * Is this entry expired?
      */
     public boolean isExpired() {
-        final long age = (System.currentTimeMillis() - creationTime);
-        // TODO make ARP cache lifetime configurable
-        return (age >= 10 * 60 * 1000);
+        return isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Is this entry expired at the given time? Static entries never expire.
+     * 
+     * @param now
+     */
+    public boolean isExpired(long now) {
+        return dynamic && ((now - confirmedTime) >= ARP_CACHE_TIMEOUT);
+    }
+
+    /**
+     * Gets the time this entry expires
+     */
+    final long getExpiryTime() {
+        return confirmedTime + ARP_CACHE_TIMEOUT;
+    }
+
+    /**
+     * Has this entry been used by a sender recently enough to be refreshed
+     * before it expires?
+     * 
+     * @param now
+     */
+    final boolean isHot(long now) {
+        return (usedOn != null) && ((now - lastUsed) < ARP_HOT_TIME);
+    }
+
+    /**
+     * Gets the source address of the last sender that used this entry
+     */
+    final ProtocolAddress getUsedBy() {
+        return usedBy;
+    }
+
+    /**
+     * Gets the device of the last sender that used this entry
+     */
+    final Device getUsedOn() {
+        return usedOn;
+    }
+
+    /**
+     * Gets the neighbor state of this entry, either ARP_REACHABLE or
+     * ARP_STALE. Static entries are always reachable.
+     */
+    public int getState() {
+        if (!dynamic) {
+            return ARP_REACHABLE;
+        }
+        final long age = (System.currentTimeMillis() - confirmedTime);
+        return (age < ARP_REACHABLE_TIME) ? ARP_REACHABLE : ARP_STALE;
+    }
+
+    /**
+     * Should a probe be sent to reconfirm this (stale) entry?
+     * Returns true at most once every ARP_REQUEST_DELAY.
+     * 
+     * @param now
+     */
+    public synchronized boolean probeDue(long now) {
+        if ((now - lastProbe) < ARP_REQUEST_DELAY) {
+            return false;
+        }
+        lastProbe = now;
+        return true;
     }
 
     /**
@@ -34,4 +34,35 @@ public interface ARPConstants {
 
     /** Delay between ARP requests */
     public static final int ARP_REQUEST_DELAY = 1500;
+
+    /** Neighbor state: an ARP request is outstanding */
+    public static final int ARP_INCOMPLETE = 1;
+    /** Neighbor state: the hardware address was confirmed recently */
+    public static final int ARP_REACHABLE = 2;
+    /** Neighbor state: the hardware address may be used, but should be reconfirmed */
+    public static final int ARP_STALE = 3;
+
+    /** Time (ms) a dynamic entry stays reachable after it has been confirmed */
+    public static final int ARP_REACHABLE_TIME = 30000;
+
+    /** Time (ms) an unresolved neighbor is kept before its queued packets are dropped */
+    public static final int ARP_RESOLVE_TIMEOUT = 5000;
+
+    /** Maximum number of packets queued per unresolved neighbor */
+    public static final int ARP_QUEUE_LENGTH = 16;
+
+    /** Interval (ms) of the ARP timer */
+    public static final int ARP_TIMER_PERIOD = 500;
+
+    /** Time (ms) a dynamic entry is kept after it has last been confirmed */
+    public static final int ARP_CACHE_TIMEOUT = 10 * 60 * 1000;
+
+    /** Time (ms) before expiry at which an entry in use is refreshed */
+    public static final int ARP_REFRESH_TIME = 60000;
+
+    /** An entry is in use when it has been looked up within this time (ms) */
+    public static final int ARP_HOT_TIME = 2 * 60 * 1000;
+
+    /** Number of slots of the expiry timer wheel */
+    public static final int ARP_WHEEL_SIZE = 256;
 }
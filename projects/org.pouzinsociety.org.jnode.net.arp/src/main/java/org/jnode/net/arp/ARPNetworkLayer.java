@@ -75,14 +75,27 @@ public class ARPNetworkLayer implements NetworkLayer, ARPConstants, ARPService {
      */
     private final ARPStatistics stat = new ARPStatistics();
     /**
-     * ARP cache
+     * ARP cache of this stack
      */
-    private static final ARPCache cache = new ARPCache();
+    private final ARPCache cache = new ARPCache();
+    /**
+     * Timer retransmitting and expiring unresolved requests
+     */
+    private final ARPTimer timer;
 
     /**
      * Create a new instance
      */
     public ARPNetworkLayer() {
+        timer = new ARPTimer(this);
+        timer.start();
+    }
+
+    /**
+     * Stop the timer threads of this layer.
+     */
+    public void shutdown() {
+        timer.shutdown();
     }
 
     /**
@@ -297,9 +310,9 @@ public class ARPNetworkLayer implements NetworkLayer, ARPConstants, ARPService {
                 // Still not correct response
                 throw new TimeoutException("Timeout in ARP request");
             }
-            // Try to send a request every few seconds
-            if ((now - lastReq) >= ARP_REQUEST_DELAY) {
-                lastReq = now;
+            // Share the outstanding request with other resolvers
+            final ARPPendingEntry pending = cache.getPending(address, myAddress, device, getAPI(device));
+            if ((pending != null) && pending.requestDue(now)) {
                 request(address, myAddress, device);
             } else {
                 cache.waitForChanges(Math.min(timeout, ARP_REQUEST_DELAY));
@@ -308,6 +321,117 @@ public class ARPNetworkLayer implements NetworkLayer, ARPConstants, ARPService {
 
     }
 
+    /**
+     * Gets the cached hardware address for a given protocol address without
+     * blocking, or null if it is not known. The lookup marks the entry as
+     * in use, so it is refreshed before it expires.
+     *
+     * @param address
+     * @param myAddress
+     * @param device
+     */
+    public HardwareAddress lookup(ProtocolAddress address, ProtocolAddress myAddress,
+                                  Device device) {
+        final ARPCacheEntry entry = cache.getEntry(address);
+        if (entry == null) {
+            return null;
+        }
+        entry.use(System.currentTimeMillis(), myAddress, device);
+        return entry.getHwAddress();
+    }
+
+    /**
+     * Transmit a packet to the neighbor with the given protocol address
+     * without blocking. If the hardware address is not known yet, the packet
+     * is queued until the ARP reply arrives; a single request is outstanding
+     * per neighbor. Stale entries are used, but reconfirmed with a new request.
+     *
+     * @param skbuf
+     * @param address
+     * @param myAddress
+     * @param device
+     * @throws NetworkException
+     */
+    public void transmit(SocketBuffer skbuf, ProtocolAddress address, ProtocolAddress myAddress,
+                         Device device) throws NetworkException {
+        final NetDeviceAPI api = getAPI(device);
+        if (address.equals(myAddress)) {
+            api.transmit(skbuf, api.getAddress());
+            return;
+        }
+
+        while (true) {
+            final ARPCacheEntry entry = cache.getEntry(address);
+            final long now = System.currentTimeMillis();
+            if (entry != null) {
+                entry.use(now, myAddress, device);
+                if ((entry.getState() == ARP_STALE) && entry.probeDue(now)) {
+                    request(address, myAddress, device);
+                }
+                api.transmit(skbuf, entry.getHwAddress());
+                return;
+            }
+            final ARPPendingEntry pending = cache.getPending(address, myAddress, device, api);
+            if (pending == null) {
+                // Resolved meanwhile
+                continue;
+            }
+            switch (pending.add(skbuf)) {
+                case ARPPendingEntry.QUEUED:
+                    stat.queued.inc();
+                    if (pending.requestDue(now)) {
+                        request(address, myAddress, device);
+                    }
+                    return;
+                case ARPPendingEntry.DROPPED:
+                    stat.unresolved.inc();
+                    return;
+                default:
+                    // Resolved or expired meanwhile, try again
+                    cache.removePending(pending);
+            }
+        }
+    }
+
+    /**
+     * Retransmit requests for neighbors that are still being resolved and
+     * drop the packets of neighbors that could not be resolved in time.
+     * Expire cache entries and refresh the entries that are in use.
+     * Called by the ARP timer.
+     */
+    final void timeout() {
+        final long now = System.currentTimeMillis();
+        for (ARPCacheEntry entry : cache.expire(now)) {
+            if (entry.probeDue(now)) {
+                try {
+                    request(entry.getPAddress(), entry.getUsedBy(), entry.getUsedOn());
+                } catch (NetworkException ex) {
+                    log.debug("Cannot refresh ARP entry " + entry, ex);
+                }
+            }
+        }
+        for (ARPPendingEntry pending : cache.pendingEntries()) {
+            if (pending.isExpired(now)) {
+                if (cache.removePending(pending)) {
+                    final int dropped = pending.close().length;
+                    for (int i = 0; i < dropped; i++) {
+                        stat.unresolved.inc();
+                    }
+                    if (log.isDebugEnabled()) {
+                        log.debug("Cannot resolve " + pending.getAddress() + ", dropped " +
+                            dropped + " packets");
+                    }
+                }
+            } else if (pending.requestDue(now)) {
+                try {
+                    request(pending.getAddress(), pending.getMyAddress(), pending.getDevice());
+                } catch (NetworkException ex) {
+                    log.debug("Cannot send ARP request", ex);
+                }
+            }
+        }
+    }
+
     /**
      * Gets the protocol addresses for a given name, or null if not found.
      *
@@ -340,6 +464,8 @@ public class ARPNetworkLayer implements NetworkLayer, ARPConstants, ARPService {
         skbuf.setProtocolID(EthernetConstants.ETH_P_ARP);
         hdr.prefixTo(skbuf);
 
+        stat.requests.inc();
+        stat.opackets.inc();
         api.transmit(skbuf, trgHwAddr);
     }
 
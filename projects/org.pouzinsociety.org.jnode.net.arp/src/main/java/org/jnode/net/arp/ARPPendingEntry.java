@@ -0,0 +1,164 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.arp;
+
+import java.util.LinkedList;
+
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
+import org.jnode.driver.net.NetworkException;
+import org.jnode.net.HardwareAddress;
+import org.jnode.net.ProtocolAddress;
+import org.jnode.net.SocketBuffer;
+
+/**
+ * A neighbor in the ARP_INCOMPLETE state: an ARP request is outstanding and
+ * packets for the neighbor are parked here until the reply arrives.
+ */
+final class ARPPendingEntry implements ARPConstants {
+
+    /** Result of add: the packet is queued */
+    static final int QUEUED = 0;
+    /** Result of add: the queue is full, the packet is dropped */
+    static final int DROPPED = 1;
+    /** Result of add: the entry was resolved or expired meanwhile */
+    static final int CLOSED = 2;
+
+    private final ProtocolAddress address;
+    private final ProtocolAddress myAddress;
+    private final Device device;
+    private final NetDeviceAPI api;
+    private final long creationTime;
+    private final LinkedList<SocketBuffer> queue = new LinkedList<SocketBuffer>();
+    private long lastRequest;
+    private boolean closed;
+
+    /**
+     * Create a new instance
+     * 
+     * @param address
+     * @param myAddress
+     * @param device
+     * @param api
+     */
+    ARPPendingEntry(ProtocolAddress address, ProtocolAddress myAddress, Device device,
+            NetDeviceAPI api) {
+        this.address = address;
+        this.myAddress = myAddress;
+        this.device = device;
+        this.api = api;
+        this.creationTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Queue a packet until the hardware address is known.
+     * 
+     * @param skbuf
+     * @return QUEUED, DROPPED or CLOSED
+     */
+    synchronized int add(SocketBuffer skbuf) {
+        if (closed) {
+            return CLOSED;
+        }
+        if (queue.size() >= ARP_QUEUE_LENGTH) {
+            return DROPPED;
+        }
+        queue.add(skbuf);
+        return QUEUED;
+    }
+
+    /**
+     * Should a (new) ARP request be sent for this neighbor?
+     * Returns true at most once every ARP_REQUEST_DELAY.
+     * 
+     * @param now
+     */
+    synchronized boolean requestDue(long now) {
+        if (closed || ((now - lastRequest) < ARP_REQUEST_DELAY)) {
+            return false;
+        }
+        lastRequest = now;
+        return true;
+    }
+
+    /**
+     * Has the resolution of this neighbor timed out?
+     * 
+     * @param now
+     */
+    boolean isExpired(long now) {
+        return ((now - creationTime) >= ARP_RESOLVE_TIMEOUT);
+    }
+
+    /**
+     * Close this entry and transmit all queued packets to the given hardware
+     * address.
+     * 
+     * @param hwAddress
+     */
+    void flush(HardwareAddress hwAddress) {
+        final SocketBuffer[] packets = close();
+        for (int i = 0; i < packets.length; i++) {
+            try {
+                api.transmit(packets[i], hwAddress);
+            } catch (NetworkException ex) {
+                // The packet is lost, just like a dropped frame
+            }
+        }
+    }
+
+    /**
+     * Close this entry and return the queued packets.
+     */
+    synchronized SocketBuffer[] close() {
+        closed = true;
+        final SocketBuffer[] packets = queue.toArray(new SocketBuffer[queue.size()]);
+        queue.clear();
+        return packets;
+    }
+
+    /**
+     * Gets the protocol address being resolved
+     */
+    ProtocolAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Gets the protocol address used as source of the ARP requests
+     */
+    ProtocolAddress getMyAddress() {
+        return myAddress;
+    }
+
+    /**
+     * Gets the device the neighbor is attached to
+     */
+    Device getDevice() {
+        return device;
+    }
+}
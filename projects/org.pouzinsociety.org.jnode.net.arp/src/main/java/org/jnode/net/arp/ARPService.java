@@ -28,6 +28,7 @@ package org.jnode.net.arp;
 
 import org.jnode.net.HardwareAddress;
 import org.jnode.net.ProtocolAddress;
+import org.jnode.net.SocketBuffer;
 import org.jnode.util.TimeoutException;
 import org.jnode.driver.Device;
 import org.jnode.driver.net.NetworkException;
@@ -36,4 +37,19 @@ public interface ARPService {
 	public ARPCache getCache();
 	public HardwareAddress getHardwareAddress(ProtocolAddress address, ProtocolAddress myAddress,
             Device device, long timeout) throws TimeoutException, NetworkException;
+
+	/**
+	 * Gets the cached hardware address for a given protocol address without
+	 * blocking, or null if it is not known.
+	 */
+	public HardwareAddress lookup(ProtocolAddress address, ProtocolAddress myAddress,
+            Device device);
+
+	/**
+	 * Transmit a packet to the neighbor with the given protocol address
+	 * without blocking. If the hardware address is not known yet, the packet
+	 * is queued until the neighbor is resolved and dropped if it cannot be.
+	 */
+	public void transmit(SocketBuffer skbuf, ProtocolAddress address, ProtocolAddress myAddress,
+            Device device) throws NetworkException;
 }
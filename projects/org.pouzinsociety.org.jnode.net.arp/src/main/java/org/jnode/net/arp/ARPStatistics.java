@@ -39,9 +39,15 @@ public class ARPStatistics implements Statistics {
     protected final Counter rarpreq = new Counter("rarpreq", "#received RARP requests");
     protected final Counter rarpreply = new Counter("rarpreply", "#RARP replies send");
     protected final Counter opackets = new Counter("opackets", "total #output packets");
+    protected final Counter requests = new Counter("requests", "#ARP requests send");
+    protected final Counter queued =
+            new Counter("queued", "#packets queued waiting for address resolution");
+    protected final Counter unresolved =
+            new Counter("unresolved", "#packets dropped because resolution failed or the queue was full");
 
     private final Statistic[] list =
-            new Statistic[] {badlen, ipackets, arpreq, arpreply, rarpreq, rarpreply, opackets};
+            new Statistic[] {badlen, ipackets, arpreq, arpreply, rarpreq, rarpreply, opackets,
+                requests, queued, unresolved};
 
     /**
      * Gets all statistics
@@ -0,0 +1,113 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.arp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for the expiry of ARP cache entries. Each slot covers
+ * one timer tick; entries whose deadline lies more than one revolution
+ * ahead stay in their slot until a later revolution.
+ */
+final class ARPTimerWheel {
+
+    private final ArrayList<ArrayList<ARPCacheEntry>> slots;
+    private final long tick;
+    /** The last tick that has been processed */
+    private long current;
+
+    /**
+     * Create a new instance
+     * 
+     * @param size Number of slots
+     * @param tick Duration (ms) of a slot
+     */
+    ARPTimerWheel(int size, long tick) {
+        this.slots = new ArrayList<ArrayList<ARPCacheEntry>>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(new ArrayList<ARPCacheEntry>());
+        }
+        this.tick = tick;
+        this.current = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * Schedule an entry at the given time. Deadlines in the past fire at
+     * the next tick.
+     * 
+     * @param entry
+     * @param deadline
+     */
+    synchronized void schedule(ARPCacheEntry entry, long deadline) {
+        entry.deadline = deadline;
+        final long t = Math.max(deadline / tick, current + 1);
+        slots.get((int) (t % slots.size())).add(entry);
+    }
+
+    /**
+     * Advance the wheel to the given time and return all entries whose
+     * deadline has passed. The returned entries are no longer scheduled.
+     * 
+     * @param now
+     */
+    synchronized List<ARPCacheEntry> advance(long now) {
+        final List<ARPCacheEntry> due = new ArrayList<ARPCacheEntry>();
+        final long target = now / tick;
+        // Visit every slot at most once
+        current = Math.max(current, target - slots.size());
+        while (current < target) {
+            current++;
+            final ArrayList<ARPCacheEntry> slot = slots.get((int) (current % slots.size()));
+            if (slot.isEmpty()) {
+                continue;
+            }
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                final ARPCacheEntry entry = slot.get(i);
+                if ((entry.deadline / tick) <= current) {
+                    due.add(entry);
+                } else {
+                    slot.set(kept++, entry);
+                }
+            }
+            while (slot.size() > kept) {
+                slot.remove(slot.size() - 1);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Remove all entries
+     */
+    synchronized void clear() {
+        for (ArrayList<ARPCacheEntry> slot : slots) {
+            slot.clear();
+        }
+    }
+}
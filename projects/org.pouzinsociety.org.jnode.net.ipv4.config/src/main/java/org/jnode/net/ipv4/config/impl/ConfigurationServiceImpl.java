@@ -139,7 +139,7 @@ public class ConfigurationServiceImpl implements IPv4ConfigurationService {
             // Find the device ourselves
             device = findDevice(deviceManager, target, target.getDefaultSubnetmask() );
         }
-        log.info(ipv4Service);
+        log.debug("Adding route " + target + "/" + netmask + " to " + ipv4Service);
         final IPv4RoutingTable rt = ipv4Service.getRoutingTable();
         IPv4Route route = new IPv4Route(target, netmask, gateway, device);
         rt.add(route);
@@ -71,4 +71,16 @@ public interface ICMPConstants {
     public static final int ICMP_EXC_TTL        = 0; /* TTL count exceeded */
     public static final int ICMP_EXC_FRAGTIME   = 1; /* Fragment Reass time exceeded */
 
+    /* Rate limiting of ICMP error messages. */
+    public static final int ICMP_ERROR_RATE     = 100; /* Error messages per second */
+    public static final int ICMP_ERROR_BURST    = 50;  /* Error messages send back-to-back */
+    public static final int ICMP_ERROR_DST_RATE = 10;  /* Error messages per second per destination */
+    public static final int ICMP_ERROR_DST_BURST = 6;  /* Error messages send back-to-back per destination */
+
+    /* Rate limiting of ICMP echo replies. */
+    public static final int ICMP_ECHO_RATE      = 10000; /* Echo replies per second */
+    public static final int ICMP_ECHO_BURST     = 1000;  /* Echo replies send back-to-back */
+    public static final int ICMP_ECHO_DST_RATE  = 1000;  /* Echo replies per second per destination */
+    public static final int ICMP_ECHO_DST_BURST = 100;   /* Echo replies send back-to-back per destination */
+
 }
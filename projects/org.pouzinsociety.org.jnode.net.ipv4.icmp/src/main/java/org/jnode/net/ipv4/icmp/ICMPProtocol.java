@@ -41,14 +41,14 @@ import java.util.Vector;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
+import org.jnode.net.NoSuchProtocolException;
 import org.jnode.net.SocketBuffer;
+import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
 import org.jnode.net.ipv4.IPv4Header;
 import org.jnode.net.ipv4.IPv4Protocol;
 import org.jnode.net.ipv4.IPv4Service;
-import org.jnode.util.Queue;
-import org.jnode.util.QueueProcessor;
-import org.jnode.util.QueueProcessorThread;
+import org.jnode.net.ipv4.IPv4Utils;
 import org.jnode.util.Statistics;
 
 /**
@@ -56,8 +56,7 @@ import org.jnode.util.Statistics;
  * 
  * @author Ewout Prangsma (epr@users.sourceforge.net)
  */
-public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
-        QueueProcessor<SocketBuffer> {
+public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants {
 
     /** My logger */
     private Log log = LogFactory.getLog(getClass());
@@ -69,14 +68,22 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
     /** The statistics */
     private final ICMPStatistics stat = new ICMPStatistics();
 
-    /** Queue<SocketBuffer> for requests that need a reply */
-    private final Queue<SocketBuffer> replyRequestQueue = new Queue<SocketBuffer>();
+    /** Rate limit of the error messages sent by this stack */
+    private final ICMPRateLimiter errorLimiter = new ICMPRateLimiter(ICMP_ERROR_RATE,
+        ICMP_ERROR_BURST, ICMP_ERROR_DST_RATE, ICMP_ERROR_DST_BURST);
 
-    private final QueueProcessorThread<SocketBuffer> replyRequestsThread;
+    /** Rate limit of the echo replies */
+    private final ICMPRateLimiter echoLimiter = new ICMPRateLimiter(ICMP_ECHO_RATE,
+        ICMP_ECHO_BURST, ICMP_ECHO_DST_RATE, ICMP_ECHO_DST_BURST);
 
     /** ICMP packet listeners */
     private final Vector<ICMPListener> listeners = new Vector<ICMPListener>();
 
+    /** MTU plateaus (RFC 1191 section 7), in descending order */
+    private static final int[] MTU_PLATEAUS = {
+        32000, 17914, 8166, 4352, 2002, 1492, 1006, 508, 296, IP_MIN_MTU
+    };
+
     /**
      * Create a new instance
      * 
@@ -84,10 +91,6 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
      */
     public ICMPProtocol(IPv4Service ipService) {
     	this.ipService = ipService;
-    	this.replyRequestsThread =
-    		new QueueProcessorThread<SocketBuffer>("icmp-reply", replyRequestQueue, this);
-    	replyRequestsThread.start();
-    	
     	ipService.registerProtocol(this);
     }
 
@@ -127,11 +130,20 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
 
             switch (hdr.getType()) {
                 case ICMP_ECHO:
-                    postReplyRequest(skbuf);
+                    final IPv4Header ipHdr = (IPv4Header) skbuf.getNetworkLayerHeader();
+                    if (echoLimiter.acquire(ipHdr.getSource())) {
+                        sendEchoReply(hdr, skbuf);
+                    } else {
+                        stat.echolimited.inc();
+                    }
                     break;
                 case ICMP_ECHOREPLY:
                     notifyListeners(skbuf);
                     break;
+                case ICMP_DEST_UNREACH:
+                case ICMP_TIME_EXCEEDED:
+                    processError(hdr, skbuf);
+                    break;
                 default:
                     log.debug("GOT ICMP type " + hdr.getType() + ", code " + hdr.getCode());
             }
@@ -141,6 +153,57 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
         }
     }
 
+    /**
+     * Process a received ICMP error message. A "fragmentation needed" message
+     * lowers the path MTU to the destination of the original datagram. The
+     * message is then passed to the protocol of the original datagram.
+     * 
+     * @param hdr
+     * @param skbuf Positioned directly after the ICMP header
+     */
+    private void processError(ICMPHeader hdr, SocketBuffer skbuf) throws SocketException {
+        // The original IP header and at least 8 bytes of its data (RFC 792)
+        if ((skbuf.getSize() < IP_HLEN) || (skbuf.getSize() < (skbuf.get(0) & 0x0f) * 4 + 8)) {
+            stat.badlen.inc();
+            return;
+        }
+        final IPv4Header origHdr = new IPv4Header(skbuf);
+
+        if ((hdr.getType() == ICMP_DEST_UNREACH) && (hdr.getCode() == ICMP_FRAG_NEEDED)) {
+            int mtu = ((ICMPUnreachableHeader) hdr).getNextHopMTU();
+            if (mtu == 0) {
+                // Sent by a router that predates RFC 1191
+                mtu = getPlateauMTU(origHdr.getTotalLength());
+            }
+            if (ipService.updatePathMTU(origHdr.getDestination(), mtu)) {
+                stat.pmtu.inc();
+            }
+        }
+
+        final IPv4Protocol protocol;
+        try {
+            protocol = ipService.getProtocol(origHdr.getProtocol());
+        } catch (NoSuchProtocolException ex) {
+            return;
+        }
+        stat.errors.inc();
+        protocol.receiveError(skbuf);
+    }
+
+    /**
+     * Gets the largest MTU plateau below the given datagram length.
+     * 
+     * @param length
+     */
+    private static int getPlateauMTU(int length) {
+        for (int plateau : MTU_PLATEAUS) {
+            if (plateau < length) {
+                return plateau;
+            }
+        }
+        return IP_MIN_MTU;
+    }
+
     /**
      * Process an ICMP error message that has been received and matches this
      * protocol. The skbuf is position directly after the ICMP header (thus
@@ -154,6 +217,22 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
         // Ignore errors here
     }
 
+    /**
+     * May an error message (or a comparable reply such as a TCP reset) be
+     * sent to the given destination now? The limit is shared by all
+     * protocols of this stack.
+     * 
+     * @param destination
+     * @return False if the message must be suppressed
+     */
+    public boolean allowError(IPv4Address destination) {
+        if (errorLimiter.acquire(destination)) {
+            return true;
+        }
+        stat.ratelimited.inc();
+        return false;
+    }
+
     /**
      * Gets the SocketImplFactory of this protocol.
      * 
@@ -186,17 +265,33 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
     }
 
     /**
-     * Send a reply on an ICMP echo header.
+     * Reply to an ICMP echo request in place. The request buffer and its IP
+     * header are turned into the reply: the type is rewritten, the checksum
+     * is updated incrementally and the addresses are swapped. A reply to a
+     * unicast request is sent back on the device it came from.
      * 
      * @param hdr
-     * @param skbuf
+     * @param skbuf Positioned directly after the ICMP header
      */
-    private void sendEchoReply(ICMPEchoHeader hdr, SocketBuffer skbuf) throws SocketException {
+    private void sendEchoReply(ICMPHeader hdr, SocketBuffer skbuf) throws SocketException {
+        skbuf.unpull(hdr.getLength());
+        final int oldWord = skbuf.get16(0);
+        skbuf.set(0, ICMP_ECHOREPLY);
+        IPv4Utils.updateChecksum(skbuf, 2, oldWord, skbuf.get16(0));
+
         final IPv4Header ipHdr = (IPv4Header) skbuf.getNetworkLayerHeader();
-        final IPv4Header ipReplyHdr = new IPv4Header(ipHdr);
-        ipReplyHdr.swapAddresses();
-        ipReplyHdr.setTtl(0xFF);
-        send(ipReplyHdr, hdr.createReplyHeader(), new SocketBuffer(skbuf));
+        final boolean unicast =
+            !(ipHdr.getDestination().isBroadcast() || ipHdr.getDestination().isMulticast());
+        ipHdr.swapAddresses();
+        ipHdr.setTtl(0xFF);
+        ipHdr.setIdentification(0);
+        if (!unicast) {
+            // Reply from my address on the route back, not the group
+            ipHdr.setSource(null);
+            skbuf.setDevice(null);
+        }
+        stat.opackets.inc();
+        ipService.transmit(ipHdr, skbuf);
     }
 
     /**
@@ -224,9 +319,13 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
             case ICMP_ECHO:
                 return new ICMPEchoHeader(skbuf);
 
-            case ICMP_SOURCE_QUENCH:
             case ICMP_REDIRECT:
+                return new ICMPRedirectHeader(skbuf);
+
             case ICMP_TIME_EXCEEDED:
+                return new ICMPTimeExceededHeader(skbuf);
+
+            case ICMP_SOURCE_QUENCH:
             case ICMP_PARAMETERPROB:
             case ICMP_INFO_REQUEST:
             case ICMP_INFO_REPLY:
@@ -243,40 +342,6 @@ public class ICMPProtocol implements IPv4Protocol, IPv4Constants, ICMPConstants,
         return stat;
     }
 
-    /**
-     * Post a request that needs a reply in the reply queue.
-     * 
-     * @param skbuf
-     */
-    private void postReplyRequest(SocketBuffer skbuf) {
-        replyRequestQueue.add(skbuf);
-    }
-
-    /**
-     * Process a request that needs a reply
-     * 
-     * @param skbuf
-     */
-    private void processReplyRequest(SocketBuffer skbuf) {
-        final ICMPHeader hdr = (ICMPHeader) skbuf.getTransportLayerHeader();
-        try {
-            switch (hdr.getType()) {
-                case ICMP_ECHO:
-                    sendEchoReply((ICMPEchoHeader) hdr, skbuf);
-                    break;
-            }
-        } catch (SocketException ex) {
-            log.debug("Error in ICMP reply", ex);
-        }
-    }
-
-    /**
-     * @see org.jnode.util.QueueProcessor#process(java.lang.Object)
-     */
-    public void process(SocketBuffer object) throws Exception {
-        processReplyRequest(object);
-    }
-
     /**
      * ICMP packet listeners methods
      */
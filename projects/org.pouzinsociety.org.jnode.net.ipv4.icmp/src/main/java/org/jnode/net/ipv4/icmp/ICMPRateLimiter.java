@@ -0,0 +1,148 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.icmp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jnode.net.ipv4.IPv4Address;
+
+/**
+ * Token bucket rate limiter for generated ICMP messages. A message may be
+ * sent when both the global bucket and the bucket of its destination have a
+ * token left. Buckets refill at a fixed rate up to their burst size.
+ * <p>
+ * The global bucket is checked first, so a message suppressed by the global
+ * limit does not cost its destination a token. Its token is taken last, so a
+ * message suppressed by the limit of its destination does not take from the
+ * budget of the other destinations.
+ */
+public class ICMPRateLimiter {
+
+    /** Maximum number of destinations that have a bucket */
+    private static final int MAX_DESTINATIONS = 1024;
+
+    private final int dstRate;
+    private final int dstBurst;
+    private final Bucket global;
+    /** Buckets per destination (IPv4Address, Bucket) */
+    private final ConcurrentHashMap<IPv4Address, Bucket> destinations =
+            new ConcurrentHashMap<IPv4Address, Bucket>();
+
+    /**
+     * Create a new instance
+     * 
+     * @param rate Messages per second for all destinations together
+     * @param burst Messages sent back-to-back for all destinations together
+     * @param dstRate Messages per second for a single destination
+     * @param dstBurst Messages sent back-to-back to a single destination
+     */
+    public ICMPRateLimiter(int rate, int burst, int dstRate, int dstBurst) {
+        this.global = new Bucket(rate, burst, System.currentTimeMillis());
+        this.dstRate = dstRate;
+        this.dstBurst = dstBurst;
+    }
+
+    /**
+     * Take a token for a message to the given destination.
+     * 
+     * @param destination
+     * @return False if the message must be suppressed
+     */
+    public boolean acquire(IPv4Address destination) {
+        return acquire(destination, System.currentTimeMillis());
+    }
+
+    /**
+     * Take a token for a message to the given destination at the given time.
+     * 
+     * @param destination
+     * @param now Current time in ms
+     * @return False if the message must be suppressed
+     */
+    boolean acquire(IPv4Address destination, long now) {
+        if (!global.available(now)) {
+            return false;
+        }
+        Bucket bucket = destinations.get(destination);
+        if (bucket == null) {
+            if (destinations.size() >= MAX_DESTINATIONS) {
+                // Forget all destinations, rather than track their age
+                destinations.clear();
+            }
+            bucket = new Bucket(dstRate, dstBurst, now);
+            final Bucket other = destinations.putIfAbsent(destination, bucket);
+            if (other != null) {
+                bucket = other;
+            }
+        }
+        return bucket.acquire(now) && global.acquire(now);
+    }
+
+    /**
+     * A single token bucket
+     */
+    private static final class Bucket {
+        private final int rate;
+        private final int burst;
+        /** Number of messages that may be sent now */
+        private int tokens;
+        /** Time the tokens were last refilled */
+        private long lastRefill;
+
+        Bucket(int rate, int burst, long now) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        /**
+         * Is there a token left? Does not take it.
+         */
+        synchronized boolean available(long now) {
+            refill(now);
+            return (tokens > 0);
+        }
+
+        synchronized boolean acquire(long now) {
+            refill(now);
+            if (tokens == 0) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private void refill(long now) {
+            final long refill = ((now - lastRefill) * rate) / 1000;
+            if (refill > 0) {
+                tokens = (int) Math.min(burst, tokens + refill);
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.icmp;
+
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ipv4.IPv4Address;
+
+/**
+ * Header of an ICMP redirect message.
+ */
+public class ICMPRedirectHeader extends ICMPHeader {
+
+    /** The gateway to use instead */
+    private final IPv4Address gateway;
+
+    /**
+     * @param code One of the ICMP_REDIR_ codes
+     * @param gateway
+     */
+    public ICMPRedirectHeader(int code, IPv4Address gateway) {
+        super(ICMP_REDIRECT, code);
+        this.gateway = gateway;
+    }
+
+    /**
+     * @param skbuf
+     */
+    public ICMPRedirectHeader(SocketBuffer skbuf) {
+        super(skbuf);
+        final int type = getType();
+        if (type != ICMP_REDIRECT) {
+            throw new IllegalArgumentException("Invalid type " + type);
+        }
+        this.gateway = new IPv4Address(skbuf, 4);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.icmp.ICMPHeader#doPrefixTo(org.jnode.net.SocketBuffer)
+     */
+    protected void doPrefixTo(SocketBuffer skbuf) {
+        gateway.writeTo(skbuf, 4);
+    }
+
+    /**
+     * Gets the gateway to use instead
+     */
+    public IPv4Address getGateway() {
+        return gateway;
+    }
+
+    /**
+     * @see org.jnode.net.LayerHeader#getLength()
+     */
+    public int getLength() {
+        return 8;
+    }
+}
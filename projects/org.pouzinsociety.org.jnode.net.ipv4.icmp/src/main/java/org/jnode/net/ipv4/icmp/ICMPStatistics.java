@@ -33,10 +33,19 @@ public class ICMPStatistics implements Statistics {
     protected final Counter badlen =
             new Counter("badlen", "#received packets with datalength larger then packet");
     protected final Counter badsum = new Counter("badsum", "#received packets with checksum error");
+    protected final Counter echolimited =
+            new Counter("echolimited", "#echo requests not answered because of the rate limit");
+    protected final Counter errors =
+            new Counter("errors", "#received error messages passed to a protocol");
     protected final Counter ipackets = new Counter("ipackets", "total #received packets");
     protected final Counter opackets = new Counter("opackets", "total #output packets");
+    protected final Counter pmtu =
+            new Counter("pmtu", "#fragmentation needed messages that lowered a path MTU");
+    protected final Counter ratelimited =
+            new Counter("ratelimited", "#error messages and resets not sent because of the rate limit");
 
-    private final Statistic[] list = new Statistic[] {badlen, badsum, ipackets, opackets};
+    private final Statistic[] list = new Statistic[] {
+        badlen, badsum, echolimited, errors, ipackets, opackets, pmtu, ratelimited};
 
     /**
      * Gets all statistics
@@ -0,0 +1,67 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.icmp;
+
+import org.jnode.net.SocketBuffer;
+
+/**
+ * Header of an ICMP time exceeded message.
+ */
+public class ICMPTimeExceededHeader extends ICMPHeader {
+
+    /**
+     * @param code ICMP_EXC_TTL or ICMP_EXC_FRAGTIME
+     */
+    public ICMPTimeExceededHeader(int code) {
+        super(ICMP_TIME_EXCEEDED, code);
+    }
+
+    /**
+     * @param skbuf
+     */
+    public ICMPTimeExceededHeader(SocketBuffer skbuf) {
+        super(skbuf);
+        final int type = getType();
+        if (type != ICMP_TIME_EXCEEDED) {
+            throw new IllegalArgumentException("Invalid type " + type);
+        }
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.icmp.ICMPHeader#doPrefixTo(org.jnode.net.SocketBuffer)
+     */
+    protected void doPrefixTo(SocketBuffer skbuf) {
+        skbuf.set32(4, 0); // Unused, must be 0
+    }
+
+    /**
+     * @see org.jnode.net.LayerHeader#getLength()
+     */
+    public int getLength() {
+        return 8;
+    }
+}
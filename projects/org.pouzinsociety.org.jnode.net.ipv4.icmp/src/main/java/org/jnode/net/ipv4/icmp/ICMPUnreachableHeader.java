@@ -28,11 +28,23 @@ import org.jnode.net.SocketBuffer;
  */
 public class ICMPUnreachableHeader extends ICMPHeader {
 
+    /** MTU of the next hop, only used with ICMP_FRAG_NEEDED (RFC 1191) */
+    private final int nextHopMTU;
+
     /**
      * @param code
      */
     public ICMPUnreachableHeader(int code) {
+        this(code, 0);
+    }
+
+    /**
+     * @param code
+     * @param nextHopMTU
+     */
+    public ICMPUnreachableHeader(int code, int nextHopMTU) {
         super(ICMP_DEST_UNREACH, code);
+        this.nextHopMTU = nextHopMTU;
     }
 
     /**
@@ -44,6 +56,7 @@ public class ICMPUnreachableHeader extends ICMPHeader {
         if (type != ICMP_DEST_UNREACH) {
             throw new IllegalArgumentException("Invalid type " + type);
         }
+        this.nextHopMTU = skbuf.get16(6);
     }
 
     /**
@@ -51,6 +64,14 @@ public class ICMPUnreachableHeader extends ICMPHeader {
      */
     protected void doPrefixTo(SocketBuffer skbuf) {
         skbuf.set16(4, 0); // Unused, must be 0
+        skbuf.set16(6, nextHopMTU);
+    }
+
+    /**
+     * Gets the MTU of the next hop, or 0 if not set
+     */
+    public int getNextHopMTU() {
+        return nextHopMTU;
     }
 
     /**
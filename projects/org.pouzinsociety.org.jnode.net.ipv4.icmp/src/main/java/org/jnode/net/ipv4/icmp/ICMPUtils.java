@@ -24,21 +24,30 @@ package org.jnode.net.ipv4.icmp;
 
 import java.net.SocketException;
 
+import org.jnode.net.NoSuchProtocolException;
 import org.jnode.net.SocketBuffer;
 import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
 import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.IPv4Protocol;
 import org.jnode.net.ipv4.IPv4Service;
 
 /**
  * Utility class for other IP protocols, to allow them to call simple methods
- * for generating ICMP messages.
+ * for generating ICMP messages. The error messages are rate limited by the
+ * ICMP protocol of the stack, globally and per destination.
  * 
  * @author epr
  */
-public class ICMPUtils {
+public class ICMPUtils implements ICMPConstants {
+
+    /** Maximum size of an ICMP error datagram (RFC 1812) */
+    private static final int MAX_ERROR_SIZE = 576;
 
     private final IPv4Service ipService;
+    /** Rate limit used when the stack has no ICMP protocol */
+    private final ICMPRateLimiter limiter = new ICMPRateLimiter(ICMP_ERROR_RATE,
+        ICMP_ERROR_BURST, ICMP_ERROR_DST_RATE, ICMP_ERROR_DST_BURST);
 
     /**
      * Create a new instance
@@ -60,6 +69,92 @@ public class ICMPUtils {
         sendUnreachable(srcBuf, 3);
     }
 
+    /**
+     * Send an ICMP time exceeded message in response to the given packet. The
+     * IP header must be set as attribute in srcBuf and srcBuf must start with
+     * the IP header.
+     * 
+     * @param srcBuf
+     */
+    public void sendTimeExceeded(SocketBuffer srcBuf) throws SocketException {
+        sendError(srcBuf, new ICMPTimeExceededHeader(ICMP_EXC_TTL));
+    }
+
+    /**
+     * Send an ICMP fragmentation needed message in response to the given
+     * packet. The IP header must be set as attribute in srcBuf and srcBuf must
+     * start with the IP header.
+     * 
+     * @param srcBuf
+     * @param mtu The MTU of the next hop
+     */
+    public void sendFragmentationNeeded(SocketBuffer srcBuf, int mtu) throws SocketException {
+        sendError(srcBuf, new ICMPUnreachableHeader(ICMP_FRAG_NEEDED, mtu));
+    }
+
+    /**
+     * Send an ICMP host redirect message in response to the given packet. The
+     * IP header must be set as attribute in srcBuf and srcBuf must start with
+     * the IP header.
+     * 
+     * @param srcBuf
+     * @param gateway The gateway the sender should use
+     */
+    public void sendRedirect(SocketBuffer srcBuf, IPv4Address gateway) throws SocketException {
+        sendError(srcBuf, new ICMPRedirectHeader(ICMP_REDIR_HOST, gateway));
+    }
+
+    /**
+     * Send an ICMP error message in response to the given packet. As much of
+     * the packet as fits in MAX_ERROR_SIZE is copied, so srcBuf is not
+     * modified.
+     * 
+     * @param srcBuf
+     * @param icmpHdr
+     */
+    private void sendError(SocketBuffer srcBuf, ICMPHeader icmpHdr) throws SocketException {
+        final IPv4Header origIpHdr = (IPv4Header) srcBuf.getNetworkLayerHeader();
+
+        // Never respond to broadcast/multicast messages
+        if (origIpHdr.getDestination().isBroadcast() || origIpHdr.getDestination().isMulticast()) {
+            return;
+        }
+        if (!allowError(origIpHdr.getSource())) {
+            return;
+        }
+
+        final IPv4Header ipHdr =
+                new IPv4Header(0, 0xFF, IPv4Constants.IPPROTO_ICMP, origIpHdr.getSource(), 0);
+        final int length = Math.min(srcBuf.getSize(),
+                MAX_ERROR_SIZE - ipHdr.getLength() - icmpHdr.getLength());
+        final byte[] data = new byte[length];
+        srcBuf.get(data, 0, 0, length);
+        final SocketBuffer skbuf = new SocketBuffer();
+        skbuf.append(data, 0, length);
+        icmpHdr.prefixTo(skbuf);
+
+        ipService.transmit(ipHdr, skbuf);
+    }
+
+    /**
+     * May an error message, or a comparable reply such as a TCP reset, be
+     * sent to the given destination now?
+     * 
+     * @param destination
+     * @return False if the message must be suppressed
+     */
+    public boolean allowError(IPv4Address destination) {
+        try {
+            final IPv4Protocol protocol = ipService.getProtocol(IPv4Constants.IPPROTO_ICMP);
+            if (protocol instanceof ICMPProtocol) {
+                return ((ICMPProtocol) protocol).allowError(destination);
+            }
+        } catch (NoSuchProtocolException ex) {
+            // Use my own limiter
+        }
+        return limiter.acquire(destination);
+    }
+
     /**
      * Send an ICMP unreachable message in response to the given buffer. The IP
      * header and the Transport layer header must be set as attributes in
@@ -80,6 +175,9 @@ public class ICMPUtils {
         if (origIpHdr.getDestination().isBroadcast() || origIpHdr.getDestination().isMulticast()) {
             return;
         }
+        if (!allowError(origIpHdr.getSource())) {
+            return;
+        }
 
         final int tos = 0;
         final int ttl = 0xFF;
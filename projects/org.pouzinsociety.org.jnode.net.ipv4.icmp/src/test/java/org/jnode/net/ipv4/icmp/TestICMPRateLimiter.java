@@ -0,0 +1,98 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4.icmp;
+
+import org.jnode.net.ipv4.IPv4Address;
+
+import junit.framework.TestCase;
+
+/**
+ * The global and per-destination budgets of the ICMP rate limiter.
+ */
+public class TestICMPRateLimiter extends TestCase {
+
+	private static final IPv4Address A = new IPv4Address("10.0.0.1");
+	private static final IPv4Address B = new IPv4Address("10.0.0.2");
+	private static final IPv4Address C = new IPv4Address("10.0.0.3");
+	private static final IPv4Address D = new IPv4Address("10.0.0.4");
+
+	private ICMPRateLimiter limiter;
+	/** A time after the creation of the limiter */
+	private long t0;
+
+	private void create(int rate, int burst, int dstRate, int dstBurst) {
+		limiter = new ICMPRateLimiter(rate, burst, dstRate, dstBurst);
+		t0 = System.currentTimeMillis();
+	}
+
+	public void testDestinationBudget() {
+		create(100, 50, 1, 2);
+		assertTrue(limiter.acquire(A, t0));
+		assertTrue(limiter.acquire(A, t0));
+		assertFalse(limiter.acquire(A, t0));
+		// Another destination has a budget of its own
+		assertTrue(limiter.acquire(B, t0));
+		assertTrue(limiter.acquire(B, t0));
+		assertFalse(limiter.acquire(B, t0));
+		// One token per second, up to the burst
+		assertFalse(limiter.acquire(A, t0 + 999));
+		assertTrue(limiter.acquire(A, t0 + 1000));
+		assertFalse(limiter.acquire(A, t0 + 1000));
+		assertTrue(limiter.acquire(A, t0 + 10000));
+		assertTrue(limiter.acquire(A, t0 + 10000));
+		assertFalse(limiter.acquire(A, t0 + 10000));
+	}
+
+	public void testGlobalBudget() {
+		create(1, 3, 100, 100);
+		assertTrue(limiter.acquire(A, t0));
+		assertTrue(limiter.acquire(B, t0));
+		assertTrue(limiter.acquire(C, t0));
+		// Each destination has tokens left, all together have none
+		assertFalse(limiter.acquire(D, t0));
+		assertFalse(limiter.acquire(A, t0));
+		assertTrue(limiter.acquire(D, t0 + 1000));
+	}
+
+	public void testGlobalLimitKeepsDestinationToken() {
+		create(10, 1, 1, 1);
+		assertTrue(limiter.acquire(A, t0));
+		assertFalse(limiter.acquire(B, t0));
+		// The global bucket refills after 100ms, B has not paid for its
+		// suppressed message
+		assertTrue(limiter.acquire(B, t0 + 100));
+	}
+
+	public void testDestinationLimitKeepsGlobalToken() {
+		create(1, 2, 1, 1);
+		assertTrue(limiter.acquire(A, t0));
+		// Suppressed for A only, the global token is left for B
+		assertFalse(limiter.acquire(A, t0));
+		assertFalse(limiter.acquire(A, t0));
+		assertTrue(limiter.acquire(B, t0));
+		assertFalse(limiter.acquire(C, t0));
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+/**
+ * Constants of the Internet Group Management Protocol (RFC 2236, RFC 3376).
+ */
+public interface IGMPConstants {
+
+    // Message types
+    public static final int IGMP_MEMBERSHIP_QUERY     = 0x11; /* Membership Query */
+    public static final int IGMP_V1_MEMBERSHIP_REPORT = 0x12; /* Version 1 Membership Report */
+    public static final int IGMP_V2_MEMBERSHIP_REPORT = 0x16; /* Version 2 Membership Report */
+    public static final int IGMP_V2_LEAVE_GROUP       = 0x17; /* Leave Group */
+    public static final int IGMP_V3_MEMBERSHIP_REPORT = 0x22; /* Version 3 Membership Report */
+
+    // Group record types of version 3 reports
+    public static final int IGMP_MODE_IS_INCLUDE        = 1;
+    public static final int IGMP_MODE_IS_EXCLUDE        = 2;
+    public static final int IGMP_CHANGE_TO_INCLUDE_MODE = 3;
+    public static final int IGMP_CHANGE_TO_EXCLUDE_MODE = 4;
+
+    public static final int IGMP_HLEN            = 8;      /* Length of a version 1/2 message */
+    public static final int IGMP_V3_QUERY_MINLEN = 12;     /* Minimum length of a version 3 query */
+    public static final int IGMP_V3_RECORD_LEN   = 8;      /* Length of a group record without sources */
+
+    public static final int IGMP_ROBUSTNESS      = 2;      /* #unsolicited reports sent on a join */
+    public static final int IGMP_UNSOLICITED_REPORT_INTERVAL = 1000; /* Max. delay (ms) between unsolicited reports */
+    public static final int IGMP_V1_MAX_RESP_TIME = 100;   /* Max. response time (1/10 s) of a version 1 query */
+    public static final long IGMP_OLDER_QUERIER_TIMEOUT = 260000; /* Number of ms a version 1/2 querier is remembered */
+    public static final int IGMP_TIMER_PERIOD    = 100;    /* Interval (ms) of the IGMP timer */
+}
@@ -0,0 +1,528 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+import java.net.SocketException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jnode.net.DatagramSocketImplFactory;
+import jnode.net.SocketImplFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.driver.ApiNotFoundException;
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ethernet.EthernetConstants;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.IPv4Protocol;
+import org.jnode.net.ipv4.IPv4ProtocolAddressInfo;
+import org.jnode.net.ipv4.IPv4Utils;
+import org.jnode.util.Statistics;
+
+/**
+ * Multicast group membership of the devices of a stack, reported to
+ * multicast routers with IGMP.
+ * 
+ * The host side of IGMPv3 (RFC 3376) is implemented for any-source
+ * membership. A device falls back to IGMPv2 (RFC 2236) reports while a
+ * version 1 or 2 querier is present on its link. Joined groups are added to
+ * the multicast filter of the device, so frames for other groups are dropped
+ * by the driver.
+ */
+final class IGMPProtocol implements IPv4Protocol, IPv4Constants, IGMPConstants,
+        EthernetConstants {
+
+    /** My logger */
+    private static final Log log = LogFactory.getLog(IGMPProtocol.class);
+
+    /** Group of all multicast hosts, joined implicitly and never reported */
+    private static final IPv4Address ALL_HOSTS = new IPv4Address("224.0.0.1");
+    /** Destination of version 2 leave messages */
+    private static final IPv4Address ALL_ROUTERS = new IPv4Address("224.0.0.2");
+    /** Destination of version 3 reports */
+    private static final IPv4Address ALL_V3_ROUTERS = new IPv4Address("224.0.0.22");
+
+    /** The IP layer I'm a part of */
+    private final IPv4NetworkLayer ipLayer;
+    /** My statistics */
+    private final IGMPStatistics stat = new IGMPStatistics();
+    /** Joined groups per device (Device, Groups) */
+    private final ConcurrentHashMap<Device, Groups> devices =
+            new ConcurrentHashMap<Device, Groups>();
+    /** Used to spread reports over the response time */
+    private final Random random = new Random();
+
+    /**
+     * Create a new instance
+     * 
+     * @param ipLayer
+     */
+    IGMPProtocol(IPv4NetworkLayer ipLayer) {
+        this.ipLayer = ipLayer;
+    }
+
+    /**
+     * Join a group on a device.
+     * 
+     * @param group
+     * @param device The device, or null to use the device of the route to
+     *            the group
+     * @return The device on which the group has been joined
+     * @throws SocketException
+     */
+    synchronized Device join(IPv4Address group, Device device) throws SocketException {
+        if (!group.isMulticast()) {
+            throw new SocketException("Not a multicast address " + group);
+        }
+        final Device dev =
+            (device != null) ? device : ipLayer.getRoutingTable().search(group).getDevice();
+        final NetDeviceAPI api = getAPI(dev);
+        Groups groups = devices.get(dev);
+        if (groups == null) {
+            groups = new Groups();
+            devices.put(dev, groups);
+            api.addMulticastAddress(IPv4Sender.getMulticastAddress(ALL_HOSTS));
+        }
+        Group g = groups.members.get(group);
+        if (g == null) {
+            g = new Group(group);
+            groups.members.put(group, g);
+            api.addMulticastAddress(IPv4Sender.getMulticastAddress(group));
+            if (isReported(group)) {
+                // Report the join now and repeat it, in case it is lost
+                final long now = System.currentTimeMillis();
+                g.unsolicited = IGMP_ROBUSTNESS - 1;
+                g.reportDue = now + randomDelay(IGMP_UNSOLICITED_REPORT_INTERVAL);
+                sendReport(dev, groups, group, IGMP_CHANGE_TO_EXCLUDE_MODE, now);
+            }
+        }
+        g.users++;
+        return dev;
+    }
+
+    /**
+     * Leave a group on a device, that was joined before.
+     * 
+     * @param group
+     * @param dev
+     */
+    synchronized void leave(IPv4Address group, Device dev) {
+        final Groups groups = devices.get(dev);
+        final Group g = (groups == null) ? null : groups.members.get(group);
+        if ((g == null) || (--g.users > 0)) {
+            return;
+        }
+        final NetDeviceAPI api;
+        try {
+            api = getAPI(dev);
+        } catch (SocketException ex) {
+            devices.remove(dev);
+            return;
+        }
+        groups.members.remove(group);
+        api.removeMulticastAddress(IPv4Sender.getMulticastAddress(group));
+        if (isReported(group)) {
+            final long now = System.currentTimeMillis();
+            if (groups.isV3(now)) {
+                sendV3Report(dev, new IPv4Address[]{group}, IGMP_CHANGE_TO_INCLUDE_MODE);
+            } else {
+                sendV2(dev, IGMP_V2_LEAVE_GROUP, group, ALL_ROUTERS);
+            }
+        }
+        if (groups.members.isEmpty()) {
+            devices.remove(dev);
+            api.removeMulticastAddress(IPv4Sender.getMulticastAddress(ALL_HOSTS));
+        }
+    }
+
+    /**
+     * Is the given group joined on the given device?
+     * 
+     * @param dev
+     * @param group
+     */
+    final boolean isMember(Device dev, IPv4Address group) {
+        if (group.equals(ALL_HOSTS)) {
+            return true;
+        }
+        final Groups groups = (dev == null) ? null : devices.get(dev);
+        return (groups != null) && groups.members.containsKey(group);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Protocol#getName()
+     */
+    public String getName() {
+        return "igmp";
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Protocol#getProtocolID()
+     */
+    public int getProtocolID() {
+        return IPPROTO_IGMP;
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Protocol#receive(org.jnode.net.SocketBuffer)
+     */
+    public void receive(SocketBuffer skbuf) throws SocketException {
+        stat.ipackets.inc();
+        final int length = skbuf.getSize();
+        if (length < IGMP_HLEN) {
+            stat.badlen.inc();
+            return;
+        }
+        if (IPv4Utils.calcChecksum(skbuf, 0, length) != 0) {
+            stat.badsum.inc();
+            return;
+        }
+        switch (skbuf.get(0)) {
+            case IGMP_MEMBERSHIP_QUERY:
+                processQuery(skbuf.getDevice(), skbuf, length);
+                break;
+            case IGMP_V1_MEMBERSHIP_REPORT:
+            case IGMP_V2_MEMBERSHIP_REPORT:
+                processReport(skbuf.getDevice(), new IPv4Address(skbuf, 4));
+                break;
+            default:
+                // Version 3 reports and leave messages are for routers
+        }
+    }
+
+    /**
+     * Schedule the reports asked for by a membership query.
+     * 
+     * @param dev
+     * @param skbuf
+     * @param length
+     */
+    private synchronized void processQuery(Device dev, SocketBuffer skbuf, int length) {
+        stat.queries.inc();
+        final Groups groups = (dev == null) ? null : devices.get(dev);
+        if (groups == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final IPv4Address group = new IPv4Address(skbuf, 4);
+        int maxResp = skbuf.get(1);
+        if (length >= IGMP_V3_QUERY_MINLEN) {
+            maxResp = decodeMaxResp(maxResp);
+        } else {
+            // A version 1 or 2 querier is present
+            groups.olderQuerierUntil = now + IGMP_OLDER_QUERIER_TIMEOUT;
+            if (maxResp == 0) {
+                maxResp = IGMP_V1_MAX_RESP_TIME;
+            }
+        }
+        final int delay = maxResp * 100;
+        if (!group.isAny()) {
+            final Group g = groups.members.get(group);
+            if (g != null) {
+                schedule(g, now, delay);
+            }
+        } else if (groups.isV3(now)) {
+            // A single report for all groups
+            final long due = now + randomDelay(delay);
+            if ((groups.generalDue == 0) || (due < groups.generalDue)) {
+                groups.generalDue = due;
+            }
+        } else {
+            for (Group g : groups.members.values()) {
+                schedule(g, now, delay);
+            }
+        }
+    }
+
+    /**
+     * Suppress our own pending version 2 report for a group that another
+     * member has just reported.
+     * 
+     * @param dev
+     * @param group
+     */
+    private synchronized void processReport(Device dev, IPv4Address group) {
+        final Groups groups = (dev == null) ? null : devices.get(dev);
+        if ((groups == null) || groups.isV3(System.currentTimeMillis())) {
+            return;
+        }
+        final Group g = groups.members.get(group);
+        if ((g != null) && (g.unsolicited == 0) && (g.reportDue != 0)) {
+            g.reportDue = 0;
+            stat.suppressed.inc();
+        }
+    }
+
+    /**
+     * Send the reports that are due. Called by the IGMP timer.
+     */
+    synchronized void timeout() {
+        if (devices.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<Device, Groups> e : devices.entrySet()) {
+            final Device dev = e.getKey();
+            final Groups groups = e.getValue();
+            if ((groups.generalDue != 0) && (now >= groups.generalDue)) {
+                groups.generalDue = 0;
+                final IPv4Address[] all = reportedGroups(groups);
+                if (all.length > 0) {
+                    sendV3Report(dev, all, IGMP_MODE_IS_EXCLUDE);
+                }
+            }
+            for (Group g : groups.members.values()) {
+                if ((g.reportDue != 0) && (now >= g.reportDue)) {
+                    final int recordType;
+                    if (g.unsolicited > 0) {
+                        recordType = IGMP_CHANGE_TO_EXCLUDE_MODE;
+                        g.unsolicited--;
+                    } else {
+                        recordType = IGMP_MODE_IS_EXCLUDE;
+                    }
+                    g.reportDue = (g.unsolicited > 0) ?
+                        now + randomDelay(IGMP_UNSOLICITED_REPORT_INTERVAL) : 0;
+                    sendReport(dev, groups, g.group, recordType, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule a report for a group within the given delay, unless one is
+     * scheduled earlier.
+     */
+    private void schedule(Group g, long now, int delay) {
+        if (!isReported(g.group)) {
+            return;
+        }
+        final long due = now + randomDelay(delay);
+        if ((g.reportDue == 0) || (due < g.reportDue)) {
+            g.reportDue = due;
+        }
+    }
+
+    /**
+     * Send a report for a group, in the version used on the device.
+     */
+    private void sendReport(Device dev, Groups groups, IPv4Address group, int recordType,
+            long now) {
+        if (groups.isV3(now)) {
+            sendV3Report(dev, new IPv4Address[]{group}, recordType);
+        } else {
+            sendV2(dev, IGMP_V2_MEMBERSHIP_REPORT, group, group);
+        }
+    }
+
+    /**
+     * Send a version 2 report or leave message.
+     */
+    private void sendV2(Device dev, int type, IPv4Address group, IPv4Address destination) {
+        final SocketBuffer skbuf = new SocketBuffer();
+        skbuf.append(IGMP_HLEN);
+        skbuf.set(0, type);
+        skbuf.set(1, 0);
+        skbuf.set16(2, 0);
+        group.writeTo(skbuf, 4);
+        transmit(dev, destination, skbuf);
+    }
+
+    /**
+     * Send a version 3 report with a record of the given type for each of
+     * the given groups.
+     */
+    private void sendV3Report(Device dev, IPv4Address[] groups, int recordType) {
+        final SocketBuffer skbuf = new SocketBuffer();
+        skbuf.append(IGMP_HLEN + groups.length * IGMP_V3_RECORD_LEN);
+        skbuf.set(0, IGMP_V3_MEMBERSHIP_REPORT);
+        skbuf.set(1, 0);
+        skbuf.set16(2, 0);
+        skbuf.set16(4, 0);
+        skbuf.set16(6, groups.length);
+        int offset = IGMP_HLEN;
+        for (IPv4Address group : groups) {
+            skbuf.set(offset, recordType);
+            skbuf.set(offset + 1, 0);
+            skbuf.set16(offset + 2, 0);
+            group.writeTo(skbuf, offset + 4);
+            offset += IGMP_V3_RECORD_LEN;
+        }
+        transmit(dev, ALL_V3_ROUTERS, skbuf);
+    }
+
+    /**
+     * Checksum the message and send it on the given device with a TTL of 1.
+     */
+    private void transmit(Device dev, IPv4Address destination, SocketBuffer skbuf) {
+        final IPv4ProtocolAddressInfo addrInfo;
+        try {
+            addrInfo = (IPv4ProtocolAddressInfo) getAPI(dev).getProtocolAddressInfo(ETH_P_IP);
+        } catch (SocketException ex) {
+            return;
+        }
+        if (addrInfo == null) {
+            // No source address yet
+            return;
+        }
+        skbuf.set16(2, IPv4Utils.calcChecksum(skbuf, 0, skbuf.getSize()));
+        final IPv4Header hdr = new IPv4Header(0, 1, IPPROTO_IGMP, destination, skbuf.getSize());
+        hdr.setSource((IPv4Address) addrInfo.getDefaultAddress());
+        skbuf.setDevice(dev);
+        try {
+            ipLayer.transmit(hdr, skbuf);
+            stat.opackets.inc();
+        } catch (SocketException ex) {
+            log.debug("Cannot send IGMP message to " + destination, ex);
+        }
+    }
+
+    /**
+     * Gets the groups of a device that are reported.
+     */
+    private IPv4Address[] reportedGroups(Groups groups) {
+        int count = 0;
+        for (IPv4Address group : groups.members.keySet()) {
+            if (isReported(group)) {
+                count++;
+            }
+        }
+        final IPv4Address[] result = new IPv4Address[count];
+        int i = 0;
+        for (IPv4Address group : groups.members.keySet()) {
+            if (isReported(group) && (i < count)) {
+                result[i++] = group;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Is membership of the given group reported? Groups in 224.0.0.0/24 are
+     * never reported.
+     */
+    private static boolean isReported(IPv4Address group) {
+        final byte[] b = group.toByteArray();
+        return !((b[0] == (byte) 224) && (b[1] == 0) && (b[2] == 0));
+    }
+
+    /**
+     * Decode the max resp code of a version 3 query into 1/10 seconds.
+     */
+    private static int decodeMaxResp(int code) {
+        if (code < 128) {
+            return code;
+        }
+        return ((code & 0x0f) | 0x10) << (((code >> 4) & 0x07) + 3);
+    }
+
+    /**
+     * Gets a random delay in [0, max) ms.
+     */
+    private long randomDelay(int max) {
+        return (max <= 0) ? 0 : random.nextInt(max);
+    }
+
+    private static NetDeviceAPI getAPI(Device dev) throws SocketException {
+        try {
+            return (NetDeviceAPI) dev.getAPI(NetDeviceAPI.class);
+        } catch (ApiNotFoundException ex) {
+            throw (SocketException) new SocketException("Device is not a network device")
+                .initCause(ex);
+        }
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Protocol#receiveError(org.jnode.net.SocketBuffer)
+     */
+    public void receiveError(SocketBuffer skbuf) throws SocketException {
+        // Ignore errors here
+    }
+
+    /**
+     * @see org.jnode.net.TransportLayer#getSocketImplFactory()
+     */
+    public SocketImplFactory getSocketImplFactory() throws SocketException {
+        throw new SocketException("IGMP is packet based");
+    }
+
+    /**
+     * @see org.jnode.net.TransportLayer#getDatagramSocketImplFactory()
+     */
+    public DatagramSocketImplFactory getDatagramSocketImplFactory() throws SocketException {
+        throw new SocketException("IGMP is packet based");
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Protocol#getStatistics()
+     */
+    public Statistics getStatistics() {
+        return stat;
+    }
+
+    /**
+     * The groups joined on a device
+     */
+    private static final class Groups {
+        /** Joined groups (IPv4Address, Group) */
+        final ConcurrentHashMap<IPv4Address, Group> members =
+                new ConcurrentHashMap<IPv4Address, Group>();
+        /** Time until which a version 1 or 2 querier is present, or 0 */
+        long olderQuerierUntil;
+        /** Time at which a version 3 report for all groups is due, or 0 */
+        long generalDue;
+
+        /**
+         * Are version 3 reports used on this device?
+         */
+        final boolean isV3(long now) {
+            return (now >= olderQuerierUntil);
+        }
+    }
+
+    /**
+     * A joined group
+     */
+    private static final class Group {
+        final IPv4Address group;
+        /** Number of joins that have not been left */
+        int users;
+        /** Number of unsolicited reports still to send */
+        int unsolicited;
+        /** Time at which a report is due, or 0 */
+        long reportDue;
+
+        Group(IPv4Address group) {
+            this.group = group;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+import org.jnode.util.Counter;
+import org.jnode.util.Statistic;
+import org.jnode.util.Statistics;
+
+/**
+ * Statistics of the IGMP protocol
+ */
+public class IGMPStatistics implements Statistics {
+
+    protected final Counter badlen =
+            new Counter("badlen", "#received messages shorter than an IGMP header");
+    protected final Counter badsum = new Counter("badsum", "#received messages with checksum error");
+    protected final Counter ipackets = new Counter("ipackets", "total #received messages");
+    protected final Counter opackets = new Counter("opackets", "total #output messages");
+    protected final Counter queries = new Counter("queries", "#received membership queries");
+    protected final Counter suppressed =
+            new Counter("suppressed", "#reports not sent because another member reported");
+
+    private final Counter[] list = new Counter[] {
+        badlen, badsum, ipackets, opackets, queries, suppressed};
+
+    /**
+     * Gets all statistics
+     */
+    public Statistic[] getStatistics() {
+        return list;
+    }
+}
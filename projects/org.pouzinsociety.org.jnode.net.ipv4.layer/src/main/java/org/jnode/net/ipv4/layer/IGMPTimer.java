@@ -0,0 +1,84 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Thread that sends the IGMP reports that are due.
+ */
+final class IGMPTimer extends Thread {
+
+    private static final Log log = LogFactory.getLog(IGMPTimer.class);
+    private final IGMPProtocol igmp;
+    private volatile boolean stop = false;
+    private static int autoNr = 0;
+
+    /**
+     * Create a new instance
+     * 
+     * @param igmp
+     */
+    IGMPTimer(IGMPProtocol igmp) {
+        super(autoName());
+        this.igmp = igmp;
+        setDaemon(true);
+    }
+
+    /**
+     * Stop this timer.
+     */
+    void shutdown() {
+        stop = true;
+        interrupt();
+    }
+
+    /**
+     * Keep calling timeout until shutdown.
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        while (!stop) {
+            try {
+                igmp.timeout();
+            } catch (Throwable ex) {
+                log.error("Error in IGMP timer", ex);
+            }
+            try {
+                Thread.sleep(IGMPConstants.IGMP_TIMER_PERIOD);
+            } catch (InterruptedException ex) {
+                // Ignore
+            }
+        }
+    }
+
+    private static synchronized String autoName() {
+        return "igmp-timer-" + (autoNr++);
+    }
+}
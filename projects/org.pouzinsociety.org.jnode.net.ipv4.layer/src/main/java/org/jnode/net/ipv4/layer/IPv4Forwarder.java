@@ -0,0 +1,159 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ethernet.EthernetConstants;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Destination;
+import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.IPv4Route;
+import org.jnode.net.ipv4.IPv4RoutingTable;
+import org.jnode.net.ipv4.IPv4Utils;
+import org.jnode.net.ipv4.icmp.ICMPUtils;
+
+/**
+ * Forwarding plane of a stack that acts as a router.
+ * 
+ * A forwarded packet is retransmitted in the buffer it was received in:
+ * the TTL is decremented and the header checksum is updated in place, and
+ * the egress driver writes the new link layer header in the headroom of
+ * the old one. Only packets that must be fragmented are copied.
+ */
+final class IPv4Forwarder implements IPv4Constants, EthernetConstants {
+
+    /** My logger */
+    private static final Log log = LogFactory.getLog(IPv4Forwarder.class);
+    private final IPv4NetworkLayer ipNetworkLayer;
+    private final IPv4RoutingTable rt;
+    private final IPv4Sender sender;
+    private final IPv4Statistics stat;
+    /** Rate limited ICMP error messages */
+    private final ICMPUtils icmp;
+
+    /**
+     * Create a new instance
+     * 
+     * @param ipNetworkLayer
+     * @param sender
+     */
+    IPv4Forwarder(IPv4NetworkLayer ipNetworkLayer, IPv4Sender sender) {
+        this.ipNetworkLayer = ipNetworkLayer;
+        this.rt = ipNetworkLayer.getRoutingTable();
+        this.sender = sender;
+        this.stat = (IPv4Statistics) ipNetworkLayer.getStatistics();
+        this.icmp = new ICMPUtils(ipNetworkLayer);
+    }
+
+    /**
+     * Forward a received packet that is not addressed to this stack. The
+     * buffer must be positioned after the IP header.
+     * 
+     * @param hdr
+     * @param skbuf
+     */
+    void forward(IPv4Header hdr, SocketBuffer skbuf) {
+        final IPv4Address dstAddr = hdr.getDestination();
+        if ((hdr.getVersion() != 4) || dstAddr.isBroadcast() || dstAddr.isMulticast() ||
+                skbuf.getLinkLayerHeader().getDestinationAddress().isBroadcast()) {
+            stat.fwderrors.inc();
+            return;
+        }
+        final Device ingress = skbuf.getDevice();
+
+        // Back to the start of the IP header
+        skbuf.unpull(hdr.getLength());
+        try {
+            if (hdr.getTtl() <= 1) {
+                stat.fwdttl.inc();
+                icmp.sendTimeExceeded(skbuf);
+                return;
+            }
+
+            final IPv4Destination dst;
+            try {
+                dst = sender.findForwardDestination(hdr);
+            } catch (NoRouteToHostException ex) {
+                stat.fwdnoroute.inc();
+                return;
+            }
+            final IPv4Route route = dst.getRoute();
+            route.incUseCount();
+            final NetDeviceAPI api = dst.getDeviceAPI();
+            final int mtu = api.getMTU();
+            if ((hdr.getTotalLength() > mtu) && hdr.isDontFragment()) {
+                stat.fwderrors.inc();
+                icmp.sendFragmentationNeeded(skbuf, mtu);
+                return;
+            }
+            if ((ingress == dst.getDevice()) && isOnLink(hdr.getSource(), ingress)) {
+                // The sender can reach the next hop directly
+                icmp.sendRedirect(skbuf, dst.getNextHop());
+            }
+
+            hdr.setTtl(IPv4Utils.decrementTtl(skbuf, 0));
+            skbuf.setLinkLayerHeader(null);
+            skbuf.setTransportLayerHeader(null);
+            skbuf.setDevice(dst.getDevice());
+            skbuf.setProtocolID(ETH_P_IP);
+            stat.forwarded.inc();
+
+            if (hdr.getTotalLength() > mtu) {
+                skbuf.pull(hdr.getLength());
+                sender.forwardFragments(dst, hdr, skbuf);
+            } else if (dst.isResolved()) {
+                api.transmit(skbuf, dst.getHardwareAddress());
+            } else {
+                ipNetworkLayer.getArp().transmit(skbuf, dst.getNextHop(), dst.getSource(),
+                        dst.getDevice());
+            }
+        } catch (SocketException ex) {
+            stat.fwderrors.inc();
+            log.debug("Cannot forward packet to " + dstAddr, ex);
+        }
+    }
+
+    /**
+     * Is the given address directly reachable on the given device?
+     */
+    private boolean isOnLink(IPv4Address address, Device device) {
+        try {
+            final IPv4Route route = rt.search(address);
+            return !route.isGateway() && (route.getDevice() == device);
+        } catch (NoRouteToHostException ex) {
+            return false;
+        }
+    }
+}
@@ -60,7 +60,7 @@ import org.jnode.net.arp.ARPService;
 import org.jnode.net.ethernet.EthernetConstants;
 import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
-import org.jnode.net.ipv4.IPv4FragmentList;
+import org.jnode.net.ipv4.IPv4Destination;
 import org.jnode.net.ipv4.IPv4Header;
 import org.jnode.net.ipv4.IPv4Protocol;
 import org.jnode.net.ipv4.IPv4ProtocolAddressInfo;
@@ -83,20 +83,19 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
     private final HashMap<Integer, IPv4Protocol> protocols = new HashMap<Integer, IPv4Protocol>();
 
     /**
-     * List of in-complete fragments
+     * My statistics
      */
-    private final HashMap<Object, IPv4FragmentList> fragments =
-            new HashMap<Object, IPv4FragmentList>();
+    private final IPv4Statistics stat = new IPv4Statistics();
 
     /**
-     * System time of last call to removeDeadFragments
+     * Reassembly of in-complete fragments
      */
-    private long lastFragmentCleanup = 0;
+    private final IPv4Reassembler reassembler = new IPv4Reassembler(stat);
 
     /**
-     * My statistics
+     * Timer expiring in-complete fragments
      */
-    private final IPv4Statistics stat = new IPv4Statistics();
+    private final IPv4FragmentTimer fragmentTimer;
 
     /**
      * The routing table
@@ -108,6 +107,26 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
      */
     private final IPv4Sender sender;
 
+    /**
+     * The forwarding plane
+     */
+    private final IPv4Forwarder forwarder;
+
+    /**
+     * Forward packets that are not addressed to me?
+     */
+    private volatile boolean forwarding = false;
+
+    /**
+     * Multicast group membership
+     */
+    private final IGMPProtocol igmp;
+
+    /**
+     * Timer sending due IGMP reports
+     */
+    private final IGMPTimer igmpTimer;
+
     /**
      * The ARP network layer
      */
@@ -122,6 +141,21 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
      */
     public IPv4NetworkLayer() throws NetworkException {
         sender = new IPv4Sender(this);
+        forwarder = new IPv4Forwarder(this, sender);
+        fragmentTimer = new IPv4FragmentTimer(reassembler);
+        fragmentTimer.start();
+        igmp = new IGMPProtocol(this);
+        registerProtocol(igmp);
+        igmpTimer = new IGMPTimer(igmp);
+        igmpTimer.start();
+    }
+
+    /**
+     * Stop the timer threads of this layer.
+     */
+    public void shutdown() {
+        fragmentTimer.shutdown();
+        igmpTimer.shutdown();
     }
 
     /**
@@ -193,14 +227,19 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
         final IPv4Address dstAddr = hdr.getDestination();
         final boolean shouldProcess;
         if (myAddrInfo != null) {
-            shouldProcess = (myAddrInfo.contains(dstAddr) || dstAddr.isMulticast());
+            shouldProcess = (myAddrInfo.contains(dstAddr) ||
+                (dstAddr.isMulticast() && igmp.isMember(skbuf.getDevice(), dstAddr)));
         } else {
             // I don't have an IP address yet, if the linklayer says
             // it is for me, we'll process it, otherwise we'll drop it.
             shouldProcess = !skbuf.getLinkLayerHeader().getDestinationAddress().isBroadcast();
         }
         if (!shouldProcess) {
-            log.debug("IPPacket not for me, ignoring (dst=" + dstAddr + ")");
+            if (forwarding && (myAddrInfo != null)) {
+                forwarder.forward(hdr, skbuf);
+            } else {
+                log.debug("IPPacket not for me, ignoring (dst=" + dstAddr + ")");
+            }
             return;
         }
 
@@ -214,12 +253,6 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
             // and let it do the rest
             deliver(hdr, skbuf);
         }
-
-        // Do a cleanup of the fragmentlist from time to time
-        final long now = System.currentTimeMillis();
-        if ((now - lastFragmentCleanup) >= (IP_FRAGTIMEOUT * 2)) {
-            removeDeadFragments();
-        }
     }
 
     /**
@@ -254,53 +287,13 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
      * @throws NetworkException
      */
     private void deliverFragment(IPv4Header hdr, SocketBuffer skbuf) throws SocketException {
-        final Object key = hdr.getFragmentListKey();
-        final IPv4FragmentList flist = (IPv4FragmentList) fragments.get(key);
-        if (flist == null) {
-            // This is a fragment for a new list
-            fragments.put(key, new IPv4FragmentList(skbuf));
-        } else {
-            if (flist.isAlive()) {
-                flist.add(skbuf);
-                if (flist.isComplete()) {
-                    // The fragmentlist is now complete, deliver it
-                    final SocketBuffer pbuf = flist.getPacket();
-                    final IPv4Header phdr = (IPv4Header) pbuf.getNetworkLayerHeader();
-                    stat.reassembled.inc();
-                    deliver(phdr, pbuf);
-                } 
-            } else {
-                // Timeout of fragmentlist, destroy it
-                fragments.remove(key);
-            }
+        final SocketBuffer pbuf = reassembler.add(hdr, skbuf);
+        if (pbuf != null) {
+            // The datagram is now complete, deliver it
+            deliver((IPv4Header) pbuf.getNetworkLayerHeader(), pbuf);
         }
     }
 
-    /**
-     * Remove all dead fragments from the fragment list
-     */
-    private final void removeDeadFragments() {
-        final ArrayList<Object> deadFragmentKeys = new ArrayList<Object>();
-        // First collect all dead fragment keys
-        // Do not remove the directly, since that will create an error
-        // in the iterator.
-        for (IPv4FragmentList f : fragments.values()) {
-            if (!f.isAlive()) {
-                deadFragmentKeys.add(f.getKey());
-            }
-        }
-        if (!deadFragmentKeys.isEmpty()) {
-            // Now remove all dead fragments
-            for (Object key : deadFragmentKeys) {
-                fragments.remove(key);
-            }
-            // We're done
-            log.debug("Removed " + deadFragmentKeys.size() + " dead fragments");
-        }
-        // Update our last invocation timestamp
-        lastFragmentCleanup = System.currentTimeMillis();
-    }
-
     /**
      * Gets the protocol for a given ID
      * 
@@ -393,6 +386,43 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
         sender.transmit(hdr, skbuf);
     }
 
+    /**
+     * @see org.jnode.net.ipv4.IPv4Service#transmit(org.jnode.net.ipv4.IPv4Header,
+     *      org.jnode.net.SocketBuffer, org.jnode.net.ipv4.IPv4Destination)
+     */
+    public IPv4Destination transmit(IPv4Header hdr, SocketBuffer skbuf, IPv4Destination pinned)
+        throws SocketException {
+        return sender.transmit(hdr, skbuf, pinned);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Service#getPathMTU(org.jnode.net.ipv4.IPv4Address)
+     */
+    public int getPathMTU(IPv4Address destination) throws SocketException {
+        return sender.getPathMTU(destination);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Service#updatePathMTU(org.jnode.net.ipv4.IPv4Address, int)
+     */
+    public boolean updatePathMTU(IPv4Address destination, int mtu) {
+        return sender.updatePathMTU(destination, mtu);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Service#joinGroup(org.jnode.net.ipv4.IPv4Address, org.jnode.driver.Device)
+     */
+    public Device joinGroup(IPv4Address group, Device device) throws SocketException {
+        return igmp.join(group, device);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.IPv4Service#leaveGroup(org.jnode.net.ipv4.IPv4Address, org.jnode.driver.Device)
+     */
+    public void leaveGroup(IPv4Address group, Device device) {
+        igmp.leave(group, device);
+    }
+
     /**
      * Gets the protocol addresses for a given name, or null if not found.
      * 
@@ -411,6 +441,22 @@ public class IPv4NetworkLayer implements NetworkLayer, IPv4Constants, IPv4Servic
             arp.getCache().set(hwAddr, pAddr, true);
     }
 
+    /**
+     * Are packets that are not addressed to me forwarded?
+     */
+    public boolean isForwarding() {
+        return forwarding;
+    }
+
+    /**
+     * Enable or disable forwarding of packets that are not addressed to me.
+     * 
+     * @param forwarding
+     */
+    public void setForwarding(boolean forwarding) {
+        this.forwarding = forwarding;
+    }
+
     public ARPService getArp() {
 	return arp;
     }
@@ -0,0 +1,107 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+
+/**
+ * Path MTUs learned from "fragmentation needed" messages (RFC 1191).
+ * 
+ * Only destinations for which such a message has been received are kept, so
+ * a lookup of any other destination is a single failed hash lookup. A learned
+ * MTU is only ever lowered, and is forgotten after IP_PMTU_TIMEOUT so that a
+ * larger MTU is tried again when the path changes.
+ */
+final class IPv4PathMTUCache implements IPv4Constants {
+
+    /** Maximum number of entries */
+    private static final int PMTU_CACHE_SIZE = 1024;
+
+    /** Learned path MTUs (IPv4Address, Entry) */
+    private final ConcurrentHashMap<IPv4Address, Entry> entries =
+            new ConcurrentHashMap<IPv4Address, Entry>();
+
+    /**
+     * Gets the path MTU to the given destination.
+     * 
+     * @param destination
+     * @param deviceMTU The MTU of the device used to reach the destination
+     * @param now
+     * @return The smallest of the device MTU and the learned path MTU
+     */
+    final int get(IPv4Address destination, int deviceMTU, long now) {
+        if (entries.isEmpty()) {
+            return deviceMTU;
+        }
+        final Entry entry = entries.get(destination);
+        if (entry == null) {
+            return deviceMTU;
+        }
+        if (now >= entry.expires) {
+            entries.remove(destination, entry);
+            return deviceMTU;
+        }
+        return Math.min(deviceMTU, entry.mtu);
+    }
+
+    /**
+     * Lower the path MTU to the given destination.
+     * 
+     * @param destination
+     * @param mtu
+     * @param now
+     * @return True if the path MTU has been lowered
+     */
+    final boolean update(IPv4Address destination, int mtu, long now) {
+        mtu = Math.max(mtu, IP_MIN_MTU);
+        final Entry entry = entries.get(destination);
+        if ((entry != null) && (now < entry.expires) && (entry.mtu <= mtu)) {
+            return false;
+        }
+        if (entries.size() >= PMTU_CACHE_SIZE) {
+            entries.clear();
+        }
+        entries.put(destination, new Entry(mtu, now + IP_PMTU_TIMEOUT));
+        return true;
+    }
+
+    /**
+     * A learned path MTU
+     */
+    private static final class Entry {
+        final int mtu;
+        final long expires;
+
+        Entry(int mtu, long expires) {
+            this.mtu = mtu;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4.layer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4FragmentList;
+import org.jnode.net.ipv4.IPv4Header;
+
+/**
+ * Reassembly of fragmented IP datagrams for a single stack.
+ * 
+ * At most IP_FRAG_MEMORY bytes are held for incomplete datagrams; when a
+ * new fragment does not fit, the oldest incomplete datagrams are dropped.
+ * Fragment lists are kept in creation order, so the timer only has to look
+ * at the head of the list to find expired datagrams.
+ */
+final class IPv4Reassembler implements IPv4Constants {
+
+    /** My logger */
+    private static final Log log = LogFactory.getLog(IPv4Reassembler.class);
+    /** Incomplete datagrams in creation order (key, IPv4FragmentList) */
+    private final LinkedHashMap<Object, IPv4FragmentList> lists =
+            new LinkedHashMap<Object, IPv4FragmentList>();
+    /** My statistics */
+    private final IPv4Statistics stat;
+    /** Number of bytes held in incomplete datagrams */
+    private int memory;
+
+    /**
+     * Create a new instance
+     * 
+     * @param stat
+     */
+    IPv4Reassembler(IPv4Statistics stat) {
+        this.stat = stat;
+    }
+
+    /**
+     * Add a fragment.
+     * 
+     * @param hdr
+     * @param skbuf
+     * @return The reassembled datagram if this fragment completed it, null
+     *         otherwise
+     */
+    synchronized SocketBuffer add(IPv4Header hdr, SocketBuffer skbuf) {
+        final Object key = hdr.getFragmentListKey();
+        IPv4FragmentList flist = lists.get(key);
+        if ((flist != null) && !flist.isAlive(System.currentTimeMillis())) {
+            remove(flist);
+            stat.fragtimeout.inc();
+            flist = null;
+        }
+
+        final int length = skbuf.getSize();
+        if (!makeRoom(length, flist)) {
+            stat.fragnomem.inc();
+            return null;
+        }
+        if (flist == null) {
+            flist = new IPv4FragmentList(key);
+            lists.put(key, flist);
+        }
+
+        switch (flist.add(skbuf)) {
+            case IPv4FragmentList.ADDED:
+                memory += length;
+                break;
+            case IPv4FragmentList.DUPLICATE:
+                return null;
+            default:
+                // The datagram cannot be reassembled reliably, drop it
+                stat.fragdropped.inc();
+                remove(flist);
+                return null;
+        }
+
+        if (flist.isComplete()) {
+            remove(flist);
+            stat.reassembled.inc();
+            return flist.getPacket();
+        }
+        return null;
+    }
+
+    /**
+     * Drop the oldest incomplete datagrams, other than the given one, until
+     * length more bytes fit in the memory budget.
+     * 
+     * @return False if the bytes do not fit
+     */
+    private boolean makeRoom(int length, IPv4FragmentList current) {
+        if (memory + length <= IP_FRAG_MEMORY) {
+            return true;
+        }
+        for (Iterator<IPv4FragmentList> i = lists.values().iterator(); i.hasNext();) {
+            final IPv4FragmentList flist = i.next();
+            if (flist != current) {
+                i.remove();
+                memory -= flist.getSize();
+                stat.fragnomem.inc();
+                if (memory + length <= IP_FRAG_MEMORY) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the given list.
+     */
+    private void remove(IPv4FragmentList flist) {
+        lists.remove(flist.getKey());
+        memory -= flist.getSize();
+    }
+
+    /**
+     * Drop all datagrams that have not been reassembled in time. Called
+     * by the reassembly timer.
+     */
+    synchronized void timeout() {
+        final long now = System.currentTimeMillis();
+        int count = 0;
+        for (Iterator<IPv4FragmentList> i = lists.values().iterator(); i.hasNext();) {
+            final IPv4FragmentList flist = i.next();
+            if (flist.isAlive(now)) {
+                break;
+            }
+            i.remove();
+            memory -= flist.getSize();
+            stat.fragtimeout.inc();
+            count++;
+        }
+        if ((count > 0) && log.isDebugEnabled()) {
+            log.debug("Removed " + count + " dead fragment lists");
+        }
+    }
+
+    /**
+     * Gets the number of bytes held in incomplete datagrams
+     */
+    synchronized int getMemory() {
+        return memory;
+    }
+}
@@ -36,6 +36,8 @@
 package org.jnode.net.ipv4.layer;
 
 import java.net.NoRouteToHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.jnode.driver.ApiNotFoundException;
 import org.jnode.driver.Device;
 import org.jnode.driver.net.NetDeviceAPI;
@@ -47,11 +49,11 @@ import org.jnode.net.ethernet.EthernetConstants;
 import org.jnode.net.ethernet.EthernetAddress;
 import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Destination;
 import org.jnode.net.ipv4.IPv4Header;
 import org.jnode.net.ipv4.IPv4ProtocolAddressInfo;
 import org.jnode.net.ipv4.IPv4Route;
 import org.jnode.net.ipv4.IPv4RoutingTable;
-import org.jnode.util.TimeoutException;
 
 /**
  * @author epr
@@ -64,8 +66,15 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
     private ARPService arp;
     private IPv4NetworkLayer ipNetworkLayer;
 
-    /** Timeout for arp requests */
-    private long arpTimeout = 5000;
+    /** Number of ms a resolved destination is used before it is resolved again */
+    private static final long DST_CACHE_TIMEOUT = 60000;
+    /** Maximum number of entries in the destination cache */
+    private static final int DST_CACHE_SIZE = 1024;
+    /** Resolved destinations (IPv4Address, IPv4Destination) */
+    private final ConcurrentHashMap<IPv4Address, IPv4Destination> destinations =
+            new ConcurrentHashMap<IPv4Address, IPv4Destination>();
+    /** Path MTUs learned from "fragmentation needed" messages */
+    private final IPv4PathMTUCache pathMTUs = new IPv4PathMTUCache();
     /** Last identification number */
     private int lastId = 1;
     /** My statistics */
@@ -102,6 +111,24 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
      */
     public void transmit(IPv4Header hdr, SocketBuffer skbuf)
         throws NoRouteToHostException, NetworkException {
+        transmit(hdr, skbuf, null);
+    }
+
+    /**
+     * Transmit an IP packet, reusing the given destination when it is still
+     * valid for the destination address of the packet.
+     * 
+     * @see #transmit(IPv4Header, SocketBuffer)
+     * @param hdr
+     * @param skbuf
+     * @param pinned The destination used for a previous packet, can be null
+     * @return The destination used, or null if the device of skbuf was set
+     * @throws NoRouteToHostException No suitable route for this packet was
+     *             found
+     * @throws NetworkException The packet could not be transmitted.
+     */
+    public IPv4Destination transmit(IPv4Header hdr, SocketBuffer skbuf, IPv4Destination pinned)
+        throws NoRouteToHostException, NetworkException {
 
         // Set the network layer header
         skbuf.setNetworkLayerHeader(hdr);
@@ -117,14 +144,18 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
         final NetDeviceAPI api;
         // The hardware address we will be sending to
         final HardwareAddress hwDstAddr;
+        // The next hop to resolve, null if the hardware address is known
+        final IPv4Address unresolved;
+        // My address on the device, used for address resolution
+        final IPv4Address myAddress;
+        // The resolved destination, if any
+        final IPv4Destination dst;
 
         // Has the destination device been given?
         if (skbuf.getDevice() == null) {
             // The device has not been send, figure out the route ourselves.
-
-            // First lets try to find a route
-            final IPv4Route route;
-            route = findRoute(hdr, skbuf);
+            dst = findDestination(hdr, skbuf, pinned);
+            final IPv4Route route = dst.getRoute();
             route.incUseCount();
 
             // Get the device
@@ -133,12 +164,15 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
 
             // Get my source address if not already set
             if (hdr.getSource() == null) {
-                hdr.setSource(getSourceAddress(route, hdr, skbuf));
+                hdr.setSource(dst.getSource());
             }
 
             // Get the hardware address for this device
-            hwDstAddr = findDstHWAddress(route, hdr, skbuf);
+            hwDstAddr = dst.getHardwareAddress();
+            unresolved = dst.isResolved() ? null : dst.getNextHop();
+            myAddress = dst.getSource();
         } else {
+            dst = null;
             // The device has been given, use it
             dev = skbuf.getDevice();
             try {
@@ -150,8 +184,19 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
             if (hdr.getSource() == null) {
                 throw new NetworkException("The source address must have been set");
             }
+            myAddress = hdr.getSource();
             // Find the HW destination address
-            hwDstAddr = findDstHWAddress(hdr.getDestination(), dev, hdr, skbuf);
+            final IPv4Address destination = hdr.getDestination();
+            if (destination.isBroadcast()) {
+                hwDstAddr = null;
+                unresolved = null;
+            } else if (destination.isMulticast()) {
+                hwDstAddr = getMulticastAddress(destination);
+                unresolved = null;
+            } else {
+                hwDstAddr = findDstHWAddress(destination, myAddress, dev, api);
+                unresolved = (hwDstAddr == null) ? destination : null;
+            }
         }
 
         // Set the datalength (if not set)
@@ -164,21 +209,149 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
             hdr.setIdentification(getNextID());
         }
 
-        // Should we fragment?
-        final int mtu = api.getMTU();
+        // Should we fragment? Packets are fragmented to the path MTU, so
+        // routers on the path do not have to.
+        final int deviceMtu = api.getMTU();
+        final int mtu = (dst == null) ? deviceMtu :
+            pathMTUs.get(hdr.getDestination(), deviceMtu, System.currentTimeMillis());
 
         if (hdr.getTotalLength() <= mtu) {
             // We can send the complete packet
             hdr.setMoreFragments(false);
             hdr.setFragmentOffset(0);
-            sendPacket(api, hwDstAddr, hdr, skbuf);
+            sendPacket(api, dev, hwDstAddr, unresolved, myAddress, hdr, skbuf);
         } else if (hdr.isDontFragment()) {
-            // This packet cannot be send of this device
-            throw new NetworkException("Packet is too large, mtu=" + mtu);
+            if (hdr.getTotalLength() > deviceMtu) {
+                // This packet cannot be send of this device
+                throw new NetworkException("Packet is too large, mtu=" + deviceMtu);
+            }
+            // Sized by the transport before it learned the path MTU; the
+            // path will report the MTU again if it is still too large.
+            hdr.setMoreFragments(false);
+            hdr.setFragmentOffset(0);
+            sendPacket(api, dev, hwDstAddr, unresolved, myAddress, hdr, skbuf);
         } else {
             // Fragment the packet and send the fragments
-            fragmentPacket(api, hwDstAddr, hdr, skbuf, mtu);
+            hdr.setMoreFragments(false);
+            hdr.setFragmentOffset(0);
+            fragmentPacket(api, dev, hwDstAddr, unresolved, myAddress, hdr, skbuf, mtu);
         }
+        return dst;
+    }
+
+    /**
+     * Find the resolved destination for the given buffer. The pinned
+     * destination and the destination cache are used when they are still
+     * valid, otherwise the route, source address and hardware address are
+     * looked up and cached. The hardware address is looked up without
+     * blocking; destinations with an unresolved next hop are not cached.
+     * 
+     * @param hdr
+     * @param skbuf
+     * @param pinned
+     * @return
+     * @throws NoRouteToHostException
+     * @throws NetworkException
+     */
+    private IPv4Destination findDestination(IPv4Header hdr, SocketBuffer skbuf,
+            IPv4Destination pinned) throws NoRouteToHostException, NetworkException {
+        final IPv4Address destination = hdr.getDestination();
+        // Read the generations before resolving, so a change during the
+        // lookup invalidates the new entry
+        final int routeGeneration = rt.getGeneration();
+        final int neighborGeneration = getARP().getCache().getGeneration();
+        final long now = System.currentTimeMillis();
+
+        if ((pinned != null) && pinned.getDestination().equals(destination) &&
+                pinned.isValid(routeGeneration, neighborGeneration, now)) {
+            stat.dsthits.inc();
+            return pinned;
+        }
+        final IPv4Destination cached = destinations.get(destination);
+        if ((cached != null) && cached.isValid(routeGeneration, neighborGeneration, now)) {
+            stat.dsthits.inc();
+            return cached;
+        }
+        stat.dstmisses.inc();
+
+        final IPv4Route route = findRoute(hdr, skbuf);
+        final IPv4Address source = getSourceAddress(route, hdr, skbuf);
+        if (hdr.getSource() == null) {
+            hdr.setSource(source);
+        }
+        final IPv4Address nextHop = route.isGateway() ? route.getGateway() : destination;
+        final HardwareAddress hwAddress;
+        if (destination.isBroadcast()) {
+            hwAddress = null;
+        } else if (destination.isMulticast()) {
+            hwAddress = getMulticastAddress(destination);
+        } else {
+            hwAddress = findDstHWAddress(nextHop, source, route.getDevice(), route.getDeviceAPI());
+        }
+        final boolean resolved = (hwAddress != null) || destination.isBroadcast();
+        final IPv4Destination dst = new IPv4Destination(destination, route, source, nextHop,
+                hwAddress, resolved, routeGeneration, neighborGeneration, now + DST_CACHE_TIMEOUT);
+        if (!resolved) {
+            return dst;
+        }
+        if (destinations.size() >= DST_CACHE_SIZE) {
+            destinations.clear();
+        }
+        destinations.put(destination, dst);
+        return dst;
+    }
+
+    /**
+     * Find the resolved destination for a packet that is forwarded.
+     * 
+     * @param hdr
+     * @throws NoRouteToHostException
+     * @throws NetworkException
+     */
+    final IPv4Destination findForwardDestination(IPv4Header hdr)
+        throws NoRouteToHostException, NetworkException {
+        return findDestination(hdr, null, null);
+    }
+
+    /**
+     * Fragment a forwarded packet that is too large for the device of the
+     * given destination. The TTL in hdr must already have been decremented
+     * and skbuf must be positioned after the IP header.
+     * 
+     * @param dst
+     * @param hdr
+     * @param skbuf
+     * @throws NetworkException
+     */
+    final void forwardFragments(IPv4Destination dst, IPv4Header hdr, SocketBuffer skbuf)
+        throws NetworkException {
+        final NetDeviceAPI api = dst.getDeviceAPI();
+        final IPv4Address unresolved = dst.isResolved() ? null : dst.getNextHop();
+        fragmentPacket(api, dst.getDevice(), dst.getHardwareAddress(), unresolved,
+                dst.getSource(), hdr, skbuf, api.getMTU());
+    }
+
+    /**
+     * Gets the path MTU to the given destination.
+     * 
+     * @param destination
+     * @throws NoRouteToHostException
+     */
+    final int getPathMTU(IPv4Address destination) throws NoRouteToHostException {
+        final IPv4Route route = rt.search(destination);
+        return pathMTUs.get(destination, route.getDeviceAPI().getMTU(),
+            System.currentTimeMillis());
+    }
+
+    /**
+     * Lower the path MTU to the given destination.
+     * 
+     * @param destination
+     * @param mtu
+     * @return True if the path MTU has been lowered
+     */
+    final boolean updatePathMTU(IPv4Address destination, int mtu) {
+        return pathMTUs.update(destination, mtu, System.currentTimeMillis());
     }
 
     /**
@@ -220,88 +393,71 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
      * @param dstAddr
      * @return
      */
-     private HardwareAddress getMulticastAddress(IPv4Address dstAddr) {
+     static HardwareAddress getMulticastAddress(IPv4Address dstAddr) {
 	byte[] bytes = dstAddr.toByteArray();
 	return new EthernetAddress((byte) 0x01, (byte) 0x00, (byte) 0x5e,
 			(byte) (bytes[1] & 0x7F), bytes[2], bytes[3]);
      }
 
     /**
-     * Find the hardware address for the destination address of the given route.
-     * 
-     * @param route
-     * @return
-     */
-    private HardwareAddress findDstHWAddress(IPv4Route route, IPv4Header hdr, SocketBuffer skbuf)
-        throws NetworkException {
-    	final ARPService arp = getARP();
-        final IPv4Address dstAddr;
-        if (hdr.getDestination().isBroadcast()) {
-            return null;
-        } else if (hdr.getDestination().isMulticast()) {
-		return getMulticastAddress(hdr.getDestination());    
-        } else if (route.isGateway()) {
-            dstAddr = route.getGateway();
-        } else {
-            dstAddr = hdr.getDestination();
-        }
-        try {
-            return arp.getHardwareAddress(dstAddr, hdr.getSource(), route.getDevice(), arpTimeout);
-        } catch (TimeoutException ex) {
-            throw new NetworkException("Cannot find hardware address of " + dstAddr, ex);
-        }
-    }
-
-    /**
-     * Find the hardware address for the destination address of the given route.
+     * Find the hardware address of the given next hop in the ARP cache,
+     * without blocking.
      * 
-     * @param destination
-     * @param device
-     * @param hdr
-     * @param skbuf
-     * @return HardwareAddress
+     * @param nextHop
+     * @param myAddress
+     * @param dev
+     * @param api
+     * @return The hardware address, or null if it is not known yet
      */
-    private HardwareAddress findDstHWAddress(IPv4Address destination, Device device,
-            IPv4Header hdr, SocketBuffer skbuf) throws NetworkException {
-        if (destination.isBroadcast()) {
-            return null;
-        } else if (hdr.getDestination().isMulticast()) {
-        	return getMulticastAddress(hdr.getDestination());
-        } else {
-            try {
-            	final ARPService arp = getARP();
-                return arp.getHardwareAddress(destination, hdr.getSource(), device, arpTimeout);
-            } catch (TimeoutException ex) {
-                throw new NetworkException("Cannot find hardware address of " + destination, ex);
-            }
+    private HardwareAddress findDstHWAddress(IPv4Address nextHop, IPv4Address myAddress,
+            Device dev, NetDeviceAPI api) {
+        if (nextHop.equals(myAddress)) {
+            // This is simple, just return my address
+            return api.getAddress();
         }
+        return getARP().lookup(nextHop, myAddress, dev);
     }
 
     /**
-     * Insert the IP header into the buffer and send it to the device.
+     * Insert the IP header into the buffer and send it to the device. If
+     * the next hop is not resolved yet, the packet is handed to ARP, which
+     * queues it until the hardware address is known.
      * 
      * @param api
+     * @param dev
+     * @param dstHwAddr
+     * @param unresolved The next hop to resolve, or null
+     * @param myAddress My address on the device
      * @param hdr
      * @param skbuf
      * @throws NetworkException
      */
-    private void sendPacket(NetDeviceAPI api, HardwareAddress dstHwAddr, IPv4Header hdr,
-            SocketBuffer skbuf) throws NetworkException {
+    private void sendPacket(NetDeviceAPI api, Device dev, HardwareAddress dstHwAddr,
+            IPv4Address unresolved, IPv4Address myAddress, IPv4Header hdr, SocketBuffer skbuf)
+        throws NetworkException {
         skbuf.setProtocolID(ETH_P_IP);
         hdr.prefixTo(skbuf);
-        api.transmit(skbuf, dstHwAddr);
+        if (unresolved != null) {
+            getARP().transmit(skbuf, unresolved, myAddress, dev);
+        } else {
+            api.transmit(skbuf, dstHwAddr);
+        }
     }
 
     /**
-     * Fragment the packet and send the to the device
+     * Fragment the packet and send the to the device. The fragment offset and
+     * more fragments flag of hdr are kept, so a fragment can be fragmented
+     * again. Each fragment is copied once, into a buffer with room for the
+     * IP and link layer headers.
      * 
      * @param api
      * @param hdr
      * @param skbuf
      * @throws NetworkException
      */
-    private void fragmentPacket(NetDeviceAPI api, HardwareAddress dstHwAddr, IPv4Header hdr,
-            SocketBuffer skbuf, int mtu) throws NetworkException {
+    private void fragmentPacket(NetDeviceAPI api, Device dev, HardwareAddress dstHwAddr,
+            IPv4Address unresolved, IPv4Address myAddress, IPv4Header hdr, SocketBuffer skbuf,
+            int mtu) throws NetworkException {
         if ((hdr.getLength() + IP_MIN_FRAG_SIZE) > mtu) {
             throw new NetworkException("MTU is too small for IP, mtu=" + mtu);
         }
@@ -310,17 +466,24 @@ public class IPv4Sender implements IPv4Constants, EthernetConstants {
         final byte[] packet = skbuf.toByteArray();
         int length = packet.length;
         int offset = 0;
-        // Size of a single fragment
-        final int maxFragSize = (mtu - hdr.getLength()) & ~IP_MIN_FRAG_SIZE;
+        final int baseOffset = hdr.getFragmentOffset();
+        final boolean moreFragments = hdr.hasMoreFragments();
+        // Size of a single fragment, a multiple of 8 bytes
+        final int maxFragSize = (mtu - hdr.getLength()) & ~(IP_MIN_FRAG_SIZE - 1);
+        // Room for the headers that are prefixed to each fragment
+        final int headroom = hdr.getLength() + ETH_HLEN;
 
         // Now create the fragmented packets and send them
         while (length > 0) {
             final int fragLen = Math.min(maxFragSize, length);
-            final SocketBuffer fBuf = new SocketBuffer(packet, offset, fragLen);
-            hdr.setFragmentOffset(offset);
-            hdr.setMoreFragments((length - fragLen) > 0);
+            final SocketBuffer fBuf = new SocketBuffer(headroom + fragLen);
+            fBuf.append(headroom);
+            fBuf.pull(headroom);
+            fBuf.append(packet, offset, fragLen);
+            hdr.setFragmentOffset(baseOffset + offset);
+            hdr.setMoreFragments(((length - fragLen) > 0) || moreFragments);
             hdr.setDataLength(fragLen);
-            sendPacket(api, dstHwAddr, hdr, fBuf);
+            sendPacket(api, dev, dstHwAddr, unresolved, myAddress, hdr, fBuf);
             offset += fragLen;
             length -= fragLen;
         }
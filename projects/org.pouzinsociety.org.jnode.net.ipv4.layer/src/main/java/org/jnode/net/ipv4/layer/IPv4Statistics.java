@@ -45,9 +45,28 @@ public class IPv4Statistics implements Statistics {
             new Counter("nodevaddr", "#received packets not delivered because device address was not set");
     protected final Counter opackets = new Counter("opackets", "total #output packets");
     protected final Counter reassembled = new Counter("reassembled", "#datagrams reassembled");
+    protected final Counter fragdropped =
+            new Counter("fragdropped", "#fragments dropped because they were invalid or overlapped");
+    protected final Counter fragtimeout =
+            new Counter("fragtimeout", "#datagrams not reassembled within the timeout");
+    protected final Counter fragnomem =
+            new Counter("fragnomem", "#datagrams dropped because the reassembly memory was full");
+    protected final Counter forwarded = new Counter("forwarded", "#packets forwarded");
+    protected final Counter fwdttl =
+            new Counter("fwdttl", "#packets not forwarded because the TTL expired");
+    protected final Counter fwdnoroute =
+            new Counter("fwdnoroute", "#packets not forwarded because no route was found");
+    protected final Counter fwderrors =
+            new Counter("fwderrors", "#packets not forwarded because of other errors");
+    protected final Counter dsthits =
+            new Counter("dsthits", "#output packets sent using a cached destination");
+    protected final Counter dstmisses =
+            new Counter("dstmisses", "#output packets that needed a route and neighbor lookup");
 
     private final Counter[] list = new Counter[] {
-        badhlen, badlen, badsum, fragments, ipackets, noproto, nodevaddr, opackets};
+        badhlen, badlen, badsum, fragments, ipackets, noproto, nodevaddr, opackets, reassembled,
+        fragdropped, fragtimeout, fragnomem, forwarded, fwdttl, fwdnoroute, fwderrors, dsthits,
+        dstmisses};
 
     /**
      * Gets all statistics
@@ -0,0 +1,84 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4.layer;
+
+/**
+ * Measures the rate at which packets are forwarded through the chain of
+ * stacks of TestIPv4Forwarding. Each packet is built and forwarded in the
+ * calling thread, so the rate includes building the packets.
+ */
+public class IPv4ForwardingMeter {
+
+	private int warmup = 20000;
+	private int packets = 200000;
+
+	/** Sets the number of packets forwarded before measuring. */
+	public void setWarmup(int warmup) {
+		this.warmup = warmup;
+	}
+
+	/** Sets the number of packets measured. */
+	public void setPackets(int packets) {
+		this.packets = packets;
+	}
+
+	/**
+	 * Runs the measurement and returns the report.
+	 */
+	public String run() throws Exception {
+		final TestIPv4Forwarding chain = new TestIPv4Forwarding();
+		chain.setUp();
+		try {
+			for (int i = 0; i < warmup; i++) {
+				chain.send(chain.packet(64));
+			}
+			final int before = chain.receivedCount;
+			final long start = System.nanoTime();
+			for (int i = 0; i < packets; i++) {
+				chain.send(chain.packet(64));
+			}
+			final long elapsed = System.nanoTime() - start;
+			final int forwarded = chain.receivedCount - before;
+			if (forwarded != packets) {
+				throw new IllegalStateException(forwarded + " of " + packets
+						+ " packets forwarded");
+			}
+			return "IPv4 forwarding over " + TestIPv4Forwarding.ROUTERS + " hops: "
+					+ packets + " packets, " + (elapsed / packets) + "ns/packet, "
+					+ (packets * 1000000000L / Math.max(elapsed, 1)) + " packets/s";
+		} finally {
+			chain.tearDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final IPv4ForwardingMeter meter = new IPv4ForwardingMeter();
+		if (args.length > 0) {
+			meter.setPackets(Integer.parseInt(args[0]));
+		}
+		System.out.println(meter.run());
+	}
+}
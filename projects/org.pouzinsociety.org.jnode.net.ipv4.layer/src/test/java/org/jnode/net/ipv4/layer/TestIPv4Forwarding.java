@@ -0,0 +1,221 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4.layer;
+
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
+import org.jnode.driver.net.NetDeviceListener;
+import org.jnode.net.HardwareAddress;
+import org.jnode.net.ProtocolAddressInfo;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.arp.ARPNetworkLayer;
+import org.jnode.net.ethernet.EthernetAddress;
+import org.jnode.net.ethernet.EthernetConstants;
+import org.jnode.net.ethernet.EthernetHeader;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.IPv4ProtocolAddressInfo;
+import org.jnode.net.ipv4.IPv4Route;
+
+import junit.framework.TestCase;
+
+/**
+ * Forwards packets through a chain of routers, each a separate stack,
+ * connected by in-JVM wires that hand the transmitted buffer directly to
+ * the receiving stack.
+ */
+public class TestIPv4Forwarding extends TestCase {
+
+	static final int ROUTERS = 3;
+	private static final int PAYLOAD = 512;
+	private static final IPv4Address SOURCE = new IPv4Address("10.0.0.2");
+	private static final IPv4Address SINK = new IPv4Address("10.0.3.2");
+	private static final IPv4Address MASK = new IPv4Address("255.255.255.0");
+	private static final EthernetAddress SOURCE_HW = mac(0, 2);
+	private static final EthernetAddress SINK_HW = mac(3, 2);
+
+	/** A device connected to the ingress of the next stack, or to the sink */
+	private class Port implements NetDeviceAPI {
+		final Device device;
+		final EthernetAddress hwAddress;
+		final IPv4ProtocolAddressInfo addressInfo;
+		IPv4NetworkLayer peer;
+		Port peerPort;
+
+		Port(String id, EthernetAddress hwAddress, IPv4Address address) {
+			this.device = new Device(null, id);
+			this.hwAddress = hwAddress;
+			this.addressInfo = new IPv4ProtocolAddressInfo(address, MASK);
+			device.registerAPI(NetDeviceAPI.class, this);
+		}
+
+		public HardwareAddress getAddress() {
+			return hwAddress;
+		}
+
+		public int getMTU() {
+			return 1500;
+		}
+
+		public void transmit(SocketBuffer packet, HardwareAddress destination) {
+			if (peer == null) {
+				received = packet;
+				receivedCount++;
+				return;
+			}
+			try {
+				deliver(packet, hwAddress, (EthernetAddress) destination, peerPort, peer);
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+		public ProtocolAddressInfo getProtocolAddressInfo(int protocolID) {
+			return (protocolID == EthernetConstants.ETH_P_IP) ? addressInfo : null;
+		}
+
+		public void setProtocolAddressInfo(int protocolID, ProtocolAddressInfo addressInfo) {
+		}
+
+		public void addEventListener(NetDeviceListener listener) {
+		}
+
+		public void removeEventListener(NetDeviceListener listener) {
+		}
+		public void addMulticastAddress(HardwareAddress address) {
+		}
+		public void removeMulticastAddress(HardwareAddress address) {
+		}
+	}
+
+	private IPv4NetworkLayer[] routers;
+	private Port[] ingress;
+	private SocketBuffer received;
+	int receivedCount;
+
+	private static EthernetAddress mac(int net, int host) {
+		return new EthernetAddress((byte) 2, (byte) 0, (byte) 0, (byte) 0, (byte) net,
+				(byte) host);
+	}
+
+	private static IPv4Address ip(int net, int host) {
+		return new IPv4Address("10.0." + net + "." + host);
+	}
+
+	protected void setUp() throws Exception {
+		routers = new IPv4NetworkLayer[ROUTERS];
+		ingress = new Port[ROUTERS];
+		final Port[] egress = new Port[ROUTERS];
+		for (int i = 0; i < ROUTERS; i++) {
+			routers[i] = new IPv4NetworkLayer();
+			final ARPNetworkLayer arp = new ARPNetworkLayer();
+			routers[i].setArp(arp);
+			routers[i].setForwarding(true);
+			ingress[i] = new Port("r" + i + "-in", mac(i, 1), ip(i, (i == 0) ? 1 : 2));
+			egress[i] = new Port("r" + i + "-out", mac(i + 1, 1), ip(i + 1, 1));
+			routers[i].getRoutingTable().add(new IPv4Route(ip(i, 0), MASK, ingress[i].device));
+			routers[i].getRoutingTable().add(
+					new IPv4Route(ip(i + 1, 0), MASK, egress[i].device));
+		}
+		for (int i = 0; i < ROUTERS; i++) {
+			final IPv4NetworkLayer r = routers[i];
+			final ARPNetworkLayer arp = (ARPNetworkLayer) r.getArp();
+			if (i + 1 < ROUTERS) {
+				// Next hop is the ingress of the next router
+				final IPv4Address gw = ip(i + 1, 2);
+				r.getRoutingTable().add(new IPv4Route(new IPv4Address("0.0.0.0"),
+						new IPv4Address("0.0.0.0"), gw, egress[i].device));
+				arp.getCache().set(ingress[i + 1].hwAddress, gw, false);
+				egress[i].peer = routers[i + 1];
+				egress[i].peerPort = ingress[i + 1];
+			} else {
+				arp.getCache().set(SINK_HW, SINK, false);
+			}
+		}
+		received = null;
+		receivedCount = 0;
+	}
+
+	protected void tearDown() throws Exception {
+		for (int i = 0; i < ROUTERS; i++) {
+			routers[i].shutdown();
+			((ARPNetworkLayer) routers[i].getArp()).shutdown();
+		}
+	}
+
+	private static void deliver(SocketBuffer skbuf, EthernetAddress src, EthernetAddress dst,
+			Port port, IPv4NetworkLayer stack) throws Exception {
+		skbuf.insert(14);
+		dst.writeTo(skbuf, 0);
+		src.writeTo(skbuf, 6);
+		skbuf.set16(12, EthernetConstants.ETH_P_IP);
+		final EthernetHeader hdr = new EthernetHeader(skbuf);
+		skbuf.setLinkLayerHeader(hdr);
+		skbuf.pull(hdr.getLength());
+		skbuf.setDevice(port.device);
+		stack.receive(skbuf, port);
+	}
+
+	SocketBuffer packet(int ttl) {
+		final SocketBuffer skbuf = new SocketBuffer();
+		skbuf.append(new byte[PAYLOAD], 0, PAYLOAD);
+		final IPv4Header hdr = new IPv4Header(0, ttl, IPv4Constants.IPPROTO_UDP, SINK, PAYLOAD);
+		hdr.setSource(SOURCE);
+		hdr.setIdentification(1);
+		hdr.prefixTo(skbuf);
+		return skbuf;
+	}
+
+	void send(SocketBuffer skbuf) throws Exception {
+		deliver(skbuf, SOURCE_HW, ingress[0].hwAddress, ingress[0], routers[0]);
+	}
+
+	public void testForward() throws Exception {
+		final SocketBuffer skbuf = packet(64);
+		send(skbuf);
+		assertEquals(1, receivedCount);
+		// The same buffer went through all routers
+		assertSame(skbuf, received);
+		final IPv4Header hdr = new IPv4Header(received);
+		assertTrue(hdr.isChecksumOk());
+		assertEquals(64 - ROUTERS, hdr.getTtl());
+		assertEquals(SOURCE, hdr.getSource());
+		assertEquals(PAYLOAD, hdr.getDataLength());
+	}
+
+	public void testTtlExpired() throws Exception {
+		send(packet(ROUTERS - 1));
+		assertEquals(0, receivedCount);
+		assertEquals(1, ((IPv4Statistics) routers[ROUTERS - 2].getStatistics()).fwdttl.get());
+	}
+
+	public void testNoForwarding() throws Exception {
+		routers[1].setForwarding(false);
+		send(packet(64));
+		assertEquals(0, receivedCount);
+	}
+}
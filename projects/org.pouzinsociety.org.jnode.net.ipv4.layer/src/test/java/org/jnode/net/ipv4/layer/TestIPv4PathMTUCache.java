@@ -0,0 +1,74 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4.layer;
+
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+
+import junit.framework.TestCase;
+
+/**
+ * Path MTUs learned from "fragmentation needed" messages.
+ */
+public class TestIPv4PathMTUCache extends TestCase {
+
+	private static final IPv4Address DST = new IPv4Address("10.0.3.2");
+	private static final IPv4Address OTHER = new IPv4Address("10.0.4.2");
+
+	public void testUnknownDestination() {
+		final IPv4PathMTUCache cache = new IPv4PathMTUCache();
+		assertEquals(1500, cache.get(DST, 1500, 0));
+		cache.update(DST, 1280, 0);
+		assertEquals(1500, cache.get(OTHER, 1500, 0));
+	}
+
+	public void testOnlyLowered() {
+		final IPv4PathMTUCache cache = new IPv4PathMTUCache();
+		assertTrue(cache.update(DST, 1280, 0));
+		assertEquals(1280, cache.get(DST, 1500, 0));
+		assertFalse(cache.update(DST, 1400, 0));
+		assertFalse(cache.update(DST, 1280, 0));
+		assertTrue(cache.update(DST, 576, 0));
+		assertEquals(576, cache.get(DST, 1500, 0));
+		// The device MTU still applies
+		assertEquals(500, cache.get(DST, 500, 0));
+	}
+
+	public void testMinimum() {
+		final IPv4PathMTUCache cache = new IPv4PathMTUCache();
+		cache.update(DST, 20, 0);
+		assertEquals(IPv4Constants.IP_MIN_MTU, cache.get(DST, 1500, 0));
+	}
+
+	public void testExpire() {
+		final IPv4PathMTUCache cache = new IPv4PathMTUCache();
+		cache.update(DST, 1280, 0);
+		assertEquals(1280, cache.get(DST, 1500, IPv4Constants.IP_PMTU_TIMEOUT - 1));
+		assertEquals(1500, cache.get(DST, 1500, IPv4Constants.IP_PMTU_TIMEOUT));
+		// A larger MTU is accepted again once expired
+		assertTrue(cache.update(DST, 1400, IPv4Constants.IP_PMTU_TIMEOUT));
+	}
+}
@@ -45,6 +45,7 @@ import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
 import org.jnode.net.ipv4.IPv4ControlBlock;
 import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.icmp.ICMPConstants;
 import org.jnode.util.NumberUtils;
 import org.jnode.util.TimeoutException;
 
@@ -295,6 +296,7 @@ public class TCPControlBlock extends IPv4ControlBlock implements TCPConstants {
 
         // Save the foreign seq nr
         inChannel.initISN(hdr);
+        outChannel.initPathMTU(getForeignAddress());
 
         // Send the SYN&ACK TCP reply
         sendACK(TCPF_SYN, hdr.getSequenceNr() + 1);
@@ -653,6 +655,44 @@ public class TCPControlBlock extends IPv4ControlBlock implements TCPConstants {
         }
     }
 
+    /**
+     * Create an IP header for outgoing trafic. All segments are sent with
+     * the DF flag set, to discover the path MTU (RFC 1191).
+     *
+     * @see org.jnode.net.ipv4.IPv4ControlBlock#createOutgoingIPv4Header()
+     */
+    protected IPv4Header createOutgoingIPv4Header() {
+        final IPv4Header hdr = super.createOutgoingIPv4Header();
+        hdr.setDontFragment(true);
+        return hdr;
+    }
+
+    /**
+     * Lower the mss of this connection to the given path MTU.
+     *
+     * @param mtu
+     */
+    final void setPathMTU(int mtu) {
+        outChannel.setPathMTU(mtu);
+    }
+
+    /**
+     * Process an ICMP error for a segment of this connection. Protocol and
+     * port unreachable messages refuse a connection that is being opened;
+     * all other errors are soft errors and are ignored (RFC 1122 4.2.3.9).
+     *
+     * @param type
+     * @param code
+     */
+    final synchronized void receiveError(int type, int code) throws SocketException {
+        if ((type == ICMPConstants.ICMP_DEST_UNREACH) && isState(TCPS_SYN_SENT) &&
+                ((code == ICMPConstants.ICMP_PROT_UNREACH) ||
+                    (code == ICMPConstants.ICMP_PORT_UNREACH))) {
+            notifyConnectionRefused();
+            setState(TCPS_CLOSED);
+        }
+    }
+
     /**
      * Create a TCP header for outgoing trafic
      *
@@ -693,6 +733,7 @@ public class TCPControlBlock extends IPv4ControlBlock implements TCPConstants {
             throw new SocketException("Invalid connection state " + getStateName());
         }
         super.connect(getLocalAddress(), fAddr, fPort);
+        outChannel.initPathMTU(fAddr);
         for (int attempt = 0; attempt < TCP_MAXCONNECT; attempt++) {
             try {
                 // Send the SYN
@@ -806,15 +847,13 @@ public class TCPControlBlock extends IPv4ControlBlock implements TCPConstants {
         if (length < 0) {
             throw new IllegalArgumentException("length " + length);
         }
-        final int mss = outChannel.getMss();
         while (length > 0) {
-            final int chunk = Math.min(length, mss);
             // Create the TCP header
             final TCPHeader hdr = createOutgoingTCPHeader(TCPF_ACK, inChannel.getRcvNext());
             // Create the IP header
             final IPv4Header ipHdr = createOutgoingIPv4Header();
-            // Send the chunk of data
-            outChannel.send(ipHdr, hdr, data, offset, chunk);
+            // Send a chunk of at most mss bytes
+            final int chunk = outChannel.send(ipHdr, hdr, data, offset, length);
             // Update length & offset
             offset += chunk;
             length -= chunk;
@@ -39,6 +39,8 @@ import java.net.SocketException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import org.apache.commons.logging.*;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
 import org.jnode.net.ipv4.IPv4Header;
 
 /**
@@ -184,7 +186,7 @@ public class TCPOutChannel {
     }
 
     /**
-     * Send a TCP segment containing the given data.
+     * Send a TCP segment containing the given data, up to mss bytes.
      * This method blocks until there is enough space in the output buffer
      * to hold the data.
      *
@@ -192,17 +194,17 @@ public class TCPOutChannel {
      * @param hdr
      * @param data
      * @param offset
-     * @param length Must be smaller or equal to mss.
+     * @param length
+     * @return The number of bytes sent, which is less than length if the mss
+     *         is smaller
      */
-    public synchronized void send(IPv4Header ipHdr, TCPHeader hdr, byte[] data, int offset,
-                                  int length) throws SocketException {
+    public synchronized int send(IPv4Header ipHdr, TCPHeader hdr, byte[] data, int offset,
+                                 int length) throws SocketException {
         if (DEBUG) {
             log.debug("outChannel.send(ipHdr,hdr,data," + offset + ", " + length + ")");
         }
-        // Check for maximum datalength
-        if (length > mss) {
-            throw new IllegalArgumentException("dataLength must be <= mss");
-        }
+        // The mss may have been lowered since the caller read it
+        length = Math.min(length, mss);
         // Wait until there is space in the output buffer
         while ((length > dataBuffer.getFreeSize()) && !controlBlock.isReset()) {
             try {
@@ -220,6 +222,7 @@ public class TCPOutChannel {
         hdr.setDataLength(length);
         // Do the actual send
         sendHelper(ipHdr, hdr, bufOfs);
+        return length;
     }
 
     /**
@@ -242,7 +245,7 @@ public class TCPOutChannel {
         snd_max = snd_next;
         // Create & send the segment
         final TCPOutSegment seg =
-            new TCPOutSegment(ipHdr, hdr, dataBuffer, dataOffset, timeoutTicks);
+            new TCPOutSegment(ipHdr, hdr, dataBuffer, dataOffset, timeoutTicks, controlBlock);
         seg.send(tcp);
         if (!seg.isAckOnly() && !hdr.isFlagSynchronizeSet()) {
             if (DEBUG) {
@@ -273,4 +276,33 @@ public class TCPOutChannel {
         this.mss = mss;
     }
 
+    /**
+     * Lower the mss to the path MTU to the given foreign address.
+     *
+     * @param fAddr
+     */
+    final void initPathMTU(IPv4Address fAddr) throws SocketException {
+        setPathMTU(tcp.getPathMTU(fAddr));
+    }
+
+    /**
+     * Lower the mss so a segment fits in the given path MTU (RFC 1191).
+     * Unacknowledged segments that no longer fit are retransmitted without
+     * the DF flag, so they are fragmented instead of dropped again.
+     *
+     * @param mtu
+     */
+    public synchronized void setPathMTU(int mtu) {
+        final int newMss = mtu - IPv4Constants.IP_HLEN - TCPConstants.TCP_HLEN;
+        if (newMss >= mss) {
+            return;
+        }
+        this.mss = newMss;
+        for (TCPOutSegment seg : unackedSegments) {
+            if (seg.getDataLength() > newMss) {
+                seg.allowFragmentation();
+            }
+        }
+    }
+
 }
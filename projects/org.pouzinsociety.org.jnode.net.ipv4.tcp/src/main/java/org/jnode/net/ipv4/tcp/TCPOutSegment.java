@@ -55,6 +55,11 @@ public class TCPOutSegment extends TCPSegment {
     private final TCPDataBuffer buffer;
     private int dataOffset;
 
+    /**
+     * The control block this segment is sent for
+     */
+    private final TCPControlBlock controlBlock;
+
     /**
      * Timeout counter, if 0, re-transmit
      */
@@ -69,12 +74,14 @@ public class TCPOutSegment extends TCPSegment {
      * @param ipHdr
      * @param hdr
      * @param dataOffset
+     * @param controlBlock
      */
     public TCPOutSegment(IPv4Header ipHdr, TCPHeader hdr, TCPDataBuffer buffer, int dataOffset,
-                         int timeout) {
+                         int timeout, TCPControlBlock controlBlock) {
         super(ipHdr, hdr);
         this.buffer = buffer;
         this.dataOffset = dataOffset;
+        this.controlBlock = controlBlock;
         this.timeout = timeout;
         this.timeoutTicks = timeout;
     }
@@ -106,7 +113,7 @@ public class TCPOutSegment extends TCPSegment {
         } else {
             skbuf = new SocketBuffer(0);
         }
-        tcp.send(ipHdr, hdr, skbuf);
+        tcp.send(ipHdr, hdr, skbuf, controlBlock);
     }
 
     /**
@@ -122,6 +129,21 @@ public class TCPOutSegment extends TCPSegment {
         }
     }
 
+    /**
+     * Gets the length of the data in this segment
+     */
+    public final int getDataLength() {
+        return hdr.getDataLength();
+    }
+
+    /**
+     * Send this segment without the DF flag from now on. Used when the
+     * segment no longer fits in the path MTU.
+     */
+    public final void allowFragmentation() {
+        ipHdr.setDontFragment(false);
+    }
+
     /**
      * Does this segment only contain an ACK?
      *
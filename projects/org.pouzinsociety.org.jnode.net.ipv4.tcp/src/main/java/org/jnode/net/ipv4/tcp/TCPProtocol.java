@@ -45,9 +45,12 @@ import org.jnode.driver.net.NetworkException;
 import org.jnode.net.SocketBuffer;
 import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4ControlBlock;
 import org.jnode.net.ipv4.IPv4Header;
 import org.jnode.net.ipv4.IPv4Protocol;
 import org.jnode.net.ipv4.IPv4Service;
+import org.jnode.net.ipv4.icmp.ICMPConstants;
+import org.jnode.net.ipv4.icmp.ICMPHeader;
 import org.jnode.net.ipv4.icmp.ICMPUtils;
 import org.jnode.util.Statistics;
 
@@ -209,8 +212,29 @@ public class TCPProtocol implements IPv4Protocol, IPv4Constants, TCPConstants {
      * @see org.jnode.net.ipv4.IPv4Protocol#receiveError(org.jnode.net.SocketBuffer)
      */
     public void receiveError(SocketBuffer skbuf) throws SocketException {
-        // TODO Auto-generated method stub
+        final ICMPHeader icmpHdr = (ICMPHeader) skbuf.getTransportLayerHeader();
+        // The original IP header and the ports of the original segment
+        final IPv4Header ipHdr = new IPv4Header(skbuf);
+        final int srcPort = skbuf.get16(ipHdr.getLength());
+        final int dstPort = skbuf.get16(ipHdr.getLength() + 2);
 
+        final TCPControlBlock cb =
+            (TCPControlBlock) controlBlocks.lookup(ipHdr.getDestination(), dstPort,
+                ipHdr.getSource(), srcPort, false);
+        if (cb == null) {
+            return;
+        }
+        stat.errors.inc();
+
+        final int type = icmpHdr.getType();
+        final int code = icmpHdr.getCode();
+        if ((type == ICMPConstants.ICMP_DEST_UNREACH) &&
+                (code == ICMPConstants.ICMP_FRAG_NEEDED)) {
+            // The path MTU has already been updated by ICMP
+            cb.setPathMTU(getPathMTU(ipHdr.getDestination()));
+        } else {
+            cb.receiveError(type, code);
+        }
     }
 
     /**
@@ -219,6 +243,10 @@ public class TCPProtocol implements IPv4Protocol, IPv4Constants, TCPConstants {
      * @param hdr
      */
     private void processPortUnreachable(IPv4Header ipHdr, TCPHeader hdr) throws SocketException {
+        if (!icmp.allowError(ipHdr.getSource())) {
+            // Resets share the rate limit of ICMP error messages
+            return;
+        }
         final TCPHeader replyHdr =
             new TCPHeader(hdr.getDstPort(), hdr.getSrcPort(), 0, 0, hdr.getSequenceNr() + 1, 0,
                 0);
@@ -246,6 +274,19 @@ public class TCPProtocol implements IPv4Protocol, IPv4Constants, TCPConstants {
      */
     protected void send(IPv4Header ipHdr, TCPHeader tcpHdr, SocketBuffer skbuf)
         throws SocketException {
+        send(ipHdr, tcpHdr, skbuf, null);
+    }
+
+    /**
+     * Send an TCP packet for the given control block. The destination is
+     * pinned in the control block, so a connection only resolves its route
+     * and next hop again when they change.
+     *
+     * @param skbuf
+     * @param cb The control block, can be null
+     */
+    protected void send(IPv4Header ipHdr, TCPHeader tcpHdr, SocketBuffer skbuf,
+                        IPv4ControlBlock cb) throws SocketException {
         if (DEBUG) {
             if (log.isDebugEnabled()) {
                 log.debug("send(ipHdr, " + tcpHdr + ")");
@@ -254,10 +295,23 @@ public class TCPProtocol implements IPv4Protocol, IPv4Constants, TCPConstants {
         skbuf.setTransportLayerHeader(tcpHdr);
         tcpHdr.prefixTo(skbuf);
         ipHdr.setDataLength(skbuf.getSize());
-        ipService.transmit(ipHdr, skbuf);
+        if (cb != null) {
+            cb.transmit(ipService, ipHdr, skbuf);
+        } else {
+            ipService.transmit(ipHdr, skbuf);
+        }
         stat.opackets.inc();
     }
 
+    /**
+     * Gets the path MTU to the given address
+     *
+     * @param address
+     */
+    protected int getPathMTU(IPv4Address address) throws SocketException {
+        return ipService.getPathMTU(address);
+    }
+
     /**
      * Get the current time counter
      */
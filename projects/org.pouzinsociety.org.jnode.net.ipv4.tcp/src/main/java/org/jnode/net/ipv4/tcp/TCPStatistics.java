@@ -35,6 +35,9 @@ public class TCPStatistics implements Statistics {
     
     /** #received datagrams with checksum error */
     protected final Counter badsum = new Counter("badsum");
+
+    /** #received ICMP errors for a connection */
+    protected final Counter errors = new Counter("errors");
     
     /** #received datagrams not delivered because input socket full */
     protected final Counter fullsock = new Counter("fullsock");
@@ -59,7 +62,7 @@ public class TCPStatistics implements Statistics {
 
     /** The list of statistics */
     protected final Statistic[] list =
-            new Statistic[] {badlen, badsum, fullsock, hdrops, ipackets, noport, noportbcast,
+            new Statistic[] {badlen, badsum, errors, fullsock, hdrops, ipackets, noport, noportbcast,
                 opackets};
 
     /**
@@ -41,17 +41,18 @@ import jnode.net.DatagramPacket;
 import jnode.net.DatagramSocketImpl;
 import jnode.net.ExSocketOptions;
 import jnode.net.InetAddress;
+import jnode.net.InetSocketAddress;
 import jnode.net.NetworkInterface;
 import jnode.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.LinkedList;
 
 import org.jnode.driver.Device;
 import org.jnode.driver.DeviceNotFoundException;
 import org.jnode.driver.DeviceUtils;
 import org.jnode.net.SocketBuffer;
 import org.jnode.net.ethernet.EthernetConstants;
-import org.jnode.util.Queue;
 
 /**
  * @author epr
@@ -59,11 +60,23 @@ import org.jnode.util.Queue;
 public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl implements
         ExSocketOptions {
 
+    /** Default size (in bytes) of the receive buffer */
+    public static final int DEFAULT_RCVBUF = 65536;
+
     /** The receive queue of SocketBuffer instances */
-    private final Queue<SocketBuffer> receiveQueue = new Queue<SocketBuffer>();
+    private final LinkedList<SocketBuffer> receiveQueue = new LinkedList<SocketBuffer>();
+
+    /** Number of data bytes in the receive queue */
+    private int receiveQueueBytes;
+
+    /** Maximum number of data bytes in the receive queue (SO_RCVBUF) */
+    private int receiveBufferSize = DEFAULT_RCVBUF;
+
+    /** Number of received datagrams dropped because the receive queue was full */
+    private long receiveDrops;
     
     /** Have I been closed? */
-    private boolean closed;
+    private volatile boolean closed;
     
     /** Time to live */
     private int ttl = 0xFF;
@@ -83,6 +96,12 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
     /** Device used for transmission (can be null) */
     private Device device;
 
+    /** May the local port be shared with other sockets? */
+    private boolean reuseAddress = false;
+
+    /** May the local port be shared with load balancing over the sockets? */
+    private boolean reusePort = false;
+
     /**
      * Create a new instance
      */
@@ -108,12 +127,55 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
         if (!closed) {
             this.closed = true;
             doClose();
-            receiveQueue.close();
+            synchronized (receiveQueue) {
+                receiveQueue.clear();
+                receiveQueueBytes = 0;
+                receiveQueue.notifyAll();
+            }
         }
     }
 
     protected abstract void doClose();
 
+    /**
+     * @see jnode.net.DatagramSocketImpl#connect(jnode.net.InetAddress, int)
+     */
+    protected synchronized void connect(InetAddress address, int port)
+        throws SocketException {
+        if (closed) {
+            throw new SocketException("DatagramSocket closed");
+        }
+        doConnect(address, port);
+    }
+
+    /**
+     * Restrict this socket to send to and receive from the given address
+     * and port only.
+     * 
+     * @param address
+     * @param port
+     * @throws SocketException Connect is not supported.
+     */
+    protected void doConnect(InetAddress address, int port) throws SocketException {
+        throw new SocketException("Connect not supported");
+    }
+
+    /**
+     * @see jnode.net.DatagramSocketImpl#disconnect()
+     */
+    protected synchronized void disconnect() {
+        if (!closed) {
+            doDisconnect();
+        }
+    }
+
+    /**
+     * Undo a doConnect.
+     */
+    protected void doDisconnect() {
+        // Nothing todo here
+    }
+
     /**
      * @see java.net.DatagramSocketImpl#create()
      */
@@ -136,13 +198,19 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
             case SO_BROADCAST:
                 return new Boolean(broadcast);
             case SO_RCVBUF:
-                return new Integer(EthernetConstants.ETH_FRAME_LEN);
+                return new Integer(receiveBufferSize);
+            case SO_RCVDROPS:
+                return new Long(getReceiveDropCount());
             case SO_SNDBUF:
                 return new Integer(EthernetConstants.ETH_FRAME_LEN);
             case SO_TRANSMIT_IF:
                 return (device == null) ? null : NetworkInterface.getByName(device.getId());
             case SO_TIMEOUT:
                 return new Integer(timeout);
+            case SO_REUSEADDR:
+                return new Boolean(reuseAddress);
+            case SO_REUSEPORT_LB:
+                return new Boolean(reusePort);
             default:
                 return doGetOption(option_id);
         }
@@ -169,8 +237,17 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
                 case SO_BROADCAST:
                     broadcast = ((Boolean) val).booleanValue();
                     break;
-                case SO_RCVBUF: /* ignore */
+                case SO_RCVBUF:
+                    final int size = ((Integer) val).intValue();
+                    if (size <= 0) {
+                        throw new SocketException("Invalid receive buffer size " + size);
+                    }
+                    synchronized (receiveQueue) {
+                        receiveBufferSize = size;
+                    }
                     break;
+                case SO_RCVDROPS:
+                    throw new SocketException("Get only option: SO_RCVDROPS");
                 case SO_SNDBUF: /* ignore */
                     break;
                 case SO_TRANSMIT_IF: 
@@ -189,7 +266,10 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
                     timeout = ((Integer) val).intValue();
                     break;
                 case SO_REUSEADDR:
-                    // Ignored for now
+                    reuseAddress = ((Boolean) val).booleanValue();
+                    break;
+                case SO_REUSEPORT_LB:
+                    reusePort = ((Boolean) val).booleanValue();
                     break;
                 default:
                     doSetOption(option_id, val);
@@ -213,31 +293,76 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
     /**
      * @see java.net.DatagramSocketImpl#join(java.net.InetAddress)
      */
-    protected void join(InetAddress inetaddr) throws IOException {
-        // TODO Auto-generated method stub
+    protected final void join(InetAddress inetaddr) throws IOException {
+        doJoinGroup(inetaddr, getDevice());
     }
 
     /**
      * @see java.net.DatagramSocketImpl#joinGroup(java.net.SocketAddress,
      *      java.net.NetworkInterface)
      */
-    protected void joinGroup(SocketAddress mcastaddr, NetworkInterface netIf) throws IOException {
-        // TODO Auto-generated method stub
+    protected final void joinGroup(SocketAddress mcastaddr, NetworkInterface netIf)
+        throws IOException {
+        doJoinGroup(getGroupAddress(mcastaddr), getDevice(netIf));
     }
 
     /**
      * @see java.net.DatagramSocketImpl#leave(java.net.InetAddress)
      */
-    protected void leave(InetAddress inetaddr) throws IOException {
-        // TODO Auto-generated method stub
+    protected final void leave(InetAddress inetaddr) throws IOException {
+        doLeaveGroup(inetaddr, getDevice());
     }
 
     /**
      * @see java.net.DatagramSocketImpl#leaveGroup(java.net.SocketAddress,
      *      java.net.NetworkInterface)
      */
-    protected void leaveGroup(SocketAddress mcastaddr, NetworkInterface netIf) throws IOException {
-        // TODO Auto-generated method stub
+    protected final void leaveGroup(SocketAddress mcastaddr, NetworkInterface netIf)
+        throws IOException {
+        doLeaveGroup(getGroupAddress(mcastaddr), getDevice(netIf));
+    }
+
+    /**
+     * Join a multicast group.
+     * 
+     * @param group
+     * @param device The device to join the group on, or null to let the
+     *            protocol choose
+     */
+    protected void doJoinGroup(InetAddress group, Device device) throws IOException {
+        throw new SocketException("Multicast not supported");
+    }
+
+    /**
+     * Leave a multicast group, that was joined by doJoinGroup.
+     * 
+     * @param group
+     * @param device The device given to doJoinGroup
+     */
+    protected void doLeaveGroup(InetAddress group, Device device) throws IOException {
+        throw new SocketException("Multicast not supported");
+    }
+
+    private static InetAddress getGroupAddress(SocketAddress mcastaddr) throws SocketException {
+        if (!(mcastaddr instanceof InetSocketAddress)) {
+            throw new SocketException("Unsupported address type " + mcastaddr);
+        }
+        return ((InetSocketAddress) mcastaddr).getAddress();
+    }
+
+    /**
+     * Gets the device of a network interface, or the transmit device if
+     * netIf is null.
+     */
+    private Device getDevice(NetworkInterface netIf) throws SocketException {
+        if (netIf == null) {
+            return getDevice();
+        }
+        try {
+            return DeviceUtils.getDevice(netIf.getName());
+        } catch (DeviceNotFoundException ex) {
+            throw new SocketException("Unknown networkinterface " + netIf.getName());
+        }
     }
 
     /**
@@ -262,7 +387,7 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
         if (closed) {
             throw new SocketException("DatagramSocket has been closed");
         }
-        final SocketBuffer skbuf = (SocketBuffer) receiveQueue.get(timeout);
+        final SocketBuffer skbuf = take(timeout);
         if (skbuf == null) {
             if (closed) {
                 throw new SocketException("DatagramSocket has been closed");
@@ -274,19 +399,127 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
         }
     }
 
+    /**
+     * Receive up to count packets. Blocks for the first packet only, the
+     * packets already queued behind it are taken in the same lock
+     * acquisition.
+     * 
+     * @see jnode.net.DatagramSocketImpl#receive(jnode.net.DatagramPacket[], int, int)
+     */
+    protected final int receive(DatagramPacket[] packets, int offset, int count)
+        throws IOException {
+        if (count <= 0) {
+            return 0;
+        }
+        final SocketBuffer[] skbufs = new SocketBuffer[count];
+        final int n = take(skbufs, timeout);
+        if (n == 0) {
+            if (closed) {
+                throw new SocketException("DatagramSocket has been closed");
+            } else {
+                throw new SocketTimeoutException("Timeout in receive");
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            onReceive(packets[offset + i], skbufs[i]);
+        }
+        return n;
+    }
+
     protected abstract void onReceive(DatagramPacket p, SocketBuffer skbuf) throws IOException;
 
+    /**
+     * Take the first packet out of the receive queue. Blocks until a packet
+     * is available, the timeout expires or this socket is closed.
+     * 
+     * @param timeout Timeout in ms, 0 means wait forever
+     * @return The packet, or null on timeout or close
+     */
+    private SocketBuffer take(int timeout) {
+        final SocketBuffer[] skbufs = new SocketBuffer[1];
+        return (take(skbufs, timeout) > 0) ? skbufs[0] : null;
+    }
+
+    /**
+     * Take up to skbufs.length packets out of the receive queue. Blocks
+     * until at least one packet is available, the timeout expires or this
+     * socket is closed.
+     * 
+     * @param skbufs
+     * @param timeout Timeout in ms, 0 means wait forever
+     * @return The number of packets taken, 0 on timeout or close
+     */
+    private int take(SocketBuffer[] skbufs, int timeout) {
+        synchronized (receiveQueue) {
+            final long end = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+            while (receiveQueue.isEmpty()) {
+                if (closed) {
+                    return 0;
+                }
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = end - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return 0;
+                    }
+                }
+                try {
+                    receiveQueue.wait(wait);
+                } catch (InterruptedException ex) {
+                    // Ignore
+                }
+            }
+            int n = 0;
+            while ((n < skbufs.length) && !receiveQueue.isEmpty()) {
+                final SocketBuffer skbuf = receiveQueue.removeFirst();
+                receiveQueueBytes -= skbuf.getSize();
+                skbufs[n++] = skbuf;
+            }
+            return n;
+        }
+    }
+
     /**
      * Deliver a packet to this socket. This will put the packet in the
-     * receive queue if this socket has not been closed.
+     * receive queue if this socket has not been closed and the receive
+     * queue has room for it. A packet is always accepted in an empty queue,
+     * so datagrams larger than SO_RCVBUF are not starved.
+     * 
      * @param skbuf
+     * @return True if the packet has been queued, false if this socket has
+     *         been closed or the receive queue is full
      */
     public final boolean deliverReceived(SocketBuffer skbuf) {
-        if (!closed) {
-            receiveQueue.add(skbuf);
+        final int size = skbuf.getSize();
+        synchronized (receiveQueue) {
+            if (closed) {
+                return false;
+            }
+            if (!receiveQueue.isEmpty() && (receiveQueueBytes + size > receiveBufferSize)) {
+                receiveDrops++;
+                return false;
+            }
+            receiveQueue.addLast(skbuf);
+            receiveQueueBytes += size;
+            receiveQueue.notifyAll();
             return true;
-        } else {
-            return false;
+        }
+    }
+
+    /**
+     * Has this socket been closed?
+     */
+    public final boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the number of received packets that have been dropped because
+     * the receive queue was full.
+     */
+    public final long getReceiveDropCount() {
+        synchronized (receiveQueue) {
+            return receiveDrops;
         }
     }
 
@@ -327,6 +560,21 @@ public abstract class AbstractDatagramSocketImpl extends DatagramSocketImpl impl
         return device;
     }
 
+    /**
+     * May the local port be shared with other sockets?
+     */
+    public final boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    /**
+     * May the local port be shared with other sockets that balance the
+     * received packets between them?
+     */
+    public final boolean isReusePort() {
+        return reusePort;
+    }
+
     /**
      * Gets the timeout used in receive
      */
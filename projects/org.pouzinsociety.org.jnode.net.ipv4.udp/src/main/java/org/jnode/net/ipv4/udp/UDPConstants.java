@@ -28,4 +28,7 @@ public interface UDPConstants {
 
     public static final int UDP_HLEN = 8;
 
+    public static final int UDP_EPHEMERAL_FIRST = 1024;   /* First port assigned to unbound sockets */
+    public static final int UDP_EPHEMERAL_LAST = 65535;   /* Last port assigned to unbound sockets */
+
 }
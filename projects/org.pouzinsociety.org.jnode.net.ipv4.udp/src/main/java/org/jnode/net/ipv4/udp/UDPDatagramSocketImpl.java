@@ -36,9 +36,11 @@
  */
 package org.jnode.net.ipv4.udp;
 
+import org.jnode.driver.Device;
 import org.jnode.net.SocketBuffer;
 import org.jnode.net.ipv4.IPv4Address;
 import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Destination;
 import org.jnode.net.ipv4.IPv4Header;
 import org.jnode.net.ipv4.datagram.AbstractDatagramSocketImpl;
 
@@ -47,6 +49,8 @@ import jnode.net.DatagramPacket;
 import jnode.net.ExSocketOptions;
 import jnode.net.InetAddress;
 import java.net.SocketException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author epr
@@ -59,6 +63,39 @@ public class UDPDatagramSocketImpl extends AbstractDatagramSocketImpl implements
      */
     private final UDPProtocol protocol;
 
+    /**
+     * The local address this socket is bound to, null for any address
+     */
+    private volatile IPv4Address boundAddress;
+
+    /**
+     * The address this socket is connected to, null if not connected
+     */
+    private volatile IPv4Address remoteAddress;
+
+    /**
+     * The port this socket is connected to
+     */
+    private volatile int remotePort;
+
+    /**
+     * The destination used by the last send
+     */
+    private volatile IPv4Destination destination;
+
+    /**
+     * The ICMP error received for the connected destination, thrown by the
+     * next send to it
+     */
+    private final AtomicReference<PendingError> error =
+            new AtomicReference<PendingError>();
+
+    /**
+     * Joined multicast groups
+     */
+    private final CopyOnWriteArrayList<Membership> memberships =
+            new CopyOnWriteArrayList<Membership>();
+
     /**
      * Create a new instance
      * 
@@ -72,14 +109,113 @@ public class UDPDatagramSocketImpl extends AbstractDatagramSocketImpl implements
      * @see java.net.DatagramSocketImpl#bind(int, java.net.InetAddress)
      */
     protected void doBind(int lport, InetAddress laddr) throws SocketException {
+        boundAddress = laddr.isAnyLocalAddress() ? null : new IPv4Address(laddr);
         protocol.bind(this);
     }
 
+    /**
+     * @see org.jnode.net.ipv4.datagram.AbstractDatagramSocketImpl#doConnect(jnode.net.InetAddress, int)
+     */
+    protected void doConnect(InetAddress address, int port) throws SocketException {
+        remotePort = port;
+        remoteAddress = new IPv4Address(address);
+        protocol.connect(this);
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.datagram.AbstractDatagramSocketImpl#doDisconnect()
+     */
+    protected void doDisconnect() {
+        protocol.disconnect(this);
+        remoteAddress = null;
+    }
+
+    /**
+     * Does this socket receive packets sent to the given local address?
+     * 
+     * @param address
+     */
+    final boolean isBoundTo(IPv4Address address) {
+        final IPv4Address bound = boundAddress;
+        return (bound == null) || bound.equals(address);
+    }
+
+    /**
+     * Is this socket connected to the given address and port?
+     * 
+     * @param address
+     * @param port
+     */
+    final boolean isConnectedTo(IPv4Address address, int port) {
+        final IPv4Address remote = remoteAddress;
+        return (remote != null) && (remotePort == port) && remote.equals(address);
+    }
+
     /**
      * @see java.net.DatagramSocketImpl#close()
      */
     protected void doClose() {
         protocol.unbind(this);
+        for (Membership m : memberships) {
+            protocol.leaveGroup(m.group, m.device);
+        }
+        memberships.clear();
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.datagram.AbstractDatagramSocketImpl#doJoinGroup(jnode.net.InetAddress, org.jnode.driver.Device)
+     */
+    protected void doJoinGroup(InetAddress group, Device device) throws IOException {
+        final IPv4Address addr = new IPv4Address(group);
+        if (!addr.isMulticast()) {
+            throw new SocketException("Not a multicast address " + addr);
+        }
+        synchronized (memberships) {
+            if (findMembership(addr, device) != null) {
+                throw new SocketException("Already joined " + addr);
+            }
+            final Device dev = protocol.joinGroup(addr, device);
+            memberships.add(new Membership(addr, device, dev));
+        }
+    }
+
+    /**
+     * @see org.jnode.net.ipv4.datagram.AbstractDatagramSocketImpl#doLeaveGroup(jnode.net.InetAddress, org.jnode.driver.Device)
+     */
+    protected void doLeaveGroup(InetAddress group, Device device) throws IOException {
+        final IPv4Address addr = new IPv4Address(group);
+        synchronized (memberships) {
+            final Membership m = findMembership(addr, device);
+            if (m == null) {
+                throw new SocketException("Not joined " + addr);
+            }
+            memberships.remove(m);
+            protocol.leaveGroup(m.group, m.device);
+        }
+    }
+
+    /**
+     * Has this socket joined the given group on the given device?
+     * 
+     * @param group
+     * @param device
+     */
+    final boolean isMember(IPv4Address group, Device device) {
+        for (Membership m : memberships) {
+            if (m.group.equals(group) && (m.device == device)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Membership findMembership(IPv4Address group, Device requested) {
+        for (Membership m : memberships) {
+            if (m.group.equals(group) && (m.requested == requested)) {
+                return m;
+            }
+        }
+        return null;
     }
 
     /**
@@ -105,8 +241,52 @@ public class UDPDatagramSocketImpl extends AbstractDatagramSocketImpl implements
      * @see java.net.DatagramSocketImpl#send(java.net.DatagramPacket)
      */
     protected void send(DatagramPacket p) throws IOException {
+        final IPv4Destination dst = send(p, destination);
+        if (dst != null) {
+            destination = dst;
+        }
+    }
+
+    /**
+     * Send a batch of packets. Consecutive packets to the same destination
+     * reuse the route and hardware address resolved for the first of them.
+     * 
+     * @see jnode.net.DatagramSocketImpl#send(jnode.net.DatagramPacket[], int, int)
+     */
+    protected int send(DatagramPacket[] packets, int offset, int count) throws IOException {
+        IPv4Destination pinned = destination;
+        for (int i = 0; i < count; i++) {
+            try {
+                final IPv4Destination dst = send(packets[offset + i], pinned);
+                if (dst != null) {
+                    pinned = dst;
+                }
+            } catch (IOException ex) {
+                if (i == 0) {
+                    throw ex;
+                }
+                destination = pinned;
+                return i;
+            }
+        }
+        destination = pinned;
+        return Math.max(count, 0);
+    }
 
+    /**
+     * Send a packet, reusing the given destination if it is still valid.
+     * 
+     * @param p
+     * @param pinned
+     * @return The destination used, can be null
+     */
+    private IPv4Destination send(DatagramPacket p, IPv4Destination pinned) throws IOException {
         final IPv4Address dstAddress = new IPv4Address(p.getAddress());
+        final PendingError pending = error.get();
+        if ((pending != null) && dstAddress.equals(pending.address)
+                && error.compareAndSet(pending, null)) {
+            throw pending.ex;
+        }
         final IPv4Header ipHdr;
         ipHdr = new IPv4Header(getTos(), getTimeToLive(), IPPROTO_UDP, dstAddress, p.getLength() + UDP_HLEN);
         if (!getLocalAddress().isAnyLocalAddress() || (getDevice() != null)) {
@@ -120,7 +300,32 @@ public class UDPDatagramSocketImpl extends AbstractDatagramSocketImpl implements
 
         final SocketBuffer skbuf = new SocketBuffer(p.getData(), p.getOffset(), p.getLength());
         skbuf.setDevice(getDevice());
-        protocol.send(ipHdr, udpHdr, skbuf);
+        return protocol.send(ipHdr, udpHdr, skbuf, pinned);
+    }
+
+    /**
+     * Deliver an ICMP error for a datagram that was sent to the given
+     * address. The error is thrown by the next send to that address.
+     * Only called for a socket connected to that address.
+     *
+     * @param address
+     * @param ex
+     */
+    final void deliverError(IPv4Address address, SocketException ex) {
+        error.set(new PendingError(address, ex));
+    }
+
+    /**
+     * An ICMP error together with the destination it was received for
+     */
+    private static final class PendingError {
+        final IPv4Address address;
+        final SocketException ex;
+
+        PendingError(IPv4Address address, SocketException ex) {
+            this.address = address;
+            this.ex = ex;
+        }
     }
 
     public void setLocalPort(int localPort) {
@@ -134,4 +339,21 @@ public class UDPDatagramSocketImpl extends AbstractDatagramSocketImpl implements
         // TODO Auto-generated method stub
 
     }
+
+    /**
+     * A multicast group joined by this socket
+     */
+    private static final class Membership {
+        final IPv4Address group;
+        /** The device asked for in the join, can be null */
+        final Device requested;
+        /** The device on which the group has been joined */
+        final Device device;
+
+        Membership(IPv4Address group, Device requested, Device device) {
+            this.group = group;
+            this.requested = requested;
+            this.device = device;
+        }
+    }
 }
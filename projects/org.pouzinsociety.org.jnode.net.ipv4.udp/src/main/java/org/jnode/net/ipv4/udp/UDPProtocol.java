@@ -38,19 +38,24 @@
 package org.jnode.net.ipv4.udp;
 
 import jnode.net.DatagramSocketImplFactory;
-import jnode.net.InetAddress;
 import jnode.net.SocketImplFactory;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
 import java.net.SocketException;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.logging.*;
+import org.jnode.driver.Device;
 import org.jnode.driver.net.NetworkException;
 import org.jnode.net.SocketBuffer;
 import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Destination;
 import org.jnode.net.ipv4.IPv4Header;
 import org.jnode.net.ipv4.IPv4Protocol;
 import org.jnode.net.ipv4.IPv4Service;
+import org.jnode.net.ipv4.icmp.ICMPConstants;
+import org.jnode.net.ipv4.icmp.ICMPHeader;
 import org.jnode.net.ipv4.icmp.ICMPUtils;
 import org.jnode.util.Statistics;
 
@@ -58,7 +63,7 @@ import org.jnode.util.Statistics;
  * @author epr
  * @author Martin Husted Hartvig (hagar@jnode.org)
  */
-public class UDPProtocol implements IPv4Protocol, IPv4Constants {
+public class UDPProtocol implements IPv4Protocol, IPv4Constants, UDPConstants {
 
     /**
      * My logger
@@ -71,10 +76,17 @@ public class UDPProtocol implements IPv4Protocol, IPv4Constants {
     private final IPv4Service ipService;
 
     /**
-     * Socket bindings (lport, socket)
+     * Unconnected sockets by local port. Entries are replaced, never
+     * modified, under the lock of this protocol, so lookups need no lock.
      */
-    private final HashMap<Integer, UDPDatagramSocketImpl> sockets =
-            new HashMap<Integer, UDPDatagramSocketImpl>();
+    private final AtomicReferenceArray<UDPDatagramSocketImpl[]> ports =
+            new AtomicReferenceArray<UDPDatagramSocketImpl[]>(UDP_EPHEMERAL_LAST + 1);
+
+    /**
+     * Connected sockets by local port, maintained like ports.
+     */
+    private final AtomicReferenceArray<UDPDatagramSocketImpl[]> connected =
+            new AtomicReferenceArray<UDPDatagramSocketImpl[]>(UDP_EPHEMERAL_LAST + 1);
 
     /**
      * DatagramSocketImplFactor instance
@@ -92,13 +104,9 @@ public class UDPProtocol implements IPv4Protocol, IPv4Constants {
     private final ICMPUtils icmp;
 
     /**
-     * for random listener ports
+     * Offset in the ephemeral range where the search for a free port starts
      */
-    private final Integer zero = new Integer(0);
-    private final Random random = new Random();
-
-    private final int startRandom = 1024;
-    private final int stopRandom = (65535 - startRandom);
+    private int nextEphemeral = 0;
 
     /**
      * Create a new instance
@@ -168,7 +176,52 @@ public class UDPProtocol implements IPv4Protocol, IPv4Constants {
      * @throws SocketException
      */
     public void receiveError(SocketBuffer skbuf) throws SocketException {
-        // TODO handle ICMP errors in UDP
+        final ICMPHeader icmpHdr = (ICMPHeader) skbuf.getTransportLayerHeader();
+        // The original IP header and the ports of the original datagram
+        final IPv4Header ipHdr = new IPv4Header(skbuf);
+        final int srcPort = skbuf.get16(ipHdr.getLength());
+        final int dstPort = skbuf.get16(ipHdr.getLength() + 2);
+
+        final UDPDatagramSocketImpl socket =
+            findErrorSocket(srcPort, ipHdr.getDestination(), dstPort);
+        if ((socket == null) || (icmpHdr.getType() != ICMPConstants.ICMP_DEST_UNREACH)) {
+            return;
+        }
+        stat.errors.inc();
+
+        final IPv4Address dst = ipHdr.getDestination();
+        switch (icmpHdr.getCode()) {
+            case ICMPConstants.ICMP_PORT_UNREACH:
+            case ICMPConstants.ICMP_PROT_UNREACH:
+                socket.deliverError(dst,
+                    new PortUnreachableException("Port unreachable " + dst + ":" + dstPort));
+                break;
+            case ICMPConstants.ICMP_NET_UNREACH:
+            case ICMPConstants.ICMP_HOST_UNREACH:
+                socket.deliverError(dst, new NoRouteToHostException("Host unreachable " + dst));
+                break;
+            default:
+                // Fragmentation needed has been handled by the path MTU
+                // cache, other errors are not reported to the socket
+        }
+    }
+
+    /**
+     * Find the connected socket that has sent the datagram an ICMP error
+     * refers to. As in java.net, unconnected sockets get no ICMP errors: an
+     * error for one destination, perhaps forged, would fail the next send
+     * to that destination from a socket serving many peers.
+     */
+    private UDPDatagramSocketImpl findErrorSocket(int srcPort, IPv4Address dst, int dstPort) {
+        final UDPDatagramSocketImpl[] conn = connected.get(srcPort);
+        if (conn != null) {
+            for (UDPDatagramSocketImpl socket : conn) {
+                if (socket.isConnectedTo(dst, dstPort)) {
+                    return socket;
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -188,66 +241,201 @@ public class UDPProtocol implements IPv4Protocol, IPv4Constants {
     }
 
     /**
-     * Deliver a given packet to all interested sockets.
+     * Deliver a given packet to all interested sockets. Connected sockets
+     * are matched on the full address/port 4-tuple first, then the packet
+     * goes to the unconnected sockets bound to the destination port.
      * 
      * @param hdr
      * @param skbuf
      */
-    private synchronized void deliver(UDPHeader hdr, SocketBuffer skbuf) throws SocketException {
-        final Integer lport = new Integer(hdr.getDstPort());
+    private void deliver(UDPHeader hdr, SocketBuffer skbuf) throws SocketException {
+        final int lport = hdr.getDstPort();
         final IPv4Header ipHdr = (IPv4Header) skbuf.getNetworkLayerHeader();
-        final UDPDatagramSocketImpl socket = (UDPDatagramSocketImpl) sockets.get(lport);
-        if (socket != null) {
-            final InetAddress laddr = socket.getLocalAddress();
-            if (laddr.isAnyLocalAddress() || laddr.equals(ipHdr.getDestination().toInetAddress())) {
-                if (socket.deliverReceived(skbuf)) {
-                    return;
+        final IPv4Address dst = ipHdr.getDestination();
+        if (dst.isMulticast()) {
+            if (deliverMulticast(hdr, skbuf)) {
+                return;
+            }
+        } else {
+            final IPv4Address src = ipHdr.getSource();
+            final int srcPort = hdr.getSrcPort();
+            final UDPDatagramSocketImpl[] conn = connected.get(lport);
+            if (conn != null) {
+                for (UDPDatagramSocketImpl socket : conn) {
+                    if (socket.isConnectedTo(src, srcPort) && socket.isBoundTo(dst)) {
+                        deliverTo(socket, skbuf);
+                        return;
+                    }
                 }
             }
-            if (ipHdr.getDestination().isMulticast()) {
-                if (socket.deliverReceived(skbuf)) {
+            final UDPDatagramSocketImpl[] bound = ports.get(lport);
+            if (bound != null) {
+                final UDPDatagramSocketImpl socket = select(bound, dst, src, srcPort);
+                if (socket != null) {
+                    deliverTo(socket, skbuf);
                     return;
                 }
             }
         }
         stat.noport.inc();
-        if (ipHdr.getDestination().isBroadcast()) {
+        if (dst.isBroadcast()) {
             stat.noportbcast.inc();
         }
-        if (ipHdr.getDestination().isMulticast()) {
-        	// No ICMP for a multicast address with no listener
-        	return;
-        	
+        if (dst.isMulticast()) {
+            // No ICMP for a multicast address with no listener
+            return;
         }
         // Send a port unreachable back
         icmp.sendPortUnreachable(skbuf);
     }
 
     /**
-     * Register a datagram socket
+     * Select the socket that receives a unicast packet. When all matching
+     * sockets have SO_REUSEPORT set, one of them is chosen by a hash of the
+     * source address and port, so a flow always goes to the same socket.
+     * Otherwise the first matching socket is chosen.
      * 
-     * @param socket
+     * @return The socket, or null if no socket is bound to the destination
      */
-    protected synchronized void bind(UDPDatagramSocketImpl socket) throws SocketException {
-        Integer lport = new Integer(socket.getLocalPort());
-
-        if (lport.compareTo(zero) != 0 && sockets.containsKey(lport)) {
-            throw new SocketException("Port already bound (" + lport + ")");
-        } else {
-            Integer ran;
+    private UDPDatagramSocketImpl select(UDPDatagramSocketImpl[] bound, IPv4Address dst,
+            IPv4Address src, int srcPort) {
+        if (bound.length == 1) {
+            return bound[0].isBoundTo(dst) ? bound[0] : null;
+        }
+        int matches = 0;
+        boolean reusePort = true;
+        UDPDatagramSocketImpl first = null;
+        for (UDPDatagramSocketImpl socket : bound) {
+            if (socket.isBoundTo(dst)) {
+                if (first == null) {
+                    first = socket;
+                }
+                reusePort &= socket.isReusePort();
+                matches++;
+            }
+        }
+        if (!reusePort || (matches <= 1)) {
+            return first;
+        }
+        int index = ((src.hashCode() * 31 + srcPort) & 0x7fffffff) % matches;
+        for (UDPDatagramSocketImpl socket : bound) {
+            if (socket.isBoundTo(dst) && (index-- == 0)) {
+                return socket;
+            }
+        }
+        return first;
+    }
 
-            while (lport.compareTo(zero) == 0) {
-                ran = new Integer(random.nextInt(stopRandom) + startRandom);
+    /**
+     * Deliver a packet to a socket, counting it if the receive queue of the
+     * socket is full.
+     */
+    private void deliverTo(UDPDatagramSocketImpl socket, SocketBuffer skbuf) {
+        if (!socket.deliverReceived(skbuf) && !socket.isClosed()) {
+            stat.fullsock.inc();
+        }
+    }
 
-                if (!sockets.containsKey(ran)) {
-                    // hmmm..... should we have one stop condition more??
-                    lport = ran;
-                    socket.setLocalPort(lport.intValue());
+    /**
+     * Deliver a multicast packet to every socket on the port that has joined
+     * the group on the receiving device. A connected socket only gets the
+     * packets of the address and port it is connected to. Each socket gets
+     * its own copy.
+     * 
+     * @return True if at least one socket has received the packet
+     */
+    private boolean deliverMulticast(UDPHeader hdr, SocketBuffer skbuf) {
+        final int lport = hdr.getDstPort();
+        final IPv4Header ipHdr = (IPv4Header) skbuf.getNetworkLayerHeader();
+        final IPv4Address group = ipHdr.getDestination();
+        final IPv4Address src = ipHdr.getSource();
+        final int srcPort = hdr.getSrcPort();
+        final Device dev = skbuf.getDevice();
+        UDPDatagramSocketImpl last = null;
+        final UDPDatagramSocketImpl[] conn = connected.get(lport);
+        if (conn != null) {
+            for (UDPDatagramSocketImpl socket : conn) {
+                if (socket.isConnectedTo(src, srcPort) && socket.isMember(group, dev)) {
+                    last = deliverCopy(last, socket, hdr, skbuf);
                 }
             }
+        }
+        final UDPDatagramSocketImpl[] bound = ports.get(lport);
+        if (bound != null) {
+            for (UDPDatagramSocketImpl socket : bound) {
+                if (socket.isMember(group, dev)) {
+                    last = deliverCopy(last, socket, hdr, skbuf);
+                }
+            }
+        }
+        if (last != null) {
+            deliverTo(last, skbuf);
+            return true;
+        }
+        return false;
+    }
 
-            sockets.put(lport, socket);
+    /**
+     * Deliver a copy of a multicast packet to the previous member found, so
+     * the last member can get the packet itself.
+     * 
+     * @param last The previous member found, can be null
+     * @param socket The member found now
+     * @return socket
+     */
+    private UDPDatagramSocketImpl deliverCopy(UDPDatagramSocketImpl last,
+            UDPDatagramSocketImpl socket, UDPHeader hdr, SocketBuffer skbuf) {
+        if (last != null) {
+            final SocketBuffer copy = new SocketBuffer(skbuf);
+            copy.setNetworkLayerHeader(skbuf.getNetworkLayerHeader());
+            copy.setTransportLayerHeader(hdr);
+            deliverTo(last, copy);
         }
+        return socket;
+    }
+
+    /**
+     * Join a multicast group on behalf of a socket.
+     * 
+     * @param group
+     * @param device The device, or null to use the route to the group
+     * @return The device on which the group has been joined
+     */
+    protected Device joinGroup(IPv4Address group, Device device) throws SocketException {
+        return ipService.joinGroup(group, device);
+    }
+
+    /**
+     * Leave a multicast group on behalf of a socket.
+     * 
+     * @param group
+     * @param device The device returned by joinGroup
+     */
+    protected void leaveGroup(IPv4Address group, Device device) {
+        ipService.leaveGroup(group, device);
+    }
+
+    /**
+     * Register a datagram socket. A port is shared only if all sockets
+     * bound to it have SO_REUSEADDR set, or all have SO_REUSEPORT set.
+     * Unbound sockets get the next free ephemeral port.
+     * 
+     * @param socket
+     */
+    protected synchronized void bind(UDPDatagramSocketImpl socket) throws SocketException {
+        int lport = socket.getLocalPort();
+        if (lport == 0) {
+            lport = findEphemeralPort();
+            socket.setLocalPort(lport);
+        } else if ((lport < 0) || (lport > UDP_EPHEMERAL_LAST)) {
+            throw new SocketException("Invalid port " + lport);
+        }
+        final UDPDatagramSocketImpl[] bound = ports.get(lport);
+        final UDPDatagramSocketImpl[] conn = connected.get(lport);
+        if (!canShare(socket, bound, conn)) {
+            throw new SocketException("Port already bound (" + lport + ")");
+        }
+        ports.set(lport, add(bound, socket));
     }
 
     /**
@@ -256,12 +444,131 @@ public class UDPProtocol implements IPv4Protocol, IPv4Constants {
      * @param socket
      */
     protected synchronized void unbind(UDPDatagramSocketImpl socket) {
-        final Integer lport = new Integer(socket.getLocalPort());
-        if (sockets.get(lport) == socket) {
-            sockets.remove(lport);
+        final int lport = socket.getLocalPort();
+        ports.set(lport, remove(ports.get(lport), socket));
+        connected.set(lport, remove(connected.get(lport), socket));
+    }
+
+    /**
+     * Move a bound socket to the table of connected sockets, after it has
+     * been connected.
+     * 
+     * @param socket
+     */
+    protected synchronized void connect(UDPDatagramSocketImpl socket) {
+        final int lport = socket.getLocalPort();
+        final UDPDatagramSocketImpl[] bound = ports.get(lport);
+        if (contains(bound, socket)) {
+            ports.set(lport, remove(bound, socket));
+            connected.set(lport, add(connected.get(lport), socket));
         }
     }
 
+    /**
+     * Move a connected socket back to the table of bound sockets.
+     * 
+     * @param socket
+     */
+    protected synchronized void disconnect(UDPDatagramSocketImpl socket) {
+        final int lport = socket.getLocalPort();
+        final UDPDatagramSocketImpl[] conn = connected.get(lport);
+        if (contains(conn, socket)) {
+            connected.set(lport, remove(conn, socket));
+            ports.set(lport, add(ports.get(lport), socket));
+        }
+    }
+
+    /**
+     * Find a free port in the ephemeral range, starting after the last
+     * port that has been assigned.
+     */
+    private int findEphemeralPort() throws SocketException {
+        final int range = UDP_EPHEMERAL_LAST - UDP_EPHEMERAL_FIRST + 1;
+        for (int i = 0; i < range; i++) {
+            final int port = UDP_EPHEMERAL_FIRST + ((nextEphemeral + i) % range);
+            if ((ports.get(port) == null) && (connected.get(port) == null)) {
+                nextEphemeral = (port - UDP_EPHEMERAL_FIRST + 1) % range;
+                return port;
+            }
+        }
+        throw new SocketException("No free UDP port");
+    }
+
+    /**
+     * May socket be bound to a port that the given sockets are bound to?
+     * Every socket on the port must agree: all have SO_REUSEADDR set, or
+     * all have SO_REUSEPORT set.
+     */
+    private static boolean canShare(UDPDatagramSocketImpl socket, UDPDatagramSocketImpl[] bound,
+            UDPDatagramSocketImpl[] conn) {
+        if ((bound == null) && (conn == null)) {
+            return true;
+        }
+        return (socket.isReuseAddress() && allReuse(bound, false) && allReuse(conn, false)) ||
+            (socket.isReusePort() && allReuse(bound, true) && allReuse(conn, true));
+    }
+
+    /**
+     * Have all sockets in list SO_REUSEPORT set, or SO_REUSEADDR if
+     * reusePort is false?
+     */
+    private static boolean allReuse(UDPDatagramSocketImpl[] list, boolean reusePort) {
+        if (list != null) {
+            for (UDPDatagramSocketImpl s : list) {
+                if (!(reusePort ? s.isReusePort() : s.isReuseAddress())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(UDPDatagramSocketImpl[] list, UDPDatagramSocketImpl socket) {
+        if (list != null) {
+            for (UDPDatagramSocketImpl s : list) {
+                if (s == socket) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets a copy of list with socket added to it.
+     */
+    private static UDPDatagramSocketImpl[] add(UDPDatagramSocketImpl[] list,
+            UDPDatagramSocketImpl socket) {
+        if (list == null) {
+            return new UDPDatagramSocketImpl[]{socket};
+        }
+        final UDPDatagramSocketImpl[] result = new UDPDatagramSocketImpl[list.length + 1];
+        System.arraycopy(list, 0, result, 0, list.length);
+        result[list.length] = socket;
+        return result;
+    }
+
+    /**
+     * Gets a copy of list without socket, or null if it becomes empty.
+     */
+    private static UDPDatagramSocketImpl[] remove(UDPDatagramSocketImpl[] list,
+            UDPDatagramSocketImpl socket) {
+        if (!contains(list, socket)) {
+            return list;
+        }
+        if (list.length == 1) {
+            return null;
+        }
+        final UDPDatagramSocketImpl[] result = new UDPDatagramSocketImpl[list.length - 1];
+        int i = 0;
+        for (UDPDatagramSocketImpl s : list) {
+            if (s != socket) {
+                result[i++] = s;
+            }
+        }
+        return result;
+    }
+
     /**
      * Send an UDP packet
      *
@@ -269,10 +576,23 @@ public class UDPProtocol implements IPv4Protocol, IPv4Constants {
      */
     protected void send(IPv4Header ipHdr, UDPHeader udpHdr, SocketBuffer skbuf)
         throws SocketException {
+        send(ipHdr, udpHdr, skbuf, null);
+    }
+
+    /**
+     * Send an UDP packet, reusing a destination pinned by the socket.
+     *
+     * @param skbuf
+     * @param pinned The destination used for the previous packet, can be null
+     * @return The destination used for this packet, can be null
+     */
+    protected IPv4Destination send(IPv4Header ipHdr, UDPHeader udpHdr, SocketBuffer skbuf,
+            IPv4Destination pinned) throws SocketException {
         skbuf.setTransportLayerHeader(udpHdr);
         udpHdr.prefixTo(skbuf);
-        ipService.transmit(ipHdr, skbuf);
+        final IPv4Destination dst = ipService.transmit(ipHdr, skbuf, pinned);
         stat.opackets.inc();
+        return dst;
     }
 
     /**
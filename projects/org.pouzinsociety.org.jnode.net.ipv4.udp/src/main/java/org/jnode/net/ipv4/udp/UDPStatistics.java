@@ -36,6 +36,9 @@ public class UDPStatistics implements Statistics {
     /** #received datagrams with checksum error */
     protected final Counter badsum = new Counter("badsum");
 
+    /** #received ICMP errors for a bound socket */
+    protected final Counter errors = new Counter("errors");
+
     /** #received datagrams not delivered because input socket full */
     protected final Counter fullsock = new Counter("fullsock");
 
@@ -56,7 +59,7 @@ public class UDPStatistics implements Statistics {
 
     /** The list of statistics */
     protected final Statistic[] list = new Statistic[] {
-        badlen, badsum, fullsock, hdrops, ipackets, noport, noportbcast, opackets};
+        badlen, badsum, errors, fullsock, hdrops, ipackets, noport, noportbcast, opackets};
 
     /**
      * Gets all statistics
@@ -0,0 +1,148 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4.datagram;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import jnode.net.DatagramPacket;
+import jnode.net.InetAddress;
+
+import org.jnode.net.SocketBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * The receive queue of a datagram socket, bounded by SO_RCVBUF.
+ */
+public class TestAbstractDatagramSocketImpl extends TestCase {
+
+	/** A socket that only queues what is delivered to it */
+	private static class Socket extends AbstractDatagramSocketImpl {
+
+		protected void doBind(int lport, InetAddress laddr) {
+		}
+
+		protected void doClose() {
+		}
+
+		protected void onReceive(DatagramPacket p, SocketBuffer skbuf) {
+			p.setData(skbuf.toByteArray(), 0, skbuf.getSize());
+		}
+
+		protected void send(DatagramPacket p) throws IOException {
+			throw new IOException("Not implemented");
+		}
+
+		protected void setTTL(byte ttl) {
+		}
+
+		protected byte getTTL() {
+			return 0;
+		}
+
+		/** Take the next datagram, return its length or -1 if there is none */
+		int take() throws IOException {
+			final DatagramPacket p = new DatagramPacket(new byte[0], 0);
+			try {
+				receive(p);
+				return p.getLength();
+			} catch (SocketTimeoutException ex) {
+				return -1;
+			}
+		}
+
+		void shutdown() {
+			close();
+		}
+	}
+
+	private Socket socket;
+
+	protected void setUp() throws Exception {
+		socket = new Socket();
+		socket.setOption(Socket.SO_RCVBUF, new Integer(100));
+		socket.setOption(Socket.SO_TIMEOUT, new Integer(1));
+	}
+
+	private static SocketBuffer datagram(int size) {
+		final SocketBuffer skbuf = new SocketBuffer();
+		skbuf.append(new byte[size], 0, size);
+		return skbuf;
+	}
+
+	private long drops() throws SocketException {
+		return ((Long) socket.getOption(Socket.SO_RCVDROPS)).longValue();
+	}
+
+	public void testTailDrop() throws Exception {
+		assertTrue(socket.deliverReceived(datagram(40)));
+		assertTrue(socket.deliverReceived(datagram(60)));
+		// The queue holds 100 bytes, the newest datagram is dropped
+		assertFalse(socket.deliverReceived(datagram(1)));
+		assertEquals(1, drops());
+
+		assertEquals(40, socket.take());
+		assertFalse(socket.deliverReceived(datagram(41)));
+		assertTrue(socket.deliverReceived(datagram(40)));
+		assertEquals(2, drops());
+		assertEquals(60, socket.take());
+		assertEquals(40, socket.take());
+		assertEquals(-1, socket.take());
+	}
+
+	public void testLargeDatagram() throws Exception {
+		// An empty queue takes a datagram larger than SO_RCVBUF
+		assertTrue(socket.deliverReceived(datagram(500)));
+		assertFalse(socket.deliverReceived(datagram(1)));
+		assertEquals(500, socket.take());
+		assertTrue(socket.deliverReceived(datagram(1)));
+		assertEquals(1, drops());
+	}
+
+	public void testReceiveBufferSize() throws Exception {
+		assertEquals(new Integer(100), socket.getOption(Socket.SO_RCVBUF));
+		try {
+			socket.setOption(Socket.SO_RCVBUF, new Integer(0));
+			fail("SO_RCVBUF of 0 accepted");
+		} catch (SocketException ex) {
+			// Expected
+		}
+		try {
+			socket.setOption(Socket.SO_RCVDROPS, new Long(0));
+			fail("SO_RCVDROPS set");
+		} catch (SocketException ex) {
+			// Expected
+		}
+	}
+
+	public void testClosed() throws Exception {
+		socket.shutdown();
+		assertFalse(socket.deliverReceived(datagram(1)));
+		assertEquals(0, socket.getReceiveDropCount());
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4.udp;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import jnode.net.DatagramPacket;
+import jnode.net.InetSocketAddress;
+
+import org.jnode.driver.Device;
+import org.jnode.net.NoSuchProtocolException;
+import org.jnode.net.SocketBuffer;
+import org.jnode.net.ethernet.EthernetAddress;
+import org.jnode.net.ethernet.EthernetConstants;
+import org.jnode.net.ethernet.EthernetHeader;
+import org.jnode.net.ipv4.IPv4Address;
+import org.jnode.net.ipv4.IPv4Constants;
+import org.jnode.net.ipv4.IPv4Destination;
+import org.jnode.net.ipv4.IPv4Header;
+import org.jnode.net.ipv4.IPv4Protocol;
+import org.jnode.net.ipv4.IPv4RoutingTable;
+import org.jnode.net.ipv4.IPv4Service;
+
+import junit.framework.TestCase;
+
+/**
+ * Demultiplexing of received datagrams over the sockets bound to a port,
+ * the assignment of ports to sockets and the sending of datagrams.
+ */
+public class TestUDPProtocol extends TestCase {
+
+	private static final IPv4Address LOCAL = new IPv4Address("10.0.0.1");
+	private static final IPv4Address PEER = new IPv4Address("10.0.0.2");
+	private static final EthernetAddress LOCAL_HW = mac(1);
+	private static final EthernetAddress PEER_HW = mac(2);
+	private static final IPv4Address GROUP = new IPv4Address("224.1.2.3");
+	private static final Device DEVICE = new Device(null, "eth0");
+	private static final int PORT = 5000;
+	private static final int PAYLOAD = 32;
+
+	/** An IP service that only counts the packets it has to transmit */
+	private static class Service implements IPv4Service {
+		int transmitted;
+		/** The number of packets transmitted before transmit fails */
+		int failAt = Integer.MAX_VALUE;
+
+		public IPv4RoutingTable getRoutingTable() {
+			return null;
+		}
+
+		public void transmit(IPv4Header hdr, SocketBuffer skbuf) throws SocketException {
+			transmit(hdr, skbuf, null);
+		}
+
+		public IPv4Destination transmit(IPv4Header hdr, SocketBuffer skbuf,
+				IPv4Destination pinned) throws SocketException {
+			if (transmitted == failAt) {
+				throw new SocketException("No route");
+			}
+			transmitted++;
+			return null;
+		}
+
+		public int getPathMTU(IPv4Address destination) throws SocketException {
+			return 1500;
+		}
+
+		public boolean updatePathMTU(IPv4Address destination, int mtu) {
+			return false;
+		}
+
+		public Device joinGroup(IPv4Address group, Device device) throws SocketException {
+			return (device == null) ? DEVICE : device;
+		}
+
+		public void leaveGroup(IPv4Address group, Device device) {
+		}
+
+		public IPv4Protocol getProtocol(int protocolID) throws NoSuchProtocolException {
+			throw new NoSuchProtocolException("" + protocolID);
+		}
+
+		public void registerProtocol(IPv4Protocol protocol) {
+		}
+
+		public void unregisterProtocol(IPv4Protocol protocol) {
+		}
+	}
+
+	/** A socket that counts the datagrams it has received */
+	private static class TestSocket extends UDPDatagramSocketImpl {
+
+		TestSocket(UDPProtocol protocol, boolean reuseAddress, boolean reusePort)
+				throws SocketException {
+			super(protocol);
+			setOption(SO_REUSEADDR, Boolean.valueOf(reuseAddress));
+			setOption(SO_REUSEPORT_LB, Boolean.valueOf(reusePort));
+			setOption(SO_TIMEOUT, new Integer(1));
+		}
+
+		/** Bind to the wildcard address, as DatagramSocket does */
+		void bind(int port) throws SocketException {
+			bind(port, new InetSocketAddress(port).getAddress());
+		}
+
+		void connect(IPv4Address address, int port) throws SocketException {
+			connect(address.toInetAddress(), port);
+		}
+
+		/** Send count datagrams to the peer in one batch */
+		int sendBatch(int count) throws IOException {
+			final DatagramPacket[] packets = new DatagramPacket[count + 2];
+			for (int i = 0; i < packets.length; i++) {
+				packets[i] = new DatagramPacket(new byte[PAYLOAD], PAYLOAD,
+						PEER.toInetAddress(), 7);
+			}
+			return send(packets, 1, count);
+		}
+
+		void join(IPv4Address group) throws IOException {
+			doJoinGroup(group.toInetAddress(), null);
+		}
+
+		void disconnectPeer() {
+			disconnect();
+		}
+
+		void unbind() {
+			close();
+		}
+
+		/** Take all queued datagrams, return how many there were */
+		int drain() throws IOException {
+			final DatagramPacket[] packets = new DatagramPacket[64];
+			for (int i = 0; i < packets.length; i++) {
+				packets[i] = new DatagramPacket(new byte[PAYLOAD], PAYLOAD);
+			}
+			try {
+				return receive(packets, 0, packets.length);
+			} catch (SocketTimeoutException ex) {
+				return 0;
+			}
+		}
+	}
+
+	private static EthernetAddress mac(int host) {
+		return new EthernetAddress((byte) 2, (byte) 0, (byte) 0, (byte) 0, (byte) 0,
+				(byte) host);
+	}
+
+	private Service service;
+	private UDPProtocol protocol;
+
+	protected void setUp() throws Exception {
+		service = new Service();
+		protocol = new UDPProtocol(service);
+	}
+
+	private TestSocket bind(int port, boolean reuseAddress, boolean reusePort)
+			throws SocketException {
+		final TestSocket socket = new TestSocket(protocol, reuseAddress, reusePort);
+		socket.bind(port);
+		return socket;
+	}
+
+	private void receive(IPv4Address src, int srcPort, IPv4Address dst, int dstPort)
+			throws SocketException {
+		final SocketBuffer skbuf = new SocketBuffer();
+		skbuf.append(new byte[PAYLOAD], 0, PAYLOAD);
+		new UDPHeader(srcPort, dstPort, PAYLOAD).prefixTo(skbuf);
+		final IPv4Header ipHdr = new IPv4Header(0, 64, IPv4Constants.IPPROTO_UDP, dst,
+				PAYLOAD + UDPConstants.UDP_HLEN);
+		ipHdr.setSource(src);
+		ipHdr.setIdentification(1);
+		ipHdr.prefixTo(skbuf);
+		skbuf.setLinkLayerHeader(new EthernetHeader(LOCAL_HW, PEER_HW, EthernetConstants.ETH_P_IP));
+		skbuf.setNetworkLayerHeader(ipHdr);
+		skbuf.pull(ipHdr.getLength());
+		skbuf.setDevice(DEVICE);
+		protocol.receive(skbuf);
+	}
+
+	private int noport() {
+		return ((UDPStatistics) protocol.getStatistics()).noport.get();
+	}
+
+	public void testUnbound() throws Exception {
+		receive(PEER, 7, LOCAL, PORT);
+		assertEquals(1, noport());
+		assertEquals("port unreachable", 1, service.transmitted);
+	}
+
+	public void testReusePortFanOut() throws Exception {
+		final TestSocket[] sockets = new TestSocket[4];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = bind(PORT, false, true);
+		}
+		int used = 0;
+		for (int srcPort = 1000; srcPort < 1032; srcPort++) {
+			// Two datagrams of a flow, both go to the same socket
+			receive(PEER, srcPort, LOCAL, PORT);
+			receive(PEER, srcPort, LOCAL, PORT);
+			int receivers = 0;
+			for (int i = 0; i < sockets.length; i++) {
+				final int n = sockets[i].drain();
+				if (n > 0) {
+					assertEquals("flow " + srcPort + " split", 2, n);
+					receivers++;
+					used |= 1 << i;
+				}
+			}
+			assertEquals(1, receivers);
+		}
+		assertTrue("flows not spread: " + Integer.toBinaryString(used),
+				Integer.bitCount(used) > 1);
+	}
+
+	public void testConnectedFirst() throws Exception {
+		final TestSocket any = bind(PORT, true, false);
+		final TestSocket conn = bind(PORT, true, false);
+		conn.connect(PEER, 7);
+
+		receive(PEER, 7, LOCAL, PORT);
+		assertEquals(1, conn.drain());
+		assertEquals(0, any.drain());
+
+		// Another source port of the same peer is not for the connected socket
+		receive(PEER, 8, LOCAL, PORT);
+		assertEquals(0, conn.drain());
+		assertEquals(1, any.drain());
+
+		// After disconnect, the first bound socket gets everything
+		conn.disconnectPeer();
+		receive(PEER, 7, LOCAL, PORT);
+		assertEquals(1, any.drain());
+		assertEquals(0, conn.drain());
+	}
+
+	public void testMulticast() throws Exception {
+		final TestSocket member = bind(PORT, true, false);
+		final TestSocket other = bind(PORT, true, false);
+		final TestSocket peerOnly = bind(PORT, true, false);
+		member.join(GROUP);
+		peerOnly.join(GROUP);
+		peerOnly.connect(PEER, 7);
+
+		// Every member gets a copy, a connected one only from its peer
+		receive(PEER, 7, GROUP, PORT);
+		assertEquals(1, member.drain());
+		assertEquals(1, peerOnly.drain());
+		assertEquals(0, other.drain());
+		receive(PEER, 8, GROUP, PORT);
+		assertEquals(1, member.drain());
+		assertEquals(0, peerOnly.drain());
+
+		// A group nobody joined is dropped without an ICMP error
+		receive(PEER, 7, new IPv4Address("224.1.2.4"), PORT);
+		assertEquals(0, member.drain() + other.drain() + peerOnly.drain());
+		assertEquals(1, noport());
+		assertEquals(0, service.transmitted);
+	}
+
+	public void testSendBatch() throws Exception {
+		final TestSocket socket = bind(PORT, false, false);
+		assertEquals(3, socket.sendBatch(3));
+		assertEquals(3, service.transmitted);
+		assertEquals(0, socket.sendBatch(0));
+
+		// A failure after the first datagram ends the batch
+		service.transmitted = 0;
+		service.failAt = 2;
+		assertEquals(2, socket.sendBatch(5));
+		assertEquals(2, service.transmitted);
+
+		// A failure of the first datagram is thrown
+		service.transmitted = 0;
+		service.failAt = 0;
+		try {
+			socket.sendBatch(5);
+			fail("Failure of the first datagram not thrown");
+		} catch (SocketException ex) {
+			// Expected
+		}
+		assertEquals(0, service.transmitted);
+	}
+
+	public void testSendBatchPendingError() throws Exception {
+		final TestSocket socket = bind(PORT, false, false);
+		socket.connect(PEER, 7);
+		socket.deliverError(PEER, new SocketException("Port unreachable"));
+		try {
+			socket.sendBatch(2);
+			fail("Pending error not thrown");
+		} catch (SocketException ex) {
+			assertEquals("Port unreachable", ex.getMessage());
+		}
+		// The error is thrown once
+		assertEquals(2, socket.sendBatch(2));
+		assertEquals(2, service.transmitted);
+	}
+
+	public void testShareMixedFlags() throws Exception {
+		bind(PORT, true, true);
+		bind(PORT, false, true);
+		// The first socket allows SO_REUSEADDR, the second does not
+		try {
+			bind(PORT, true, false);
+			fail("Port shared with a socket without SO_REUSEADDR");
+		} catch (SocketException ex) {
+			// Expected
+		}
+		bind(PORT, false, true);
+
+		// A connected socket must agree as well
+		final TestSocket conn = bind(PORT + 1, true, false);
+		conn.connect(PEER, 7);
+		bind(PORT + 1, true, true);
+		try {
+			bind(PORT + 1, false, true);
+			fail("Port shared with a connected socket without SO_REUSEPORT");
+		} catch (SocketException ex) {
+			// Expected
+		}
+
+		bind(PORT + 2, false, false);
+		try {
+			bind(PORT + 2, true, true);
+			fail("Port shared with a socket without reuse flags");
+		} catch (SocketException ex) {
+			// Expected
+		}
+	}
+
+	public void testEphemeralSkipsBound() throws Exception {
+		final int first = UDPConstants.UDP_EPHEMERAL_FIRST;
+		bind(first + 1, false, false);
+		final TestSocket conn = bind(first + 2, false, false);
+		conn.connect(PEER, 7);
+
+		assertEquals(first, bind(0, false, false).getLocalPort());
+		assertEquals(first + 3, bind(0, false, false).getLocalPort());
+	}
+
+	public void testEphemeralWrapAround() throws Exception {
+		final int first = UDPConstants.UDP_EPHEMERAL_FIRST;
+		final int last = UDPConstants.UDP_EPHEMERAL_LAST;
+		final TestSocket[] sockets = new TestSocket[last - first + 1];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = bind(0, false, false);
+			assertEquals(first + i, sockets[i].getLocalPort());
+		}
+		try {
+			bind(0, false, false);
+			fail("Port assigned from a full range");
+		} catch (SocketException ex) {
+			// Expected
+		}
+
+		// The search continues after the last port and wraps to the free one
+		sockets[10].unbind();
+		assertEquals(first + 10, bind(0, false, false).getLocalPort());
+		sockets[5].unbind();
+		sockets[20].unbind();
+		assertEquals(first + 20, bind(0, false, false).getLocalPort());
+		assertEquals(first + 5, bind(0, false, false).getLocalPort());
+	}
+}
@@ -58,6 +58,13 @@ public interface IPv4Constants {
     public static final long IP_FRAGTIMEOUT  = 120000;  /* Number of ms till a fragment list is timed out. */
     
     public static final int IP_MIN_FRAG_SIZE = 8;       /* Minimum size of a fragment */
+    public static final int IP_FRAG_MEMORY   = 262144;  /* Max. #bytes held for reassembly per stack */
+    public static final int IP_FRAG_TIMER_PERIOD = 1000; /* Interval (ms) of the reassembly timer */
+
+    // Path MTU discovery (RFC 1191)
+    public static final int IP_HLEN          = 20;      /* Length of an IP header without options */
+    public static final int IP_MIN_MTU       = 68;      /* Smallest MTU every IP module must accept */
+    public static final long IP_PMTU_TIMEOUT = 600000;  /* Number of ms a learned path MTU is used */
 
     // Route flags
     public static final int RTF_UP           = 0x0001;  /* route usable */
@@ -24,6 +24,8 @@ package org.jnode.net.ipv4;
 import java.net.BindException;
 import java.net.SocketException;
 
+import org.jnode.net.SocketBuffer;
+
 /**
  * @author Ewout Prangsma (epr@users.sourceforge.net)
  */
@@ -53,6 +55,9 @@ public class IPv4ControlBlock {
     /** Time to Live to use in creating IPv4 headers */
     private final int ttl;
 
+    /** The destination pinned by the last transmit */
+    private volatile IPv4Destination destination;
+
     /**
      * Create a new instance
      * 
@@ -209,6 +214,24 @@ public class IPv4ControlBlock {
         this.list.remove(this);
     }
 
+    /**
+     * Transmit a packet on behalf of this control block. The resolved
+     * destination is pinned, so following packets to the same foreign
+     * address skip the route and neighbor lookups.
+     * 
+     * @param ipService
+     * @param hdr
+     * @param skbuf
+     * @throws SocketException
+     */
+    public final void transmit(IPv4Service ipService, IPv4Header hdr, SocketBuffer skbuf)
+        throws SocketException {
+        final IPv4Destination dst = ipService.transmit(hdr, skbuf, destination);
+        if (dst != null) {
+            destination = dst;
+        }
+    }
+
     /**
      * Create an IPv4 header for outgoing packets.
      * This control block must have been connected before calling this method.
@@ -0,0 +1,159 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.jnode.net.ipv4;
+
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
+import org.jnode.net.HardwareAddress;
+
+/**
+ * A resolved destination: the route, source address and next-hop hardware
+ * address that were found for a destination address. The hardware address
+ * may still be unknown while the next hop is being resolved; such
+ * destinations are never valid for reuse.
+ * 
+ * Instances are immutable and stamped with the routing table and neighbor
+ * cache generations that were current when they were resolved. Control
+ * blocks may pin a destination to skip route and neighbor lookups when
+ * sending.
+ */
+public class IPv4Destination {
+
+    private final IPv4Address destination;
+    private final IPv4Route route;
+    private final IPv4Address source;
+    private final IPv4Address nextHop;
+    private final HardwareAddress hwAddress;
+    private final boolean resolved;
+    private final int routeGeneration;
+    private final int neighborGeneration;
+    private final long expires;
+
+    /**
+     * Create a new instance
+     * 
+     * @param destination
+     * @param route
+     * @param source
+     * @param nextHop The gateway of the route, or the destination itself
+     * @param hwAddress The next-hop hardware address, null for broadcast
+     * @param resolved False if the next-hop hardware address is not known yet
+     * @param routeGeneration
+     * @param neighborGeneration
+     * @param expires System time after which this destination must be resolved again
+     */
+    public IPv4Destination(IPv4Address destination, IPv4Route route, IPv4Address source,
+            IPv4Address nextHop, HardwareAddress hwAddress, boolean resolved,
+            int routeGeneration, int neighborGeneration, long expires) {
+        this.destination = destination;
+        this.route = route;
+        this.source = source;
+        this.nextHop = nextHop;
+        this.hwAddress = hwAddress;
+        this.resolved = resolved;
+        this.routeGeneration = routeGeneration;
+        this.neighborGeneration = neighborGeneration;
+        this.expires = expires;
+    }
+
+    /**
+     * Is this destination still valid for the given generations?
+     * 
+     * @param routeGeneration
+     * @param neighborGeneration
+     * @param now
+     */
+    public final boolean isValid(int routeGeneration, int neighborGeneration, long now) {
+        return resolved && (this.routeGeneration == routeGeneration) &&
+            (this.neighborGeneration == neighborGeneration) && (now < expires) && route.isUp();
+    }
+
+    /**
+     * Gets the destination address
+     */
+    public final IPv4Address getDestination() {
+        return destination;
+    }
+
+    /**
+     * Gets the route to the destination
+     */
+    public final IPv4Route getRoute() {
+        return route;
+    }
+
+    /**
+     * Gets the device of the route
+     */
+    public final Device getDevice() {
+        return route.getDevice();
+    }
+
+    /**
+     * Gets the NetDeviceAPI of the device of the route
+     */
+    public final NetDeviceAPI getDeviceAPI() {
+        return route.getDeviceAPI();
+    }
+
+    /**
+     * Gets the source address to use
+     */
+    public final IPv4Address getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the address of the next hop
+     */
+    public final IPv4Address getNextHop() {
+        return nextHop;
+    }
+
+    /**
+     * Gets the next-hop hardware address, or null for broadcast or when
+     * the next hop is not resolved yet
+     */
+    public final HardwareAddress getHardwareAddress() {
+        return hwAddress;
+    }
+
+    /**
+     * Is the next-hop hardware address known?
+     */
+    public final boolean isResolved() {
+        return resolved;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return destination + " via " + nextHop + " dev " + route.getDevice().getId() + " src " +
+            source + " hw " + (resolved ? String.valueOf(hwAddress) : "incomplete");
+    }
+}
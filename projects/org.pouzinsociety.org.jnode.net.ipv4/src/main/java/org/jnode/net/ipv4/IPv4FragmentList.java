@@ -37,31 +37,65 @@
 package org.jnode.net.ipv4;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.jnode.net.SocketBuffer;
 
 /**
- * Class used to reconstruct fragmented IP packets
+ * Class used to reconstruct fragmented IP packets.
+ * 
+ * The missing parts of the datagram are tracked in a list of holes
+ * (RFC 815). Fragments are kept in offset order and chained together
+ * when the datagram is complete, so the data is never copied. A fragment
+ * that overlaps data already received, other than an exact duplicate,
+ * makes the datagram invalid.
  * 
  * @author epr
  */
 public class IPv4FragmentList implements IPv4Constants {
 
+    /** Result of add: the fragment was added */
+    public static final int ADDED = 0;
+    /** Result of add: the fragment was already received, it is ignored */
+    public static final int DUPLICATE = 1;
+    /** Result of add: the fragment overlaps or conflicts with other fragments */
+    public static final int OVERLAP = 2;
+    /** Result of add: the fragment is malformed */
+    public static final int INVALID = 3;
+
+    /** Last offset of an open-ended hole */
+    private static final int INFINITY = Integer.MAX_VALUE;
+    /** Largest total length of an IP datagram */
+    private static final int MAX_TOTAL_LENGTH = 0xFFFF;
+
     /** My logger */
     private static final Log log = LogFactory.getLog(IPv4FragmentList.class);
     /** When was this object created */
     private final long creationTime;
-    /** List of fragments */
+    /** List of fragments, ordered by fragment offset */
     private final ArrayList<SocketBuffer> fragments;
     /** The key of this fragment list */
     private final Object key;
-    /** Is the first fragment in the list? */
-    private boolean haveFirstFragment;
-    /** Is the last fragment in the list? */
-    private boolean haveLastFragment;
+    /** First missing part of the datagram, null when complete */
+    private Hole holes;
+    /** Number of bytes received */
+    private int size;
+
+    /**
+     * A missing part of the datagram
+     */
+    private static final class Hole {
+        int first;
+        final int last;
+        Hole next;
+
+        Hole(int first, int last, Hole next) {
+            this.first = first;
+            this.last = last;
+            this.next = next;
+        }
+    }
 
     /**
      * Create a new instance
@@ -69,69 +103,126 @@ public class IPv4FragmentList implements IPv4Constants {
      * @param firstFragment
      */
     public IPv4FragmentList(SocketBuffer firstFragment) {
+        this(((IPv4Header) firstFragment.getNetworkLayerHeader()).getFragmentListKey());
+        add(firstFragment);
+    }
+
+    /**
+     * Create a new, empty instance
+     * 
+     * @param key
+     * @see IPv4Header#getFragmentListKey()
+     */
+    public IPv4FragmentList(Object key) {
         this.creationTime = System.currentTimeMillis();
         this.fragments = new ArrayList<SocketBuffer>();
-        this.haveFirstFragment = false;
-        this.haveLastFragment = false;
-        final IPv4Header hdr = (IPv4Header) firstFragment.getNetworkLayerHeader();
-        this.key = hdr.getFragmentListKey();
-        add(firstFragment);
+        this.key = key;
+        this.holes = new Hole(0, INFINITY, null);
     }
 
     /**
      * Add a packet to this object.
      * 
      * @param skbuf
+     * @return ADDED, DUPLICATE, OVERLAP or INVALID
      */
-    public void add(SocketBuffer skbuf) {
+    public int add(SocketBuffer skbuf) {
         final IPv4Header hdr = (IPv4Header) skbuf.getNetworkLayerHeader();
         if (!hdr.isFragment()) {
             throw new IllegalArgumentException("Buffer does not contain a fragment");
         }
-        final int myFrOfs = hdr.getFragmentOffset();
-        final int mySize = hdr.getDataLength();
-
-        // Fixup some member variables
-        this.haveFirstFragment |= (myFrOfs == 0);
-        this.haveLastFragment |= !hdr.hasMoreFragments();
-
-        // Insert the fragment at the correct index in the list
-        for (Iterator<SocketBuffer> i = fragments.iterator(); i.hasNext();) {
-            final SocketBuffer f = (SocketBuffer) i.next();
-            final IPv4Header fhdr = (IPv4Header) f.getNetworkLayerHeader();
-            final int fOfs = fhdr.getFragmentOffset();
-            final int fSize = f.getSize();
-
-            if (myFrOfs == (fOfs + fSize)) {
-                // skbuf directly follows f, attach it.
-                f.append(skbuf);
-
-                // See if we can attach the following fragment directly to me
-                if (i.hasNext()) {
-                    final SocketBuffer f2 = (SocketBuffer) i.next();
-                    final IPv4Header f2hdr = (IPv4Header) f2.getNetworkLayerHeader();
-                    final int f2Ofs = f2hdr.getFragmentOffset();
-                    if (f2Ofs == (myFrOfs + skbuf.getSize())) {
-                        // Yes we can attach it
-                        skbuf.append(f2);
-                        fragments.remove(f2);
-                    }
-                }
-                return;
-            } else if (myFrOfs < fOfs) {
-                // skbuf is before f, insert it here
-                fragments.add(fragments.indexOf(f), skbuf);
-                return;
-            } else if (myFrOfs < (fOfs + fSize)) {
-                // Fragment offset in the middle of an existing fragment: this is an error!
-                log.debug("Fragment offset(" + myFrOfs + mySize + "," +
-                        ") falls in another fragment (" + fOfs + "," + fSize + ").");
-                return;
+        final int first = hdr.getFragmentOffset();
+        final int length = skbuf.getSize();
+        final int last = first + length - 1;
+        final boolean more = hdr.hasMoreFragments();
+
+        // Only the last fragment may have a length that is not a multiple of 8
+        if ((length == 0) || (more && ((length % IP_MIN_FRAG_SIZE) != 0)) ||
+                (hdr.getLength() + last + 1 > MAX_TOTAL_LENGTH)) {
+            log.debug("Invalid fragment (" + first + "," + length + ")");
+            return INVALID;
+        }
+
+        // Find the hole that contains the fragment
+        Hole prev = null;
+        Hole h = holes;
+        while ((h != null) && (h.last < first)) {
+            prev = h;
+            h = h.next;
+        }
+        if ((h == null) || (first < h.first) || (last > h.last) ||
+                (!more && (h.last != INFINITY))) {
+            if (isDuplicate(first, length, more)) {
+                return DUPLICATE;
+            }
+            log.debug("Fragment (" + first + "," + length + ") overlaps other fragments");
+            return OVERLAP;
+        }
+
+        // Fill the hole
+        Hole next = h.next;
+        if (more && (last < h.last)) {
+            next = new Hole(last + 1, h.last, next);
+        }
+        if (first > h.first) {
+            next = new Hole(h.first, first - 1, next);
+        }
+        if (prev == null) {
+            holes = next;
+        } else {
+            prev.next = next;
+        }
+
+        insert(skbuf, first);
+        size += length;
+        return ADDED;
+    }
+
+    /**
+     * Is a fragment with the given offset and length already in the list?
+     */
+    private boolean isDuplicate(int first, int length, boolean more) {
+        final int i = indexOf(first);
+        if ((i >= fragments.size()) || (offsetOf(i) != first)) {
+            return false;
+        }
+        final SocketBuffer f = fragments.get(i);
+        return (f.getSize() == length) &&
+            (((IPv4Header) f.getNetworkLayerHeader()).hasMoreFragments() == more);
+    }
+
+    /**
+     * Insert a fragment at the correct index in the list. Fragments that
+     * arrive in order are simply appended.
+     */
+    private void insert(SocketBuffer skbuf, int first) {
+        final int n = fragments.size();
+        if ((n == 0) || (offsetOf(n - 1) < first)) {
+            fragments.add(skbuf);
+        } else {
+            fragments.add(indexOf(first), skbuf);
+        }
+    }
+
+    /**
+     * Gets the index of the first fragment with an offset >= the given offset.
+     */
+    private int indexOf(int first) {
+        int lo = 0;
+        int hi = fragments.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (offsetOf(mid) < first) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
         }
-        // The fragment has not been added, so it must be the last on the list
-        // with a gap before it.
-        fragments.add(skbuf);
+        return lo;
+    }
+
+    private int offsetOf(int index) {
+        return ((IPv4Header) fragments.get(index).getNetworkLayerHeader()).getFragmentOffset();
     }
 
     /**
@@ -139,7 +230,15 @@ public class IPv4FragmentList implements IPv4Constants {
      * created no more then IP_FRAGTIMEOUT milliseconds ago.
      */
     public boolean isAlive() {
-        final long now = System.currentTimeMillis();
+        return isAlive(System.currentTimeMillis());
+    }
+
+    /**
+     * Is this fragmentlist still alive at the given time?
+     * 
+     * @param now
+     */
+    public boolean isAlive(long now) {
         return ((now - creationTime) <= IP_FRAGTIMEOUT);
     }
 
@@ -147,20 +246,33 @@ public class IPv4FragmentList implements IPv4Constants {
      * Do we have all fragments?
      */
     public boolean isComplete() {
-        if (haveFirstFragment && haveLastFragment) {
-            if (fragments.size() == 1) {
-                return true;
-            }
-        }
-        return false;
+        return (holes == null);
     }
 
     /**
-     * Gets the complete packet
+     * Gets the number of data bytes received so far.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the complete packet. The fragments are chained without copying
+     * and the header of the first fragment is updated to describe the
+     * whole datagram.
      * This method can only be called when <code>isComplete</code> returns true.
      */
     public SocketBuffer getPacket() {
-        return (SocketBuffer) fragments.get(0);
+        final int n = fragments.size();
+        for (int i = 1; i < n; i++) {
+            fragments.get(i - 1).append(fragments.get(i));
+        }
+        final SocketBuffer packet = fragments.get(0);
+        final IPv4Header hdr = (IPv4Header) packet.getNetworkLayerHeader();
+        hdr.setMoreFragments(false);
+        hdr.setFragmentOffset(0);
+        hdr.setDataLength(size);
+        return packet;
     }
 
     /**
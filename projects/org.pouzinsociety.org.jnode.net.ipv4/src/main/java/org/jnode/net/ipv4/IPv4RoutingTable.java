@@ -23,17 +23,23 @@ package org.jnode.net.ipv4;
 
 import java.net.NoRouteToHostException;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Vector;
 
 /**
+ * The IPv4 routing table.
+ * 
+ * Lookups use a longest-prefix match on a path-compressed binary trie. The
+ * trie is persistent: add and remove copy only the nodes on the path to the
+ * changed prefix and then publish a new snapshot, so searches never take a
+ * lock and never see a partially updated table.
+ * 
  * @author epr
  */
 public class IPv4RoutingTable {
 
-    /** All entries as instanceof IPv4Route */
-    private final Vector<IPv4Route> entries = new Vector<IPv4Route>();
+    /** The current (immutable) state of the table */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     /**
      * Create a new instance
@@ -45,7 +51,16 @@ public class IPv4RoutingTable {
      * Gets the number of entries
      */
     public int getSize() {
-        return entries.size();
+        return snapshot.entries.length;
+    }
+
+    /**
+     * Gets the generation of this table. The generation changes every time a
+     * route is added or removed, so cached lookup results can be validated
+     * by comparing generations.
+     */
+    public int getGeneration() {
+        return snapshot.generation;
     }
 
     /**
@@ -54,7 +69,7 @@ public class IPv4RoutingTable {
      * @param index
      */
     public IPv4Route get(int index) {
-        return (IPv4Route) entries.get(index);
+        return snapshot.entries[index];
     }
 
     /**
@@ -62,8 +77,14 @@ public class IPv4RoutingTable {
      * 
      * @param entry
      */
-    public void add(IPv4Route entry) {
-        entries.add(entry);
+    public synchronized void add(IPv4Route entry) {
+        final Snapshot s = snapshot;
+        final IPv4Route[] entries = new IPv4Route[s.entries.length + 1];
+        System.arraycopy(s.entries, 0, entries, 0, s.entries.length);
+        entries[s.entries.length] = entry;
+        final int len = prefixLength(entry);
+        final Node root = Node.insert(s.root, prefix(entry, len), len, entry);
+        snapshot = new Snapshot(entries, root, s.generation + 1);
     }
 
     /**
@@ -71,8 +92,18 @@ public class IPv4RoutingTable {
      * 
      * @param entry
      */
-    public void remove(IPv4Route entry) {
-        entries.remove(entry);
+    public synchronized void remove(IPv4Route entry) {
+        final Snapshot s = snapshot;
+        final int idx = indexOf(s.entries, entry);
+        if (idx < 0) {
+            return;
+        }
+        final IPv4Route[] entries = new IPv4Route[s.entries.length - 1];
+        System.arraycopy(s.entries, 0, entries, 0, idx);
+        System.arraycopy(s.entries, idx + 1, entries, idx, entries.length - idx);
+        final int len = prefixLength(entry);
+        final Node root = Node.remove(s.root, prefix(entry, len), len, entry);
+        snapshot = new Snapshot(entries, root, s.generation + 1);
     }
 
     /**
@@ -82,49 +113,34 @@ public class IPv4RoutingTable {
      * @return a list of IPv4Route entries.
      */
     public List<IPv4Route> entries() {
-        return new ArrayList<IPv4Route>(entries);
+        return new ArrayList<IPv4Route>(Arrays.asList(snapshot.entries));
     }
 
     /**
-     * Search for a route to the given destination
+     * Search for a route to the given destination.
+     * 
+     * The route with the longest matching prefix that is up is selected. Host
+     * routes match only their exact destination. When no prefix matches, the
+     * first gateway route that is up is used as default gateway.
      * 
      * @param destination
      * @throws NoRouteToHostException No route has been found
      * @return The route that has been selected.
      */
     public IPv4Route search(IPv4Address destination) throws NoRouteToHostException {
-        while (true) {
-            try {
-                // First search for a matching host-address route
-                for (IPv4Route r : entries) {
-                    if (r.isHost() && r.isUp()) {
-                        if (r.getDestination().equals(destination)) {
-                            return r;
-                        }
-                    }
-                }
-                // No direct host found, search through the networks
-                for (IPv4Route r : entries) {
-                    if (r.isNetwork() && r.isUp()) {
-                        if (r.getDestination().matches(destination, r.getSubnetmask())) {
-                            return r;
-                        }
-                    }
-                }
-
-                // No network found, search for the default gateway
-                for (IPv4Route r : entries) {
-                    if (r.isGateway() && r.isUp()) {
-                        return r;
-                    }
-                }
-                // No route found
-                throw new NoRouteToHostException(destination.toString());
-            } catch (ConcurrentModificationException ex) {
-                // The list of entries was modified, while we are searching,
-                // Just loop and try it again
+        final Snapshot s = snapshot;
+        final IPv4Route r = Node.lookup(s.root, toInt(destination));
+        if (r != null) {
+            return r;
+        }
+        // No prefix found, search for the default gateway
+        for (IPv4Route g : s.entries) {
+            if (g.isGateway() && g.isUp()) {
+                return g;
             }
         }
+        // No route found
+        throw new NoRouteToHostException(destination.toString());
     }
 
     /**
@@ -133,10 +149,216 @@ public class IPv4RoutingTable {
      */
     public String toString() {
         final StringBuilder b = new StringBuilder();
-        for (IPv4Route r : entries) {
+        for (IPv4Route r : snapshot.entries) {
             b.append(r);
             b.append('\n');
         }
         return b.toString();
     }
+
+    /**
+     * Gets the prefix length used to store the given route in the trie.
+     * Host routes are always stored as /32 routes.
+     */
+    private static int prefixLength(IPv4Route r) {
+        if (r.isHost()) {
+            return 32;
+        }
+        return Integer.numberOfLeadingZeros(~toInt(r.getSubnetmask()));
+    }
+
+    /**
+     * Gets the destination of the given route masked to the given length.
+     */
+    private static int prefix(IPv4Route r, int len) {
+        return toInt(r.getDestination()) & mask(len);
+    }
+
+    /**
+     * Gets the address as an int in network byte order.
+     */
+    private static int toInt(IPv4Address a) {
+        return ((a.get(0) & 0xFF) << 24) | ((a.get(1) & 0xFF) << 16) | ((a.get(2) & 0xFF) << 8) |
+                (a.get(3) & 0xFF);
+    }
+
+    /**
+     * Gets the netmask for a prefix of the given length.
+     */
+    private static int mask(int len) {
+        return (len == 0) ? 0 : (0xFFFFFFFF << (32 - len));
+    }
+
+    /**
+     * Gets the bit at the given position (0 is the most significant bit).
+     */
+    private static int bit(int value, int pos) {
+        return (value >>> (31 - pos)) & 1;
+    }
+
+    private static int indexOf(IPv4Route[] routes, IPv4Route r) {
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i] == r) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An immutable state of the routing table.
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new IPv4Route[0], null, 0);
+
+        /** All entries in insertion order */
+        final IPv4Route[] entries;
+        /** Root of the prefix trie, null if empty */
+        final Node root;
+        /** Incremented on every change */
+        final int generation;
+
+        Snapshot(IPv4Route[] entries, Node root, int generation) {
+            this.entries = entries;
+            this.root = root;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * An immutable node of the prefix trie. A node only exists when it holds
+     * routes or when it has two children, nodes with a single child are
+     * compressed away.
+     */
+    private static final class Node {
+
+        private static final IPv4Route[] NO_ROUTES = new IPv4Route[0];
+
+        /** The prefix (masked to len bits) */
+        final int prefix;
+        /** Number of significant bits of prefix */
+        final int len;
+        /** Routes for exactly this prefix, in insertion order */
+        final IPv4Route[] routes;
+        final Node zero;
+        final Node one;
+
+        Node(int prefix, int len, IPv4Route[] routes, Node zero, Node one) {
+            this.prefix = prefix;
+            this.len = len;
+            this.routes = routes;
+            this.zero = zero;
+            this.one = one;
+        }
+
+        /**
+         * Find the route that is up with the longest prefix matching addr.
+         */
+        static IPv4Route lookup(Node node, int addr) {
+            IPv4Route best = null;
+            while (node != null) {
+                if (((addr ^ node.prefix) & mask(node.len)) != 0) {
+                    break;
+                }
+                for (IPv4Route r : node.routes) {
+                    if (r.isUp()) {
+                        best = r;
+                        break;
+                    }
+                }
+                if (node.len == 32) {
+                    break;
+                }
+                node = (bit(addr, node.len) == 0) ? node.zero : node.one;
+            }
+            return best;
+        }
+
+        /**
+         * Insert a route, returning the new root of this subtree.
+         */
+        static Node insert(Node node, int prefix, int len, IPv4Route r) {
+            if (node == null) {
+                return new Node(prefix, len, new IPv4Route[] {r}, null, null);
+            }
+            final int common = Math.min(Math.min(node.len, len),
+                    Integer.numberOfLeadingZeros(node.prefix ^ prefix));
+            if ((common == node.len) && (common == len)) {
+                // Same prefix
+                final IPv4Route[] routes = new IPv4Route[node.routes.length + 1];
+                System.arraycopy(node.routes, 0, routes, 0, node.routes.length);
+                routes[node.routes.length] = r;
+                return new Node(node.prefix, node.len, routes, node.zero, node.one);
+            } else if (common == node.len) {
+                // The new prefix is below this node
+                if (bit(prefix, node.len) == 0) {
+                    return new Node(node.prefix, node.len, node.routes,
+                            insert(node.zero, prefix, len, r), node.one);
+                } else {
+                    return new Node(node.prefix, node.len, node.routes, node.zero,
+                            insert(node.one, prefix, len, r));
+                }
+            } else if (common == len) {
+                // The new prefix is above this node
+                if (bit(node.prefix, len) == 0) {
+                    return new Node(prefix, len, new IPv4Route[] {r}, node, null);
+                } else {
+                    return new Node(prefix, len, new IPv4Route[] {r}, null, node);
+                }
+            } else {
+                // Split on the first differing bit
+                final Node leaf = new Node(prefix, len, new IPv4Route[] {r}, null, null);
+                final int split = prefix & mask(common);
+                if (bit(prefix, common) == 0) {
+                    return new Node(split, common, NO_ROUTES, leaf, node);
+                } else {
+                    return new Node(split, common, NO_ROUTES, node, leaf);
+                }
+            }
+        }
+
+        /**
+         * Remove a route, returning the new root of this subtree.
+         */
+        static Node remove(Node node, int prefix, int len, IPv4Route r) {
+            if ((node == null) || (node.len > len) ||
+                    (((prefix ^ node.prefix) & mask(node.len)) != 0)) {
+                return node;
+            }
+            if (node.len == len) {
+                final int idx = indexOf(node.routes, r);
+                if (idx < 0) {
+                    return node;
+                }
+                final IPv4Route[] routes = new IPv4Route[node.routes.length - 1];
+                System.arraycopy(node.routes, 0, routes, 0, idx);
+                System.arraycopy(node.routes, idx + 1, routes, idx, routes.length - idx);
+                return compact(node.prefix, node.len, routes, node.zero, node.one);
+            }
+            if (bit(prefix, node.len) == 0) {
+                final Node zero = remove(node.zero, prefix, len, r);
+                return (zero == node.zero) ? node :
+                    compact(node.prefix, node.len, node.routes, zero, node.one);
+            } else {
+                final Node one = remove(node.one, prefix, len, r);
+                return (one == node.one) ? node :
+                    compact(node.prefix, node.len, node.routes, node.zero, one);
+            }
+        }
+
+        /**
+         * Create a node, dropping it if it has no routes and at most one child.
+         */
+        private static Node compact(int prefix, int len, IPv4Route[] routes, Node zero, Node one) {
+            if (routes.length == 0) {
+                if (zero == null) {
+                    return one;
+                } else if (one == null) {
+                    return zero;
+                }
+            }
+            return new Node(prefix, len, routes, zero, one);
+        }
+    }
 }
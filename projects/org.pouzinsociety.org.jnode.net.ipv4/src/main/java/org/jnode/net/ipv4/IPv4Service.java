@@ -38,6 +38,7 @@ package org.jnode.net.ipv4;
 
 import java.net.SocketException;
 
+import org.jnode.driver.Device;
 import org.jnode.net.NoSuchProtocolException;
 import org.jnode.net.SocketBuffer;
 
@@ -74,6 +75,65 @@ public interface IPv4Service {
      */
     public void transmit(IPv4Header hdr, SocketBuffer skbuf) throws SocketException;
 
+    /**
+     * Transmit an IP packet, reusing a destination pinned by the caller.
+     * If the pinned destination is null, for another address or no longer
+     * valid, the destination is resolved again.
+     * 
+     * @see #transmit(IPv4Header, SocketBuffer)
+     * @param hdr
+     * @param skbuf
+     * @param pinned The destination used for a previous packet, can be null
+     * @return The destination used for this packet, or null if the device
+     *         of the skbuf has been set
+     * @throws SocketException The packet cannot be transmitted
+     */
+    public IPv4Destination transmit(IPv4Header hdr, SocketBuffer skbuf, IPv4Destination pinned)
+        throws SocketException;
+
+    /**
+     * Gets the path MTU to a destination: the MTU of the device of the route
+     * to the destination, lowered to the MTU learned from "fragmentation
+     * needed" messages for that destination (RFC 1191).
+     * 
+     * @param destination
+     * @throws SocketException No route to the destination was found
+     */
+    public int getPathMTU(IPv4Address destination) throws SocketException;
+
+    /**
+     * Lower the path MTU to a destination, after a "fragmentation needed"
+     * message has been received for it. The MTU is never raised and is
+     * forgotten after IP_PMTU_TIMEOUT.
+     * 
+     * @param destination
+     * @param mtu The next-hop MTU of the message
+     * @return True if the path MTU has been lowered
+     */
+    public boolean updatePathMTU(IPv4Address destination, int mtu);
+
+    /**
+     * Join a multicast group on a device. Packets sent to the group are
+     * received on the device until the group is left as often as it has been
+     * joined. Membership is reported to multicast routers with IGMP.
+     * 
+     * @param group
+     * @param device The device, or null to use the device of the route to
+     *            the group
+     * @return The device on which the group has been joined
+     * @throws SocketException The group is not a multicast address, or no
+     *             device was found
+     */
+    public Device joinGroup(IPv4Address group, Device device) throws SocketException;
+
+    /**
+     * Leave a multicast group on a device, that was joined before.
+     * 
+     * @param group
+     * @param device The device returned by joinGroup
+     */
+    public void leaveGroup(IPv4Address group, Device device);
+
     /**
      * Gets the protocol for a given ID
      * @param protocolID
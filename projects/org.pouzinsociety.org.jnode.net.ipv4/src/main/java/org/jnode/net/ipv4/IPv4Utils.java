@@ -68,4 +68,40 @@ public class IPv4Utils {
         }
         return (short) (~chsum);
     }
+
+    /**
+     * Decrement the TTL of the IP header at the given offset and update the
+     * header checksum incrementally (RFC 1624), without recalculating it.
+     * 
+     * @param skbuf
+     * @param offset Offset of the IP header in the buffer
+     * @return The new TTL
+     */
+    public static int decrementTtl(SocketBuffer skbuf, int offset) {
+        final int ttl = skbuf.get(offset + 8) - 1;
+        skbuf.set(offset + 8, ttl);
+        // The TTL is the high byte of a 16-bit word, so HC' = ~(~HC + ~m + m')
+        // reduces to adding 0x0100 in one's complement arithmetic
+        int check = skbuf.get16(offset + 10) + 0x0100;
+        check = (check & 0xffff) + (check >> 16);
+        skbuf.set16(offset + 10, check);
+        return ttl;
+    }
+
+    /**
+     * Update the checksum at the given offset incrementally (RFC 1624) after
+     * a 16-bit word covered by it has changed from oldWord to newWord.
+     * 
+     * @param skbuf
+     * @param offset Offset of the checksum in the buffer
+     * @param oldWord
+     * @param newWord
+     */
+    public static void updateChecksum(SocketBuffer skbuf, int offset, int oldWord, int newWord) {
+        // HC' = ~(~HC + ~m + m')
+        int sum = (~skbuf.get16(offset) & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+        sum = (sum & 0xffff) + (sum >> 16);
+        sum = (sum & 0xffff) + (sum >> 16);
+        skbuf.set16(offset, ~sum & 0xffff);
+    }
 }
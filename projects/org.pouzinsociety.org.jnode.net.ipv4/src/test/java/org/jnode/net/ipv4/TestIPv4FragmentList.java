@@ -0,0 +1,107 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4;
+
+import org.jnode.net.SocketBuffer;
+
+import junit.framework.TestCase;
+
+public class TestIPv4FragmentList extends TestCase {
+
+	private static final int LENGTH = 64;
+
+	private SocketBuffer fragment(int offset, int length, boolean more) {
+		final IPv4Header hdr = new IPv4Header(0, 64, IPv4Constants.IPPROTO_UDP,
+				new IPv4Address("10.0.0.2"), length);
+		hdr.setSource(new IPv4Address("10.0.0.1"));
+		hdr.setIdentification(1234);
+		hdr.setFragmentOffset(offset);
+		hdr.setMoreFragments(more);
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (offset + i);
+		}
+		final SocketBuffer skbuf = new SocketBuffer(data, 0, length);
+		skbuf.setNetworkLayerHeader(hdr);
+		return skbuf;
+	}
+
+	private void assertPacket(IPv4FragmentList flist) {
+		assertTrue(flist.isComplete());
+		final SocketBuffer packet = flist.getPacket();
+		assertEquals(LENGTH, packet.getSize());
+		final byte[] data = packet.toByteArray();
+		for (int i = 0; i < LENGTH; i++) {
+			assertEquals((byte) i, data[i]);
+		}
+		final IPv4Header hdr = (IPv4Header) packet.getNetworkLayerHeader();
+		assertFalse(hdr.isFragment());
+		assertEquals(LENGTH, hdr.getDataLength());
+	}
+
+	public void testInOrder() {
+		final IPv4FragmentList flist = new IPv4FragmentList(fragment(0, 16, true));
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(16, 16, true)));
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(32, 16, true)));
+		assertFalse(flist.isComplete());
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(48, 16, false)));
+		assertPacket(flist);
+	}
+
+	public void testOutOfOrder() {
+		final IPv4FragmentList flist = new IPv4FragmentList("key");
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(48, 16, false)));
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(16, 16, true)));
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(0, 16, true)));
+		assertFalse(flist.isComplete());
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(32, 16, true)));
+		assertEquals(LENGTH, flist.getSize());
+		assertPacket(flist);
+	}
+
+	public void testDuplicate() {
+		final IPv4FragmentList flist = new IPv4FragmentList(fragment(0, 16, true));
+		assertEquals(IPv4FragmentList.DUPLICATE, flist.add(fragment(0, 16, true)));
+		assertEquals(16, flist.getSize());
+	}
+
+	public void testOverlap() {
+		final IPv4FragmentList flist = new IPv4FragmentList(fragment(0, 16, true));
+		assertEquals(IPv4FragmentList.OVERLAP, flist.add(fragment(8, 16, true)));
+		assertEquals(IPv4FragmentList.ADDED, flist.add(fragment(32, 8, false)));
+		// Data beyond the last fragment
+		assertEquals(IPv4FragmentList.OVERLAP, flist.add(fragment(40, 8, true)));
+		// A second, different end
+		assertEquals(IPv4FragmentList.OVERLAP, flist.add(fragment(16, 8, false)));
+	}
+
+	public void testInvalid() {
+		final IPv4FragmentList flist = new IPv4FragmentList("key");
+		// Only the last fragment may have a length that is not a multiple of 8
+		assertEquals(IPv4FragmentList.INVALID, flist.add(fragment(0, 12, true)));
+		assertEquals(IPv4FragmentList.INVALID, flist.add(fragment(65528, 16, false)));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4;
+
+import java.net.NoRouteToHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jnode.driver.Device;
+import org.jnode.driver.net.NetDeviceAPI;
+import org.jnode.driver.net.NetDeviceListener;
+import org.jnode.net.HardwareAddress;
+import org.jnode.net.ProtocolAddressInfo;
+import org.jnode.net.SocketBuffer;
+
+import junit.framework.TestCase;
+
+public class TestIPv4RoutingTable extends TestCase {
+
+	private Device dev;
+	private IPv4RoutingTable rt;
+
+	protected void setUp() {
+		dev = new Device(null, "test0");
+		dev.registerAPI(NetDeviceAPI.class, new NetDeviceAPI() {
+			public HardwareAddress getAddress() {
+				return null;
+			}
+			public int getMTU() {
+				return 1500;
+			}
+			public void transmit(SocketBuffer packet, HardwareAddress destination) {
+			}
+			public ProtocolAddressInfo getProtocolAddressInfo(int protocolID) {
+				return null;
+			}
+			public void setProtocolAddressInfo(int protocolID, ProtocolAddressInfo addressInfo) {
+			}
+			public void addEventListener(NetDeviceListener listener) {
+			}
+			public void removeEventListener(NetDeviceListener listener) {
+			}
+			public void addMulticastAddress(HardwareAddress address) {
+			}
+			public void removeMulticastAddress(HardwareAddress address) {
+			}
+		});
+		rt = new IPv4RoutingTable();
+	}
+
+	private IPv4Route route(String dst, String mask, String gw) {
+		return new IPv4Route(new IPv4Address(dst), new IPv4Address(mask),
+				(gw == null) ? null : new IPv4Address(gw), dev);
+	}
+
+	public void testLongestPrefix() throws Exception {
+		IPv4Route r8 = route("10.0.0.0", "255.0.0.0", null);
+		IPv4Route r16 = route("10.1.0.0", "255.255.0.0", null);
+		IPv4Route r24 = route("10.1.2.0", "255.255.255.0", null);
+		rt.add(r8);
+		rt.add(r24);
+		rt.add(r16);
+
+		assertSame(r24, rt.search(new IPv4Address("10.1.2.3")));
+		assertSame(r16, rt.search(new IPv4Address("10.1.3.3")));
+		assertSame(r8, rt.search(new IPv4Address("10.2.3.4")));
+
+		rt.remove(r24);
+		assertSame(r16, rt.search(new IPv4Address("10.1.2.3")));
+		assertEquals(2, rt.getSize());
+	}
+
+	public void testHostRoute() throws Exception {
+		IPv4Route net = route("10.0.0.0", "255.255.255.0", null);
+		IPv4Route host = route("10.0.0.5", "255.255.255.0", null);
+		rt.add(net);
+		rt.add(host);
+
+		assertSame(host, rt.search(new IPv4Address("10.0.0.5")));
+		assertSame(net, rt.search(new IPv4Address("10.0.0.6")));
+	}
+
+	public void testRouteDown() throws Exception {
+		IPv4Route r8 = route("10.0.0.0", "255.0.0.0", null);
+		IPv4Route r24 = route("10.1.2.0", "255.255.255.0", null);
+		rt.add(r8);
+		rt.add(r24);
+
+		r24.setUp(false);
+		assertSame(r8, rt.search(new IPv4Address("10.1.2.3")));
+	}
+
+	public void testDefaultGateway() throws Exception {
+		IPv4Route net = route("10.0.0.0", "255.255.255.0", null);
+		IPv4Route gw = route("127.0.0.1", "0.0.0.0", "127.0.0.1");
+		rt.add(net);
+
+		try {
+			rt.search(new IPv4Address("192.168.1.1"));
+			fail("Expected NoRouteToHostException");
+		} catch (NoRouteToHostException ex) {
+			// Expected
+		}
+		rt.add(gw);
+		assertSame(gw, rt.search(new IPv4Address("192.168.1.1")));
+		assertSame(net, rt.search(new IPv4Address("10.0.0.9")));
+	}
+
+	public void testManyRoutes() throws Exception {
+		final int count = 16384;
+		List<IPv4Route> routes = new ArrayList<IPv4Route>();
+		for (int i = 0; i < count; i++) {
+			IPv4Route r = route("10." + (i >> 8) + "." + (i & 0xFF) + ".0", "255.255.255.0", null);
+			rt.add(r);
+			routes.add(r);
+		}
+		IPv4Route r8 = route("10.0.0.0", "255.0.0.0", null);
+		rt.add(r8);
+
+		final IPv4Address[] dsts = new IPv4Address[count];
+		for (int i = 0; i < count; i++) {
+			dsts[i] = new IPv4Address("10." + (i >> 8) + "." + (i & 0xFF) + ".1");
+		}
+		final int rounds = 50;
+		for (int n = 0; n < rounds; n++) {
+			for (int i = 0; i < count; i++) {
+				assertSame(routes.get(i), rt.search(dsts[i]));
+			}
+		}
+		assertSame(r8, rt.search(new IPv4Address("10.200.0.1")));
+
+		for (IPv4Route r : routes) {
+			rt.remove(r);
+		}
+		assertEquals(1, rt.getSize());
+		assertSame(r8, rt.search(new IPv4Address("10.0.0.1")));
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.net.ipv4;
+
+import java.util.Random;
+
+import org.jnode.net.SocketBuffer;
+
+import junit.framework.TestCase;
+
+public class TestIPv4Utils extends TestCase {
+
+	private SocketBuffer echoRequest(Random random, int length) {
+		final byte[] data = new byte[length];
+		random.nextBytes(data);
+		data[0] = 8;
+		data[1] = 0;
+		data[2] = 0;
+		data[3] = 0;
+		final SocketBuffer skbuf = new SocketBuffer(data, 0, length);
+		skbuf.set16(2, IPv4Utils.calcChecksum(skbuf, 0, length));
+		return skbuf;
+	}
+
+	public void testUpdateChecksum() {
+		final Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			final int length = 8 + random.nextInt(64);
+			final SocketBuffer skbuf = echoRequest(random, length);
+			assertEquals(0, IPv4Utils.calcChecksum(skbuf, 0, length));
+
+			final int oldWord = skbuf.get16(0);
+			skbuf.set(0, 0);
+			IPv4Utils.updateChecksum(skbuf, 2, oldWord, skbuf.get16(0));
+			assertEquals(0, IPv4Utils.calcChecksum(skbuf, 0, length));
+		}
+	}
+
+	public void testDecrementTtl() {
+		final IPv4Header hdr = new IPv4Header(0, 64, IPv4Constants.IPPROTO_UDP,
+				new IPv4Address("10.0.0.2"), 0);
+		hdr.setSource(new IPv4Address("10.0.0.1"));
+		final SocketBuffer skbuf = new SocketBuffer();
+		hdr.prefixTo(skbuf);
+		assertEquals(63, IPv4Utils.decrementTtl(skbuf, 0));
+		assertEquals(0, IPv4Utils.calcChecksum(skbuf, 0, hdr.getLength()));
+	}
+}
@@ -476,6 +476,27 @@ public class DatagramSocket
     getImpl().setOption(SocketOptions.SO_RCVBUF, new Integer(size));
 	}
 
+	/**
+	 * This method returns the number of received datagrams that have been
+	 * dropped because the receive buffer of this socket was full.
+	 *
+	 * @return The number of dropped datagrams.
+	 *
+	 * @exception SocketException If an error occurs.
+	 */
+  public long getReceiveDropCount() throws SocketException
+  {
+    if (isClosed())
+      throw new SocketException("socket is closed");
+
+    Object buf = getImpl().getOption(ExSocketOptions.SO_RCVDROPS);
+
+    if (buf instanceof Long)
+      return ((Long) buf).longValue();
+
+    throw new SocketException("unexpected type");
+	}
+
 	/**
 	 * This method connects this socket to the specified address and port.
 	 * When a datagram socket is connected, it will only send or receive
@@ -622,6 +643,73 @@ public class DatagramSocket
     getImpl().send(p);
 	}
 
+	/**
+	 * Reads up to <code>count</code> datagram packets from the socket.  This
+	 * method blocks until at least one packet is received, then returns
+	 * the packets that have already arrived without waiting for more.
+	 *
+	 * @param packets The packets to populate.
+	 * @param offset Index in packets of the first packet to populate.
+	 * @param count Maximum number of packets to read.
+	 *
+	 * @return The number of packets read.
+	 *
+	 * @exception IOException If an error occurs.
+	 * @exception SocketTimeoutException If setSoTimeout was previously called
+	 * and the timeout has expired before any packet was received.
+	 */
+  public synchronized int receive(DatagramPacket[] packets, int offset, int count)
+    throws IOException
+  {
+    if (isClosed())
+      throw new SocketException("socket is closed");
+
+    if (remoteAddress != null && remoteAddress.isMulticastAddress())
+      throw new IOException
+	("Socket connected to a multicast address my not receive");
+
+    if (offset < 0 || count < 0 || offset + count > packets.length)
+      throw new IndexOutOfBoundsException();
+
+    return getImpl().receive(packets, offset, count);
+	}
+
+	/**
+	 * Sends <code>count</code> packets.  Route and address resolution is
+	 * done once per destination for the whole batch.
+	 *
+	 * @param packets The packets to send.
+	 * @param offset Index in packets of the first packet to send.
+	 * @param count Number of packets to send.
+	 *
+	 * @return The number of packets sent.  This is less than count if an
+	 * error occurs after the first packet has been sent.
+	 *
+	 * @exception IOException If an error occurs before any packet is sent.
+	 */
+  public int send(DatagramPacket[] packets, int offset, int count) throws IOException
+  {
+    if (isClosed())
+      throw new SocketException("socket is closed");
+
+    if (offset < 0 || count < 0 || offset + count > packets.length)
+      throw new IndexOutOfBoundsException();
+
+    if (isConnected())
+      {
+	for (int i = offset; i < offset + count; i++)
+	  {
+	    DatagramPacket p = packets[i];
+	    if (p.getAddress() != null
+		&& (remoteAddress != p.getAddress() || remotePort != p.getPort()))
+	      throw new IllegalArgumentException
+		("DatagramPacket address does not match remote address");
+	  }
+      }
+
+    return getImpl().send(packets, offset, count);
+	}
+
 	/**
 	 * Binds the socket to the given socket address.
 	 *
@@ -811,6 +899,43 @@ public class DatagramSocket
 
     Object buf = getImpl().getOption(SocketOptions.SO_REUSEADDR);
 
+    if (buf instanceof Boolean)
+      return ((Boolean) buf).booleanValue();
+
+    throw new SocketException("unexpected type");
+	}
+
+	/**
+	 * Enables/Disables SO_REUSEPORT.  Sockets that all have SO_REUSEPORT
+	 * enabled may bind the same port, the datagrams received on that port
+	 * are spread over them by source address and port.
+	 * 
+	 * @param on Whether or not to have SO_REUSEPORT turned on.
+	 *
+	 * @exception SocketException If an error occurs.
+	 */
+  public void setReusePort(boolean on) throws SocketException
+  {
+    if (isClosed())
+      throw new SocketException("socket is closed");
+
+    getImpl().setOption(ExSocketOptions.SO_REUSEPORT_LB, Boolean.valueOf(on));
+	}
+
+	/**
+	 * Checks if SO_REUSEPORT is enabled.
+	 *
+   * @return True if SO_REUSEPORT is set on the socket, false otherwise.
+   *
+	 * @exception SocketException If an error occurs.
+	 */
+  public boolean getReusePort() throws SocketException
+  {
+    if (isClosed())
+      throw new SocketException("socket is closed");
+
+    Object buf = getImpl().getOption(ExSocketOptions.SO_REUSEPORT_LB);
+
     if (buf instanceof Boolean)
       return ((Boolean) buf).booleanValue();
 
@@ -174,6 +174,49 @@ public abstract class DatagramSocketImpl implements SocketOptions
 	 */
 	protected abstract void receive(DatagramPacket p) throws IOException;
 
+	/**
+	 * Receives up to <code>count</code> packets of data from the network.
+	 * Will block until at least one packet arrives, then returns the
+	 * packets that are already queued without blocking again.  This
+	 * default implementation receives a single packet.
+	 *
+	 * @param packets Places to store the incoming packets.
+	 * @param offset Index in packets of the first place to use.
+	 * @param count Maximum number of packets to receive.
+	 *
+	 * @return The number of packets received.
+	 *
+	 * @exception IOException If an error occurs
+	 */
+	protected int receive(DatagramPacket[] packets, int offset, int count)
+		throws IOException
+	{
+		if (count <= 0)
+			return 0;
+		receive(packets[offset]);
+		return 1;
+	}
+
+	/**
+	 * Transmits <code>count</code> packets of data to the network.  This
+	 * default implementation sends the packets one by one.
+	 *
+	 * @param packets The packets to send.
+	 * @param offset Index in packets of the first packet to send.
+	 * @param count Number of packets to send.
+	 *
+	 * @return The number of packets sent.
+	 *
+	 * @exception IOException If an error occurs before any packet is sent
+	 */
+	protected int send(DatagramPacket[] packets, int offset, int count)
+		throws IOException
+	{
+		for (int i = 0; i < count; i++)
+			send(packets[offset + i]);
+		return Math.max(count, 0);
+	}
+
 	/**
 	 * Connects the socket to a host specified by address and port.
 	 *
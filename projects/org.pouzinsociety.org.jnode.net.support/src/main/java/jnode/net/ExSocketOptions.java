@@ -54,4 +54,19 @@ public interface ExSocketOptions extends SocketOptions {
 	 */
 	public static final int SO_TRANSMIT_IF = 0xFFFF0001;
 
+	/**
+	 * Gets the number of received datagrams that have been dropped because
+	 * the receive buffer (SO_RCVBUF) was full. Get only, values are of
+	 * the type Long.
+	 */
+	public static final int SO_RCVDROPS = 0xFFFF0002;
+
+	/**
+	 * Allows several sockets to bind the same port, the received datagrams
+	 * are spread over them by source address and port. Must be set on all
+	 * sockets sharing the port before they are bound.
+	 * Values must be of the type Boolean.
+	 */
+	public static final int SO_REUSEPORT_LB = 0xFFFF0003;
+
 }
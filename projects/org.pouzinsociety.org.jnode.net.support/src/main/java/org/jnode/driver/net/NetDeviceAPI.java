@@ -86,6 +86,24 @@ public interface NetDeviceAPI extends DeviceAPI {
      */
     public void setProtocolAddressInfo(int protocolID, ProtocolAddressInfo addressInfo);
 
+    /**
+     * Accept received frames sent to the given multicast address. Frames
+     * sent to a multicast address that has not been added are dropped by
+     * the device. Every call must be matched by a call to
+     * removeMulticastAddress.
+     *
+     * @param address
+     */
+    public void addMulticastAddress(HardwareAddress address);
+
+    /**
+     * Stop accepting received frames sent to the given multicast address,
+     * once it has been removed as often as it has been added.
+     *
+     * @param address
+     */
+    public void removeMulticastAddress(HardwareAddress address);
+
     /**
      * Add a net device listener to this device.
      *
@@ -37,6 +37,7 @@ package org.jnode.driver.net.spi;
 
 import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -52,6 +53,7 @@ import org.jnode.driver.net.NetDeviceListener;
 import org.jnode.driver.net.NetworkException;
 import org.jnode.net.HardwareAddress;
 import org.jnode.net.LayerHeader;
+import org.jnode.net.LinkLayerHeader;
 import org.jnode.net.ProtocolAddressInfo;
 import org.jnode.net.SocketBuffer;
 import org.jnode.net.util.NetUtils;
@@ -91,6 +93,15 @@ public abstract class AbstractNetDriver extends Driver
      * Mapping between protocol id and protocol address
      */
     private final HashMap<Integer, ProtocolAddressInfo> protocolAddresses = new HashMap<Integer, ProtocolAddressInfo>();
+    /**
+     * Multicast addresses that are accepted, with the number of times they
+     * have been added
+     */
+    private final HashMap<HardwareAddress, Integer> multicastAddresses = new HashMap<HardwareAddress, Integer>();
+    /**
+     * Number of received multicast frames dropped by the multicast filter
+     */
+    private final AtomicLong rx_mcast_dropped = new AtomicLong();
     /**
      * Queue used to store frames ready for transmission
      */
@@ -243,11 +254,62 @@ public abstract class AbstractNetDriver extends Driver
      */
     protected void onReceive(SocketBuffer skbuf)
         throws NetworkException {
+        final LinkLayerHeader hdr = skbuf.getLinkLayerHeader();
+        if ((hdr != null) && !acceptMulticast(hdr.getDestinationAddress())) {
+            rx_mcast_dropped.incrementAndGet();
+            return;
+        }
         skbuf.setDevice(getDevice());
         rx_count += skbuf.getSize();
         NetUtils.sendToPTM(skbuf);
     }
 
+    /**
+     * Gets the number of received multicast frames dropped by the multicast
+     * filter.
+     */
+    public final long getMulticastDropCount() {
+        return rx_mcast_dropped.get();
+    }
+
+    /**
+     * Is a frame sent to the given address accepted by the multicast filter?
+     *
+     * @param destination
+     */
+    private boolean acceptMulticast(HardwareAddress destination) {
+        if ((destination == null) || !destination.isMulticast()) {
+            return true;
+        }
+        synchronized (multicastAddresses) {
+            return multicastAddresses.containsKey(destination);
+        }
+    }
+
+    /**
+     * @see org.jnode.driver.net.NetDeviceAPI#addMulticastAddress(org.jnode.net.HardwareAddress)
+     */
+    public void addMulticastAddress(HardwareAddress address) {
+        synchronized (multicastAddresses) {
+            final Integer count = multicastAddresses.get(address);
+            multicastAddresses.put(address, (count == null) ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @see org.jnode.driver.net.NetDeviceAPI#removeMulticastAddress(org.jnode.net.HardwareAddress)
+     */
+    public void removeMulticastAddress(HardwareAddress address) {
+        synchronized (multicastAddresses) {
+            final Integer count = multicastAddresses.get(address);
+            if ((count == null) || (count <= 1)) {
+                multicastAddresses.remove(address);
+            } else {
+                multicastAddresses.put(address, count - 1);
+            }
+        }
+    }
+
     /**
      * Gets the protocol address information for a given protocol.
      *
@@ -271,6 +333,12 @@ public abstract class AbstractNetDriver extends Driver
      * @see org.jnode.driver.DeviceInfoAPI#showInfo(java.io.PrintWriter)
      */
     public void showInfo(PrintWriter out) {
+        synchronized (multicastAddresses) {
+            if (!multicastAddresses.isEmpty()) {
+                out.println("Multicast addresses: " + multicastAddresses.keySet());
+            }
+        }
+        out.println("Multicast frames dropped: " + rx_mcast_dropped.get());
         if (!protocolAddresses.isEmpty()) {
             out.println("Protocol addresses:");
             for (int protId : protocolAddresses.keySet()) {
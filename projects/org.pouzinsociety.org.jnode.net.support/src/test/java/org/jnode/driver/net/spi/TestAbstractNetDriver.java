@@ -0,0 +1,195 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.jnode.driver.net.spi;
+
+import java.util.Arrays;
+
+import org.jnode.driver.DriverException;
+import org.jnode.driver.net.NetworkException;
+import org.jnode.net.HardwareAddress;
+import org.jnode.net.LinkLayerHeader;
+import org.jnode.net.SocketBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * The multicast filter of received frames.
+ */
+public class TestAbstractNetDriver extends TestCase {
+
+	/** A 6 byte address, multicast when the low bit of the first byte is set */
+	private static class Address implements HardwareAddress {
+		private final byte[] bytes;
+
+		Address(int first, int last) {
+			bytes = new byte[] { (byte) first, 0, 0x5e, 0, 0, (byte) last };
+		}
+
+		public boolean equals(HardwareAddress o) {
+			return (o instanceof Address)
+					&& Arrays.equals(bytes, ((Address) o).bytes);
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof HardwareAddress) && equals((HardwareAddress) o);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(bytes);
+		}
+
+		public int getLength() {
+			return bytes.length;
+		}
+
+		public byte get(int index) {
+			return bytes[index];
+		}
+
+		public void writeTo(SocketBuffer skbuf, int skbufOffset) {
+			skbuf.set(skbufOffset, bytes, 0, bytes.length);
+		}
+
+		public boolean isBroadcast() {
+			return false;
+		}
+
+		public boolean isMulticast() {
+			return (bytes[0] & 1) != 0;
+		}
+
+		public HardwareAddress getDefaultBroadcastAddress() {
+			return null;
+		}
+
+		public int getType() {
+			return 1;
+		}
+	}
+
+	private static class Header implements LinkLayerHeader {
+		private final HardwareAddress destination;
+
+		Header(HardwareAddress destination) {
+			this.destination = destination;
+		}
+
+		public HardwareAddress getSourceAddress() {
+			return null;
+		}
+
+		public HardwareAddress getDestinationAddress() {
+			return destination;
+		}
+
+		public int getLength() {
+			return 14;
+		}
+
+		public void prefixTo(SocketBuffer skbuf) {
+		}
+
+		public void finalizeHeader(SocketBuffer skbuf, int offset) {
+		}
+	}
+
+	private static class Driver extends AbstractNetDriver {
+
+		protected void doTransmit(SocketBuffer skbuf, HardwareAddress destination) {
+		}
+
+		protected String getDevicePrefix() {
+			return ETH_DEVICE_PREFIX;
+		}
+
+		public HardwareAddress getAddress() {
+			return new Address(0, 1);
+		}
+
+		public int getMTU() {
+			return 1500;
+		}
+
+		protected void startDevice() throws DriverException {
+		}
+
+		protected void stopDevice() throws DriverException {
+		}
+	}
+
+	private static final Address UNICAST = new Address(0, 2);
+	private static final Address GROUP = new Address(1, 3);
+	private static final Address OTHER_GROUP = new Address(1, 4);
+
+	private Driver driver;
+
+	protected void setUp() throws Exception {
+		driver = new Driver();
+	}
+
+	/**
+	 * Pass a frame to onReceive. There is no network layer manager here, so
+	 * a frame that passes the filter fails to be handed on to it.
+	 * 
+	 * @return True if the frame passed the filter
+	 */
+	private boolean receive(HardwareAddress destination) {
+		final SocketBuffer skbuf = new SocketBuffer();
+		skbuf.append(new byte[64], 0, 64);
+		skbuf.setLinkLayerHeader(new Header(destination));
+		try {
+			driver.onReceive(skbuf);
+			return false;
+		} catch (NetworkException ex) {
+			return true;
+		}
+	}
+
+	public void testUnicastAccepted() {
+		assertTrue(receive(UNICAST));
+		assertEquals(0, driver.getMulticastDropCount());
+	}
+
+	public void testGroupNotJoined() {
+		assertFalse(receive(GROUP));
+		assertEquals(1, driver.getMulticastDropCount());
+	}
+
+	public void testGroupJoined() {
+		driver.addMulticastAddress(GROUP);
+		driver.addMulticastAddress(GROUP);
+		assertTrue(receive(GROUP));
+		assertFalse(receive(OTHER_GROUP));
+		assertEquals(1, driver.getMulticastDropCount());
+
+		// Joined twice, so accepted until removed twice
+		driver.removeMulticastAddress(GROUP);
+		assertTrue(receive(GROUP));
+		driver.removeMulticastAddress(GROUP);
+		assertFalse(receive(GROUP));
+		assertEquals(2, driver.getMulticastDropCount());
+	}
+}
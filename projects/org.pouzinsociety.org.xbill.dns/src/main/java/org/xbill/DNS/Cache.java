@@ -4,6 +4,8 @@ package org.xbill.DNS;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A cache of DNS records.  The cache obeys TTLs, so items are purged after
@@ -11,6 +13,11 @@ import java.util.*;
  * avoid repeated failed DNS queries.  The credibility of each RRset is
  * maintained, so that more credible records replace less credible records,
  * and lookups can specify the minimum credibility of data they are requesting.
+ * Lookups take no lock, so any number of threads can share a cache.  When
+ * the cache is full, entries that have not been looked up recently are
+ * evicted first.  Optionally, expired records are kept a while longer so
+ * they can still be served when no server answers (RFC 8767), and answers
+ * close to expiring are marked for prefetching.
  * @see RRset
  * @see Credibility
  *
@@ -23,6 +30,7 @@ private interface Element {
 	public boolean expired();
 	public int compareCredibility(int cred);
 	public int getType();
+	public int getExpire();
 }
 
 private static int
@@ -40,11 +48,15 @@ private static class CacheRRset extends RRset implements Element {
 	
 	int credibility;
 	int expire;
+	int added;
+	/* A prefetch has been asked for */
+	volatile boolean prefetching;
 
 	public
 	CacheRRset(Record rec, int cred, long maxttl) {
 		super();
 		this.credibility = cred;
+		this.added = (int)(System.currentTimeMillis() / 1000);
 		this.expire = limitExpire(rec.getTTL(), maxttl);
 		addRR(rec);
 	}
@@ -53,6 +65,7 @@ private static class CacheRRset extends RRset implements Element {
 	CacheRRset(RRset rrset, int cred, long maxttl) {
 		super(rrset);
 		this.credibility = cred;
+		this.added = (int)(System.currentTimeMillis() / 1000);
 		this.expire = limitExpire(rrset.getTTL(), maxttl);
 	}
 
@@ -67,6 +80,11 @@ private static class CacheRRset extends RRset implements Element {
 		return credibility - cred;
 	}
 
+	public final int
+	getExpire() {
+		return expire;
+	}
+
 	public String
 	toString() {
 		StringBuffer sb = new StringBuffer();
@@ -112,6 +130,11 @@ private static class NegativeElement implements Element {
 		return credibility - cred;
 	}
 
+	public final int
+	getExpire() {
+		return expire;
+	}
+
 	public String
 	toString() {
 		StringBuffer sb = new StringBuffer();
@@ -125,44 +148,75 @@ private static class NegativeElement implements Element {
 	}
 }
 
-private static class CacheMap extends LinkedHashMap {
-	/**
-	 * 
-	 */
-	private static final long serialVersionUID = 1L;
-	private int maxsize = -1;
-
-	CacheMap(int maxsize) {
-		super(16, (float) 0.75, true);
-		this.maxsize = maxsize;
+/**
+ * All elements cached for one name, one slot per type.  The array of slots
+ * is replaced rather than modified, so lookups read it without a lock.
+ */
+private static class CacheEntry {
+	final Name name;
+	volatile Element [] elements;
+	/** Set by lookups, cleared by the eviction scan. */
+	volatile boolean referenced;
+	/** In the protected segment; guarded by the cache. */
+	boolean isProtected;
+	/** Removed from the cache; guarded by the entry. */
+	boolean dead;
+
+	CacheEntry(Name name, Element element) {
+		this.name = name;
+		this.elements = new Element[] {element};
 	}
 
-	int
-	getMaxSize() {
-		return maxsize;
+	Element
+	get(int type) {
+		Element [] elts = elements;
+		for (int i = 0; i < elts.length; i++)
+			if (elts[i].getType() == type)
+				return elts[i];
+		return null;
 	}
+}
 
-	void
-	setMaxSize(int maxsize) {
-		/*
-		 * Note that this doesn't shrink the size of the map if
-		 * the maximum size is lowered, but it should shrink as
-		 * entries expire.
-		 */
-		this.maxsize = maxsize;
-	}
+/** An element filed in the expiry wheel. */
+private static class Expiry {
+	final CacheEntry entry;
+	final Element element;
 
-	protected boolean removeEldestEntry(Map.Entry eldest) {
-		return maxsize >= 0 && size() > maxsize;
+	Expiry(CacheEntry entry, Element element) {
+		this.entry = entry;
+		this.element = element;
 	}
 }
 
-private CacheMap data;
+/* Seconds covered by one turn of the expiry wheel; a power of two. */
+private static final int WHEEL_SIZE = 256;
+
+private static final int defaultMaxEntries = 50000;
+
+private final ConcurrentHashMap<Name, CacheEntry> data =
+	new ConcurrentHashMap<Name, CacheEntry>();
+private final AtomicInteger size = new AtomicInteger();
+private volatile int maxsize = defaultMaxEntries;
 private int maxncache = -1;
 private int maxcache = -1;
+private volatile int maxstale = 0;
+private volatile int prefetch = 0;
 private int dclass;
 
-private static final int defaultMaxEntries = 50000;
+/*
+ * Segmented LRU, guarded by the cache.  New entries start on probation;
+ * an entry referenced since it was last scanned moves to the protected
+ * segment instead of being evicted.  Lookups only set the referenced
+ * flag, so they never change the structure.
+ */
+private final LinkedList<CacheEntry> probation = new LinkedList<CacheEntry>();
+private final LinkedList<CacheEntry> protectedSegment =
+	new LinkedList<CacheEntry>();
+
+/* Expiry wheel with a slot per second, guarded by the cache. */
+@SuppressWarnings("unchecked")
+private final LinkedList<Expiry> [] wheel = new LinkedList[WHEEL_SIZE];
+private int wheelTime;
 
 /**
  * Creates an empty Cache
@@ -173,7 +227,8 @@ private static final int defaultMaxEntries = 50000;
 public
 Cache(int dclass) {
 	this.dclass = dclass;
-	data = new CacheMap(defaultMaxEntries);
+	for (int i = 0; i < WHEEL_SIZE; i++)
+		wheel[i] = new LinkedList<Expiry>();
 }
 
 /**
@@ -190,59 +245,68 @@ Cache() {
  */
 public
 Cache(String file) throws IOException {
-	data = new CacheMap(defaultMaxEntries);
+	this(0);
 	Master m = new Master(file);
 	Record record;
 	while ((record = m.nextRecord()) != null)
 		addRecord(record, Credibility.HINT, m);
 }
 
-private synchronized Object
+private CacheEntry
 exactName(Name name) {
-	return data.get(name);
+	CacheEntry entry = data.get(name);
+	if (entry != null && !entry.referenced)
+		entry.referenced = true;
+	return entry;
+}
+
+/** Marks an entry as removed; returns false if it already was. */
+private boolean
+kill(CacheEntry entry) {
+	synchronized (entry) {
+		if (entry.dead)
+			return false;
+		entry.dead = true;
+	}
+	unlink(entry);
+	return true;
+}
+
+/** Takes an entry marked dead out of the map. */
+private void
+unlink(CacheEntry entry) {
+	data.remove(entry.name, entry);
+	size.decrementAndGet();
 }
 
 private synchronized void
 removeName(Name name) {
-	data.remove(name);
+	CacheEntry entry = data.get(name);
+	if (entry != null)
+		kill(entry);
 }
 
-private synchronized Element []
-allElements(Object types) {
-	if (types instanceof List) {
-		List typelist = (List) types;
-		int size = typelist.size();
-		return (Element []) typelist.toArray(new Element[size]);
-	} else {
-		Element set = (Element) types;
-		return new Element[] {set};
-	}
+/** Has the element expired, and been stale for longer than allowed? */
+private boolean
+pastStale(Element element) {
+	long now = System.currentTimeMillis() / 1000;
+	return (now >= (long) element.getExpire() + maxstale);
 }
 
-private synchronized Element
-oneElement(Name name, Object types, int type, int minCred) {
-	Element found = null;
+private Element
+oneElement(CacheEntry entry, int type, int minCred, boolean stale) {
+	Element found;
 
 	if (type == Type.ANY)
 		throw new IllegalArgumentException("oneElement(ANY)");
-	if (types instanceof List) {
-		List list = (List) types;
-		for (int i = 0; i < list.size(); i++) {
-			Element set = (Element) list.get(i);
-			if (set.getType() == type) {
-				found = set;
-				break;
-			}
-		}
-	} else {
-		Element set = (Element) types;
-		if (set.getType() == type)
-			found = set;
-	}
+	found = entry.get(type);
 	if (found == null)
 		return null;
 	if (found.expired()) {
-		removeElement(name, type);
+		if (pastStale(found))
+			removeElement(entry, found);
+		else if (stale)
+			return found.compareCredibility(minCred) < 0 ? null : found;
 		return null;
 	}
 	if (found.compareCredibility(minCred) < 0)
@@ -250,74 +314,186 @@ oneElement(Name name, Object types, int type, int minCred) {
 	return found;
 }
 
-private synchronized Element
+private Element
 findElement(Name name, int type, int minCred) {
-	Object types = exactName(name);
-	if (types == null)
+	CacheEntry entry = exactName(name);
+	if (entry == null)
 		return null;
-	return oneElement(name, types, type, minCred);
+	return oneElement(entry, type, minCred, false);
 }
 
 private synchronized void
 addElement(Name name, Element element) {
-	Object types = data.get(name);
-	if (types == null) {
-		data.put(name, element);
-		return;
-	}
 	int type = element.getType();
-	if (types instanceof List) {
-		List list = (List) types;
-		for (int i = 0; i < list.size(); i++) {
-			Element elt = (Element) list.get(i);
-			if (elt.getType() == type) {
-				list.set(i, element);
-				return;
+	sweep();
+	while (true) {
+		CacheEntry entry = data.get(name);
+		if (entry == null) {
+			entry = new CacheEntry(name, element);
+			if (data.putIfAbsent(name, entry) != null)
+				continue;
+			size.incrementAndGet();
+			probation.addLast(entry);
+			schedule(entry, element);
+			evict();
+			return;
+		}
+		synchronized (entry) {
+			if (entry.dead)
+				continue;
+			Element [] elts = entry.elements;
+			Element [] copy = null;
+			for (int i = 0; i < elts.length; i++) {
+				if (elts[i].getType() == type) {
+					copy = (Element []) elts.clone();
+					copy[i] = element;
+					break;
+				}
+			}
+			if (copy == null) {
+				copy = new Element[elts.length + 1];
+				System.arraycopy(elts, 0, copy, 0, elts.length);
+				copy[elts.length] = element;
 			}
+			entry.elements = copy;
 		}
-		list.add(element);
-	} else {
-		Element elt = (Element) types;
-		if (elt.getType() == type)
-			data.put(name, element);
-		else {
-			LinkedList list = new LinkedList();
-			list.add(elt);
-			list.add(element);
-			data.put(name, list);
+		schedule(entry, element);
+		return;
+	}
+}
+
+/** Removes an element, unless it has been replaced in the meantime. */
+private void
+removeElement(CacheEntry entry, Element element) {
+	synchronized (entry) {
+		if (entry.dead)
+			return;
+		Element [] elts = entry.elements;
+		int i;
+		for (i = 0; i < elts.length; i++)
+			if (elts[i] == element)
+				break;
+		if (i == elts.length)
+			return;
+		if (elts.length > 1) {
+			Element [] copy = new Element[elts.length - 1];
+			System.arraycopy(elts, 0, copy, 0, i);
+			System.arraycopy(elts, i + 1, copy, i, copy.length - i);
+			entry.elements = copy;
+			return;
 		}
+		/*
+		 * That was the last element.  The entry dies under the same lock,
+		 * so an addElement either got in before and kept it alive, or
+		 * sees it dead and makes a new one.
+		 */
+		entry.dead = true;
 	}
+	unlink(entry);
 }
 
 private synchronized void
 removeElement(Name name, int type) {
-	Object types = data.get(name);
-	if (types == null) {
+	CacheEntry entry = data.get(name);
+	if (entry == null)
+		return;
+	Element element = entry.get(type);
+	if (element != null)
+		removeElement(entry, element);
+}
+
+/** Files an element in the expiry wheel. */
+private void
+schedule(CacheEntry entry, Element element) {
+	long expire = (long) element.getExpire() + maxstale;
+	if (expire >= Integer.MAX_VALUE)
+		return;
+	wheel[(int) expire & (WHEEL_SIZE - 1)].add(new Expiry(entry, element));
+}
+
+/**
+ * Removes the elements that expired since the last sweep.  Elements that
+ * have been replaced or removed are dropped from the wheel on the way.
+ */
+private void
+sweep() {
+	int now = (int)(System.currentTimeMillis() / 1000);
+	if (wheelTime == 0)
+		wheelTime = now;
+	int steps = Math.min(now - wheelTime, WHEEL_SIZE);
+	for (int i = 1; i <= steps; i++) {
+		Iterator<Expiry> it = wheel[(wheelTime + i) & (WHEEL_SIZE - 1)].iterator();
+		while (it.hasNext()) {
+			Expiry x = it.next();
+			if (x.entry.dead)
+				it.remove();
+			else if (pastStale(x.element)) {
+				it.remove();
+				removeElement(x.entry, x.element);
+			}
+		}
+	}
+	if (now > wheelTime)
+		wheelTime = now;
+}
+
+/** Moves an entry to the protected segment, demoting the oldest if full. */
+private void
+promote(CacheEntry entry) {
+	entry.isProtected = true;
+	protectedSegment.addLast(entry);
+	int max = maxsize - maxsize / 5;
+	while (protectedSegment.size() > max) {
+		CacheEntry old = protectedSegment.removeFirst();
+		old.isProtected = false;
+		probation.addLast(old);
+	}
+}
+
+/** Evicts entries until the cache is no larger than its maximum size. */
+private void
+evict() {
+	if (maxsize < 0)
 		return;
+	/* Drop entries that were removed some other way */
+	if (probation.size() + protectedSegment.size() > 2 * size.get() + 64) {
+		purgeDead(probation);
+		purgeDead(protectedSegment);
 	}
-	if (types instanceof List) {
-		List list = (List) types;
-		for (int i = 0; i < list.size(); i++) {
-			Element elt = (Element) list.get(i);
-			if (elt.getType() == type) {
-				list.remove(i);
-				if (list.size() == 0)
-					data.remove(name);
+	while (size.get() > maxsize) {
+		CacheEntry entry = probation.poll();
+		if (entry == null) {
+			entry = protectedSegment.poll();
+			if (entry == null)
 				return;
-			}
+			entry.isProtected = false;
+		} else if (entry.referenced) {
+			entry.referenced = false;
+			promote(entry);
+			continue;
 		}
-	} else {
-		Element elt = (Element) types;
-		if (elt.getType() != type)
-			return;
-		data.remove(name);
+		kill(entry);
 	}
 }
 
+private static void
+purgeDead(LinkedList<CacheEntry> segment) {
+	Iterator<CacheEntry> it = segment.iterator();
+	while (it.hasNext())
+		if (it.next().dead)
+			it.remove();
+}
+
 /** Empties the Cache. */
 public synchronized void
 clearCache() {
-	data.clear();
+	Iterator<CacheEntry> it = data.values().iterator();
+	while (it.hasNext())
+		kill(it.next());
+	probation.clear();
+	protectedSegment.clear();
+	for (int i = 0; i < WHEEL_SIZE; i++)
+		wheel[i].clear();
 }
 
 /**
@@ -404,13 +580,33 @@ addNegative(Name name, int type, SOARecord soa, int cred) {
 /**
  * Finds all matching sets or something that causes the lookup to stop.
  */
-protected synchronized SetResponse
+protected SetResponse
 lookup(Name name, int type, int minCred) {
+	return lookup(name, type, minCred, false);
+}
+
+/** Marks a fresh answer that is in the last part of its TTL, once. */
+private void
+checkPrefetch(SetResponse sr, CacheRRset crrset) {
+	int percent = prefetch;
+	if (percent <= 0 || crrset.prefetching)
+		return;
+	int now = (int)(System.currentTimeMillis() / 1000);
+	long ttl = (long) crrset.expire - crrset.added;
+	long left = (long) crrset.expire - now;
+	if (left >= 0 && left * 100 <= ttl * percent) {
+		crrset.prefetching = true;
+		sr.setPrefetch();
+	}
+}
+
+private SetResponse
+lookup(Name name, int type, int minCred, boolean stale) {
 	int labels;
 	int tlabels;
 	Element element;
 	Name tname;
-	Object types;
+	CacheEntry entry;
 	SetResponse sr;
 
 	labels = name.labels();
@@ -426,20 +622,22 @@ lookup(Name name, int type, int minCred) {
 		else
 			tname = new Name(name, labels - tlabels);
 
-		types = data.get(tname);
-		if (types == null)
+		entry = exactName(tname);
+		if (entry == null)
 			continue;
 
 		/* If this is an ANY lookup, return everything. */
 		if (isExact && type == Type.ANY) {
 			sr = new SetResponse(SetResponse.SUCCESSFUL);
-			Element [] elements = allElements(types);
+			Element [] elements = entry.elements;
 			int added = 0;
 			for (int i = 0; i < elements.length; i++) {
 				element = elements[i];
 				if (element.expired()) {
-					removeElement(tname, element.getType());
-					continue;
+					if (pastStale(element))
+						removeElement(entry, element);
+					if (!stale || pastStale(element))
+						continue;
 				}
 				if (!(element instanceof CacheRRset))
 					continue;
@@ -458,19 +656,20 @@ lookup(Name name, int type, int minCred) {
 		 * Otherwise, look for a DNAME.
 		 */
 		if (isExact) {
-			element = oneElement(tname, types, type, minCred);
+			element = oneElement(entry, type, minCred, stale);
 			if (element != null &&
 			    element instanceof CacheRRset)
 			{
 				sr = new SetResponse(SetResponse.SUCCESSFUL);
 				sr.addRRset((CacheRRset) element);
+				checkPrefetch(sr, (CacheRRset) element);
 				return sr;
 			} else if (element != null) {
 				sr = new SetResponse(SetResponse.NXRRSET);
 				return sr;
 			}
 
-			element = oneElement(tname, types, Type.CNAME, minCred);
+			element = oneElement(entry, Type.CNAME, minCred, stale);
 			if (element != null &&
 			    element instanceof CacheRRset)
 			{
@@ -478,7 +677,7 @@ lookup(Name name, int type, int minCred) {
 						       (CacheRRset) element);
 			}
 		} else {
-			element = oneElement(tname, types, Type.DNAME, minCred);
+			element = oneElement(entry, Type.DNAME, minCred, stale);
 			if (element != null &&
 			    element instanceof CacheRRset)
 			{
@@ -488,14 +687,14 @@ lookup(Name name, int type, int minCred) {
 		}
 
 		/* Look for an NS */
-		element = oneElement(tname, types, Type.NS, minCred);
+		element = oneElement(entry, Type.NS, minCred, stale);
 		if (element != null && element instanceof CacheRRset)
 			return new SetResponse(SetResponse.DELEGATION,
 					       (CacheRRset) element);
 
 		/* Check for the special NXDOMAIN element. */
 		if (isExact) {
-			element = oneElement(tname, types, 0, minCred);
+			element = oneElement(entry, 0, minCred, stale);
 			if (element != null)
 				return SetResponse.ofType(SetResponse.NXDOMAIN);
 		}
@@ -519,6 +718,21 @@ lookupRecords(Name name, int type, int minCred) {
 	return lookup(name, type, minCred);
 }
 
+/**
+ * Looks up Records in the Cache like lookupRecords, but also finds data
+ * that expired less than the stale time ago.  This is meant for when no
+ * server can be reached, so that stale data is better than none (RFC 8767).
+ * @param name The name to look up
+ * @param type The type to look up
+ * @param minCred The minimum acceptable credibility
+ * @return A SetResponse object
+ * @see #setMaxStale
+ */
+public SetResponse
+lookupStaleRecords(Name name, int type, int minCred) {
+	return lookup(name, type, minCred, true);
+}
+
 private RRset []
 findRecords(Name name, int type, int minCred) {
 	SetResponse cr = lookupRecords(name, type, minCred);
@@ -786,13 +1000,69 @@ getMaxCache() {
 	return maxcache;
 }
 
+/**
+ * Sets how long expired records are kept to be served by
+ * lookupStaleRecords.  RFC 8767 suggests one to three days.  The default,
+ * 0, keeps nothing past its TTL.
+ */
+public void
+setMaxStale(int seconds) {
+	maxstale = Math.max(0, seconds);
+}
+
+/**
+ * Gets how long expired records are kept to be served by
+ * lookupStaleRecords.
+ */
+public int
+getMaxStale() {
+	return maxstale;
+}
+
+/**
+ * Moves the expiry of the data for a name and type back, as if it had been
+ * added the given number of seconds earlier.  Used by the tests instead of
+ * waiting for data to expire.
+ */
+synchronized void
+backdate(Name name, int type, int seconds) {
+	Element element = findElement(name, type, 0);
+	if (element instanceof CacheRRset) {
+		CacheRRset crrset = (CacheRRset) element;
+		crrset.expire -= seconds;
+		crrset.added -= seconds;
+	} else if (element instanceof NegativeElement)
+		((NegativeElement) element).expire -= seconds;
+}
+
+/**
+ * Sets the part of the TTL, in percent, at the end of which a lookup marks
+ * its answer to be fetched again before it expires.  Each answer is marked
+ * once.  0, the default, disables prefetching.
+ */
+public void
+setPrefetch(int percent) {
+	if (percent < 0 || percent > 100)
+		throw new IllegalArgumentException("invalid prefetch percentage");
+	prefetch = percent;
+}
+
+/**
+ * Gets the part of the TTL, in percent, in which answers are marked
+ * for prefetching.
+ */
+public int
+getPrefetch() {
+	return prefetch;
+}
+
 /**
  * Gets the current number of entries in the Cache, where an entry consists
  * of all records with a specific Name.
  */
 public int
 getSize() {
-	return data.size();
+	return size.get();
 }
 
 /**
@@ -802,7 +1072,7 @@ getSize() {
  */
 public int
 getMaxEntries() {
-	return data.getMaxSize();
+	return maxsize;
 }
 
 /**
@@ -811,7 +1081,8 @@ getMaxEntries() {
  * infinite limit.
  *
  * Note that setting this to a value lower than the current number
- * of entries will not cause the Cache to shrink immediately.
+ * of entries will not cause the Cache to shrink until the next entry
+ * is added.
  *
  * The default maximum number of entries is 50000.
  *
@@ -819,7 +1090,7 @@ getMaxEntries() {
  */
 public void
 setMaxEntries(int entries) {
-	data.setMaxSize(entries);
+	maxsize = entries;
 }
 
 /**
@@ -836,14 +1107,12 @@ getDClass() {
 public String
 toString() {
 	StringBuffer sb = new StringBuffer();
-	synchronized (this) {
-		Iterator it = data.values().iterator();
-		while (it.hasNext()) {
-			Element [] elements = allElements(it.next());
-			for (int i = 0; i < elements.length; i++) {
-				sb.append(elements[i]);
-				sb.append("\n");
-			}
+	Iterator<CacheEntry> it = data.values().iterator();
+	while (it.hasNext()) {
+		Element [] elements = it.next().elements;
+		for (int i = 0; i < elements.length; i++) {
+			sb.append(elements[i]);
+			sb.append("\n");
 		}
 	}
 	return sb.toString();
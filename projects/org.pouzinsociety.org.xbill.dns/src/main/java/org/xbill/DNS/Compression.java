@@ -2,6 +2,8 @@
 
 package org.xbill.DNS;
 
+import java.util.Arrays;
+
 /**
  * DNS Name Compression object.
  * @see Message
@@ -31,6 +33,12 @@ Compression() {
 	table = new Entry[TABLE_SIZE];
 }
 
+/** Forgets all names, so the object can be used for another message. */
+void
+clear() {
+	Arrays.fill(table, null);
+}
+
 /**
  * Adds a compression entry mapping a name to a position in a message.
  * @param pos The position at which the name is added.
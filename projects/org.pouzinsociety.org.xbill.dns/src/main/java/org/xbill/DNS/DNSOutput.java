@@ -34,6 +34,14 @@ DNSOutput() {
 	this(32);
 }
 
+/**
+ * Returns the size of the buffer the output is written to.
+ */
+int
+capacity() {
+	return array.length;
+}
+
 /**
  * Returns the current position.
  */
@@ -348,6 +348,15 @@ setTimeout(int secs) {
 	setTimeout(secs, 0);
 }
 
+/** Returns the time to wait for every server to time out on every try. */
+public long
+getTimeout() {
+	long timeout = 0;
+	for (int i = 0; i < resolvers.size(); i++)
+		timeout += ((Resolver)resolvers.get(i)).getTimeout();
+	return timeout * retries;
+}
+
 /**
  * Sends a message and waits for a response.  Multiple servers are queried,
  * and queries are sent multiple times until either a successful response
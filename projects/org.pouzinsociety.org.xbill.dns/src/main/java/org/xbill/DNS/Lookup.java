@@ -4,7 +4,9 @@ package org.xbill.DNS;
 
 import java.util.*;
 import java.io.*;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Lookup object issues queries to caching DNS servers.  The input consists
@@ -16,6 +18,10 @@ import java.net.UnknownHostException;
  * also determined by the ResolverConfig class.
  *
  * A Lookup object may be reused, but should not be used by multiple threads.
+ * Lookups in different threads that need the same query at the same time
+ * send it only once.  If the cache is set up for it, answers about to
+ * expire are fetched again in the background, and expired answers are
+ * used when no server answers.
  *
  * @see Cache
  * @see Resolver
@@ -29,6 +35,10 @@ public final class Lookup {
 private static Resolver defaultResolver;
 private static Name [] defaultSearchPath;
 private static Map defaultCaches;
+private static boolean defaultCoalesce = true;
+
+/* Queries being sent, shared by the lookups that need them */
+private static final ConcurrentHashMap inflight = new ConcurrentHashMap();
 
 private Resolver resolver;
 private Name [] searchPath;
@@ -54,9 +64,77 @@ private boolean networkerror;
 private boolean timedout;
 private boolean nametoolong;
 private boolean referral;
+private boolean coalesce;
+private boolean prefetch = true;
+private boolean serveStale = true;
 
 private static final Name [] noAliases = new Name[0];
 
+/* The TTL of stale answers at most, as RFC 8767 recommends */
+static final long STALE_TTL = 30;
+
+/**
+ * A query on its way to a resolver.  Lookups that want the same answer
+ * from the same resolver wait for it instead of sending their own.
+ */
+private static class Flight {
+	private final Resolver resolver;
+	private final Record question;
+	private final int hash;
+	private boolean done;
+	private Message response;
+	private IOException error;
+
+	Flight(Resolver resolver, Record question) {
+		this.resolver = resolver;
+		this.question = question;
+		this.hash = System.identityHashCode(resolver) * 31 +
+			    question.getName().hashCode() * 31 +
+			    question.getType();
+	}
+
+	public int
+	hashCode() {
+		return hash;
+	}
+
+	public boolean
+	equals(Object o) {
+		if (!(o instanceof Flight))
+			return false;
+		Flight f = (Flight) o;
+		return (resolver == f.resolver && question.equals(f.question));
+	}
+
+	synchronized void
+	finish(Message response, IOException error) {
+		inflight.remove(this, this);
+		this.response = response;
+		this.error = error;
+		done = true;
+		notifyAll();
+	}
+
+	/* Waits for the answer, at most timeout ms. */
+	synchronized Message
+	await(long timeout) throws IOException {
+		long end = System.currentTimeMillis() + timeout;
+		try {
+			long left;
+			while (!done && (left = end - System.currentTimeMillis()) > 0)
+				wait(left);
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted");
+		}
+		if (!done)
+			throw new SocketTimeoutException("timed out");
+		if (response == null)
+			throw (error != null) ? error : new IOException("query failed");
+		return response;
+	}
+}
+
 /** The lookup was successful. */
 public static final int SUCCESSFUL = 0;
 
@@ -177,6 +255,15 @@ setDefaultSearchPath(String [] domains) throws TextParseException {
 	defaultSearchPath = newdomains;
 }
 
+/**
+ * Sets whether future Lookups share queries that are already being sent
+ * for other Lookups.  This is on by default.
+ */
+public static synchronized void
+setDefaultCoalesce(boolean flag) {
+	defaultCoalesce = flag;
+}
+
 private final void
 reset() {
 	iterations = 0;
@@ -227,6 +314,7 @@ Lookup(Name name, int type, int dclass) {
 		this.resolver = getDefaultResolver();
 		this.searchPath = getDefaultSearchPath();
 		this.cache = getDefaultCache(dclass);
+		this.coalesce = defaultCoalesce;
 	}
 	this.credibility = Credibility.NORMAL;
 	this.verbose = Options.check("verbose");
@@ -363,6 +451,41 @@ setCredibility(int credibility) {
 	this.credibility = credibility;
 }
 
+/**
+ * Sets whether this lookup shares a query that another Lookup is already
+ * sending, rather than sending its own.  This defaults to
+ * {@link #setDefaultCoalesce the default}.
+ * @param flag Whether to share queries.
+ */
+public void
+setCoalesce(boolean flag) {
+	this.coalesce = flag;
+}
+
+/**
+ * Sets whether an answer from the cache that is about to expire is fetched
+ * again in the background.  This defaults to true, and only has an effect
+ * if the cache marks answers for prefetching.
+ * @param flag Whether to prefetch.
+ * @see Cache#setPrefetch
+ */
+public void
+setPrefetch(boolean flag) {
+	this.prefetch = flag;
+}
+
+/**
+ * Sets whether expired data from the cache is used when no server can be
+ * reached or the server fails (RFC 8767).  This defaults to true, and only
+ * has an effect if the cache keeps stale data.
+ * @param flag Whether to serve stale data.
+ * @see Cache#setMaxStale
+ */
+public void
+setServeStale(boolean flag) {
+	this.serveStale = flag;
+}
+
 private void
 follow(Name name, Name oldname) {
 	foundAlias = true;
@@ -438,6 +561,8 @@ lookup(Name current) {
 				   Type.string(type));
 		System.err.println(sr);
 	}
+	if (prefetch && sr.isPrefetch())
+		prefetch(current);
 	processResponse(current, sr);
 	if (done || doneCurrent)
 		return;
@@ -446,9 +571,11 @@ lookup(Name current) {
 	Message query = Message.newQuery(question);
 	Message response = null;
 	try {
-		response = resolver.send(query);
+		response = send(query);
 	}
 	catch (IOException e) {
+		if (useStale(current))
+			return;
 		// A network error occurred.  Press on.
 		if (e instanceof InterruptedIOException)
 			timedout = true;
@@ -458,6 +585,8 @@ lookup(Name current) {
 	}
 	int rcode = response.getHeader().getRcode();
 	if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+		if (rcode == Rcode.SERVFAIL && useStale(current))
+			return;
 		// The server we contacted is broken or otherwise unhelpful.
 		// Press on.
 		badresponse = true;
@@ -483,6 +612,91 @@ lookup(Name current) {
 	processResponse(current, sr);
 }
 
+private Message
+send(Message query) throws IOException {
+	if (!coalesce)
+		return resolver.send(query);
+	Flight flight = new Flight(resolver, query.getQuestion());
+	Flight other = (Flight) inflight.putIfAbsent(flight, flight);
+	if (other != null)
+		return other.await(resolver.getTimeout());
+	Message response = null;
+	IOException error = null;
+	try {
+		response = resolver.send(query);
+	}
+	catch (IOException e) {
+		error = e;
+		throw e;
+	}
+	finally {
+		flight.finish(response, error);
+	}
+	return response;
+}
+
+/*
+ * Refreshes an answer in the background, unless a query for it is already
+ * on its way.
+ */
+private void
+prefetch(Name current) {
+	final Record question = Record.newRecord(current, type, dclass);
+	final Flight flight = new Flight(resolver, question);
+	if (inflight.putIfAbsent(flight, flight) != null)
+		return;
+	final Cache c = cache;
+	ResolverListener listener = new ResolverListener() {
+		public void
+		receiveMessage(Object id, Message m) {
+			try {
+				int rcode = m.getHeader().getRcode();
+				if ((rcode == Rcode.NOERROR ||
+				     rcode == Rcode.NXDOMAIN) &&
+				    question.equals(m.getQuestion()))
+					c.addMessage(m);
+			}
+			finally {
+				flight.finish(m, null);
+			}
+		}
+
+		public void
+		handleException(Object id, Exception e) {
+			if (e instanceof IOException)
+				flight.finish(null, (IOException) e);
+			else
+				flight.finish(null, null);
+		}
+	};
+	try {
+		resolver.sendAsync(Message.newQuery(question), listener);
+	}
+	catch (RuntimeException e) {
+		/* Nothing was sent; don't leave the flight in the way */
+		flight.finish(null, null);
+	}
+}
+
+/* Answers from expired data, if the cache still has some. */
+private boolean
+useStale(Name current) {
+	if (!serveStale)
+		return false;
+	SetResponse sr = cache.lookupStaleRecords(current, type, credibility);
+	if (!sr.isSuccessful() && !sr.isNXDOMAIN() && !sr.isNXRRSET())
+		return false;
+	if (verbose) {
+		System.err.println("stale " + current + " " +
+				   Type.string(type));
+		System.err.println(sr);
+	}
+	processResponse(current, sr);
+	if (sr.isSuccessful())
+		Record.capTTL(answers, STALE_TTL);
+	return true;
+}
+
 private void
 resolve(Name current, Name suffix) {
 	doneCurrent = false;
@@ -52,6 +52,26 @@ static final int TSIG_FAILED = 4;
 private static Record [] emptyRecordArray = new Record[0];
 private static RRset [] emptyRRsetArray = new RRset[0];
 
+/* Buffers above this size are not kept for the next message */
+private static final int MAX_KEPT_BUFFER = 16384;
+
+/*
+ * The output buffer and compression table used to render messages, kept
+ * by each thread and reset for every message instead of allocated.
+ */
+private static class Renderer {
+	DNSOutput out = new DNSOutput(512);
+	final Compression c = new Compression();
+	boolean busy;
+}
+
+private static final ThreadLocal renderers = new ThreadLocal() {
+	protected Object
+	initialValue() {
+		return new Renderer();
+	}
+};
+
 private
 Message(Header header) {
 	sections = new List[4];
@@ -377,8 +397,12 @@ getSectionRRsets(int section) {
 
 void
 toWire(DNSOutput out) {
+	toWire(out, new Compression());
+}
+
+private void
+toWire(DNSOutput out, Compression c) {
 	header.toWire(out);
-	Compression c = new Compression();
 	for (int i = 0; i < 4; i++) {
 		if (sections[i] == null)
 			continue;
@@ -417,7 +441,7 @@ sectionToWire(DNSOutput out, int section, Compression c,
 
 /* Returns true if the message could be rendered. */
 private boolean
-toWire(DNSOutput out, int maxLength) {
+toWire(DNSOutput out, int maxLength, Compression c) {
 	if (maxLength < Header.LENGTH)
 		return false;
 
@@ -429,7 +453,6 @@ toWire(DNSOutput out, int maxLength) {
 
 	int startpos = out.current();
 	header.toWire(out);
-	Compression c = new Compression();
 	for (int i = 0; i < 4; i++) {
 		int skipped;
 		if (sections[i] == null)
@@ -477,10 +500,37 @@ toWire(DNSOutput out, int maxLength) {
  */
 public byte []
 toWire() {
-	DNSOutput out = new DNSOutput();
-	toWire(out);
-	size = out.current();
-	return out.toByteArray();
+	Renderer r = startRendering();
+	try {
+		toWire(r.out, r.c);
+		size = r.out.current();
+		return r.out.toByteArray();
+	}
+	finally {
+		endRendering(r);
+	}
+}
+
+/*
+ * Gets this thread's renderer, reset.  If it is in use further up the
+ * stack, a new one is returned.
+ */
+private static Renderer
+startRendering() {
+	Renderer r = (Renderer) renderers.get();
+	if (r.busy)
+		return new Renderer();
+	r.busy = true;
+	r.out.jump(0);
+	r.c.clear();
+	return r;
+}
+
+private static void
+endRendering(Renderer r) {
+	r.busy = false;
+	if (r.out.capacity() > MAX_KEPT_BUFFER)
+		r.out = new DNSOutput(512);
 }
 
 /**
@@ -498,10 +548,15 @@ toWire() {
  */
 public byte []
 toWire(int maxLength) {
-	DNSOutput out = new DNSOutput();
-	toWire(out, maxLength);
-	size = out.current();
-	return out.toByteArray();
+	Renderer r = startRendering();
+	try {
+		toWire(r.out, maxLength, r.c);
+		size = r.out.current();
+		return r.out.toByteArray();
+	}
+	finally {
+		endRendering(r);
+	}
 }
 
 /**
@@ -624,6 +624,35 @@ getLabel(int n) {
 	return label;
 }
 
+/**
+ * Returns a lowercase copy of the nth label, without its length byte.
+ */
+byte []
+getCanonicalLabel(int n) {
+	int pos = offset(n);
+	byte [] label = new byte[name[pos]];
+	for (int i = 0; i < label.length; i++)
+		label[i] = lowercase[name[pos + 1 + i] & 0xFF];
+	return label;
+}
+
+/**
+ * Compares the nth label of this Name with a label returned by
+ * getCanonicalLabel, in canonical order.  Nothing is copied.
+ */
+int
+compareLabel(int n, byte [] label) {
+	int pos = offset(n);
+	int length = name[pos];
+	for (int i = 0; i < length && i < label.length; i++) {
+		int c = (lowercase[name[pos + 1 + i] & 0xFF] & 0xFF) -
+			(label[i] & 0xFF);
+		if (c != 0)
+			return c;
+	}
+	return length - label.length;
+}
+
 /**
  * Convert the nth label in a Name to a String
  * @param n The label to be converted to a (printable) String.  The first
@@ -768,6 +797,24 @@ equals(Object arg) {
 	return equals(d.name, d.offset(0));
 }
 
+/**
+ * Are these two Names equivalent, and do their labels also have the same
+ * case?
+ */
+boolean
+identical(Name d) {
+	if (d == this)
+		return true;
+	if (!equals(d))
+		return false;
+	int pos = offset(0);
+	int dpos = d.offset(0);
+	for (int i = pos; i < name.length; i++)
+		if (name[i] != d.name[dpos++])
+			return false;
+	return true;
+}
+
 /**
  * Computes a hashcode based on the value
  */
@@ -0,0 +1,109 @@
+package org.xbill.DNS;
+
+import java.util.*;
+
+/**
+ * An immutable map from Names to values, which finds the value of the
+ * closest enclosing Name of a name: the zone a name belongs to, for
+ * instance.  It is a trie of canonical labels from the root down, so a
+ * lookup walks the labels of the name in place and does not create Names.
+ */
+
+public final class NameTree {
+
+private static final Node [] noNodes = new Node[0];
+
+private static final class Node {
+	/* Lowercase, without the length byte */
+	final byte [] label;
+	Node [] children = noNodes;
+	Object value;
+
+	Node(byte [] label) {
+		this.label = label;
+	}
+
+	/* Binary search for the child matching the nth label of name. */
+	Node
+	child(Name name, int n) {
+		int lo = 0, hi = children.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = name.compareLabel(n, children[mid].label);
+			if (c == 0)
+				return children[mid];
+			if (c > 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return null;
+	}
+}
+
+private final Node root = new Node(new byte[0]);
+
+/**
+ * Builds the tree of a map.
+ * @param map A map from absolute Names to values
+ */
+public
+NameTree(Map map) {
+	Map kids = new HashMap();
+	Iterator it = map.entrySet().iterator();
+	while (it.hasNext()) {
+		Map.Entry entry = (Map.Entry) it.next();
+		Name name = (Name) entry.getKey();
+		if (!name.isAbsolute())
+			continue;
+		Node node = root;
+		for (int n = name.labels() - 2; n >= 0; n--) {
+			byte [] label = name.getCanonicalLabel(n);
+			SortedMap children = (SortedMap) kids.get(node);
+			if (children == null) {
+				children = new TreeMap(ZoneIndex.labelOrder);
+				kids.put(node, children);
+			}
+			Node child = (Node) children.get(label);
+			if (child == null) {
+				child = new Node(label);
+				children.put(label, child);
+			}
+			node = child;
+		}
+		node.value = entry.getValue();
+	}
+
+	it = kids.entrySet().iterator();
+	while (it.hasNext()) {
+		Map.Entry entry = (Map.Entry) it.next();
+		Node node = (Node) entry.getKey();
+		Collection children = ((SortedMap) entry.getValue()).values();
+		node.children = (Node []) children.toArray(new Node[children.size()]);
+	}
+}
+
+/**
+ * Finds the value of a name, or else of its closest enclosing Name that
+ * has one.
+ * @param name An absolute name
+ * @return The value, or null if neither the name nor any of the names
+ * enclosing it has one
+ */
+public Object
+findBest(Name name) {
+	if (!name.isAbsolute())
+		return null;
+	Node node = root;
+	Object best = root.value;
+	for (int n = name.labels() - 2; n >= 0; n--) {
+		node = node.child(name, n);
+		if (node == null)
+			break;
+		if (node.value != null)
+			best = node.value;
+	}
+	return best;
+}
+
+}
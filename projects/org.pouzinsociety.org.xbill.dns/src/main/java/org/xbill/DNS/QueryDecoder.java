@@ -0,0 +1,268 @@
+package org.xbill.DNS;
+
+/**
+ * A flyweight view of a query in wire format.  It reads the header, the
+ * question and the OPT record straight from the buffer without creating a
+ * Message, so a server can decide how to answer a query before, or
+ * instead of, parsing it.  One decoder can be reused for any number of
+ * queries; it reads from the buffer of the last query it was given.
+ * <p>
+ * Names and the OPT record are checked as Message checks them, but the
+ * rdata of other records is only skipped, not parsed.  A query with such
+ * records may be accepted here and rejected by Message.
+ * @see Message
+ */
+
+public final class QueryDecoder {
+
+private byte [] buf;
+private int length;
+private int flags;
+private int [] counts = new int[4];
+private int questionEnd;
+private int type;
+private int dclass;
+private boolean hasOPT;
+private int payloadSize;
+private int ednsVersion;
+private int ednsFlags;
+private boolean hasTSIG;
+
+/* The longest name in wire format, as in Name */
+private static final int MAXNAME = 255;
+
+/** Creates a decoder, which must be given a query with wrap(). */
+public
+QueryDecoder() {
+}
+
+private int
+u16(int pos) {
+	return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+}
+
+/*
+ * Returns the position after the name at pos, or -1 if Name would not
+ * parse it.  Compression pointers are followed to check the whole name;
+ * like Name, only pointers to earlier positions are accepted.
+ */
+private int
+skipName(int pos) {
+	int end = -1;
+	int total = 0;
+	while (pos < length) {
+		int len = buf[pos] & 0xFF;
+		switch (len & 0xC0) {
+		case 0x00:
+			total += len + 1;
+			if (total > MAXNAME)
+				return -1;
+			if (len == 0)
+				return (end < 0) ? pos + 1 : end;
+			pos += len + 1;
+			break;
+		case 0xC0:
+			if (pos + 2 > length)
+				return -1;
+			int target = ((len & 0x3F) << 8) | (buf[pos + 1] & 0xFF);
+			if (target >= pos)
+				return -1;
+			if (end < 0)
+				end = pos + 2;
+			pos = target;
+			break;
+		default:
+			return -1;
+		}
+	}
+	return -1;
+}
+
+/* Are the options in the rdata of an OPT record well formed? */
+private boolean
+checkOptions(int pos, int rdlength) {
+	int end = pos + rdlength;
+	while (pos < end) {
+		if (pos + 4 > end)
+			return false;
+		pos += 4 + u16(pos + 2);
+	}
+	return pos == end;
+}
+
+/**
+ * Points the decoder at a query.
+ * @param buf The buffer holding the query.
+ * @param length The length of the query.
+ * @return false if the query is malformed or has no question; nothing
+ * can be read from the decoder then.
+ */
+public boolean
+wrap(byte [] buf, int length) {
+	this.buf = buf;
+	this.length = length;
+	hasOPT = false;
+	hasTSIG = false;
+	if (length < Header.LENGTH)
+		return false;
+	flags = u16(2);
+	for (int i = 0; i < 4; i++)
+		counts[i] = u16(4 + 2 * i);
+	if (counts[Section.QUESTION] < 1)
+		return false;
+
+	int pos = skipName(Header.LENGTH);
+	if (pos < 0 || pos + 4 > length)
+		return false;
+	type = u16(pos);
+	dclass = u16(pos + 2);
+	pos += 4;
+	questionEnd = pos;
+
+	/* Skip any other records to find the OPT and TSIG */
+	int records = counts[Section.QUESTION] - 1;
+	for (int i = 0; i < records; i++) {
+		pos = skipName(pos);
+		if (pos < 0 || pos + 4 > length)
+			return false;
+		pos += 4;
+	}
+	records = counts[Section.ANSWER] + counts[Section.AUTHORITY] +
+		  counts[Section.ADDITIONAL];
+	int additional = records - counts[Section.ADDITIONAL];
+	for (int i = 0; i < records; i++) {
+		pos = skipName(pos);
+		if (pos < 0 || pos + 10 > length)
+			return false;
+		int rtype = u16(pos);
+		int rdlength = u16(pos + 8);
+		if (pos + 10 + rdlength > length)
+			return false;
+		if (i >= additional) {
+			if (rtype == Type.OPT) {
+				if (!checkOptions(pos + 10, rdlength))
+					return false;
+				hasOPT = true;
+				payloadSize = u16(pos + 2);
+				ednsVersion = buf[pos + 5] & 0xFF;
+				ednsFlags = u16(pos + 6);
+			} else if (rtype == Type.TSIG)
+				hasTSIG = true;
+		}
+		pos += 10 + rdlength;
+	}
+	return true;
+}
+
+/** Returns the query ID. */
+public int
+getID() {
+	return u16(0);
+}
+
+/**
+ * Retrieves a flag.
+ * @see Flags
+ */
+public boolean
+getFlag(int bit) {
+	return (flags & (1 << (15 - bit))) != 0;
+}
+
+/**
+ * Returns the opcode.
+ * @see Opcode
+ */
+public int
+getOpcode() {
+	return (flags >> 11) & 0xF;
+}
+
+/**
+ * Returns the rcode of the header, without the extended bits.
+ * @see Rcode
+ */
+public int
+getRcode() {
+	return flags & 0xF;
+}
+
+/**
+ * Returns the number of records in a section.
+ * @see Section
+ */
+public int
+getCount(int section) {
+	return counts[section];
+}
+
+/** Returns the offset of the first question, which follows the header. */
+public int
+getQuestionOffset() {
+	return Header.LENGTH;
+}
+
+/** Returns the offset just past the type and class of the first question. */
+public int
+getQuestionEnd() {
+	return questionEnd;
+}
+
+/** Returns the type of the first question. */
+public int
+getType() {
+	return type;
+}
+
+/** Returns the class of the first question. */
+public int
+getDClass() {
+	return dclass;
+}
+
+/**
+ * Returns the name of the first question.  Unlike everything else in the
+ * decoder, this creates a Name.
+ */
+public Name
+getName() throws WireParseException {
+	DNSInput in = new DNSInput(buf);
+	in.jump(Header.LENGTH);
+	in.setActive(length - Header.LENGTH);
+	return new Name(in);
+}
+
+/** Does the query have an OPT record? */
+public boolean
+hasOPT() {
+	return hasOPT;
+}
+
+/** Returns the UDP payload size of the OPT record. */
+public int
+getPayloadSize() {
+	return payloadSize;
+}
+
+/** Returns the EDNS version of the OPT record. */
+public int
+getEDNSVersion() {
+	return ednsVersion;
+}
+
+/**
+ * Returns the flags of the OPT record.
+ * @see ExtendedFlags
+ */
+public int
+getEDNSFlags() {
+	return ednsFlags;
+}
+
+/** Is the query signed with TSIG? */
+public boolean
+hasTSIG() {
+	return hasTSIG;
+}
+
+}
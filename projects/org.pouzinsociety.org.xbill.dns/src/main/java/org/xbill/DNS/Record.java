@@ -635,6 +635,21 @@ withDClass(int dclass, long ttl) {
 	return rec;
 }
 
+/**
+ * Replaces the records with a TTL above the given one by copies with that
+ * TTL.  The records themselves, which may be cached, are not changed.
+ */
+static void
+capTTL(Record [] records, long ttl) {
+	if (records == null)
+		return;
+	for (int i = 0; i < records.length; i++) {
+		Record r = records[i];
+		if (r.ttl > ttl)
+			records[i] = r.withDClass(r.dclass, ttl);
+	}
+}
+
 /* Sets the TTL to the specified value.  This is intentionally not public. */
 void
 setTTL(long ttl) {
@@ -73,6 +73,11 @@ void setTimeout(int secs, int msecs);
  */
 void setTimeout(int secs);
 
+/**
+ * Returns the longest time to wait for a response, in milliseconds.
+ */
+long getTimeout();
+
 /**
  * Sends a message and waits for a response.
  * @param query The query to send.
@@ -61,6 +61,7 @@ private static final SetResponse nxrrset = new SetResponse(NXRRSET);
 
 private int type;
 private Object data;
+private boolean prefetch;
 
 private
 SetResponse() {}
@@ -145,6 +146,20 @@ isDNAME() {
 	return (type == DNAME);
 }
 
+/*
+ * Set by the Cache when the answer is close to expiring and should be
+ * fetched again.  Never set on the shared instances.
+ */
+void
+setPrefetch() {
+	prefetch = true;
+}
+
+boolean
+isPrefetch() {
+	return prefetch;
+}
+
 /** Was the query successful? */
 public boolean
 isSuccessful() {
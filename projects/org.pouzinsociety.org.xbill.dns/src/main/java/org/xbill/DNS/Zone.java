@@ -31,35 +31,48 @@ private Object originNode;
 private int dclass = DClass.IN;
 private RRset NS;
 private SOARecord SOA;
-private boolean hasWild;
+private volatile int version;
+/* Compiled from data on the first lookup after a change */
+private transient volatile ZoneIndex index;
+/* Deltas between serials, oldest first, for IXFR */
+private transient LinkedList journal;
+private int journalSize = 100;
+/* Changes made since the last serial change */
+private transient List pendingAdds;
+private transient List pendingDeletes;
 
 class ZoneIterator implements Iterator {
-	private Iterator zentries;
+	private Iterator names;
 	private RRset [] current;
 	private int count;
-	private boolean wantLastSOA;
+	private RRset lastSOA;
 
 	ZoneIterator(boolean axfr) {
-		synchronized (Zone.this) {
-			zentries = data.entrySet().iterator();
-		}
-		wantLastSOA = axfr;
-		RRset [] sets = allRRsets(originNode);
+		ZoneIndex zindex = getIndex();
+		names = zindex.iterator();
+		RRset [] sets = zindex.originSets();
 		current = new RRset[sets.length];
-		for (int i = 0, j = 2; i < sets.length; i++) {
+		int j = 0;
+		for (int i = 0; i < sets.length; i++)
+			if (sets[i].getType() == Type.SOA)
+				current[j++] = sets[i];
+		for (int i = 0; i < sets.length; i++)
+			if (sets[i].getType() == Type.NS)
+				current[j++] = sets[i];
+		for (int i = 0; i < sets.length; i++) {
 			int type = sets[i].getType();
-			if (type == Type.SOA)
-				current[0] = sets[i];
-			else if (type == Type.NS)
-				current[1] = sets[i];
-			else
+			if (type != Type.SOA && type != Type.NS)
 				current[j++] = sets[i];
 		}
+		if (current.length == 0)
+			current = null;
+		else if (axfr)
+			lastSOA = current[0];
 	}
 
 	public boolean
 	hasNext() {
-		return (current != null || wantLastSOA);
+		return (current != null || names.hasNext() || lastSOA != null);
 	}
 
 	public Object
@@ -67,25 +80,16 @@ class ZoneIterator implements Iterator {
 		if (!hasNext()) {
 			throw new NoSuchElementException();
 		}
-		if (current == null) {
-			wantLastSOA = false;
-			return oneRRset(originNode, Type.SOA);
-		}
-		Object set = current[count++];
-		if (count == current.length) {
-			current = null;
-			while (zentries.hasNext()) {
-				Map.Entry entry = (Map.Entry) zentries.next();
-				if (entry.getKey().equals(origin))
-					continue;
-				RRset [] sets = allRRsets(entry.getValue());
-				if (sets.length == 0)
-					continue;
-				current = sets;
-				count = 0;
-				break;
-			}
+		if (current != null) {
+			Object set = current[count++];
+			if (count == current.length)
+				current = null;
+			return set;
 		}
+		if (names.hasNext())
+			return names.next();
+		Object set = lastSOA;
+		lastSOA = null;
 		return set;
 	}
 
@@ -124,7 +128,22 @@ maybeAddRecord(Record record) throws IOException {
 				      origin);
 	}
 	if (name.subdomain(origin))
-		addRecord(record);
+		loadRecord(record);
+}
+
+/*
+ * Adds a record while the Zone is being built.  Nothing can have looked
+ * at the Zone yet, so RRsets are extended in place instead of copied.
+ */
+private void
+loadRecord(Record r) {
+	r = shareName(r);
+	Name name = r.getName();
+	RRset rrset = findRRset(name, r.getRRsetType());
+	if (rrset == null)
+		addRRset(name, new RRset(r));
+	else
+		rrset.addRR(r);
 }
 
 /**
@@ -135,11 +154,23 @@ maybeAddRecord(Record record) throws IOException {
  */
 public
 Zone(Name zone, String file) throws IOException {
+	this(zone, new Master(file, zone));
+}
+
+/**
+ * Creates a Zone from the records read by a master file parser.  Records
+ * are added as they are parsed, so the master file is never held in
+ * memory as a whole.
+ * @param zone The name of the zone.
+ * @param m The master file parser to read from.
+ * @see Master
+ */
+public
+Zone(Name zone, Master m) throws IOException {
 	data = new HashMap();
 
 	if (zone == null)
 		throw new IllegalArgumentException("no zone name specified");
-	Master m = new Master(file, zone);
 	Record record;
 
 	origin = zone;
@@ -229,6 +260,15 @@ getDClass() {
 	return dclass;
 }
 
+/**
+ * Returns a number that changes whenever the contents of the Zone change,
+ * so that data derived from the Zone can be checked for staleness.
+ */
+public int
+getVersion() {
+	return version;
+}
+
 private synchronized Object
 exactName(Name name) {
 	return data.get(name);
@@ -264,6 +304,28 @@ oneRRset(Object types, int type) {
 	return null;
 }
 
+/*
+ * Makes a record use the same Name object as the records already at its
+ * name, so that a large zone holds one copy of each name.  Only a name
+ * with the same case is shared, so owner names keep the case they were
+ * given.
+ */
+private synchronized Record
+shareName(Record r) {
+	Object types = exactName(r.getName());
+	if (types == null)
+		return r;
+	RRset set;
+	if (types instanceof List)
+		set = (RRset) ((List) types).get(0);
+	else
+		set = (RRset) types;
+	Name name = set.getName();
+	if (name == r.getName() || !name.identical(r.getName()))
+		return r;
+	return r.withName(name);
+}
+
 private synchronized RRset
 findRRset(Name name, int type) {
 	Object types = exactName(name);
@@ -274,8 +336,8 @@ findRRset(Name name, int type) {
 
 private synchronized void
 addRRset(Name name, RRset rrset) {
-	if (!hasWild && name.isWild())
-		hasWild = true;
+	version++;
+	index = null;
 	Object types = data.get(name);
 	if (types == null) {
 		data.put(name, rrset);
@@ -307,6 +369,8 @@ addRRset(Name name, RRset rrset) {
 
 private synchronized void
 removeRRset(Name name, int type) {
+	version++;
+	index = null;
 	Object types = data.get(name);
 	if (types == null) {
 		return;
@@ -330,99 +394,27 @@ removeRRset(Name name, int type) {
 	}
 }
 
-private synchronized SetResponse
-lookup(Name name, int type) {
-	int labels;
-	int olabels;
-	int tlabels;
-	RRset rrset;
-	Name tname;
-	Object types;
-	SetResponse sr;
-
-	if (!name.subdomain(origin))
-		return SetResponse.ofType(SetResponse.NXDOMAIN);
-
-	labels = name.labels();
-	olabels = origin.labels();
-
-	for (tlabels = olabels; tlabels <= labels; tlabels++) {
-		boolean isOrigin = (tlabels == olabels);
-		boolean isExact = (tlabels == labels);
-
-		if (isOrigin)
-			tname = origin;
-		else if (isExact)
-			tname = name;
-		else
-			tname = new Name(name, labels - tlabels);
-
-		types = exactName(tname);
-		if (types == null)
-			continue;
-
-		/* If this is a delegation, return that. */
-		if (!isOrigin) {
-			RRset ns = oneRRset(types, Type.NS);
-			if (ns != null)
-				return new SetResponse(SetResponse.DELEGATION,
-						       ns);
-		}
-
-		/* If this is an ANY lookup, return everything. */
-		if (isExact && type == Type.ANY) {
-			sr = new SetResponse(SetResponse.SUCCESSFUL);
-			RRset [] sets = allRRsets(types);
-			for (int i = 0; i < sets.length; i++)
-				sr.addRRset(sets[i]);
-			return sr;
-		}
-
-		/*
-		 * If this is the name, look for the actual type or a CNAME.
-		 * Otherwise, look for a DNAME.
-		 */
-		if (isExact) {
-			rrset = oneRRset(types, type);
-			if (rrset != null) {
-				sr = new SetResponse(SetResponse.SUCCESSFUL);
-				sr.addRRset(rrset);
-				return sr;
-			}
-			rrset = oneRRset(types, Type.CNAME);
-			if (rrset != null)
-				return new SetResponse(SetResponse.CNAME,
-						       rrset);
-		} else {
-			rrset = oneRRset(types, Type.DNAME);
-			if (rrset != null)
-				return new SetResponse(SetResponse.DNAME,
-						       rrset);
-		}
-
-		/* We found the name, but not the type. */
-		if (isExact)
-			return SetResponse.ofType(SetResponse.NXRRSET);
-	}
-
-	if (hasWild) {
-		for (int i = 0; i < labels - olabels; i++) {
-			tname = name.wild(i + 1);
-
-			types = exactName(tname);
-			if (types == null)
-				continue;
-
-			rrset = oneRRset(types, type);
-			if (rrset != null) {
-				sr = new SetResponse(SetResponse.SUCCESSFUL);
-				sr.addRRset(rrset);
-				return sr;
-			}
+private synchronized ZoneIndex
+compile() {
+	if (index == null) {
+		Map names = new HashMap();
+		Iterator it = data.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			names.put(entry.getKey(), allRRsets(entry.getValue()));
 		}
+		index = new ZoneIndex(origin, names);
 	}
+	return index;
+}
 
-	return SetResponse.ofType(SetResponse.NXDOMAIN);
+/* The index of the current data; it is never changed, only replaced. */
+private ZoneIndex
+getIndex() {
+	ZoneIndex zindex = index;
+	if (zindex == null)
+		zindex = compile();
+	return zindex;
 }
 
 /**     
@@ -434,7 +426,7 @@ lookup(Name name, int type) {
  */ 
 public SetResponse
 findRecords(Name name, int type) {
-	return lookup(name, type);
+	return getIndex().lookup(name, type);
 }
 
 /**
@@ -446,10 +438,7 @@ findRecords(Name name, int type) {
  */ 
 public RRset
 findExactMatch(Name name, int type) {
-	Object types = exactName(name);
-	if (types == null)
-		return null;
-	return oneRRset(types, type);
+	return getIndex().findExactMatch(name, type);
 }
 
 /**
@@ -470,16 +459,22 @@ addRRset(RRset rrset) {
  */
 public void
 addRecord(Record r) {
-	Name name = r.getName();
 	int rtype = r.getRRsetType();
 	synchronized (this) {
+		r = shareName(r);
+		Name name = r.getName();
 		RRset rrset = findRRset(name, rtype);
 		if (rrset == null) {
 			rrset = new RRset(r);
-			addRRset(name, rrset);
 		} else {
+			if (contains(rrset, r))
+				return;
+			/* Compiled indexes still refer to the old set */
+			rrset = new RRset(rrset);
 			rrset.addRR(r);
 		}
+		addRRset(name, rrset);
+		journalChange(r, true);
 	}
 }
 
@@ -494,13 +489,224 @@ removeRecord(Record r) {
 	int rtype = r.getRRsetType();
 	synchronized (this) {
 		RRset rrset = findRRset(name, rtype);
-		if (rrset == null)
+		if (rrset == null || !contains(rrset, r))
 			return;
+		journalChange(r, false);
 		if (rrset.size() == 1 && rrset.first().equals(r))
 			removeRRset(name, rtype);
-		else
+		else {
+			rrset = new RRset(rrset);
 			rrset.deleteRR(r);
+			addRRset(name, rrset);
+		}
+	}
+}
+
+private static boolean
+contains(RRset rrset, Record r) {
+	Iterator it = (r.getType() == Type.RRSIG) ? rrset.sigs() : rrset.rrs();
+	while (it.hasNext())
+		if (it.next().equals(r))
+			return true;
+	return false;
+}
+
+/*
+ * Remember a change for the next delta.  Changes made while the zone is
+ * being loaded, and changes to the SOA, are not journaled.
+ */
+private synchronized void
+journalChange(Record r, boolean add) {
+	if (SOA == null || journalSize == 0 || r.getType() == Type.SOA)
+		return;
+	if (pendingAdds == null) {
+		pendingAdds = new ArrayList();
+		pendingDeletes = new ArrayList();
 	}
+	List undo = add ? pendingDeletes : pendingAdds;
+	if (!undo.remove(r))
+		(add ? pendingAdds : pendingDeletes).add(r);
+}
+
+private synchronized void
+setSOA(SOARecord soa) {
+	addRRset(origin, new RRset(soa));
+	SOA = soa;
+	originNode = exactName(origin);
+}
+
+private synchronized void
+addDelta(ZoneTransferIn.Delta delta) {
+	if (journalSize == 0)
+		return;
+	if (journal == null)
+		journal = new LinkedList();
+	journal.add(delta);
+	while (journal.size() > journalSize)
+		journal.removeFirst();
+}
+
+/**
+ * Sets the number of serial changes kept for incremental zone transfers.
+ * A value of 0 disables the journal.
+ */
+public synchronized void
+setJournalSize(int size) {
+	if (size < 0)
+		throw new IllegalArgumentException("journal size must be >= 0");
+	journalSize = size;
+	if (journal != null)
+		while (journal.size() > size)
+			journal.removeFirst();
+}
+
+/**
+ * Ends a set of changes made with {@link #addRecord} and
+ * {@link #removeRecord}.  If anything changed since the last call, the
+ * serial number in the SOA is incremented and the changes are added to the
+ * journal.
+ * @return The serial number of the Zone
+ */
+public synchronized long
+commit() {
+	if (pendingAdds == null ||
+	    (pendingAdds.size() == 0 && pendingDeletes.size() == 0))
+		return SOA.getSerial();
+	SOARecord old = SOA;
+	SOARecord soa = new SOARecord(origin, old.getDClass(), old.getTTL(),
+				      old.getHost(), old.getAdmin(),
+				      Serial.increment(old.getSerial()),
+				      old.getRefresh(), old.getRetry(),
+				      old.getExpire(), old.getMinimum());
+	ZoneTransferIn.Delta delta = new ZoneTransferIn.Delta();
+	delta.start = old.getSerial();
+	delta.end = soa.getSerial();
+	delta.deletes.add(old);
+	delta.deletes.addAll(pendingDeletes);
+	delta.adds.add(soa);
+	delta.adds.addAll(pendingAdds);
+	pendingAdds = null;
+	pendingDeletes = null;
+	setSOA(soa);
+	addDelta(delta);
+	return soa.getSerial();
+}
+
+/**
+ * Applies the deltas of an incremental zone transfer, in order, and adds
+ * them to the journal.
+ * @param deltas The deltas, as returned by {@link ZoneTransferIn#run}
+ * @throws IllegalArgumentException The deltas do not start at the
+ * current serial number
+ */
+public synchronized void
+applyIXFR(List deltas) {
+	for (Iterator it = deltas.iterator(); it.hasNext(); ) {
+		ZoneTransferIn.Delta delta = (ZoneTransferIn.Delta) it.next();
+		if (delta.start != SOA.getSerial())
+			throw new IllegalArgumentException("delta starts at " +
+							   delta.start +
+							   ", zone is at " +
+							   SOA.getSerial());
+		SOARecord soa = null;
+		for (Iterator rit = delta.deletes.iterator(); rit.hasNext(); ) {
+			Record r = (Record) rit.next();
+			if (r.getType() != Type.SOA)
+				removeRecord(r);
+		}
+		for (Iterator rit = delta.adds.iterator(); rit.hasNext(); ) {
+			Record r = (Record) rit.next();
+			if (r.getType() == Type.SOA)
+				soa = (SOARecord) r;
+			else
+				addRecord(r);
+		}
+		pendingAdds = null;
+		pendingDeletes = null;
+		if (soa != null)
+			setSOA(soa);
+		addDelta(delta);
+	}
+}
+
+/**
+ * Takes over the journal of the Zone this one replaces, such as an older
+ * copy of the same zone read from a master file.  If the serial number
+ * went up, the differences between the two are added as one more delta.
+ * If it did not, the old journal no longer applies and is dropped.
+ * @param old The Zone being replaced
+ */
+public void
+inheritJournal(Zone old) {
+	if (old == this || !old.origin.equals(origin))
+		return;
+	List oldRecords = old.records();
+	LinkedList oldJournal = null;
+	synchronized (old) {
+		if (old.journal != null)
+			oldJournal = new LinkedList(old.journal);
+	}
+	synchronized (this) {
+		long from = old.getSOA().getSerial();
+		long to = SOA.getSerial();
+		if (Serial.compare(to, from) <= 0)
+			return;
+		journal = oldJournal;
+		Set before = new HashSet(oldRecords);
+		Set after = new HashSet(records());
+		ZoneTransferIn.Delta delta = new ZoneTransferIn.Delta();
+		delta.start = from;
+		delta.end = to;
+		delta.deletes.add(old.getSOA());
+		delta.adds.add(SOA);
+		for (Iterator it = oldRecords.iterator(); it.hasNext(); ) {
+			Record r = (Record) it.next();
+			if (r.getType() != Type.SOA && !after.contains(r))
+				delta.deletes.add(r);
+		}
+		for (Iterator it = after.iterator(); it.hasNext(); ) {
+			Record r = (Record) it.next();
+			if (r.getType() != Type.SOA && !before.contains(r))
+				delta.adds.add(r);
+		}
+		addDelta(delta);
+	}
+}
+
+/* All records of the Zone, signatures included */
+private List
+records() {
+	List list = new ArrayList();
+	Iterator zit = iterator();
+	while (zit.hasNext()) {
+		RRset rrset = (RRset) zit.next();
+		for (Iterator it = rrset.rrs(); it.hasNext(); )
+			list.add(it.next());
+		for (Iterator it = rrset.sigs(); it.hasNext(); )
+			list.add(it.next());
+	}
+	return list;
+}
+
+/**
+ * Returns the changes needed to bring a copy of the Zone at the given
+ * serial number up to date, suitable for an IXFR response.
+ * @param serial The serial number of the copy
+ * @return The deltas in order, an empty list if the copy is current, or
+ * null if the journal does not go back far enough
+ */
+public synchronized List
+getIXFR(long serial) {
+	if (serial == SOA.getSerial())
+		return Collections.EMPTY_LIST;
+	if (journal == null)
+		return null;
+	for (int i = 0; i < journal.size(); i++) {
+		ZoneTransferIn.Delta delta = (ZoneTransferIn.Delta) journal.get(i);
+		if (delta.start == serial)
+			return new ArrayList(journal.subList(i, journal.size()));
+	}
+	return null;
 }
 
 /**
@@ -521,11 +727,15 @@ AXFR() {
 	return new ZoneIterator(true);
 }
 
-private void
-nodeToString(StringBuffer sb, Object node) {
-	RRset [] sets = allRRsets(node);
-	for (int i = 0; i < sets.length; i++) {
-		RRset rrset = sets[i];
+/**
+ * Returns the contents of the Zone in master file format.
+ */
+public String
+toMasterFile() {
+	StringBuffer sb = new StringBuffer();
+	Iterator zit = iterator();
+	while (zit.hasNext()) {
+		RRset rrset = (RRset) zit.next();
 		Iterator it = rrset.rrs();
 		while (it.hasNext())
 			sb.append(it.next() + "\n");
@@ -533,21 +743,6 @@ nodeToString(StringBuffer sb, Object node) {
 		while (it.hasNext())
 			sb.append(it.next() + "\n");
 	}
-}
-
-/**
- * Returns the contents of the Zone in master file format.
- */
-public synchronized String
-toMasterFile() {
-	Iterator zentries = data.entrySet().iterator();
-	StringBuffer sb = new StringBuffer();
-	nodeToString(sb, originNode);
-	while (zentries.hasNext()) {
-		Map.Entry entry = (Map.Entry) zentries.next();
-		if (!origin.equals(entry.getKey()))
-			nodeToString(sb, entry.getValue());
-	}
 	return sb.toString();
 }
 
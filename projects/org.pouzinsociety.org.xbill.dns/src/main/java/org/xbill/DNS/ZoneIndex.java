@@ -0,0 +1,298 @@
+package org.xbill.DNS;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * An immutable, compiled form of the data of a Zone: a trie of the labels
+ * below the origin, children in canonical order.  Wildcards and delegation
+ * points are marked when the index is built, so a lookup only walks the
+ * trie and does not create Names.
+ */
+
+final class ZoneIndex {
+
+private static final Node [] noNodes = new Node[0];
+private static final RRset [] noSets = new RRset[0];
+private static final byte [] wildLabel = new byte[] {(byte)'*'};
+
+static final class Node {
+	/* Lowercase, without the length byte; shared by equal labels */
+	final byte [] label;
+	final Node parent;
+	Node [] children = noNodes;
+	RRset [] sets = noSets;
+	/* The child labelled "*", if any */
+	Node wild;
+	/* The NS set, if this node is a delegation point */
+	RRset ns;
+
+	Node(byte [] label, Node parent) {
+		this.label = label;
+		this.parent = parent;
+	}
+
+	RRset
+	get(int type) {
+		for (int i = 0; i < sets.length; i++)
+			if (sets[i].getType() == type)
+				return sets[i];
+		return null;
+	}
+
+	/* Binary search for the child with the given label. */
+	Node
+	child(byte [] label) {
+		int lo = 0, hi = children.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = labelOrder.compare(label, children[mid].label);
+			if (c == 0)
+				return children[mid];
+			if (c > 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return null;
+	}
+
+	/* Binary search for the child matching the nth label of name. */
+	Node
+	child(Name name, int n) {
+		int lo = 0, hi = children.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = name.compareLabel(n, children[mid].label);
+			if (c == 0)
+				return children[mid];
+			if (c > 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return null;
+	}
+}
+
+static final Comparator labelOrder = new Comparator() {
+	public int
+	compare(Object o1, Object o2) {
+		byte [] a = (byte []) o1;
+		byte [] b = (byte []) o2;
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+};
+
+private final Name origin;
+private final int olabels;
+private final Node top;
+
+/**
+ * Builds the index of a zone.
+ * @param origin The origin of the zone
+ * @param names A map from each Name in the zone to its RRsets
+ */
+ZoneIndex(Name origin, Map names) {
+	this.origin = origin;
+	this.olabels = origin.labels();
+	this.top = new Node(new byte[0], null);
+
+	Map interned = new HashMap();
+	Map kids = new HashMap();
+	Iterator it = names.entrySet().iterator();
+	while (it.hasNext()) {
+		Map.Entry entry = (Map.Entry) it.next();
+		Name name = (Name) entry.getKey();
+		RRset [] sets = (RRset []) entry.getValue();
+		if (sets.length == 0 || !name.subdomain(origin))
+			continue;
+		Node node = top;
+		for (int n = name.labels() - olabels - 1; n >= 0; n--) {
+			byte [] label = name.getCanonicalLabel(n);
+			ByteBuffer key = ByteBuffer.wrap(label);
+			byte [] shared = (byte []) interned.get(key);
+			if (shared == null)
+				interned.put(key, label);
+			else
+				label = shared;
+			SortedMap children = (SortedMap) kids.get(node);
+			if (children == null) {
+				children = new TreeMap(labelOrder);
+				kids.put(node, children);
+			}
+			Node child = (Node) children.get(label);
+			if (child == null) {
+				child = new Node(label, node);
+				children.put(label, child);
+			}
+			node = child;
+		}
+		node.sets = sets;
+		if (node != top)
+			node.ns = node.get(Type.NS);
+	}
+
+	it = kids.entrySet().iterator();
+	while (it.hasNext()) {
+		Map.Entry entry = (Map.Entry) it.next();
+		Node node = (Node) entry.getKey();
+		Collection children = ((SortedMap) entry.getValue()).values();
+		node.children = (Node []) children.toArray(new Node[children.size()]);
+		node.wild = node.child(wildLabel);
+	}
+}
+
+/* The node of name, or null if it has none. */
+private Node
+find(Name name) {
+	if (!name.subdomain(origin))
+		return null;
+	Node node = top;
+	for (int n = name.labels() - olabels - 1; n >= 0 && node != null; n--)
+		node = node.child(name, n);
+	return node;
+}
+
+/** Returns the RRsets of the origin. */
+RRset []
+originSets() {
+	return top.sets;
+}
+
+/** Returns the RRset of a name and type, or null. */
+RRset
+findExactMatch(Name name, int type) {
+	Node node = find(name);
+	if (node == null)
+		return null;
+	return node.get(type);
+}
+
+/** Looks up a name, following the rules of Zone.findRecords. */
+SetResponse
+lookup(Name name, int type) {
+	SetResponse sr;
+	RRset rrset;
+
+	if (!name.subdomain(origin))
+		return SetResponse.ofType(SetResponse.NXDOMAIN);
+
+	int labels = name.labels();
+	Node node = top;
+	boolean reached = false;
+	for (int n = labels - olabels; n >= 0; n--) {
+		if (n < labels - olabels) {
+			Node child = node.child(name, n);
+			if (child == null)
+				break;
+			node = child;
+		}
+		reached = (n == 0);
+		if (node.sets.length == 0)
+			continue;
+		boolean isExact = (n == 0);
+
+		/* If this is a delegation, return that. */
+		if (node.ns != null)
+			return new SetResponse(SetResponse.DELEGATION, node.ns);
+
+		/* If this is an ANY lookup, return everything. */
+		if (isExact && type == Type.ANY) {
+			sr = new SetResponse(SetResponse.SUCCESSFUL);
+			for (int i = 0; i < node.sets.length; i++)
+				sr.addRRset(node.sets[i]);
+			return sr;
+		}
+
+		/*
+		 * If this is the name, look for the actual type or a CNAME.
+		 * Otherwise, look for a DNAME.
+		 */
+		if (isExact) {
+			rrset = node.get(type);
+			if (rrset != null) {
+				sr = new SetResponse(SetResponse.SUCCESSFUL);
+				sr.addRRset(rrset);
+				return sr;
+			}
+			rrset = node.get(Type.CNAME);
+			if (rrset != null)
+				return new SetResponse(SetResponse.CNAME, rrset);
+			/* We found the name, but not the type. */
+			return SetResponse.ofType(SetResponse.NXRRSET);
+		} else {
+			rrset = node.get(Type.DNAME);
+			if (rrset != null)
+				return new SetResponse(SetResponse.DNAME, rrset);
+		}
+	}
+
+	/*
+	 * Try the wildcards of the closest existing ancestors first.  The
+	 * exact node, if it exists, is not a candidate.
+	 */
+	if (reached)
+		node = node.parent;
+	for (; node != null; node = node.parent) {
+		if (node.wild == null)
+			continue;
+		rrset = node.wild.get(type);
+		if (rrset != null) {
+			sr = new SetResponse(SetResponse.SUCCESSFUL);
+			sr.addRRset(rrset);
+			return sr;
+		}
+	}
+
+	return SetResponse.ofType(SetResponse.NXDOMAIN);
+}
+
+/**
+ * Returns all RRsets below the origin, in canonical order.
+ */
+Iterator
+iterator() {
+	return new Iterator() {
+		/* Depth-first, parents before children */
+		private final LinkedList stack = new LinkedList(Arrays.asList(top.children));
+		private RRset [] current = noSets;
+		private int count;
+
+		private void
+		advance() {
+			while (count == current.length && !stack.isEmpty()) {
+				Node node = (Node) stack.removeFirst();
+				for (int i = node.children.length - 1; i >= 0; i--)
+					stack.addFirst(node.children[i]);
+				current = node.sets;
+				count = 0;
+			}
+		}
+
+		public boolean
+		hasNext() {
+			advance();
+			return count < current.length;
+		}
+
+		public Object
+		next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return current[count++];
+		}
+
+		public void
+		remove() {
+			throw new UnsupportedOperationException();
+		}
+	};
+}
+
+}
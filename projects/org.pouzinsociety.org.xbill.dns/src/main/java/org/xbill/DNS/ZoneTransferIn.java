@@ -92,7 +92,6 @@ public static class Delta {
 	/** A list of records deleted between the start and end versions */
 	public List deletes;
 
-	private
 	Delta() {
 		adds = new ArrayList();
 		deletes = new ArrayList();
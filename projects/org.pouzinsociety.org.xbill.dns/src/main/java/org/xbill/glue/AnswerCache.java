@@ -0,0 +1,257 @@
+package org.xbill.glue;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xbill.DNS.Zone;
+
+/**
+ * Cache of rendered responses to queries answered from a single zone. A
+ * hit costs one map lookup and a copy of the response, in which only the
+ * ID is changed. Responses are dropped when their zone changes, or when
+ * the cache is cleared because a zone was added or replaced. When the
+ * cache is full the oldest responses are evicted first.
+ */
+public class AnswerCache {
+
+	/** Offset of the question in a DNS message */
+	private static final int QUESTION_OFFSET = 12;
+
+	private final ConcurrentHashMap<Key, Answer> answers = new ConcurrentHashMap<Key, Answer>();
+	/** Answers in the order they were put, including replaced ones */
+	private final ConcurrentLinkedQueue<Answer> order = new ConcurrentLinkedQueue<Answer>();
+	private final AtomicInteger ordered = new AtomicInteger();
+	/** Bumped by clear(), answers built before that are not used */
+	private final AtomicInteger generation = new AtomicInteger();
+	private final int maxEntries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private volatile long start = System.currentTimeMillis();
+
+	/**
+	 * What identifies a query: its question as sent, plus everything else
+	 * in the query that changes the response.
+	 */
+	static final class Key {
+		private final byte[] question;
+		private final int bits;
+		private final int hash;
+
+		Key(byte[] question, int bits) {
+			this.question = question;
+			this.bits = bits;
+			this.hash = Arrays.hashCode(question) * 31 + bits;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			final Key k = (Key) o;
+			return (hash == k.hash) && (bits == k.bits) && Arrays.equals(question, k.question);
+		}
+	}
+
+	private static final class Answer {
+		final Key key;
+		final byte[] wire;
+		final Zone zone;
+		final int version;
+		final int generation;
+
+		Answer(Key key, byte[] wire, Zone zone, int version, int generation) {
+			this.key = key;
+			this.wire = wire;
+			this.zone = zone;
+			this.version = version;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Create a new instance
+	 * 
+	 * @param maxEntries Maximum number of responses kept
+	 */
+	public AnswerCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Build the key of a query. The question is compared byte for byte, so
+	 * a response always repeats the name with the case it was asked in.
+	 * 
+	 * @param in The query as received
+	 * @param length Length of the query
+	 * @param maxLength Maximum length of the response
+	 * @param dnssecOk DO bit of the query
+	 * @param edns Does the query have an OPT record
+	 * @param rd RD bit of the query
+	 * @return The key, or null if the question cannot be cached
+	 */
+	static Key makeKey(byte[] in, int length, int maxLength, boolean dnssecOk, boolean edns,
+			boolean rd) {
+		int pos = QUESTION_OFFSET;
+		while (true) {
+			if (pos >= length)
+				return null;
+			final int len = in[pos] & 0xFF;
+			if (len == 0)
+				break;
+			if ((len & 0xC0) != 0) {
+				// Compression pointer, not worth the trouble
+				return null;
+			}
+			pos += len + 1;
+		}
+		// Terminating label, type and class
+		pos += 5;
+		if (pos > length)
+			return null;
+		final byte[] question = new byte[pos - QUESTION_OFFSET];
+		System.arraycopy(in, QUESTION_OFFSET, question, 0, question.length);
+		final int bits = (maxLength << 3) | (dnssecOk ? 4 : 0) | (edns ? 2 : 0) | (rd ? 1 : 0);
+		return new Key(question, bits);
+	}
+
+	/**
+	 * Gets the cached response to a query.
+	 * 
+	 * @param key
+	 * @param id ID of the query
+	 * @return A copy of the response with the given ID, or null
+	 */
+	byte[] get(Key key, int id) {
+		final Answer answer = answers.get(key);
+		if ((answer == null) || (answer.zone.getVersion() != answer.version) ||
+				(answer.generation != generation.get())) {
+			if (answer != null)
+				answers.remove(key, answer);
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		final byte[] wire = (byte[]) answer.wire.clone();
+		wire[0] = (byte) (id >> 8);
+		wire[1] = (byte) id;
+		return wire;
+	}
+
+	/**
+	 * Gets the generation of the cache, to be passed to put(). It must be
+	 * read before the zone that answers the query is looked up.
+	 */
+	int getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Cache a response.
+	 * 
+	 * @param key
+	 * @param wire The response
+	 * @param zone The zone the response was built from
+	 * @param version Version of the zone before the response was built
+	 * @param generation Generation of the cache before the zone was found
+	 */
+	void put(Key key, byte[] wire, Zone zone, int version, int generation) {
+		if (generation != this.generation.get())
+			return;
+		final Answer answer = new Answer(key, (byte[]) wire.clone(), zone, version, generation);
+		answers.put(key, answer);
+		order.add(answer);
+		if (ordered.incrementAndGet() > maxEntries)
+			evict();
+	}
+
+	/**
+	 * Evict the oldest answers until no more than maxEntries are left. The
+	 * order queue holds every answer in the map, so bounding it bounds the
+	 * map.
+	 */
+	private void evict() {
+		while (ordered.get() > maxEntries) {
+			final Answer old = order.poll();
+			if (old == null)
+				return;
+			ordered.decrementAndGet();
+			answers.remove(old.key, old);
+		}
+	}
+
+	/**
+	 * Drop all responses, for instance when a zone is added or replaced.
+	 * A response being built from the old zone is not cached afterwards.
+	 * The order queue is drained too, so it holds no old responses or
+	 * zones and counts only the answers put since.
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		answers.clear();
+		Answer old;
+		while ((old = order.poll()) != null) {
+			ordered.decrementAndGet();
+			answers.remove(old.key, old);
+		}
+	}
+
+	/**
+	 * Reset the statistics.
+	 */
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		start = System.currentTimeMillis();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of responses cached.
+	 */
+	public int getSize() {
+		return answers.size();
+	}
+
+	/**
+	 * Gets the number of answers in the order queue.
+	 */
+	int getQueued() {
+		return ordered.get();
+	}
+
+	/**
+	 * Gets the fraction of lookups that found a response, 0..1.
+	 */
+	public double getHitRatio() {
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return (total == 0) ? 0.0 : (double) h / total;
+	}
+
+	/**
+	 * Gets the number of lookups per second since the statistics were reset.
+	 */
+	public double getQueriesPerSecond() {
+		final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		return (hits.get() + misses.get()) * 1000.0 / elapsed;
+	}
+
+	public String toString() {
+		return "AnswerCache: " + getSize() + " responses, " + hits.get() + " hits, " + misses.get() +
+				" misses, hit ratio " + (float) getHitRatio() + ", " + (float) getQueriesPerSecond() +
+				" queries/s";
+	}
+}
@@ -0,0 +1,579 @@
+package org.xbill.glue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.net.TransportLayer;
+import org.xbill.DNS.Cache;
+import org.xbill.DNS.Credibility;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SetResponse;
+import org.xbill.DNS.TSIG;
+
+import jnode.net.DatagramPacket;
+import jnode.net.DatagramSocket;
+import jnode.net.InetSocketAddress;
+
+/**
+ * A Resolver that keeps many queries to one server outstanding at once.
+ * Queries share a few long-lived UDP sockets; a thread per socket matches
+ * responses to queries by ID, source and question. Unanswered queries are
+ * sent again with a doubling timeout, and truncated responses are retried
+ * over TCP. With a Cache set, questions it can answer, including negative
+ * answers, are not sent at all.
+ * <p>
+ * Install it with {@link org.xbill.DNS.Lookup#setDefaultResolver} so that
+ * every Lookup shares it.
+ */
+public class AsyncDNSClient implements Resolver {
+
+	/** The default port to send queries to */
+	public static final int DEFAULT_PORT = 53;
+
+	/** The default number of sockets queries are spread over */
+	public static final int DEFAULT_SOCKETS = 2;
+
+	private static final int DEFAULT_RETRIES = 3;
+	private static final int DEFAULT_RETRY_TIMEOUT = 1000;
+	private static final int DEFAULT_EDNS_PAYLOADSIZE = 1280;
+	private static final int DEFAULT_UDPSIZE = 512;
+	private static final int MAX_OUTSTANDING = 0xC000;
+	private static final int TCP_THREADS = 4;
+
+	private static final Log log = LogFactory.getLog(AsyncDNSClient.class);
+
+	private final TransportLayer transportLayer;
+	private volatile InetSocketAddress address;
+	private final DatagramSocket[] sockets;
+	private final ConcurrentHashMap<Integer, Query> outstanding = new ConcurrentHashMap<Integer, Query>();
+	private final DelayQueue<Query> retransmits = new DelayQueue<Query>();
+	private final AtomicInteger nextSocket = new AtomicInteger();
+	private final SecureRandom random = new SecureRandom();
+	private final ThreadPoolExecutor tcpPool;
+	private final Thread retransmitter;
+	private volatile boolean running = true;
+
+	private Cache cache;
+	private boolean tcpFlag = false;
+	private boolean ignoreTruncation;
+	private OPTRecord queryOPT;
+	private TSIG tsig;
+	private int retries = DEFAULT_RETRIES;
+	private long retryTimeout = DEFAULT_RETRY_TIMEOUT;
+	private long timeoutValue = 10 * 1000;
+
+	/**
+	 * One query on its way: the Future handed to the caller, and the entry
+	 * in the retransmit queue.
+	 */
+	private final class Query implements Future<Message>, Delayed {
+		final Message query;
+		final int originalID;
+		final ResolverListener listener;
+		DatagramSocket socket;
+		int id = -1;
+		byte[] out;
+		long end;
+		/* Only changed by the thread that (re)sends the query */
+		int attempts;
+		long timeout;
+		volatile long deadline;
+		/* Guarded by this */
+		private boolean done;
+		private boolean cancelled;
+		private Message response;
+		private Exception error;
+
+		Query(Message query, int originalID, ResolverListener listener) {
+			this.query = query;
+			this.originalID = originalID;
+			this.listener = listener;
+			this.end = System.currentTimeMillis() + timeoutValue;
+		}
+
+		void complete(Message m, Exception e) {
+			complete(m, e, true);
+		}
+
+		/*
+		 * fromNetwork: m came from a server.  An answer built from the
+		 * cache must not go back into it, that would renew its TTL.
+		 */
+		void complete(Message m, Exception e, boolean fromNetwork) {
+			synchronized (this) {
+				if (done)
+					return;
+				done = true;
+				response = m;
+				error = e;
+				notifyAll();
+			}
+			if (id >= 0)
+				outstanding.remove(new Integer(id), this);
+			if (m != null) {
+				m.getHeader().setID(originalID);
+				if (fromNetwork && cache != null && tsig == null)
+					cache.addMessage(m);
+			}
+			if (listener == null)
+				return;
+			if (m != null)
+				listener.receiveMessage(this, m);
+			else
+				listener.handleException(this, e);
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (this) {
+				if (done)
+					return false;
+				cancelled = true;
+			}
+			complete(null, new CancellationException());
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		public synchronized Message get() throws InterruptedException, ExecutionException {
+			while (!done)
+				wait();
+			return result();
+		}
+
+		public synchronized Message get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			long end = System.currentTimeMillis() + unit.toMillis(timeout);
+			long wait;
+			while (!done) {
+				if ((wait = end - System.currentTimeMillis()) <= 0)
+					throw new TimeoutException();
+				wait(wait);
+			}
+			return result();
+		}
+
+		private Message result() throws ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (error != null)
+				throw new ExecutionException(error);
+			return response;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((Query) o).deadline;
+			return (deadline < other) ? -1 : (deadline == other) ? 0 : 1;
+		}
+	}
+
+	/**
+	 * Creates a resolver that sends its queries to the given server over
+	 * the given number of sockets.
+	 */
+	public AsyncDNSClient(TransportLayer transportLayer, InetSocketAddress address, int nsockets)
+			throws IOException {
+		this.transportLayer = transportLayer;
+		this.address = address;
+		UDPClient.useTransportLayer(transportLayer);
+		sockets = new DatagramSocket[Math.max(1, nsockets)];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = new DatagramSocket();
+			/* Lets the receivers notice close() */
+			sockets[i].setSoTimeout(1000);
+		}
+		tcpPool = new ThreadPoolExecutor(TCP_THREADS, TCP_THREADS,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue());
+		for (int i = 0; i < sockets.length; i++) {
+			final DatagramSocket sock = sockets[i];
+			Thread t = new Thread(new Runnable() {
+				public void run() {receive(sock);}});
+			t.setName("AsyncDNSClient receiver " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		retransmitter = new Thread(new Runnable() {
+			public void run() {retransmit();}});
+		retransmitter.setName("AsyncDNSClient retransmitter");
+		retransmitter.setDaemon(true);
+		retransmitter.start();
+	}
+
+	public AsyncDNSClient(TransportLayer transportLayer, InetSocketAddress address)
+			throws IOException {
+		this(transportLayer, address, DEFAULT_SOCKETS);
+	}
+
+	/**
+	 * Sets the Cache consulted before queries are sent, and filled with
+	 * their responses. Null disables caching.
+	 */
+	public void setCache(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets how often a query is sent again before it fails, and how long
+	 * to wait for the first response; each retry waits twice as long.
+	 */
+	public void setRetries(int retries, int retryTimeoutMillis) {
+		this.retries = Math.max(0, retries);
+		this.retryTimeout = Math.max(1, retryTimeoutMillis);
+	}
+
+	public void setPort(int port) {
+		address = new InetSocketAddress(address.getAddress(), port);
+	}
+
+	public void setTCP(boolean flag) {
+		tcpFlag = flag;
+	}
+
+	public void setIgnoreTruncation(boolean flag) {
+		ignoreTruncation = flag;
+	}
+
+	public void setEDNS(int level) {
+		setEDNS(level, 0, 0, null);
+	}
+
+	public void setEDNS(int level, int payloadSize, int flags, List options) {
+		if (level != 0 && level != -1)
+			throw new IllegalArgumentException("invalid EDNS level - " +
+					"must be 0 or -1");
+		if (level == -1) {
+			queryOPT = null;
+			return;
+		}
+		if (payloadSize == 0)
+			payloadSize = DEFAULT_EDNS_PAYLOADSIZE;
+		queryOPT = new OPTRecord(payloadSize, 0, level, flags, options);
+	}
+
+	public void setTSIGKey(TSIG key) {
+		tsig = key;
+	}
+
+	public void setTimeout(int secs, int msecs) {
+		timeoutValue = (long) secs * 1000 + msecs;
+	}
+
+	public void setTimeout(int secs) {
+		setTimeout(secs, 0);
+	}
+
+	public long getTimeout() {
+		return timeoutValue;
+	}
+
+	/**
+	 * Sends a query and waits for its response.
+	 */
+	public Message send(Message query) throws IOException {
+		Future<Message> f = sendAsync(query);
+		try {
+			return f.get();
+		}
+		catch (InterruptedException e) {
+			f.cancel(false);
+			throw new InterruptedIOException("interrupted");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			IOException ioe = new IOException(e.getCause().toString());
+			ioe.initCause(e.getCause());
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Sends a query without waiting.
+	 * @return The Future of the response
+	 */
+	public Future<Message> sendAsync(Message query) {
+		return start(query, null);
+	}
+
+	/**
+	 * Sends a query without waiting. The listener is called from the
+	 * resolver's own threads and should return quickly.
+	 * @return The identifier passed to the listener, which is also the
+	 * Future of the response
+	 */
+	public Object sendAsync(Message query, ResolverListener listener) {
+		return start(query, listener);
+	}
+
+	private Query start(Message query, ResolverListener listener) {
+		Message q = (Message) query.clone();
+		if (queryOPT != null && q.getOPT() == null)
+			q.addRecord(queryOPT, Section.ADDITIONAL);
+		Query qr = new Query(q, query.getHeader().getID(), listener);
+		if (!running) {
+			qr.complete(null, new IOException("resolver closed"));
+			return qr;
+		}
+		Message cached = fromCache(q);
+		if (cached != null) {
+			qr.complete(cached, null, false);
+			return qr;
+		}
+		if (tcpFlag) {
+			sendTCP(qr);
+			return qr;
+		}
+		if (outstanding.size() >= MAX_OUTSTANDING) {
+			qr.complete(null, new IOException("too many outstanding queries"));
+			return qr;
+		}
+		Integer key;
+		do {
+			qr.id = random.nextInt(0x10000);
+			key = new Integer(qr.id);
+		} while (outstanding.putIfAbsent(key, qr) != null);
+		qr.out = render(qr);
+		if (qr.out.length > udpSize(q)) {
+			outstanding.remove(key, qr);
+			sendTCP(qr);
+			return qr;
+		}
+		qr.socket = sockets[(nextSocket.getAndIncrement() & 0x7FFFFFFF) % sockets.length];
+		qr.timeout = retryTimeout;
+		qr.deadline = System.currentTimeMillis() + Math.min(qr.timeout, timeoutValue);
+		retransmits.add(qr);
+		transmit(qr);
+		return qr;
+	}
+
+	private byte[] render(Query qr) {
+		qr.query.getHeader().setID(qr.id);
+		if (tsig != null)
+			tsig.apply(qr.query, null);
+		return qr.query.toWire(Message.MAXLENGTH);
+	}
+
+	private static int udpSize(Message query) {
+		OPTRecord opt = query.getOPT();
+		return (opt == null) ? DEFAULT_UDPSIZE : opt.getPayloadSize();
+	}
+
+	private void transmit(Query qr) {
+		InetSocketAddress a = address;
+		try {
+			qr.socket.send(new DatagramPacket(qr.out, qr.out.length,
+					a.getAddress(), a.getPort()));
+		}
+		catch (IOException e) {
+			/* The retransmitter will try again */
+			log.debug("send: " + e);
+		}
+	}
+
+	private void sendTCP(final Query qr) {
+		tcpPool.execute(new Runnable() {
+			public void run() {
+				try {
+					if (qr.out == null) {
+						qr.id = random.nextInt(0x10000);
+						qr.out = render(qr);
+					}
+					byte[] in = TCPClient.sendrecv(transportLayer, null, address,
+							qr.out, qr.end);
+					Message response = new Message(in);
+					if (response.getHeader().getID() != qr.query.getHeader().getID())
+						throw new IOException("invalid message id");
+					verify(qr, response, in);
+					qr.complete(response, null);
+				}
+				catch (IOException e) {
+					qr.complete(null, e);
+				}
+			}});
+	}
+
+	private void verify(Query qr, Message response, byte[] in) {
+		if (tsig == null)
+			return;
+		int error = tsig.verify(response, in, qr.query.getTSIG());
+		if (error != Rcode.NOERROR)
+			log.debug("TSIG verify: " + Rcode.string(error));
+	}
+
+	/**
+	 * Reads responses from one socket and completes the queries they
+	 * answer. Anything that does not answer a query sent on this socket,
+	 * from the server, with the same question, is dropped.
+	 */
+	private void receive(DatagramSocket sock) {
+		byte[] buf = new byte[Message.MAXLENGTH];
+		DatagramPacket dp = new DatagramPacket(buf, buf.length);
+		while (running) {
+			dp.setLength(buf.length);
+			try {
+				sock.receive(dp);
+			}
+			catch (InterruptedIOException e) {
+				continue;
+			}
+			catch (IOException e) {
+				if (running)
+					log.debug("receive: " + e);
+				continue;
+			}
+			int length = dp.getLength();
+			if (length < Header.LENGTH)
+				continue;
+			int id = ((buf[0] & 0xFF) << 8) | (buf[1] & 0xFF);
+			Query qr = outstanding.get(new Integer(id));
+			if (qr == null || qr.socket != sock)
+				continue;
+			InetSocketAddress a = address;
+			if (dp.getPort() != a.getPort() || !a.getAddress().equals(dp.getAddress()))
+				continue;
+			byte[] in = new byte[length];
+			System.arraycopy(buf, 0, in, 0, length);
+			Message response;
+			try {
+				response = new Message(in);
+			}
+			catch (IOException e) {
+				continue;
+			}
+			Record question = qr.query.getQuestion();
+			if (question != null && !question.equals(response.getQuestion()))
+				continue;
+			if (!outstanding.remove(new Integer(id), qr))
+				continue;
+			verify(qr, response, in);
+			if (!ignoreTruncation && response.getHeader().getFlag(Flags.TC)) {
+				sendTCP(qr);
+				continue;
+			}
+			qr.complete(response, null);
+		}
+	}
+
+	/**
+	 * Sends queries again when their timeout passes, doubling it each time,
+	 * and fails them after the last retry or the overall timeout.
+	 */
+	private void retransmit() {
+		while (running) {
+			Query qr;
+			try {
+				qr = (Query) retransmits.poll(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			if (qr == null || qr.isDone() || outstanding.get(new Integer(qr.id)) != qr)
+				continue;
+			long now = System.currentTimeMillis();
+			if (qr.attempts >= retries || now >= qr.end) {
+				qr.complete(null, new SocketTimeoutException("timed out"));
+				continue;
+			}
+			qr.attempts++;
+			qr.timeout *= 2;
+			qr.deadline = now + Math.min(qr.timeout, qr.end - now);
+			retransmits.add(qr);
+			transmit(qr);
+		}
+	}
+
+	/**
+	 * Builds a response to a plain query from the cache, if it holds an
+	 * answer, a missing name or a missing type for the question.
+	 */
+	private Message fromCache(Message query) {
+		Cache c = cache;
+		Record question = query.getQuestion();
+		if (c == null || tsig != null || question == null ||
+				query.getHeader().getOpcode() != Opcode.QUERY)
+			return null;
+		SetResponse sr = c.lookupRecords(question.getName(), question.getType(),
+				Credibility.NORMAL);
+		if (!sr.isSuccessful() && !sr.isNXDOMAIN() && !sr.isNXRRSET())
+			return null;
+		Message response = new Message(query.getHeader().getID());
+		Header header = response.getHeader();
+		header.setFlag(Flags.QR);
+		header.setFlag(Flags.RA);
+		if (query.getHeader().getFlag(Flags.RD))
+			header.setFlag(Flags.RD);
+		response.addRecord(question, Section.QUESTION);
+		if (sr.isNXDOMAIN())
+			header.setRcode(Rcode.NXDOMAIN);
+		if (sr.isSuccessful()) {
+			RRset[] answers = sr.answers();
+			for (int i = 0; i < answers.length; i++) {
+				Iterator it = answers[i].rrs();
+				while (it.hasNext())
+					response.addRecord((Record) it.next(), Section.ANSWER);
+				it = answers[i].sigs();
+				while (it.hasNext())
+					response.addRecord((Record) it.next(), Section.ANSWER);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Number of queries sent and not answered yet.
+	 */
+	public int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Closes the sockets and fails the queries still outstanding.
+	 */
+	public void close() {
+		running = false;
+		retransmitter.interrupt();
+		for (int i = 0; i < sockets.length; i++)
+			sockets[i].close();
+		tcpPool.shutdown();
+		Iterator<Query> it = outstanding.values().iterator();
+		while (it.hasNext())
+			it.next().complete(null, new IOException("resolver closed"));
+	}
+}
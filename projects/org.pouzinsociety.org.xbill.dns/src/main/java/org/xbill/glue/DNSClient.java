@@ -6,6 +6,10 @@ import java.util.*;
 import java.io.*;
 import jnode.net.*;
 import java.net.UnknownHostException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jnode.net.TransportLayer;
 import org.xbill.DNS.Flags;
@@ -17,7 +21,6 @@ import org.xbill.DNS.Opcode;
 import org.xbill.DNS.Options;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
-import org.xbill.DNS.ResolveThread;
 import org.xbill.DNS.Resolver;
 import org.xbill.DNS.ResolverConfig;
 import org.xbill.DNS.ResolverListener;
@@ -65,6 +68,10 @@ private static final short DEFAULT_UDPSIZE = 512;
 private static String defaultResolver = "localhost";
 private static int uniqueID = 0;
 
+/* Shared by all clients, so that sendAsync does not start a thread */
+private static final int ASYNC_THREADS = 8;
+private static ThreadPoolExecutor asyncPool;
+
 /**
  * Creates a SimpleResolver that will query the specified host 
  * @exception UnknownHostException Failure occurred while finding the host
@@ -195,7 +202,7 @@ setTimeout(int secs) {
 	setTimeout(secs, 0);
 }
 
-long
+public long
 getTimeout() {
 	return timeoutValue;
 }
@@ -334,20 +341,39 @@ sendAsync(final Message query, final ResolverListener listener) {
 	synchronized (this) {
 		id = new Integer(uniqueID++);
 	}
-	Record question = query.getQuestion();
-	String qname;
-	if (question != null)
-		qname = question.getName().toString();
-	else
-		qname = "(none)";
-	String name = this.getClass() + ": " + qname;
-	Thread thread = new ResolveThread(this, query, id, listener);
-	thread.setName(name);
-	thread.setDaemon(true);
-	thread.start();
+	getAsyncPool().execute(new Runnable() {
+		public void
+		run() {
+			try {
+				Message response = send(query);
+				listener.receiveMessage(id, response);
+			}
+			catch (Exception e) {
+				listener.handleException(id, e);
+			}
+		}
+	});
 	return id;
 }
 
+private static synchronized ThreadPoolExecutor
+getAsyncPool() {
+	if (asyncPool == null) {
+		asyncPool = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS,
+						   60, TimeUnit.SECONDS,
+						   new LinkedBlockingQueue(),
+						   new ThreadFactory() {
+			public Thread
+			newThread(Runnable r) {
+				Thread t = new Thread(r, "DNSClient async");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	return asyncPool;
+}
+
 private Message
 sendAXFR(Message query) throws IOException {
 	Name qname = query.getQuestion().getName();
@@ -4,18 +4,30 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,11 +45,15 @@ import org.xbill.DNS.Master;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.NameTooLongException;
+import org.xbill.DNS.NameTree;
+import org.xbill.DNS.NSRecord;
 import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.QueryDecoder;
 import org.xbill.DNS.Opcode;
 import org.xbill.DNS.RRset;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
 import org.xbill.DNS.SetResponse;
 import org.xbill.DNS.TSIG;
@@ -45,11 +61,13 @@ import org.xbill.DNS.TSIGRecord;
 import org.xbill.DNS.Type;
 import org.xbill.DNS.Zone;
 import org.xbill.DNS.ZoneTransferException;
+import org.xbill.DNS.ZoneTransferIn;
 import org.xbill.glue.DNSServer;
 
 import jnode.net.DatagramPacket;
 import jnode.net.DatagramSocket;
 import jnode.net.InetAddress;
+import jnode.net.InetSocketAddress;
 import jnode.net.ServerSocket;
 import jnode.net.Socket;
 
@@ -59,9 +77,17 @@ import jnode.net.Socket;
 public class DNSServer {
 	static final int FLAG_DNSSECOK = 1;
 	static final int FLAG_SIGONLY = 2;
+	/** Largest query received over UDP, the payload size advertised in our OPT */
+	static final int UDP_MAX_QUERY = 4096;
+	static final int IXFR_MESSAGE_RECORDS = 64;
+	static final int NOTIFY_TRIES = 3;
+	static final int NOTIFY_TIMEOUT = 2000;
+	static final int DNS_PORT = 53;
 
-	private Map caches = null;
-	private Map znames = null;
+	private ConcurrentHashMap caches = null;
+	private ConcurrentHashMap znames = null;
+	/* The zones by origin, for findBestZone; rebuilt when a zone is added */
+	private volatile NameTree zoneTree = new NameTree(Collections.EMPTY_MAP);
 	private Map TSIGs = null;
 	private Map serverInterfaces = null;
 	
@@ -70,14 +96,36 @@ public class DNSServer {
 	private String dnsConfFile = null;
 	private String dnsCacheFile = null;
 	private String dnsPrimaryZoneFile = null;
+	private AnswerCache answerCache = new AnswerCache(10000);
+	private int udpReceivers = 1;
+	private int udpWorkers = 0;
+	private int udpBatch = 16;
+	private int udpQueue = 64;
+	private ThreadPoolExecutor udpPool = null;
+	private int tcpMaxConnections = 64;
+	private int tcpIdleTimeout = 30000;
+	private int tcpWorkers = 4;
+	private int tcpPipeline = 16;
+	private final AtomicInteger tcpConnections = new AtomicInteger();
+	private ThreadPoolExecutor tcpReaders = null;
+	private ThreadPoolExecutor tcpPool = null;
+	private final ThreadLocal decoders = new ThreadLocal() {
+		protected Object initialValue() {
+			return new QueryDecoder();
+		}
+	};
+	private ConcurrentHashMap secondaries = new ConcurrentHashMap();
+	private ConcurrentHashMap refreshing = new ConcurrentHashMap();
+	private List notifyTargets = new ArrayList();
+	private int journalSize = 100;
 
 	
 	private static final Log log = LogFactory.getLog(DNSServer.class);
 	
 	public DNSServer(){
 		log.debug("Created instance of the DNS server.");
-		caches = new HashMap();
-		znames = new HashMap();
+		caches = new ConcurrentHashMap();
+		znames = new ConcurrentHashMap();
 		TSIGs = new HashMap();
 		serverInterfaces = new HashMap();
 	}
@@ -105,6 +153,97 @@ public class DNSServer {
 		this.dnsPrimaryZoneFile = dnsPrimaryZoneFile;
 	}
 	
+	/**
+	 * Sets the number of rendered responses kept, 0 disables the answer cache.
+	 */
+	public void setAnswerCacheSize(int size) {
+		answerCache = (size > 0) ? new AnswerCache(size) : null;
+	}
+
+	public AnswerCache getAnswerCache() {
+		return answerCache;
+	}
+
+	/**
+	 * Sets the number of sockets, each with its own receiver thread, bound
+	 * to every UDP address.  More than one uses SO_REUSEPORT.
+	 */
+	public void setUdpReceivers(int udpReceivers) {
+		this.udpReceivers = Math.max(1, udpReceivers);
+	}
+
+	/**
+	 * Sets the number of threads answering UDP queries, shared by all
+	 * receivers.  With 0, each receiver answers its own queries.
+	 */
+	public void setUdpWorkers(int udpWorkers) {
+		this.udpWorkers = Math.max(0, udpWorkers);
+	}
+
+	/**
+	 * Sets the maximum number of queries received, and replies sent, at once.
+	 */
+	public void setUdpBatch(int udpBatch) {
+		this.udpBatch = Math.max(1, udpBatch);
+	}
+
+	/**
+	 * Sets the number of batches a receiver may have waiting for a worker.
+	 */
+	public void setUdpQueue(int udpQueue) {
+		this.udpQueue = Math.max(1, udpQueue);
+	}
+
+	/**
+	 * Sets the maximum number of open TCP connections; more are refused.
+	 */
+	public void setTcpMaxConnections(int tcpMaxConnections) {
+		this.tcpMaxConnections = Math.max(1, tcpMaxConnections);
+	}
+
+	/**
+	 * Sets the time in ms after which a TCP connection without queries
+	 * is closed.
+	 */
+	public void setTcpIdleTimeout(int tcpIdleTimeout) {
+		this.tcpIdleTimeout = Math.max(1, tcpIdleTimeout);
+	}
+
+	/**
+	 * Sets the number of threads answering TCP queries, shared by all
+	 * connections.  With 0, each connection answers its queries in order.
+	 */
+	public void setTcpWorkers(int tcpWorkers) {
+		this.tcpWorkers = Math.max(0, tcpWorkers);
+	}
+
+	/**
+	 * Sets the number of queries a TCP connection may have waiting for an
+	 * answer.  Beyond that, the connection is not read until an answer
+	 * has gone out.
+	 */
+	public void setTcpPipeline(int tcpPipeline) {
+		this.tcpPipeline = Math.max(1, tcpPipeline);
+	}
+
+	/**
+	 * Number of serial changes kept per zone to answer IXFR requests;
+	 * older secondaries get a full AXFR.
+	 */
+	public void setJournalSize(int journalSize) {
+		this.journalSize = journalSize;
+	}
+
+	/**
+	 * Also send NOTIFY messages to this host, besides the name servers
+	 * of the zone.
+	 */
+	public void addNotifyTarget(String hostname) {
+		synchronized (notifyTargets) {
+			notifyTargets.add(hostname);
+		}
+	}
+
 	public void setCache(String dnsCacheFile) {
 		try {
 			Cache cache = new Cache(dnsCacheFile);
@@ -147,30 +286,56 @@ public class DNSServer {
 	}
 	
 	public void addPrimaryZone(String zname, String zoneFileIn) throws IOException {
+		addPrimaryZone(zname,
+				new ByteArrayInputStream(zoneFileIn.getBytes("UTF-8")));
+	}
+
+	/**
+	 * Adds a primary zone read from a master file on disk.
+	 */
+	public void addPrimaryZoneFile(String zname, String filename) throws IOException {
+		InputStream is = new FileInputStream(filename);
+		try {
+			addPrimaryZone(zname, is);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Adds a primary zone read from a master file.  Records go into the
+	 * zone as they are parsed, so the file is never held in memory.
+	 */
+	public void addPrimaryZone(String zname, InputStream is) throws IOException {
 		Name origin = null;
 		if (zname != null)
 			origin = Name.fromString(zname, Name.root);
-		
-		// All this to avoid Zone reading a file.
-		ArrayList recordList = new ArrayList();
-		InputStream is = new ByteArrayInputStream(zoneFileIn.getBytes("UTF-8"));
-		Master m = new Master(is);
-		Record record;
-		while ((record = m.nextRecord()) != null) {
-			log.info("Record: " + record.toString());
-			recordList.add(record);
-		}
-		Record[] recArray = (Record[])recordList.toArray();
-		
-		
-		Zone newzone = new Zone(origin, recArray);
-		znames.put(newzone.getOrigin(), newzone);
+
+		long start = System.currentTimeMillis();
+		Zone newzone = new Zone(origin, new Master(is, origin));
+		log.info("Loaded zone " + origin + " serial " +
+				newzone.getSOA().getSerial() + " in " +
+				(System.currentTimeMillis() - start) + "ms");
+		newzone.setJournalSize(journalSize);
+		Zone old = putZone(newzone.getOrigin(), newzone);
+		if (answerCache != null)
+			answerCache.clear();
+		if (old != null) {
+			newzone.inheritJournal(old);
+			if (old.getSOA().getSerial() != newzone.getSOA().getSerial())
+				notifyZone(newzone.getOrigin());
+		}
 	}
 
 	public void addSecondaryZone(String zone, String remote) throws IOException, ZoneTransferException {
 		Name zname = Name.fromString(zone, Name.root);
 		Zone newzone = new Zone(zname, DClass.IN, transportLayer, remote);
-		znames.put(zname, newzone);
+		newzone.setJournalSize(journalSize);
+		putZone(zname, newzone);
+		secondaries.put(zname, remote);
+		if (answerCache != null)
+			answerCache.clear();
 	}
 
 	public void addTSIG(String algstr, String namestr, String key) throws IOException {
@@ -182,24 +347,25 @@ public class DNSServer {
 		Cache c = (Cache) caches.get(new Integer(dclass));
 		if (c == null) {
 			c = new Cache(dclass);
-			caches.put(new Integer(dclass), c);
+			Cache old = (Cache) caches.putIfAbsent(new Integer(dclass), c);
+			if (old != null)
+				c = old;
 		}
 		return c;
 	}
 
+	/**
+	 * Adds or replaces a zone.
+	 * @return The zone replaced, if any
+	 */
+	private synchronized Zone putZone(Name origin, Zone zone) {
+		Zone old = (Zone) znames.put(origin, zone);
+		zoneTree = new NameTree(znames);
+		return old;
+	}
+
 	public Zone findBestZone(Name name) {
-		Zone foundzone = null;
-		foundzone = (Zone) znames.get(name);
-		if (foundzone != null)
-			return foundzone;
-		int labels = name.labels();
-		for (int i = 1; i < labels; i++) {
-			Name tname = new Name(name, i);
-			foundzone = (Zone) znames.get(tname);
-			if (foundzone != null)
-				return foundzone;
-		}
-		return null;
+		return (Zone) zoneTree.findBest(name);
 	}
 	
 	public RRset findExactMatch(Name name, int type, int dclass, boolean glue) {
@@ -382,45 +548,343 @@ public class DNSServer {
 		if (zone == null)
 			return errorMessage(query, Rcode.REFUSED);
 		Iterator it = zone.AXFR();
-		try {
-			DataOutputStream dataOut;
-			dataOut = new DataOutputStream(s.getOutputStream());
-			int id = query.getHeader().getID();
-			while (it.hasNext()) {
-				RRset rrset = (RRset) it.next();
-				Message response = new Message(id);
-				Header header = response.getHeader();
-				header.setFlag(Flags.QR);
-				header.setFlag(Flags.AA);
-				addRRset(rrset.getName(), response, rrset,
-						Section.ANSWER, FLAG_DNSSECOK);
-				if (tsig != null) {
-					tsig.applyStream(response, qtsig, first);
-					qtsig = response.getTSIG();
+		/* Other answers on this connection wait until the transfer is done */
+		synchronized (s) {
+			try {
+				DataOutputStream dataOut;
+				dataOut = new DataOutputStream(s.getOutputStream());
+				int id = query.getHeader().getID();
+				while (it.hasNext()) {
+					RRset rrset = (RRset) it.next();
+					Message response = new Message(id);
+					Header header = response.getHeader();
+					header.setFlag(Flags.QR);
+					header.setFlag(Flags.AA);
+					addRRset(rrset.getName(), response, rrset,
+							Section.ANSWER, FLAG_DNSSECOK);
+					if (tsig != null) {
+						tsig.applyStream(response, qtsig, first);
+						qtsig = response.getTSIG();
+					}
+					first = false;
+					byte [] out = response.toWire();
+					dataOut.writeShort(out.length);
+					dataOut.write(out);
 				}
-				first = false;
-				byte [] out = response.toWire();
-				dataOut.writeShort(out.length);
-				dataOut.write(out);
+			}
+			catch (IOException ex) {
+				log.error("AXFR failed");
 			}
 		}
-		catch (IOException ex) {
-			log.error("AXFR failed");
+		/* The connection stays open for the queries pipelined behind it */
+		return null;
+	}
+
+	/**
+	 * Answers an IXFR request (RFC 1995) from the zone's journal.  Over UDP
+	 * only the current SOA is returned, which tells the client to retry
+	 * over TCP if it is out of date.  A client older than the journal gets
+	 * a full AXFR.
+	 */
+	byte [] doIXFR(Name name, Message query, Message response, int maxLength,
+			TSIG tsig, TSIGRecord qtsig, Socket s) {
+		Zone zone = (Zone) znames.get(name);
+		if (zone == null)
+			return errorMessage(query, Rcode.REFUSED);
+		Record [] auth = query.getSectionArray(Section.AUTHORITY);
+		if (auth.length != 1 || !(auth[0] instanceof SOARecord))
+			return errorMessage(query, Rcode.FORMERR);
+		long serial = ((SOARecord) auth[0]).getSerial();
+
+		SOARecord soa = zone.getSOA();
+		List deltas = zone.getIXFR(serial);
+		if (deltas != null && deltas.size() > 0) {
+			ZoneTransferIn.Delta last;
+			last = (ZoneTransferIn.Delta) deltas.get(deltas.size() - 1);
+			soa = (SOARecord) last.adds.get(0);
 		}
-		try {
-			s.close();
+		if (deltas == null && s != null)
+			return doAXFR(name, query, tsig, qtsig, s);
+		/* A client that is current gets only the SOA (RFC 1995 section 2) */
+		if (s == null || deltas == null || deltas.isEmpty()) {
+			response.getHeader().setFlag(Flags.AA);
+			response.addRecord(soa, Section.ANSWER);
+			response.setTSIG(tsig, Rcode.NOERROR, qtsig);
+			return response.toWire(maxLength);
 		}
-		catch (IOException ex) {
+
+		List records = new ArrayList();
+		records.add(soa);
+		for (Iterator it = deltas.iterator(); it.hasNext(); ) {
+			ZoneTransferIn.Delta delta = (ZoneTransferIn.Delta) it.next();
+			records.addAll(delta.deletes);
+			records.addAll(delta.adds);
+		}
+		records.add(soa);
+
+		boolean first = true;
+		synchronized (s) {
+			try {
+				DataOutputStream dataOut;
+				dataOut = new DataOutputStream(s.getOutputStream());
+				int id = query.getHeader().getID();
+				Iterator it = records.iterator();
+				while (it.hasNext()) {
+					Message msg = new Message(id);
+					Header header = msg.getHeader();
+					header.setFlag(Flags.QR);
+					header.setFlag(Flags.AA);
+					if (first)
+						msg.addRecord(query.getQuestion(), Section.QUESTION);
+					for (int i = 0; i < IXFR_MESSAGE_RECORDS && it.hasNext(); i++)
+						msg.addRecord((Record) it.next(), Section.ANSWER);
+					if (tsig != null) {
+						tsig.applyStream(msg, qtsig, first);
+						qtsig = msg.getTSIG();
+					}
+					first = false;
+					byte [] out = msg.toWire();
+					dataOut.writeShort(out.length);
+					dataOut.write(out);
+				}
+				dataOut.flush();
+			}
+			catch (IOException ex) {
+				log.error("IXFR failed");
+			}
 		}
 		return null;
 	}
 
+	/**
+	 * Answers a NOTIFY (RFC 1996) for one of our secondary zones, and
+	 * fetches the changes from the primary in the background.  Only the
+	 * primary the zone is transferred from may send it (section 3.10).
+	 */
+	byte [] doNOTIFY(Message query, TSIG tsig, TSIGRecord qtsig,
+			InetAddress from) {
+		Record question = query.getQuestion();
+		if (question == null || question.getType() != Type.SOA)
+			return errorMessage(query, Rcode.FORMERR);
+		Name name = question.getName();
+		String remote = (String) secondaries.get(name);
+		if (remote == null)
+			return errorMessage(query, Rcode.NOTAUTH);
+		if (!isAddressOf(from, remote)) {
+			log.debug(name + ": NOTIFY from " + from + " is not from " +
+					remote + ", refused");
+			return errorMessage(query, Rcode.REFUSED);
+		}
+		refreshZone(name, remote);
+
+		Message response = new Message(query.getHeader().getID());
+		Header header = response.getHeader();
+		header.setOpcode(Opcode.NOTIFY);
+		header.setFlag(Flags.QR);
+		header.setFlag(Flags.AA);
+		response.addRecord(question, Section.QUESTION);
+		response.setTSIG(tsig, Rcode.NOERROR, qtsig);
+		return response.toWire();
+	}
+
+	private static boolean isAddressOf(InetAddress addr, String host) {
+		if (addr == null)
+			return false;
+		try {
+			InetAddress [] addrs = InetAddress.getAllByName(host);
+			for (int i = 0; i < addrs.length; i++)
+				if (addr.equals(addrs[i]))
+					return true;
+		}
+		catch (UnknownHostException e) {
+		}
+		return false;
+	}
+
+	/**
+	 * Brings a secondary zone up to date with an IXFR, falling back to
+	 * AXFR if the primary can't do one.  Only one refresh per zone runs
+	 * at a time.
+	 */
+	public void refreshZone(final Name name, final String remote) {
+		if (refreshing.putIfAbsent(name, remote) != null)
+			return;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					transferZone(name, remote);
+				}
+				finally {
+					refreshing.remove(name);
+				}
+			}});
+		t.start();
+	}
+
+	private void transferZone(Name name, String remote) {
+		Zone zone = (Zone) znames.get(name);
+		if (zone == null)
+			return;
+		try {
+			ZoneTransferIn xfrin = ZoneTransferIn.newIXFR(name,
+					zone.getSOA().getSerial(), true, transportLayer,
+					remote, null);
+			xfrin.setDClass(zone.getDClass());
+			List result = xfrin.run();
+			if (xfrin.isCurrent()) {
+				log.debug(name + ": up to date");
+				return;
+			}
+			if (xfrin.isIXFR()) {
+				zone.applyIXFR(result);
+			}
+			else {
+				Record [] records = (Record []) result.toArray(new Record[result.size()]);
+				Zone newzone = new Zone(name, records);
+				newzone.setJournalSize(journalSize);
+				newzone.inheritJournal(zone);
+				putZone(name, newzone);
+				zone = newzone;
+			}
+			if (answerCache != null)
+				answerCache.clear();
+			log.info(name + ": transferred serial " +
+					zone.getSOA().getSerial() + " from " + remote);
+		}
+		catch (IOException e) {
+			log.error(name + ": transfer from " + remote + " failed: " + e);
+		}
+		catch (ZoneTransferException e) {
+			log.error(name + ": transfer from " + remote + " failed: " + e);
+		}
+		catch (IllegalArgumentException e) {
+			log.error(name + ": transfer from " + remote + " failed: " + e);
+		}
+	}
+
+	/**
+	 * Tells the secondaries of a zone that it changed (RFC 1996), so they
+	 * transfer it now rather than when their refresh timer runs out.  The
+	 * name servers of the zone other than the primary itself are notified,
+	 * as well as any target added with {@link #addNotifyTarget}.
+	 */
+	public void notifyZone(final Name name) {
+		final Zone zone = (Zone) znames.get(name);
+		if (zone == null || secondaries.containsKey(name))
+			return;
+		final List hosts = new ArrayList();
+		Iterator it = zone.getNS().rrs();
+		while (it.hasNext()) {
+			NSRecord ns = (NSRecord) it.next();
+			if (!ns.getTarget().equals(zone.getSOA().getHost()))
+				hosts.add(ns.getTarget().toString());
+		}
+		synchronized (notifyTargets) {
+			hosts.addAll(notifyTargets);
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < hosts.size(); i++)
+					sendNotify(zone, (String) hosts.get(i));
+			}});
+		t.start();
+	}
+
+	private void sendNotify(Zone zone, String host) {
+		Record question = Record.newRecord(zone.getOrigin(), Type.SOA,
+				zone.getDClass());
+		Message notify = new Message();
+		Header header = notify.getHeader();
+		header.setOpcode(Opcode.NOTIFY);
+		header.setFlag(Flags.AA);
+		notify.addRecord(question, Section.QUESTION);
+		notify.addRecord(zone.getSOA(), Section.ANSWER);
+		byte [] out = notify.toWire();
+		for (int i = 0; i < NOTIFY_TRIES; i++) {
+			try {
+				InetSocketAddress remote = new InetSocketAddress(
+						InetAddress.getByName(host), DNS_PORT);
+				byte [] in = UDPClient.sendrecv(transportLayer, null, remote,
+						out, 512,
+						System.currentTimeMillis() + NOTIFY_TIMEOUT);
+				Message reply = new Message(in);
+				if (reply.getHeader().getID() == header.getID() &&
+						reply.getHeader().getFlag(Flags.QR))
+					return;
+			}
+			catch (IOException e) {
+				log.debug("NOTIFY " + zone.getOrigin() + " to " + host +
+						": " + e);
+			}
+		}
+		log.info("NOTIFY " + zone.getOrigin() + " to " + host + ": no answer");
+	}
+
 	/*
 	 * Note: a null return value means that the caller doesn't need to do
 	 * anything.  Currently this only happens if this is an AXFR request over
 	 * TCP.
 	 */
 	byte[] generateReply(Message query, byte [] in, int length, Socket s) throws IOException{
+		return generateReply(query, in, length, s,
+				(s != null) ? s.getInetAddress() : null, false);
+	}
+
+	private byte [] lookupAnswer(AnswerCache answers, AnswerCache.Key key, int id) {
+		byte [] cached = answers.get(key, id);
+		if (((answers.getHits() + answers.getMisses()) & 0xFFFF) == 0)
+			log.info(answers.toString());
+		return cached;
+	}
+
+	/**
+	 * Answers a query from the answer cache, reading it with a
+	 * QueryDecoder instead of parsing it into a Message.  Returns null if
+	 * the query is not a plain one or its answer is not cached; then
+	 * generateReply must be called, which won't look in the cache again.
+	 * A plain query has one question and at most an OPT record besides,
+	 * so the decoder checks everything in it that Message would, except
+	 * that the contents of EDNS options are not looked at.
+	 */
+	byte [] cachedReply(byte [] in, int length, boolean tcp) {
+		final AnswerCache answers = answerCache;
+		if (answers == null)
+			return null;
+		QueryDecoder q = (QueryDecoder) decoders.get();
+		if (!q.wrap(in, length))
+			return null;
+		if (q.getFlag(Flags.QR) || q.getOpcode() != Opcode.QUERY ||
+				q.getRcode() != Rcode.NOERROR ||
+				q.getCount(Section.QUESTION) != 1 ||
+				q.getCount(Section.ANSWER) != 0 ||
+				q.getCount(Section.AUTHORITY) != 0 ||
+				q.getCount(Section.ADDITIONAL) != (q.hasOPT() ? 1 : 0) ||
+				(q.hasOPT() && q.getEDNSVersion() > 0))
+			return null;
+		if (!Type.isRR(q.getType()) && q.getType() != Type.ANY)
+			return null;
+		int maxLength;
+		if (tcp)
+			maxLength = 65535;
+		else if (q.hasOPT())
+			maxLength = Math.max(q.getPayloadSize(), 512);
+		else
+			maxLength = 512;
+		boolean dnssecOk = q.hasOPT() &&
+				(q.getEDNSFlags() & ExtendedFlags.DO) != 0;
+		AnswerCache.Key key = AnswerCache.makeKey(in, length, maxLength,
+				dnssecOk, q.hasOPT(), q.getFlag(Flags.RD));
+		if (key == null)
+			return null;
+		return lookupAnswer(answers, key, q.getID());
+	}
+
+	/*
+	 * from: the sender of the query, if known.
+	 * lookedUp: cachedReply already looked for the answer in the cache.
+	 */
+	private byte[] generateReply(Message query, byte [] in, int length, Socket s,
+			InetAddress from, boolean lookedUp) throws IOException{
 		Header header;
 		boolean badversion = false;
 		int maxLength;
@@ -433,7 +897,8 @@ public class DNSServer {
 			return null;
 		if (header.getRcode() != Rcode.NOERROR)
 			return errorMessage(query, Rcode.FORMERR);
-		if (header.getOpcode() != Opcode.QUERY)
+		if (header.getOpcode() != Opcode.QUERY &&
+				header.getOpcode() != Opcode.NOTIFY)
 			return errorMessage(query, Rcode.NOTIMP);
 
 		Record queryRecord = query.getQuestion();
@@ -447,6 +912,9 @@ public class DNSServer {
 				return formerrMessage(in);
 		}
 
+		if (header.getOpcode() == Opcode.NOTIFY)
+			return doNOTIFY(query, tsig, queryTSIG, from);
+
 		OPTRecord queryOPT = query.getOPT();
 		if (queryOPT != null && queryOPT.getVersion() > 0)
 			badversion = true;
@@ -472,9 +940,35 @@ public class DNSServer {
 		int dclass = queryRecord.getDClass();
 		if (type == Type.AXFR && s != null)
 			return doAXFR(name, query, tsig, queryTSIG, s);
+		if (type == Type.IXFR)
+			return doIXFR(name, query, response, maxLength, tsig,
+					queryTSIG, s);
 		if (!Type.isRR(type) && type != Type.ANY)
 			return errorMessage(query, Rcode.NOTIMP);
 
+		/* Answers from a zone only change with the zone, reuse them */
+		final AnswerCache answers = answerCache;
+		AnswerCache.Key key = null;
+		Zone zone = null;
+		int version = 0;
+		int generation = 0;
+		if (answers != null && tsig == null && !badversion &&
+				header.getCount(Section.QUESTION) == 1) {
+			generation = answers.getGeneration();
+			zone = findBestZone(name);
+			if (zone != null) {
+				version = zone.getVersion();
+				key = AnswerCache.makeKey(in, length, maxLength,
+						flags == FLAG_DNSSECOK, queryOPT != null,
+						header.getFlag(Flags.RD));
+			}
+			if (key != null && !lookedUp) {
+				byte [] cached = lookupAnswer(answers, key, header.getID());
+				if (cached != null)
+					return cached;
+			}
+		}
+
 		byte rcode = addAnswer(response, name, type, dclass, 0, flags);
 		if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN)
 			return errorMessage(query, rcode);
@@ -483,13 +977,33 @@ public class DNSServer {
 
 		if (queryOPT != null) {
 			int optflags = (flags == FLAG_DNSSECOK) ? ExtendedFlags.DO : 0;
-			OPTRecord opt = new OPTRecord((short)4096, rcode, (byte)0,
+			OPTRecord opt = new OPTRecord((short)UDP_MAX_QUERY, rcode, (byte)0,
 					optflags);
 			response.addRecord(opt, Section.ADDITIONAL);
 		}
 
 		response.setTSIG(tsig, Rcode.NOERROR, queryTSIG);
-		return response.toWire(maxLength);
+		byte [] out = response.toWire(maxLength);
+		if (key != null && isFromZone(response, zone))
+			answers.put(key, out, zone, version, generation);
+		return out;
+	}
+
+	/**
+	 * Was the response built from the given zone only? Anything that came
+	 * from the cache or another zone would not be invalidated with it.
+	 */
+	private boolean isFromZone(Message response, Zone zone) {
+		for (int section = Section.ANSWER; section <= Section.ADDITIONAL; section++) {
+			Record [] records = response.getSectionArray(section);
+			for (int i = 0; i < records.length; i++) {
+				if (records[i].getType() == Type.OPT)
+					continue;
+				if (findBestZone(records[i].getName()) != zone)
+					return false;
+			}
+		}
+		return true;
 	}
 	
 	byte[] buildErrorMessage(Header header, int rcode, Record question) {
@@ -519,49 +1033,139 @@ public class DNSServer {
 				query.getQuestion());
 	}
 	
-	public void TCPclient(Socket s) {
-		try {
-			log.debug("Processing the new request");
-			int inLength;
-			DataInputStream dataIn;
-			DataOutputStream dataOut;
-			byte [] in;
-
-			InputStream is = s.getInputStream();
-			dataIn = new DataInputStream(is);
-			inLength = dataIn.readUnsignedShort();
-			log.debug("Read "+inLength+" bytes of data");
-			in = new byte[inLength];
-			dataIn.readFully(in);
-
-			Message query;
-			byte [] response = null;
+	/**
+	 * One TCP connection.  The connection stays open for as many queries
+	 * as the client sends, zone transfers included (RFC 7766).  The
+	 * connection's thread reads the queries and hands them to the TCP
+	 * workers.  Each answer is sent as soon as it is ready, so answers may
+	 * overtake each other.  At most tcpPipeline queries are outstanding per
+	 * connection (RFC 7766 section 6.2).  The connection's thread answers
+	 * zone transfers itself, so a long transfer does not hold a worker, and
+	 * it answers all queries when there are no workers.
+	 */
+	final class TCPConnection implements Runnable {
+		private final Socket s;
+		/* Queries read but not answered yet, guarded by this */
+		private int outstanding = 0;
+
+		TCPConnection(Socket s) {
+			this.s = s;
+		}
+
+		public void run() {
 			try {
-				log.debug("Parsing DNS message");
-				query = new Message(in);
-				response = generateReply(query, in, in.length, s);
-				if (response == null){
-					log.warn("No response for the query "+query.toString());
-					return;
+				s.setSoTimeout(tcpIdleTimeout);
+				DataInputStream dataIn = new DataInputStream(s.getInputStream());
+				QueryDecoder q = new QueryDecoder();
+				while (true) {
+					synchronized (this) {
+						while (outstanding >= tcpPipeline)
+							wait();
+					}
+					int hi;
+					try {
+						hi = dataIn.read();
+					}
+					catch (InterruptedIOException e) {
+						synchronized (this) {
+							if (outstanding > 0)
+								continue;
+						}
+						log.debug("TCP connection idle, closing");
+						break;
+					}
+					if (hi < 0)
+						break;
+					int inLength;
+					try {
+						inLength = (hi << 8) | dataIn.readUnsignedByte();
+					}
+					catch (InterruptedIOException e) {
+						/* The stream can't be resynchronized */
+						log.debug("TCP connection: partial length, closing");
+						break;
+					}
+					final byte [] in = new byte[inLength];
+					dataIn.readFully(in);
+					synchronized (this) {
+						outstanding++;
+					}
+					if (tcpPool == null || isTransfer(q, in)) {
+						answer(in);
+						continue;
+					}
+					tcpPool.execute(new Runnable() {
+						public void run() {answer(in);}});
 				}
-			}catch (IOException e) {
-				response = formerrMessage(in);
+				/* Let the answers still being worked on go out */
+				synchronized (this) {
+					long end = System.currentTimeMillis() + tcpIdleTimeout;
+					long wait;
+					while (outstanding > 0 &&
+					       (wait = end - System.currentTimeMillis()) > 0)
+						wait(wait);
+				}
+			}
+			catch (IOException e) {
+				log.debug("TCPConnection(" +
+						addrport(s.getLocalAddress(),
+								s.getLocalPort()) +
+								"): " + e);
+			}
+			catch (InterruptedException e) {
 			}
-			dataOut = new DataOutputStream(s.getOutputStream());
-			dataOut.writeShort(response.length);
-			dataOut.write(response);
-		}catch (IOException e) {
-			log.error("TCPclient(" +
-					addrport(s.getLocalAddress(),
-							s.getLocalPort()) +
-							"): " + e);
-		}finally {
+			finally {
+				try {
+					s.close();
+				}catch (IOException e) {}
+				tcpConnections.decrementAndGet();
+			}
+		}
+
+		private boolean isTransfer(QueryDecoder q, byte [] in) {
+			if (!q.wrap(in, in.length))
+				return false;
+			return q.getType() == Type.AXFR || q.getType() == Type.IXFR;
+		}
+
+		private void answer(byte [] in) {
 			try {
-				s.close();
-			}catch (IOException e) {}
+				byte [] response = cachedReply(in, in.length, true);
+				try {
+					if (response == null) {
+						Message query = new Message(in);
+						response = generateReply(query, in, in.length, s,
+								s.getInetAddress(), answerCache != null);
+					}
+				}
+				catch (IOException e) {
+					response = formerrMessage(in);
+				}
+				/* AXFR answers have been written already */
+				if (response == null)
+					return;
+				byte [] out = new byte[response.length + 2];
+				out[0] = (byte) (response.length >>> 8);
+				out[1] = (byte) response.length;
+				System.arraycopy(response, 0, out, 2, response.length);
+				synchronized (s) {
+					OutputStream os = s.getOutputStream();
+					os.write(out);
+					os.flush();
+				}
+			}
+			catch (IOException e) {
+				log.debug("TCPConnection: " + e);
+			}
+			finally {
+				synchronized (this) {
+					outstanding--;
+					notifyAll();
+				}
+			}
 		}
 	}
-	
+
 	public void serveTCP(InetAddress addr, int port) {
 		try {
 			ServerSocket.setSocketFactory(transportLayer.getSocketImplFactory());
@@ -570,11 +1174,16 @@ public class DNSServer {
 			while (true) {
 				log.debug("Waiting for incoming TCP requests");
 				final Socket s = sock.accept();
-				log.debug("Gor TCP request, I'm going to process it");
-				Thread t;
-				t = new Thread(new Runnable() {
-					public void run() {TCPclient(s);}});
-				t.start();
+				if (tcpConnections.incrementAndGet() > tcpMaxConnections) {
+					tcpConnections.decrementAndGet();
+					log.debug("Too many TCP connections, refusing " +
+							addrport(s.getInetAddress(), s.getPort()));
+					try {
+						s.close();
+					}catch (IOException e) {}
+					continue;
+				}
+				tcpReaders.execute(new TCPConnection(s));
 			}
 		}
 		catch (IOException e) {
@@ -583,58 +1192,150 @@ public class DNSServer {
 		}
 	}
 
+	/**
+	 * Queries received together, and the buffers to receive and answer them.
+	 * Batches are reused, so serving allocates no receive buffers.
+	 */
+	private static final class UDPBatch {
+		final DatagramPacket [] queries;
+		final DatagramPacket [] replies;
+		int count;
+
+		UDPBatch(int size) {
+			queries = new DatagramPacket[size];
+			replies = new DatagramPacket[size];
+			for (int i = 0; i < size; i++) {
+				byte [] buf = new byte[UDP_MAX_QUERY];
+				queries[i] = new DatagramPacket(buf, buf.length);
+				replies[i] = new DatagramPacket(new byte[0], 0);
+			}
+		}
+	}
+
+	/**
+	 * Answer all queries of a batch, then send the replies together.
+	 */
+	private void processUDP(DatagramSocket sock, UDPBatch batch) {
+		int n = 0;
+		for (int i = 0; i < batch.count; i++) {
+			DatagramPacket indp = batch.queries[i];
+			byte [] in = indp.getData();
+			byte [] response = cachedReply(in, indp.getLength(), false);
+			try {
+				if (response == null) {
+					Message query = new Message(in);
+					response = generateReply(query, in, indp.getLength(),
+							null, indp.getAddress(), answerCache != null);
+				}
+			}
+			catch (IOException e) {
+				response = formerrMessage(in);
+			}
+			if (response == null)
+				continue;
+			DatagramPacket outdp = batch.replies[n++];
+			outdp.setData(response);
+			outdp.setLength(response.length);
+			outdp.setAddress(indp.getAddress());
+			outdp.setPort(indp.getPort());
+		}
+		sendUDP(sock, batch.replies, n);
+	}
+
+	/**
+	 * Send the first n replies.  A reply that cannot be sent, for instance
+	 * because of an ICMP error for its destination, is skipped and the
+	 * rest are still sent.
+	 */
+	private void sendUDP(DatagramSocket sock, DatagramPacket [] replies, int n) {
+		int sent = 0;
+		while (sent < n) {
+			try {
+				sent += sock.send(replies, sent, n - sent);
+				if (sent == n)
+					break;
+				log.debug("sendUDP: reply to " +
+						replies[sent].getAddress() + " not sent");
+			}
+			catch (IOException e) {
+				log.debug("sendUDP: reply to " +
+						replies[sent].getAddress() + ": " + e);
+			}
+			sent++;
+		}
+	}
+
 	public void serveUDP(InetAddress addr, int port) {
 		try {
 			DatagramSocket.setDatagramSocketImplFactory(transportLayer.getDatagramSocketImplFactory());
-			DatagramSocket sock = new DatagramSocket(port, addr);
-			final short udpLength = 512;
-			byte [] in = new byte[udpLength];
-			DatagramPacket indp = new DatagramPacket(in, in.length);
-			DatagramPacket outdp = null;
+			DatagramSocket sock = new DatagramSocket(null);
+			if (udpReceivers > 1)
+				sock.setReusePort(true);
+			sock.bind(new InetSocketAddress(addr, port));
+
+			/*
+			 * With workers, the receiver only fills batches and hands them
+			 * over.  A batch returns to the free list once answered, so a
+			 * receiver that gets ahead of the workers blocks after udpQueue
+			 * batches instead of queueing without bound.
+			 */
+			final BlockingQueue free = new ArrayBlockingQueue(udpQueue + 1);
+			for (int i = 0; i <= (udpWorkers > 0 ? udpQueue : 0); i++)
+				free.add(new UDPBatch(udpBatch));
+			final DatagramSocket fsock = sock;
 			while (true) {
-				log.debug("Waiting for incoming UDP requests");
-				indp.setLength(in.length);
+				final UDPBatch batch = (UDPBatch) free.take();
+				for (int i = 0; i < batch.count; i++)
+					batch.queries[i].setLength(UDP_MAX_QUERY);
 				try {
-					sock.receive(indp);
-					log.debug("Gor UDP request, I'm going to process it");
+					batch.count = sock.receive(batch.queries, 0, batch.queries.length);
+					log.debug("Got " + batch.count + " UDP requests");
 				}
 				catch (InterruptedIOException e) {
+					batch.count = 0;
+					free.add(batch);
 					continue;
 				}
-				Message query;
-				byte [] response = null;
-				try {
-					query = new Message(in);
-					response = generateReply(query, in,
-							indp.getLength(),
-							null);
-					if (response == null)
-						continue;
-				}
-				catch (IOException e) {
-					response = formerrMessage(in);
-				}
-				if (outdp == null)
-					outdp = new DatagramPacket(response,
-							response.length,
-							indp.getAddress(),
-							indp.getPort());
-				else {
-					outdp.setData(response);
-					outdp.setLength(response.length);
-					outdp.setAddress(indp.getAddress());
-					outdp.setPort(indp.getPort());
+				if (udpPool == null) {
+					processUDP(sock, batch);
+					free.add(batch);
+					continue;
 				}
-				sock.send(outdp);
+				udpPool.execute(new Runnable() {
+					public void run() {
+						try {
+							processUDP(fsock, batch);
+						}
+						finally {
+							free.add(batch);
+						}
+					}});
 			}
 		}
 		catch (IOException e) {
 			log.error("serveUDP(" + addrport(addr, port) + "): " +
 					e);
 		}
+		catch (InterruptedException e) {
+			log.info("serveUDP(" + addrport(addr, port) + "): stopped");
+		}
+	}
+
+	/**
+	 * Creates the thread pools that serve TCP connections, if they have
+	 * not been created yet.
+	 */
+	synchronized void startTCPPools() {
+		if (tcpReaders == null)
+			tcpReaders = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+					60, TimeUnit.SECONDS, new SynchronousQueue());
+		if (tcpWorkers > 0 && tcpPool == null)
+			tcpPool = new ThreadPoolExecutor(tcpWorkers, tcpWorkers,
+					60, TimeUnit.SECONDS, new LinkedBlockingQueue());
 	}
 
 	public void addTCP(final InetAddress addr, final int port) {
+		startTCPPools();
 		Thread t;
 		log.debug("Starting a thread listening to "+addr.getHostAddress()+" port "+port+" for incoming TCP connections");
 		t = new Thread(new Runnable() {
@@ -644,12 +1345,19 @@ public class DNSServer {
 	}
 
 	public void addUDP(final InetAddress addr, final int port) {
-		Thread t;
-		log.debug("Starting a thread listening to "+addr.getHostAddress()+" port "+port+" for incoming UDP connections");
-		t = new Thread(new Runnable() {
-			public void run() {serveUDP(addr, port);}});
-		t.start();
-		log.debug("Thread started");
+		synchronized (this) {
+			if (udpWorkers > 0 && udpPool == null)
+				udpPool = new ThreadPoolExecutor(udpWorkers, udpWorkers,
+						60, TimeUnit.SECONDS, new LinkedBlockingQueue());
+		}
+		for (int i = 0; i < udpReceivers; i++) {
+			Thread t;
+			log.debug("Starting a thread listening to "+addr.getHostAddress()+" port "+port+" for incoming UDP connections");
+			t = new Thread(new Runnable() {
+				public void run() {serveUDP(addr, port);}});
+			t.start();
+		}
+		log.debug("Threads started");
 	}
 	
 	
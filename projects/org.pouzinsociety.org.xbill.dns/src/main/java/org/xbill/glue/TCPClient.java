@@ -7,6 +7,7 @@ import jnode.net.*;
 
 import org.jnode.net.TransportLayer;
 import org.xbill.glue.TCPClient;
+import org.xbill.DNS.Options;
 import org.xbill.DNS.utils.hexdump;
 
 public final class TCPClient {
@@ -56,12 +57,14 @@ public final class TCPClient {
 		byte[] in = new byte[inLength];
 		dataIn.readFully(in);
 		
-		System.err.println(hexdump.dump("TCP read", in));
+		if (Options.check("verbosemsg"))
+			System.err.println(hexdump.dump("TCP read", in));
 		return (in);
 	}
 
 	private void writeTCP(Socket s, byte[] out) throws IOException {
-		System.err.println(hexdump.dump("TCP write", out));
+		if (Options.check("verbosemsg"))
+			System.err.println(hexdump.dump("TCP write", out));
 		OutputStream outStream = s.getOutputStream();
 		byte[] lengthArray = new byte[2];
 		lengthArray[0] = (byte) (out.length >>> 8);
@@ -6,18 +6,32 @@ import java.io.*;
 
 import org.jnode.net.TransportLayer;
 import org.xbill.glue.UDPClient;
+import org.xbill.DNS.Options;
 import org.xbill.DNS.utils.hexdump;
 
 import jnode.net.*;
 
 final public class UDPClient {
 
+	private static DatagramSocketImplFactory installed;
+
 	private DatagramSocket socket;
 	private int timeout = 0;
 
-	public UDPClient(TransportLayer transportLayer, long endTime) throws IOException {
+	/**
+	 * Makes new DatagramSockets use the given transport layer.  The factory
+	 * is global, so it is only replaced when it changes.
+	 */
+	static synchronized void useTransportLayer(TransportLayer transportLayer) throws IOException {
 		DatagramSocketImplFactory factory = transportLayer.getDatagramSocketImplFactory();
-		DatagramSocket.setDatagramSocketImplFactory(factory);
+		if (factory != installed) {
+			DatagramSocket.setDatagramSocketImplFactory(factory);
+			installed = factory;
+		}
+	}
+
+	public UDPClient(TransportLayer transportLayer, long endTime) throws IOException {
+		useTransportLayer(transportLayer);
 		socket = new DatagramSocket();
 		long tmp = endTime - System.currentTimeMillis();
 		timeout = (tmp > 0) ? (int)tmp : 0;
@@ -29,12 +43,14 @@ final public class UDPClient {
 		DatagramPacket dp = new DatagramPacket(new byte[max], max);
 		s.receive(dp);
 		byte[] in = dp.getData();
-		System.err.println(hexdump.dump("UDP read", in));
+		if (Options.check("verbosemsg"))
+			System.err.println(hexdump.dump("UDP read", in));
 		return (in);
 	}
 
 	private void writeUDP(DatagramSocket s, byte[] out) throws IOException {
-		System.err.println(hexdump.dump("UDP write", out));
+		if (Options.check("verbosemsg"))
+			System.err.println(hexdump.dump("UDP write", out));
 		s.send(new DatagramPacket(out, out.length));
 	}
 
@@ -0,0 +1,127 @@
+// -*- Java -*-
+//
+package	org.xbill.DNS;
+
+import	jnode.net.InetAddress;
+import	java.net.UnknownHostException;
+import	junit.framework.TestCase;
+
+public class CacheTest extends TestCase
+{
+    private static ARecord a(String name, long ttl)
+	throws TextParseException, UnknownHostException
+    {
+	return new ARecord(Name.fromString(name), DClass.IN, ttl,
+			   InetAddress.getByName("192.168.0.1"));
+    }
+
+    public void test_add_lookup() throws Exception
+    {
+	Cache c = new Cache();
+	ARecord r = a("www.example.com.", 3600);
+	c.addRecord(r, Credibility.NORMAL, null);
+	assertEquals(1, c.getSize());
+
+	SetResponse sr = c.lookupRecords(r.getName(), Type.A, Credibility.NORMAL);
+	assertTrue(sr.isSuccessful());
+	assertEquals(r, sr.answers()[0].first());
+
+	sr = c.lookupRecords(r.getName(), Type.MX, Credibility.NORMAL);
+	assertTrue(sr.isUnknown());
+
+	c.flushSet(r.getName(), Type.A);
+	assertEquals(0, c.getSize());
+	assertTrue(c.lookupRecords(r.getName(), Type.A, Credibility.NORMAL).isUnknown());
+    }
+
+    public void test_negative() throws Exception
+    {
+	Cache c = new Cache();
+	Name n = Name.fromString("none.example.com.");
+	SOARecord soa = new SOARecord(Name.fromString("example.com."), DClass.IN,
+				      3600, n, n, 1, 2, 3, 4, 300);
+	c.addNegative(n, 0, soa, Credibility.NORMAL);
+	assertTrue(c.lookupRecords(n, Type.A, Credibility.NORMAL).isNXDOMAIN());
+    }
+
+    public void test_maxEntries() throws Exception
+    {
+	Cache c = new Cache();
+	c.setMaxEntries(10);
+	ARecord hot = a("hot.example.com.", 3600);
+	c.addRecord(hot, Credibility.NORMAL, null);
+	for (int i = 0; i < 100; i++) {
+	    c.addRecord(a("n" + i + ".example.com.", 3600), Credibility.NORMAL, null);
+	    c.lookupRecords(hot.getName(), Type.A, Credibility.NORMAL);
+	}
+	assertEquals(10, c.getSize());
+	assertTrue(c.lookupRecords(hot.getName(), Type.A, Credibility.NORMAL).isSuccessful());
+	assertTrue(c.lookupRecords(Name.fromString("n99.example.com."), Type.A,
+				   Credibility.NORMAL).isSuccessful());
+	assertTrue(c.lookupRecords(Name.fromString("n0.example.com."), Type.A,
+				   Credibility.NORMAL).isUnknown());
+    }
+
+    public void test_clearCache() throws Exception
+    {
+	Cache c = new Cache();
+	c.addRecord(a("a.example.com.", 3600), Credibility.NORMAL, null);
+	c.addRecord(a("b.example.com.", 3600), Credibility.NORMAL, null);
+	c.clearCache();
+	assertEquals(0, c.getSize());
+	assertEquals("", c.toString());
+    }
+
+    public void test_prefetch() throws Exception
+    {
+	Cache c = new Cache();
+	ARecord r = a("www.example.com.", 3600);
+	c.addRecord(r, Credibility.NORMAL, null);
+	assertFalse(c.lookupRecords(r.getName(), Type.A, Credibility.NORMAL).isPrefetch());
+
+	c.setPrefetch(100);
+	assertTrue(c.lookupRecords(r.getName(), Type.A, Credibility.NORMAL).isPrefetch());
+	/* Only the first lookup asks */
+	assertFalse(c.lookupRecords(r.getName(), Type.A, Credibility.NORMAL).isPrefetch());
+    }
+
+    public void test_serveStale() throws Exception
+    {
+	Cache c = new Cache();
+	c.setMaxStale(3600);
+	ARecord r = a("www.example.com.", 1);
+	c.addRecord(r, Credibility.NORMAL, null);
+	c.backdate(r.getName(), Type.A, 2);
+	assertTrue(c.lookupRecords(r.getName(), Type.A, Credibility.NORMAL).isUnknown());
+	SetResponse sr = c.lookupStaleRecords(r.getName(), Type.A, Credibility.NORMAL);
+	assertTrue(sr.isSuccessful());
+	assertEquals(r, sr.answers()[0].first());
+
+	c.setMaxStale(0);
+	assertTrue(c.lookupStaleRecords(r.getName(), Type.A, Credibility.NORMAL).isUnknown());
+	assertEquals(0, c.getSize());
+    }
+
+    public void test_staleTTL() throws Exception
+    {
+	Cache c = new Cache();
+	c.setMaxStale(3600);
+	ARecord r = a("www.example.com.", 3600);
+	ARecord shorter = a("www.example.com.", 10);
+	c.addRecord(r, Credibility.NORMAL, null);
+	c.backdate(r.getName(), Type.A, 3700);
+	SetResponse sr = c.lookupStaleRecords(r.getName(), Type.A, Credibility.NORMAL);
+	assertTrue(sr.isSuccessful());
+
+	/* What Lookup does with a stale answer */
+	Record [] answers = new Record[] {sr.answers()[0].first(), shorter};
+	Record.capTTL(answers, Lookup.STALE_TTL);
+	assertEquals(Lookup.STALE_TTL, answers[0].getTTL());
+	assertEquals(r.rdataToString(), answers[0].rdataToString());
+	assertSame(shorter, answers[1]);
+	/* The cached record keeps its TTL */
+	assertEquals(3600, r.getTTL());
+	assertEquals(3600, c.lookupStaleRecords(r.getName(), Type.A,
+						Credibility.NORMAL).answers()[0].getTTL());
+    }
+}
@@ -0,0 +1,57 @@
+// -*- Java -*-
+//
+package	org.xbill.DNS;
+
+import	java.util.HashMap;
+import	java.util.Map;
+import	junit.framework.TestCase;
+
+public class NameTreeTest extends TestCase
+{
+    private static Name n(String s) throws TextParseException
+    {
+	return Name.fromString(s);
+    }
+
+    private static NameTree tree(String [] names) throws TextParseException
+    {
+	Map map = new HashMap();
+	for (int i = 0; i < names.length; i++)
+	    map.put(n(names[i]), names[i]);
+	return new NameTree(map);
+    }
+
+    public void test_closest() throws Exception
+    {
+	NameTree t = tree(new String[] { "example.", "sub.example.",
+					 "a.example.", "z.example.", "org." });
+	assertEquals("example.", t.findBest(n("example.")));
+	assertEquals("example.", t.findBest(n("www.example.")));
+	assertEquals("sub.example.", t.findBest(n("sub.example.")));
+	assertEquals("sub.example.", t.findBest(n("a.b.sub.example.")));
+	assertEquals("a.example.", t.findBest(n("x.a.example.")));
+	assertEquals("z.example.", t.findBest(n("z.example.")));
+	assertEquals("example.", t.findBest(n("m.example.")));
+	assertEquals("org.", t.findBest(n("example.org.")));
+	assertNull(t.findBest(n("example.com.")));
+	assertNull(t.findBest(Name.root));
+	/* An empty interior node has no value of its own */
+	assertNull(tree(new String[] { "a.b." }).findBest(n("c.b.")));
+    }
+
+    public void test_case() throws Exception
+    {
+	NameTree t = tree(new String[] { "Example.", "SUB.example." });
+	assertEquals("SUB.example.", t.findBest(n("www.Sub.EXAMPLE.")));
+	assertEquals("Example.", t.findBest(n("WWW.example.")));
+    }
+
+    public void test_root() throws Exception
+    {
+	NameTree t = tree(new String[] { ".", "example." });
+	assertEquals(".", t.findBest(Name.root));
+	assertEquals(".", t.findBest(n("example.com.")));
+	assertEquals("example.", t.findBest(n("www.example.")));
+	assertNull(t.findBest(Name.fromString("www", null)));
+    }
+}
@@ -0,0 +1,86 @@
+// -*- Java -*-
+//
+package	org.xbill.DNS;
+
+import	junit.framework.TestCase;
+
+public class QueryDecoderTest extends TestCase
+{
+    private static Message query(String name, int type) throws TextParseException
+    {
+	Record question = Record.newRecord(Name.fromString(name), type,
+					   DClass.IN);
+	return Message.newQuery(question);
+    }
+
+    public void test_plain() throws Exception
+    {
+	Message m = query("www.example.", Type.MX);
+	byte[] wire = m.toWire();
+
+	QueryDecoder q = new QueryDecoder();
+	assertTrue(q.wrap(wire, wire.length));
+	assertEquals(m.getHeader().getID(), q.getID());
+	assertTrue(q.getFlag(Flags.RD));
+	assertFalse(q.getFlag(Flags.QR));
+	assertEquals(Opcode.QUERY, q.getOpcode());
+	assertEquals(Rcode.NOERROR, q.getRcode());
+	assertEquals(1, q.getCount(Section.QUESTION));
+	assertEquals(Type.MX, q.getType());
+	assertEquals(DClass.IN, q.getDClass());
+	assertEquals(wire.length, q.getQuestionEnd());
+	assertEquals(Name.fromString("www.example."), q.getName());
+	assertFalse(q.hasOPT());
+	assertFalse(q.hasTSIG());
+    }
+
+    public void test_OPT() throws Exception
+    {
+	Message m = query("www.example.", Type.A);
+	m.addRecord(new OPTRecord(4096, 0, 0, ExtendedFlags.DO), Section.ADDITIONAL);
+	byte[] wire = m.toWire();
+
+	QueryDecoder q = new QueryDecoder();
+	assertTrue(q.wrap(wire, wire.length));
+	assertTrue(q.hasOPT());
+	assertEquals(4096, q.getPayloadSize());
+	assertEquals(0, q.getEDNSVersion());
+	assertEquals(ExtendedFlags.DO, q.getEDNSFlags());
+	assertEquals(Type.A, q.getType());
+
+	/* The decoder forgets the OPT of the previous query */
+	byte[] plain = query("a.example.", Type.A).toWire();
+	assertTrue(q.wrap(plain, plain.length));
+	assertFalse(q.hasOPT());
+    }
+
+    public void test_malformed() throws Exception
+    {
+	byte[] wire = query("www.example.", Type.A).toWire();
+
+	QueryDecoder q = new QueryDecoder();
+	assertFalse(q.wrap(wire, Header.LENGTH - 1));
+	assertFalse(q.wrap(wire, wire.length - 1));
+
+	byte[] empty = new Message().toWire();
+	assertFalse(q.wrap(empty, empty.length));
+
+	/* A compression pointer must point backwards */
+	byte[] fwd = (byte[]) wire.clone();
+	fwd[Header.LENGTH] = (byte) 0xC0;
+	fwd[Header.LENGTH + 1] = (byte) Header.LENGTH;
+	assertFalse(q.wrap(fwd, fwd.length));
+
+	/* An OPT option running past the rdata */
+	Message m = query("www.example.", Type.A);
+	m.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+	byte[] opt = m.toWire();
+	byte[] bad = new byte[opt.length + 4];
+	System.arraycopy(opt, 0, bad, 0, opt.length);
+	bad[opt.length - 1] = 4;
+	bad[opt.length + 3] = 8;
+	assertFalse(q.wrap(bad, bad.length));
+	bad[opt.length + 3] = 0;
+	assertTrue(q.wrap(bad, bad.length));
+    }
+}
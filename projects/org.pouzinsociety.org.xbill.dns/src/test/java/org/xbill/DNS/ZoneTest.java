@@ -0,0 +1,174 @@
+// -*- Java -*-
+//
+package	org.xbill.DNS;
+
+import	jnode.net.InetAddress;
+import	java.io.ByteArrayInputStream;
+import	java.util.Iterator;
+import	java.util.List;
+import	junit.framework.TestCase;
+
+public class ZoneTest extends TestCase
+{
+    private Name origin;
+    private Zone zone;
+
+    private static Name n(String s) throws TextParseException
+    {
+	return Name.fromString(s);
+    }
+
+    private ARecord a(String name) throws Exception
+    {
+	return new ARecord(n(name), DClass.IN, 3600,
+			   InetAddress.getByName("192.168.0.1"));
+    }
+
+    public void setUp() throws Exception
+    {
+	origin = n("example.com.");
+	Record [] records = new Record[] {
+	    new SOARecord(origin, DClass.IN, 3600, n("ns.example.com."),
+			  n("hostmaster.example.com."), 1, 2, 3, 4, 300),
+	    new NSRecord(origin, DClass.IN, 3600, n("ns.example.com.")),
+	    a("ns.example.com."),
+	    a("Zeta.example.com."),
+	    a("alpha.example.com."),
+	    a("*.wild.example.com."),
+	    new NSRecord(n("sub.example.com."), DClass.IN, 3600,
+			 n("ns.sub.example.com.")),
+	};
+	zone = new Zone(origin, records);
+    }
+
+    public void test_lookup() throws Exception
+    {
+	SetResponse sr = zone.findRecords(n("ALPHA.example.com."), Type.A);
+	assertTrue(sr.isSuccessful());
+
+	sr = zone.findRecords(n("alpha.example.com."), Type.MX);
+	assertTrue(sr.isNXRRSET());
+
+	sr = zone.findRecords(n("beta.example.com."), Type.A);
+	assertTrue(sr.isNXDOMAIN());
+    }
+
+    public void test_wildcard() throws Exception
+    {
+	SetResponse sr = zone.findRecords(n("a.b.wild.example.com."), Type.A);
+	assertTrue(sr.isSuccessful());
+	assertEquals(n("*.wild.example.com."), sr.answers()[0].getName());
+
+	sr = zone.findRecords(n("wild.example.com."), Type.A);
+	assertTrue(sr.isNXDOMAIN());
+
+	/* A label sorting before the wildcard does not hide it */
+	zone.addRecord(a("!.wild.example.com."));
+	sr = zone.findRecords(n("a.wild.example.com."), Type.A);
+	assertTrue(sr.isSuccessful());
+	assertEquals(n("*.wild.example.com."), sr.answers()[0].getName());
+    }
+
+    public void test_delegation() throws Exception
+    {
+	SetResponse sr = zone.findRecords(n("host.sub.example.com."), Type.A);
+	assertTrue(sr.isDelegation());
+    }
+
+    public void test_update() throws Exception
+    {
+	zone.addRecord(a("beta.example.com."));
+	assertTrue(zone.findRecords(n("beta.example.com."), Type.A).isSuccessful());
+	zone.removeRecord(a("beta.example.com."));
+	assertTrue(zone.findRecords(n("beta.example.com."), Type.A).isNXDOMAIN());
+    }
+
+    public void test_iterator_canonical() throws Exception
+    {
+	Iterator it = zone.AXFR();
+	assertEquals(Type.SOA, ((RRset) it.next()).getType());
+	assertEquals(Type.NS, ((RRset) it.next()).getType());
+	Name [] expected = new Name[] {
+	    n("alpha.example.com."), n("ns.example.com."),
+	    n("sub.example.com."), n("*.wild.example.com."),
+	    n("Zeta.example.com."),
+	};
+	for (int i = 0; i < expected.length; i++)
+	    assertEquals(expected[i], ((RRset) it.next()).getName());
+	assertEquals(Type.SOA, ((RRset) it.next()).getType());
+	assertFalse(it.hasNext());
+    }
+
+    public void test_journal() throws Exception
+    {
+	assertEquals(1, zone.commit());
+	zone.addRecord(a("beta.example.com."));
+	zone.removeRecord(a("alpha.example.com."));
+	assertEquals(2, zone.commit());
+	assertEquals(2, zone.getSOA().getSerial());
+	assertTrue(zone.findRecords(n("alpha.example.com."), Type.A).isNXDOMAIN());
+
+	List deltas = zone.getIXFR(1);
+	assertEquals(1, deltas.size());
+	ZoneTransferIn.Delta delta = (ZoneTransferIn.Delta) deltas.get(0);
+	assertEquals(1, delta.start);
+	assertEquals(2, delta.end);
+	assertEquals(2, delta.deletes.size());
+	assertEquals(a("alpha.example.com."), delta.deletes.get(1));
+	assertEquals(2, delta.adds.size());
+	assertEquals(a("beta.example.com."), delta.adds.get(1));
+
+	assertEquals(0, zone.getIXFR(2).size());
+	assertNull(zone.getIXFR(0));
+
+	Zone copy = new Zone(origin, new Record[] {
+	    new SOARecord(origin, DClass.IN, 3600, n("ns.example.com."),
+			  n("hostmaster.example.com."), 1, 2, 3, 4, 300),
+	    new NSRecord(origin, DClass.IN, 3600, n("ns.example.com.")),
+	    a("alpha.example.com."),
+	});
+	copy.applyIXFR(deltas);
+	assertEquals(2, copy.getSOA().getSerial());
+	assertTrue(copy.findRecords(n("beta.example.com."), Type.A).isSuccessful());
+	assertTrue(copy.findRecords(n("alpha.example.com."), Type.A).isNXDOMAIN());
+	assertEquals(1, copy.getIXFR(1).size());
+    }
+
+    public void test_inheritJournal() throws Exception
+    {
+	Zone newer = new Zone(origin, new Record[] {
+	    new SOARecord(origin, DClass.IN, 3600, n("ns.example.com."),
+			  n("hostmaster.example.com."), 5, 2, 3, 4, 300),
+	    new NSRecord(origin, DClass.IN, 3600, n("ns.example.com.")),
+	    a("alpha.example.com."),
+	});
+	newer.inheritJournal(zone);
+	ZoneTransferIn.Delta delta = (ZoneTransferIn.Delta) newer.getIXFR(1).get(0);
+	assertEquals(5, delta.end);
+	assertEquals(1, delta.adds.size());
+	/* SOA, ns, Zeta, *.wild and the delegation */
+	assertEquals(5, delta.deletes.size());
+    }
+
+    public void test_master() throws Exception
+    {
+	String file = "$TTL 3600\n" +
+	    "@ IN SOA ns hostmaster 7 2 3 4 300\n" +
+	    "  IN NS ns\n" +
+	    "ns IN A 192.168.0.1\n" +
+	    "www IN A 192.168.0.2\n" +
+	    "    IN A 192.168.0.3\n";
+	Master m = new Master(new ByteArrayInputStream(file.getBytes()), origin);
+	Zone z = new Zone(origin, m);
+	assertEquals(7, z.getSOA().getSerial());
+	RRset rrset = z.findExactMatch(n("www.example.com."), Type.A);
+	assertEquals(2, rrset.size());
+	Iterator it = rrset.rrs();
+	assertSame(((Record) it.next()).getName(), ((Record) it.next()).getName());
+
+	/* Names are shared, but keep their case */
+	z.addRecord(new TXTRecord(n("WWW.example.com."), DClass.IN, 3600, "x"));
+	rrset = z.findExactMatch(n("www.example.com."), Type.TXT);
+	assertEquals("WWW.example.com.", rrset.getName().toString());
+    }
+}
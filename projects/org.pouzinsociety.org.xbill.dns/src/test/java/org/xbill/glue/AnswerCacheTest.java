@@ -0,0 +1,135 @@
+// -*- Java -*-
+//
+package	org.xbill.glue;
+
+import	jnode.net.InetAddress;
+import	junit.framework.TestCase;
+import	org.xbill.DNS.ARecord;
+import	org.xbill.DNS.DClass;
+import	org.xbill.DNS.Message;
+import	org.xbill.DNS.NSRecord;
+import	org.xbill.DNS.Name;
+import	org.xbill.DNS.Record;
+import	org.xbill.DNS.SOARecord;
+import	org.xbill.DNS.Type;
+import	org.xbill.DNS.Zone;
+
+public class AnswerCacheTest extends TestCase
+{
+    private Zone m_zone;
+    private Name m_www;
+
+    protected void setUp() throws Exception
+    {
+	Name origin = Name.fromString("example.com.");
+	Name ns = Name.fromString("ns.example.com.");
+	m_www = Name.fromString("www.example.com.");
+	m_zone = new Zone(origin, new Record[] {
+	    new SOARecord(origin, DClass.IN, 3600, ns, ns, 1, 2, 3, 4, 5),
+	    new NSRecord(origin, DClass.IN, 3600, ns),
+	    new ARecord(m_www, DClass.IN, 3600, InetAddress.getByName("10.0.0.1")) });
+    }
+
+    private static byte[] query(int id, String name) throws Exception
+    {
+	Message m = Message.newQuery(Record.newRecord(Name.fromString(name),
+						      Type.A, DClass.IN));
+	m.getHeader().setID(id);
+	return m.toWire();
+    }
+
+    public void test_hit_patches_id() throws Exception
+    {
+	AnswerCache c = new AnswerCache(10);
+	byte[] q = query(1, "www.example.com.");
+	AnswerCache.Key key = AnswerCache.makeKey(q, q.length, 512, false, false, true);
+	assertNull(c.get(key, 1));
+
+	byte[] wire = query(1, "www.example.com.");
+	c.put(key, wire, m_zone, m_zone.getVersion(), c.getGeneration());
+
+	byte[] q2 = query(0x1234, "www.example.com.");
+	AnswerCache.Key key2 = AnswerCache.makeKey(q2, q2.length, 512, false, false, true);
+	byte[] hit = c.get(key2, 0x1234);
+	assertNotNull(hit);
+	assertEquals(0x1234, new Message(hit).getHeader().getID());
+	assertEquals(1, c.getHits());
+	assertEquals(1, c.getMisses());
+	assertEquals(0.5, c.getHitRatio(), 0.0);
+    }
+
+    public void test_key() throws Exception
+    {
+	byte[] q = query(1, "www.example.com.");
+	byte[] upper = query(1, "WWW.example.com.");
+	AnswerCache.Key key = AnswerCache.makeKey(q, q.length, 512, false, false, true);
+	assertEquals(key, AnswerCache.makeKey(q, q.length, 512, false, false, true));
+	assertFalse(key.equals(AnswerCache.makeKey(q, q.length, 4096, false, false, true)));
+	assertFalse(key.equals(AnswerCache.makeKey(q, q.length, 512, true, true, true)));
+	assertFalse(key.equals(AnswerCache.makeKey(upper, upper.length, 512, false, false, true)));
+	assertNull(AnswerCache.makeKey(q, 14, 512, false, false, true));
+    }
+
+    public void test_zone_change_invalidates() throws Exception
+    {
+	AnswerCache c = new AnswerCache(10);
+	byte[] q = query(1, "www.example.com.");
+	AnswerCache.Key key = AnswerCache.makeKey(q, q.length, 512, false, false, true);
+	c.put(key, q, m_zone, m_zone.getVersion(), c.getGeneration());
+	assertNotNull(c.get(key, 1));
+
+	m_zone.addRecord(new ARecord(m_www, DClass.IN, 3600,
+				     InetAddress.getByName("10.0.0.2")));
+	assertNull(c.get(key, 1));
+	assertEquals(0, c.getSize());
+    }
+
+    public void test_clear_during_answer() throws Exception
+    {
+	AnswerCache c = new AnswerCache(10);
+	byte[] q = query(1, "www.example.com.");
+	AnswerCache.Key key = AnswerCache.makeKey(q, q.length, 512, false, false, true);
+	int generation = c.getGeneration();
+	c.clear();
+	c.put(key, q, m_zone, m_zone.getVersion(), generation);
+	assertNull(c.get(key, 1));
+    }
+
+    public void test_clear_drains_order() throws Exception
+    {
+	AnswerCache c = new AnswerCache(4);
+	AnswerCache.Key [] keys = new AnswerCache.Key[4];
+	for (int i = 0; i < keys.length; i++) {
+	    byte[] q = query(1, "h" + i + ".example.com.");
+	    keys[i] = AnswerCache.makeKey(q, q.length, 512, false, false, true);
+	    c.put(keys[i], q, m_zone, m_zone.getVersion(), c.getGeneration());
+	}
+	assertEquals(4, c.getQueued());
+	c.clear();
+	assertEquals(0, c.getSize());
+	assertEquals(0, c.getQueued());
+
+	/* A full cache's worth of new answers all stay */
+	for (int i = 0; i < keys.length; i++)
+	    c.put(keys[i], query(1, "h" + i + ".example.com."), m_zone,
+		  m_zone.getVersion(), c.getGeneration());
+	assertEquals(4, c.getSize());
+	assertEquals(4, c.getQueued());
+	for (int i = 0; i < keys.length; i++)
+	    assertNotNull(c.get(keys[i], 1));
+    }
+
+    public void test_bounded() throws Exception
+    {
+	AnswerCache c = new AnswerCache(4);
+	AnswerCache.Key [] keys = new AnswerCache.Key[8];
+	for (int i = 0; i < keys.length; i++) {
+	    byte[] q = query(1, "h" + i + ".example.com.");
+	    keys[i] = AnswerCache.makeKey(q, q.length, 512, false, false, true);
+	    c.put(keys[i], q, m_zone, m_zone.getVersion(), c.getGeneration());
+	}
+	assertEquals(4, c.getSize());
+	assertNull(c.get(keys[0], 1));
+	assertNotNull(c.get(keys[7], 1));
+    }
+}
@@ -0,0 +1,148 @@
+package org.xbill.glue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Measures the bytes a DNSServer allocates per query, by answering queries
+ * in the calling thread the way the UDP workers do, without any sockets.
+ * Queries are answered once with the answer cache, which reads them with a
+ * QueryDecoder, and once without it, which parses them into a Message.
+ * The thread allocation counter of the JVM is needed; where there is none
+ * only the time per query is reported.
+ */
+public class DNSAllocationMeter {
+	private static final Log log = LogFactory.getLog(DNSAllocationMeter.class);
+
+	private static final String ZONE =
+		"$TTL 3600\n" +
+		"@ IN SOA ns.example. admin.example. 1 3600 600 86400 3600\n" +
+		"@ IN NS ns.example.\n" +
+		"ns IN A 10.0.0.1\n" +
+		"www IN A 10.0.0.2\n" +
+		"www IN A 10.0.0.3\n" +
+		"mail IN MX 10 www.example.\n";
+
+	private String zone = ZONE;
+	private String origin = "example.";
+	private String [] names = { "www.example.", "mail.example.", "ns.example." };
+	private int type = Type.A;
+	private int warmup = 20000;
+	private int queries = 100000;
+
+	/** Sets the master file text of the zone queried. */
+	public void setZone(String origin, String zone) {
+		this.origin = origin;
+		this.zone = zone;
+	}
+
+	/** Sets the names queried, comma separated. */
+	public void setNames(String names) {
+		this.names = names.split(",");
+	}
+
+	public void setType(String type) {
+		this.type = Type.value(type);
+	}
+
+	/** Sets the number of queries answered before measuring. */
+	public void setWarmup(int warmup) {
+		this.warmup = warmup;
+	}
+
+	/** Sets the number of queries measured. */
+	public void setQueries(int queries) {
+		this.queries = queries;
+	}
+
+	/* com.sun.management.ThreadMXBean.getThreadAllocatedBytes, if there is one */
+	private static Method allocatedBytes() {
+		try {
+			Class bean = Class.forName("com.sun.management.ThreadMXBean");
+			if (!bean.isInstance(ManagementFactory.getThreadMXBean()))
+				return null;
+			return bean.getMethod("getThreadAllocatedBytes",
+					new Class[] { long.class });
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static long allocated(Method m) {
+		if (m == null)
+			return 0;
+		try {
+			Long bytes = (Long) m.invoke(ManagementFactory.getThreadMXBean(),
+					new Object[] { new Long(Thread.currentThread().getId()) });
+			return bytes.longValue();
+		}
+		catch (Exception e) {
+			return 0;
+		}
+	}
+
+	private static void answer(DNSServer server, byte [] in) throws IOException {
+		byte [] response = server.cachedReply(in, in.length, false);
+		if (response == null)
+			server.generateReply(new Message(in), in, in.length, null);
+	}
+
+	private String measure(DNSServer server, byte [][] wire, String what)
+			throws IOException {
+		for (int i = 0; i < warmup; i++)
+			answer(server, wire[i % wire.length]);
+		Method m = allocatedBytes();
+		long bytes = allocated(m);
+		long start = System.nanoTime();
+		for (int i = 0; i < queries; i++)
+			answer(server, wire[i % wire.length]);
+		long elapsed = System.nanoTime() - start;
+		bytes = allocated(m) - bytes;
+
+		StringBuffer sb = new StringBuffer();
+		sb.append("DNS allocation, " + what + ": " + queries + " queries, ");
+		sb.append((elapsed / queries) + "ns/query");
+		if (m != null)
+			sb.append(", " + (bytes / queries) + " bytes/query");
+		else
+			sb.append(", allocation not measurable in this JVM");
+		log.info(sb.toString());
+		return sb.toString();
+	}
+
+	/**
+	 * Runs the measurement and returns the report, which is also logged.
+	 */
+	public String run() throws IOException {
+		byte [][] wire = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			Name name = Name.fromString(names[i].trim(), Name.root);
+			Record question = Record.newRecord(name, type, DClass.IN);
+			wire[i] = Message.newQuery(question).toWire();
+		}
+
+		DNSServer server = new DNSServer();
+		server.addPrimaryZone(origin, zone);
+		String cached = measure(server, wire, "answer cache");
+		server.setAnswerCacheSize(0);
+		String parsed = measure(server, wire, "no answer cache");
+		return cached + "\n" + parsed;
+	}
+
+	public static void main(String [] args) throws IOException {
+		DNSAllocationMeter meter = new DNSAllocationMeter();
+		if (args.length > 0)
+			meter.setQueries(Integer.parseInt(args[0]));
+		System.out.println(meter.run());
+	}
+}
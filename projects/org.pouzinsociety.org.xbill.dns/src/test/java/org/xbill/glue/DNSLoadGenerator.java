@@ -0,0 +1,190 @@
+package org.xbill.glue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.net.TransportLayer;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+import jnode.net.DatagramPacket;
+import jnode.net.DatagramSocket;
+import jnode.net.InetAddress;
+
+/**
+ * Load test for a DNS server over UDP. A number of clients each keep one
+ * query outstanding for a fixed time, and the query rate and latency
+ * percentiles of all answered queries are reported.
+ */
+public class DNSLoadGenerator {
+	private static final Log log = LogFactory.getLog(DNSLoadGenerator.class);
+
+	private TransportLayer transportLayer = null;
+	private String server = "127.0.0.1";
+	private int port = 53;
+	private int clients = 4;
+	private int duration = 10000;
+	private int timeout = 1000;
+	private String [] names = { "internal." };
+	private int type = Type.A;
+
+	public void setTransportLayer(TransportLayer transportLayer) {
+		this.transportLayer = transportLayer;
+	}
+
+	public void setServer(String server) {
+		this.server = server;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/** Sets the number of concurrent clients. */
+	public void setClients(int clients) {
+		this.clients = clients;
+	}
+
+	/** Sets the time in ms the test runs. */
+	public void setDuration(int duration) {
+		this.duration = duration;
+	}
+
+	/** Sets the time in ms after which a query counts as lost. */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/** Sets the names queried, comma separated; the clients cycle through them. */
+	public void setNames(String names) {
+		this.names = names.split(",");
+	}
+
+	public void setType(String type) {
+		this.type = Type.value(type);
+	}
+
+	/**
+	 * One client, sending a query as soon as the previous one is answered.
+	 */
+	private final class Client extends Thread {
+		private final int nr;
+		private final InetAddress address;
+		private final byte [][] queries;
+		long [] latencies = new long[1024];
+		int answered;
+		int lost;
+
+		Client(int nr, InetAddress address, byte [][] queries) {
+			super("dns-load-" + nr);
+			this.nr = nr;
+			this.address = address;
+			/* Own copies, the ID is written into them */
+			this.queries = new byte[queries.length][];
+			for (int i = 0; i < queries.length; i++)
+				this.queries[i] = (byte []) queries[i].clone();
+		}
+
+		public void run() {
+			final long end = System.nanoTime() + duration * 1000000L;
+			try {
+				DatagramSocket sock = new DatagramSocket();
+				sock.setSoTimeout(timeout);
+				byte [] in = new byte[DNSServer.UDP_MAX_QUERY];
+				DatagramPacket indp = new DatagramPacket(in, in.length);
+				int seq = nr;
+				while (System.nanoTime() < end) {
+					byte [] out = queries[seq % queries.length];
+					int id = seq++ & 0xFFFF;
+					out[0] = (byte) (id >> 8);
+					out[1] = (byte) id;
+					long start = System.nanoTime();
+					sock.send(new DatagramPacket(out, out.length, address, port));
+					try {
+						do {
+							indp.setLength(in.length);
+							sock.receive(indp);
+						} while (indp.getLength() < 2 ||
+							 (((in[0] & 0xFF) << 8) | (in[1] & 0xFF)) != id);
+					}
+					catch (InterruptedIOException e) {
+						lost++;
+						continue;
+					}
+					if (answered == latencies.length)
+						latencies = grow(latencies);
+					latencies[answered++] = System.nanoTime() - start;
+				}
+				sock.close();
+			}
+			catch (IOException e) {
+				log.error("DNSLoadGenerator: client " + nr + ": " + e);
+			}
+		}
+	}
+
+	private static long [] grow(long [] a) {
+		long [] b = new long[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static String ms(long nanos) {
+		return String.valueOf(nanos / 1000 / 1000.0);
+	}
+
+	/**
+	 * Runs the test and returns the report, which is also logged.
+	 */
+	public String run() throws IOException, InterruptedException {
+		DatagramSocket.setDatagramSocketImplFactory(transportLayer.getDatagramSocketImplFactory());
+		InetAddress address = InetAddress.getByName(server);
+		byte [][] queries = new byte[names.length][];
+		for (int i = 0; i < names.length; i++)
+			queries[i] = makeQuery(names[i].trim());
+
+		long start = System.nanoTime();
+		Client [] c = new Client[clients];
+		for (int i = 0; i < clients; i++) {
+			c[i] = new Client(i, address, queries);
+			c[i].start();
+		}
+		int answered = 0, lost = 0;
+		for (int i = 0; i < clients; i++) {
+			c[i].join();
+			answered += c[i].answered;
+			lost += c[i].lost;
+		}
+		long elapsed = Math.max(1, System.nanoTime() - start);
+
+		long [] all = new long[answered];
+		int n = 0;
+		for (int i = 0; i < clients; i++) {
+			System.arraycopy(c[i].latencies, 0, all, n, c[i].answered);
+			n += c[i].answered;
+		}
+		Arrays.sort(all);
+		StringBuffer sb = new StringBuffer();
+		sb.append("DNS load: " + clients + " clients, " + answered + " answered, " + lost + " lost, ");
+		sb.append((float) (answered * 1e9 / elapsed) + " queries/s");
+		if (answered > 0) {
+			sb.append(", latency p50=" + ms(all[(answered - 1) / 2]));
+			sb.append(" p99=" + ms(all[(int) Math.ceil(answered * 0.99) - 1]));
+			sb.append(" max=" + ms(all[answered - 1]) + "ms");
+		}
+		log.info(sb.toString());
+		return sb.toString();
+	}
+
+	private byte [] makeQuery(String name) throws TextParseException {
+		Record question = Record.newRecord(Name.fromString(name, Name.root), type, DClass.IN);
+		return Message.newQuery(question).toWire();
+	}
+}
@@ -0,0 +1,357 @@
+// -*- Java -*-
+//
+package	org.xbill.glue;
+
+import	java.io.IOException;
+import	java.io.InputStream;
+import	java.io.OutputStream;
+import	java.net.SocketTimeoutException;
+import	java.util.HashSet;
+import	java.util.Set;
+import	jnode.net.InetAddress;
+import	jnode.net.Socket;
+import	jnode.net.SocketAddress;
+import	jnode.net.SocketImpl;
+import	junit.framework.TestCase;
+import	org.xbill.DNS.DClass;
+import	org.xbill.DNS.Message;
+import	org.xbill.DNS.Name;
+import	org.xbill.DNS.Record;
+import	org.xbill.DNS.Section;
+import	org.xbill.DNS.Type;
+
+public class TCPConnectionTest extends TestCase
+{
+    private static final String ZONE =
+	"$TTL 3600\n" +
+	"@ IN SOA ns.example. admin.example. 1 3600 600 86400 3600\n" +
+	"@ IN NS ns.example.\n" +
+	"ns IN A 10.0.0.1\n" +
+	"www IN A 10.0.0.2\n";
+
+    /* Bytes going one way, read with a timeout */
+    private static class Pipe
+    {
+	private byte [] buf = new byte[256];
+	private int head, tail;
+	private boolean closed;
+	private int consumed;
+
+	synchronized void
+	write(byte [] b, int off, int len)
+	{
+	    if (tail + len > buf.length) {
+		byte [] nbuf = new byte[Math.max(buf.length * 2, tail + len)];
+		System.arraycopy(buf, 0, nbuf, 0, tail);
+		buf = nbuf;
+	    }
+	    System.arraycopy(b, off, buf, tail, len);
+	    tail += len;
+	    notifyAll();
+	}
+
+	/* The next byte, -1 at the end, or SocketTimeoutException */
+	synchronized int
+	read(int timeout) throws IOException
+	{
+	    long end = System.currentTimeMillis() + timeout;
+	    while (head == tail && !closed) {
+		long wait = end - System.currentTimeMillis();
+		if (timeout > 0 && wait <= 0)
+		    throw new SocketTimeoutException("Read timed out");
+		try {
+		    wait(timeout > 0 ? wait : 0);
+		}
+		catch (InterruptedException e) {
+		    throw new IOException("interrupted");
+		}
+	    }
+	    if (head == tail)
+		return -1;
+	    consumed++;
+	    return buf[head++] & 0xFF;
+	}
+
+	synchronized void
+	close()
+	{
+	    closed = true;
+	    notifyAll();
+	}
+
+	synchronized int
+	consumed()
+	{
+	    return consumed;
+	}
+    }
+
+    /* One end of a connection made of two pipes */
+    private static class PipeSocketImpl extends SocketImpl
+    {
+	final Pipe in, out;
+	int timeout;
+
+	PipeSocketImpl(Pipe in, Pipe out) throws IOException
+	{
+	    this.in = in;
+	    this.out = out;
+	    /* A socket with a peer address counts as connected */
+	    address = InetAddress.getByAddress(new byte[] {10, 0, 0, 9});
+	    port = 53;
+	}
+
+	protected InputStream getInputStream()
+	{
+	    return new InputStream() {
+		public int read() throws IOException {
+		    return in.read(timeout);
+		}
+	    };
+	}
+
+	protected OutputStream getOutputStream()
+	{
+	    return new OutputStream() {
+		public void write(int b) {
+		    out.write(new byte[] {(byte) b}, 0, 1);
+		}
+		public void write(byte [] b, int off, int len) {
+		    out.write(b, off, len);
+		}
+	    };
+	}
+
+	protected void close()
+	{
+	    in.close();
+	    out.close();
+	}
+
+	public void setOption(int id, Object value)
+	{
+	    if (id == SO_TIMEOUT)
+		timeout = ((Integer) value).intValue();
+	}
+
+	public Object getOption(int id)
+	{
+	    return (id == SO_TIMEOUT) ? new Integer(timeout) : null;
+	}
+
+	protected void create(boolean stream) {}
+	protected void connect(String host, int port) {}
+	protected void connect(InetAddress host, int port) {}
+	protected void connect(SocketAddress address, int timeout) {}
+	protected void bind(InetAddress host, int port) {}
+	protected void listen(int backlog) {}
+	protected void accept(SocketImpl s) {}
+	protected int available() { return 0; }
+	protected void sendUrgentData(int data) {}
+    }
+
+    private static class PipeSocket extends Socket
+    {
+	PipeSocket(SocketImpl impl) throws IOException
+	{
+	    super(impl);
+	}
+    }
+
+    /* A server whose answers can be held back until released */
+    private static class GatedServer extends DNSServer
+    {
+	/* The ID held back, or -1 for all */
+	private int held = -2;
+	private int seen;
+
+	byte []
+	cachedReply(byte [] in, int length, boolean tcp)
+	{
+	    int id = ((in[0] & 0xFF) << 8) | (in[1] & 0xFF);
+	    synchronized (this) {
+		seen++;
+		notifyAll();
+		while (held == -1 || held == id) {
+		    try {
+			wait();
+		    }
+		    catch (InterruptedException e) {
+			break;
+		    }
+		}
+	    }
+	    return super.cachedReply(in, length, tcp);
+	}
+
+	synchronized void
+	hold(int id)
+	{
+	    held = id;
+	}
+
+	synchronized void
+	release()
+	{
+	    held = -2;
+	    notifyAll();
+	}
+
+	/* Waits until n queries have been seen, returns how many were */
+	synchronized int
+	awaitSeen(int n) throws InterruptedException
+	{
+	    long end = System.currentTimeMillis() + 5000;
+	    long wait;
+	    while (seen < n && (wait = end - System.currentTimeMillis()) > 0)
+		wait(wait);
+	    return seen;
+	}
+    }
+
+    private GatedServer m_server;
+    private Pipe m_toServer, m_toClient;
+    private PipeSocketImpl m_client;
+    private Thread m_thread;
+
+    protected void setUp() throws Exception
+    {
+	m_server = new GatedServer();
+	m_server.addPrimaryZone("example.", ZONE);
+	m_toServer = new Pipe();
+	m_toClient = new Pipe();
+	m_client = new PipeSocketImpl(m_toClient, m_toServer);
+	m_client.timeout = 5000;
+    }
+
+    protected void tearDown() throws Exception
+    {
+	m_server.release();
+	m_toServer.close();
+	if (m_thread != null)
+	    m_thread.join(5000);
+    }
+
+    private void start(int workers, int pipeline, int idle) throws IOException
+    {
+	m_server.setTcpWorkers(workers);
+	m_server.setTcpPipeline(pipeline);
+	m_server.setTcpIdleTimeout(idle);
+	m_server.startTCPPools();
+	Socket s = new PipeSocket(new PipeSocketImpl(m_toServer, m_toClient));
+	m_thread = new Thread(m_server.new TCPConnection(s));
+	m_thread.start();
+    }
+
+    private static byte [] query(int id, String name, int type) throws Exception
+    {
+	Message m = Message.newQuery(Record.newRecord(Name.fromString(name),
+						      type, DClass.IN));
+	m.getHeader().setID(id);
+	return m.toWire();
+    }
+
+    /* Sends a query with its length prefix, returns the bytes sent */
+    private int send(int id, String name, int type) throws Exception
+    {
+	byte [] q = query(id, name, type);
+	byte [] out = new byte[q.length + 2];
+	out[0] = (byte) (q.length >>> 8);
+	out[1] = (byte) q.length;
+	System.arraycopy(q, 0, out, 2, q.length);
+	m_toServer.write(out, 0, out.length);
+	return out.length;
+    }
+
+    /* Reads the next message, null at the end of the connection */
+    private Message receive() throws Exception
+    {
+	InputStream in = m_client.getInputStream();
+	int hi = in.read();
+	if (hi < 0)
+	    return null;
+	int length = (hi << 8) | in.read();
+	byte [] b = new byte[length];
+	for (int i = 0; i < length; i++)
+	    b[i] = (byte) in.read();
+	return new Message(b);
+    }
+
+    public void test_out_of_order() throws Exception
+    {
+	start(2, 16, 30000);
+	m_server.hold(1);
+	send(1, "www.example.", Type.A);
+	send(2, "ns.example.", Type.A);
+	/* The second answer overtakes the first, which is held back */
+	assertEquals(2, receive().getHeader().getID());
+	m_server.release();
+	Message m = receive();
+	assertEquals(1, m.getHeader().getID());
+	assertEquals(1, m.getSectionArray(Section.ANSWER).length);
+    }
+
+    public void test_pipeline_cap() throws Exception
+    {
+	start(4, 2, 30000);
+	m_server.hold(-1);
+	int two = send(1, "www.example.", Type.A) +
+		  send(2, "www.example.", Type.A);
+	for (int id = 3; id <= 5; id++)
+	    send(id, "www.example.", Type.A);
+	assertEquals(2, m_server.awaitSeen(2));
+	Thread.sleep(200);
+	/* Two queries outstanding, the rest is left unread */
+	assertEquals(2, m_server.awaitSeen(0));
+	assertEquals(two, m_toServer.consumed());
+
+	m_server.release();
+	Set ids = new HashSet();
+	for (int i = 0; i < 5; i++)
+	    ids.add(new Integer(receive().getHeader().getID()));
+	assertEquals(5, ids.size());
+    }
+
+    public void test_idle_timeout() throws Exception
+    {
+	start(2, 16, 100);
+	m_thread.join(5000);
+	assertFalse(m_thread.isAlive());
+	assertNull(receive());
+    }
+
+    public void test_idle_while_outstanding() throws Exception
+    {
+	start(2, 16, 100);
+	m_server.hold(-1);
+	send(1, "www.example.", Type.A);
+	m_server.awaitSeen(1);
+	/* Idle for longer than the timeout, but an answer is due */
+	Thread.sleep(400);
+	assertTrue(m_thread.isAlive());
+	m_server.release();
+	assertEquals(1, receive().getHeader().getID());
+	m_thread.join(5000);
+	assertFalse(m_thread.isAlive());
+	assertNull(receive());
+    }
+
+    public void test_transfer_keeps_connection() throws Exception
+    {
+	start(2, 16, 30000);
+	send(1, "example.", Type.AXFR);
+	send(2, "www.example.", Type.A);
+	int soas = 0;
+	Message m;
+	while ((m = receive()) != null && m.getHeader().getID() == 1) {
+	    Record [] answers = m.getSectionArray(Section.ANSWER);
+	    for (int i = 0; i < answers.length; i++)
+		if (answers[i].getType() == Type.SOA)
+		    soas++;
+	}
+	assertEquals(2, soas);
+	assertNotNull(m);
+	assertEquals(2, m.getHeader().getID());
+	assertTrue(m_thread.isAlive());
+    }
+}
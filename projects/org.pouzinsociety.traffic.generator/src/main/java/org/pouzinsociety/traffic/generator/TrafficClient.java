@@ -0,0 +1,298 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.traffic.generator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import jnode.net.DatagramPacket;
+import jnode.net.DatagramSocket;
+import jnode.net.DatagramSocketImplFactory;
+import jnode.net.InetAddress;
+import jnode.net.PlainDatagramSocketImpl;
+import jnode.net.PlainDatagramSocketImplFactory;
+import jnode.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.net.TransportLayer;
+import org.pouzinsociety.config.stack.StackConfiguration;
+
+/**
+ * Client role of the traffic generator. Runs a number of parallel streams
+ * of one mode against a traffic server and logs the send side results of
+ * each stream and of all streams together.
+ */
+public class TrafficClient implements TrafficConstants {
+	private static final Log log = LogFactory.getLog(TrafficClient.class);
+	private final TransportLayer tcpTransport;
+	private final TransportLayer udpTransport;
+	private final StackConfiguration stackConfiguration;
+	private String server = "localhost";
+	private int port = 5001;
+	private int mode = MODE_TCP_BULK;
+	private int streams = 1;
+	private int duration = 10000;
+	private int size = 1024;
+	private int rate = 1000;
+	private int burst = 10;
+
+	public TrafficClient(TransportLayer tcpTransport, TransportLayer udpTransport,
+			StackConfiguration stackConfiguration) {
+		this.tcpTransport = tcpTransport;
+		this.udpTransport = udpTransport;
+		this.stackConfiguration = stackConfiguration;
+	}
+
+	public void setServer(String server) {
+		this.server = server;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @param mode One of tcp-bulk, tcp-rr, udp-cbr or udp-burst
+	 */
+	public void setMode(String mode) {
+		for (int i = 0; i < MODE_NAMES.length; i++) {
+			if (MODE_NAMES[i].equalsIgnoreCase(mode)) {
+				this.mode = i;
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Unknown traffic mode " + mode);
+	}
+
+	/**
+	 * @param streams Number of parallel streams
+	 */
+	public void setStreams(int streams) {
+		this.streams = streams;
+	}
+
+	/**
+	 * @param duration Time in ms each stream runs
+	 */
+	public void setDuration(int duration) {
+		this.duration = duration;
+	}
+
+	/**
+	 * @param size Message or datagram size in bytes
+	 */
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * @param rate Datagrams per second of each UDP stream
+	 */
+	public void setRate(int rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * @param burst Datagrams per burst in udp-burst mode
+	 */
+	public void setBurst(int burst) {
+		this.burst = burst;
+	}
+
+	/**
+	 * Wait until the stack is configured.
+	 * 
+	 * @param stackConfiguration
+	 */
+	static void awaitStack(StackConfiguration stackConfiguration) throws SocketException,
+			InterruptedException {
+		int i = 0;
+		while (!stackConfiguration.Complete()) {
+			if (i++ >= 100) {
+				throw new SocketException("StackConfiguration not complete");
+			}
+			Thread.sleep(1000);
+		}
+	}
+
+	/**
+	 * Run the streams in the background once the stack is configured.
+	 */
+	public void start() {
+		final Thread t = new Thread("traffic-client") {
+			public void run() {
+				try {
+					TrafficClient.this.run();
+				} catch (Exception e) {
+					log.error("TrafficClient: " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Run all streams and wait for them to end.
+	 */
+	public TrafficStats run() throws IOException, InterruptedException {
+		awaitStack(stackConfiguration);
+		if (mode <= MODE_TCP_RR) {
+			Socket.setSocketImplFactory(tcpTransport.getSocketImplFactory());
+		} else {
+			final DatagramSocketImplFactory dFactory = udpTransport.getDatagramSocketImplFactory();
+			DatagramSocket.setDatagramSocketImplFactory(dFactory);
+			PlainDatagramSocketImpl.setUDPFactory((PlainDatagramSocketImplFactory) dFactory);
+		}
+		final InetAddress address = InetAddress.getByName(server);
+		log.info("TrafficClient: " + streams + " " + MODE_NAMES[mode] + " streams to " +
+				address + ":" + port + " for " + duration + "ms");
+
+		final Stream[] s = new Stream[streams];
+		for (int i = 0; i < s.length; i++) {
+			s[i] = new Stream(i, address);
+			s[i].start();
+		}
+		final TrafficStats total = new TrafficStats("total");
+		for (int i = 0; i < s.length; i++) {
+			s[i].join();
+			log.info("TrafficClient: " + s[i].stats);
+			total.merge(s[i].stats);
+		}
+		log.info("TrafficClient: " + total);
+		return total;
+	}
+
+	/**
+	 * One stream, run on its own thread.
+	 */
+	private final class Stream extends Thread {
+		private final int nr;
+		private final InetAddress address;
+		final TrafficStats stats;
+
+		Stream(int nr, InetAddress address) {
+			super("traffic-client-" + nr);
+			this.nr = nr;
+			this.address = address;
+			this.stats = new TrafficStats(MODE_NAMES[mode] + " stream " + nr);
+		}
+
+		public void run() {
+			final long end = System.nanoTime() + duration * 1000000L;
+			try {
+				switch (mode) {
+					case MODE_TCP_BULK:
+					case MODE_TCP_RR:
+						runTcp(end);
+						break;
+					default:
+						runUdp(end);
+				}
+			} catch (IOException e) {
+				log.error("TrafficClient: Stream " + nr + ": " + e.getMessage());
+			} catch (InterruptedException e) {
+				// Stop early
+			}
+			stats.finish();
+		}
+
+		private void runTcp(long end) throws IOException {
+			final Socket socket = new Socket(address, port);
+			try {
+				final byte[] buf = new byte[size];
+				final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeInt(mode);
+				out.writeInt(size);
+				if (mode == MODE_TCP_RR) {
+					socket.setTcpNoDelay(true);
+					final DataInputStream in = new DataInputStream(socket.getInputStream());
+					final OutputStream raw = socket.getOutputStream();
+					out.flush();
+					while (System.nanoTime() < end) {
+						final long start = System.nanoTime();
+						raw.write(buf);
+						raw.flush();
+						in.readFully(buf);
+						stats.recordLatency(System.nanoTime() - start);
+						stats.recordPacket(size, TCP_OVERHEAD);
+					}
+				} else {
+					while (System.nanoTime() < end) {
+						out.write(buf);
+						stats.recordPacket(size, TrafficServer.tcpOverhead(size));
+					}
+					out.flush();
+				}
+			} finally {
+				socket.close();
+			}
+		}
+
+		private void runUdp(long end) throws IOException, InterruptedException {
+			final DatagramSocket socket = new DatagramSocket();
+			try {
+				final int length = Math.max(size, UDP_HDR_LEN + 4);
+				final byte[] buf = new byte[length];
+				final ByteBuffer data = ByteBuffer.wrap(buf);
+				final DatagramPacket packet = new DatagramPacket(buf, length, address, port);
+				// Udp-cbr sends bursts of one datagram
+				final int n = (mode == MODE_UDP_BURST) ? Math.max(1, burst) : 1;
+				final long interval = 1000000000L * n / Math.max(1, rate);
+				int seq = 0;
+				long next = System.nanoTime();
+				while (next < end) {
+					for (int i = 0; i < n; i++) {
+						data.clear();
+						data.putInt(nr).putInt(seq++).putLong(System.nanoTime());
+						socket.send(packet);
+						stats.recordPacket(length, UDP_OVERHEAD);
+					}
+					next += interval;
+					final long wait = next - System.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+					}
+				}
+				// Repeat the FIN, it may be lost like any other datagram
+				data.clear();
+				data.putInt(nr).putInt(UDP_SEQ_FIN).putLong(System.nanoTime()).putInt(seq);
+				packet.setLength(UDP_HDR_LEN + 4);
+				for (int i = 0; i < 3; i++) {
+					socket.send(packet);
+					Thread.sleep(10);
+				}
+			} finally {
+				socket.close();
+			}
+		}
+	}
+}
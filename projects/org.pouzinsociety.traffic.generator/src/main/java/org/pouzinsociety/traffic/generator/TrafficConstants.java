@@ -0,0 +1,58 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.traffic.generator;
+
+import org.jnode.net.ipv4.tcp.TCPConstants;
+
+/**
+ * Modes and wire format shared by the traffic client and server.
+ */
+public interface TrafficConstants {
+
+	/** TCP, the client sends as fast as it can */
+	public static final int MODE_TCP_BULK = 0;
+	/** TCP, each message is echoed before the next one is sent */
+	public static final int MODE_TCP_RR = 1;
+	/** UDP, datagrams at a constant rate */
+	public static final int MODE_UDP_CBR = 2;
+	/** UDP, back-to-back bursts of datagrams at the same average rate */
+	public static final int MODE_UDP_BURST = 3;
+
+	/** Names of the modes, indexed by mode */
+	public static final String[] MODE_NAMES = { "tcp-bulk", "tcp-rr", "udp-cbr", "udp-burst" };
+
+	/** Length of a UDP datagram header: stream, sequence number, timestamp */
+	public static final int UDP_HDR_LEN = 16;
+	/** Sequence number of the datagram ending a UDP stream */
+	public static final int UDP_SEQ_FIN = -1;
+
+	/** Bytes of IPv4 and TCP headers per segment */
+	public static final int TCP_OVERHEAD = 40;
+	/** Bytes of IPv4 and UDP headers per datagram */
+	public static final int UDP_OVERHEAD = 28;
+	/** Segment size assumed when estimating TCP overhead, the stack's default */
+	public static final int TCP_MSS = TCPConstants.TCP_DEFAULT_MSS;
+}
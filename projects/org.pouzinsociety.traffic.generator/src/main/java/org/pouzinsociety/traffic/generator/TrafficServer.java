@@ -0,0 +1,323 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.traffic.generator;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import jnode.net.DatagramPacket;
+import jnode.net.DatagramSocket;
+import jnode.net.DatagramSocketImplFactory;
+import jnode.net.PlainDatagramSocketImpl;
+import jnode.net.PlainDatagramSocketImplFactory;
+import jnode.net.ServerSocket;
+import jnode.net.Socket;
+import jnode.net.SocketImplFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jnode.net.TransportLayer;
+import org.pouzinsociety.config.stack.StackConfiguration;
+
+/**
+ * Server role of the traffic generator. Accepts TCP streams and receives
+ * UDP streams on the same port number, and logs the receive side results
+ * of each stream when it ends.
+ */
+public class TrafficServer implements TrafficConstants {
+	private static final Log log = LogFactory.getLog(TrafficServer.class);
+	private final TransportLayer tcpTransport;
+	private final TransportLayer udpTransport;
+	private final StackConfiguration stackConfiguration;
+	private int port = 5001;
+	private int receiveBufferSize = 1024 * 1024;
+	private int idleTimeout = 30000;
+	private volatile boolean stop = false;
+	private ServerSocket tcpSocket;
+	private DatagramSocket udpSocket;
+
+	public TrafficServer(TransportLayer tcpTransport, TransportLayer udpTransport,
+			StackConfiguration stackConfiguration) {
+		this.tcpTransport = tcpTransport;
+		this.udpTransport = udpTransport;
+		this.stackConfiguration = stackConfiguration;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @param receiveBufferSize SO_RCVBUF of the UDP socket
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @param idleTimeout Time in ms after which a UDP stream that has sent
+	 * nothing is ended, in case its FIN was lost
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Start listening once the stack is configured.
+	 */
+	public void start() {
+		final Thread t = new Thread("traffic-server") {
+			public void run() {
+				try {
+					TrafficClient.awaitStack(stackConfiguration);
+					openSockets();
+				} catch (Exception e) {
+					log.error("TrafficServer: Cannot start: " + e.getMessage());
+					return;
+				}
+				new Thread("traffic-server-udp") {
+					public void run() {
+						receiveUdp();
+					}
+				}.start();
+				acceptTcp();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Close the sockets, streams in progress are ended.
+	 */
+	public void stop() {
+		stop = true;
+		try {
+			if (tcpSocket != null) {
+				tcpSocket.close();
+			}
+		} catch (IOException e) {
+			// Ignore
+		}
+		if (udpSocket != null) {
+			udpSocket.close();
+		}
+	}
+
+	private void openSockets() throws IOException {
+		final SocketImplFactory sFactory = tcpTransport.getSocketImplFactory();
+		Socket.setSocketImplFactory(sFactory);
+		ServerSocket.setSocketFactory(sFactory);
+		final DatagramSocketImplFactory dFactory = udpTransport.getDatagramSocketImplFactory();
+		DatagramSocket.setDatagramSocketImplFactory(dFactory);
+		PlainDatagramSocketImpl.setUDPFactory((PlainDatagramSocketImplFactory) dFactory);
+
+		tcpSocket = new ServerSocket(port);
+		udpSocket = new DatagramSocket(port);
+		udpSocket.setReceiveBufferSize(receiveBufferSize);
+		// Wake up now and then to end idle streams
+		udpSocket.setSoTimeout(Math.max(1, idleTimeout / 4));
+		log.info("TrafficServer: Listening on port " + port);
+	}
+
+	private void acceptTcp() {
+		while (!stop) {
+			final Socket socket;
+			try {
+				socket = tcpSocket.accept();
+			} catch (IOException e) {
+				if (!stop) {
+					log.error("TrafficServer: Accept failed: " + e.getMessage());
+				}
+				return;
+			}
+			new Thread("traffic-server-tcp") {
+				public void run() {
+					serveTcp(socket);
+				}
+			}.start();
+		}
+	}
+
+	/**
+	 * Serve one TCP stream until the client closes it.
+	 * 
+	 * @param socket
+	 */
+	private void serveTcp(Socket socket) {
+		final TrafficStats stats = new TrafficStats("tcp " + socket.getInetAddress() + ":" +
+				socket.getPort());
+		try {
+			final DataInputStream in = new DataInputStream(socket.getInputStream());
+			final OutputStream out = socket.getOutputStream();
+			final int mode = in.readInt();
+			final int size = in.readInt();
+			final byte[] buf = new byte[Math.max(1, size)];
+			if (mode == MODE_TCP_RR) {
+				while (true) {
+					in.readFully(buf);
+					stats.recordPacket(size, TCP_OVERHEAD);
+					out.write(buf);
+					out.flush();
+				}
+			} else {
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					stats.recordPacket(n, tcpOverhead(n));
+				}
+			}
+		} catch (EOFException e) {
+			// Client is done
+		} catch (IOException e) {
+			if (!stop) {
+				log.debug("TrafficServer: " + e.getMessage());
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+		stats.finish();
+		log.info("TrafficServer: " + stats);
+	}
+
+	/**
+	 * Estimate the header bytes of the segments carrying the given data.
+	 * 
+	 * @param length
+	 */
+	static int tcpOverhead(int length) {
+		return ((length + TCP_MSS - 1) / TCP_MSS) * TCP_OVERHEAD;
+	}
+
+	/**
+	 * A UDP stream being received.
+	 */
+	private static final class UdpStream {
+		final TrafficStats stats;
+		int nextSeq = 0;
+		long lastSeen = System.nanoTime();
+
+		UdpStream(String name) {
+			stats = new TrafficStats(name);
+		}
+	}
+
+	private void receiveUdp() {
+		final Map<String, UdpStream> streams = new HashMap<String, UdpStream>();
+		final byte[] buf = new byte[65535];
+		final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		long lastExpiry = System.nanoTime();
+		while (!stop) {
+			if (System.nanoTime() - lastExpiry >= idleTimeout * 250000L) {
+				lastExpiry = System.nanoTime();
+				expireIdle(streams, lastExpiry);
+			}
+			try {
+				packet.setLength(buf.length);
+				udpSocket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (SocketException e) {
+				if (!stop) {
+					log.error("TrafficServer: " + e.getMessage());
+				}
+				return;
+			} catch (IOException e) {
+				log.debug("TrafficServer: " + e.getMessage());
+				continue;
+			}
+			final long now = System.nanoTime();
+			if (packet.getLength() < UDP_HDR_LEN) {
+				continue;
+			}
+			final ByteBuffer data = ByteBuffer.wrap(buf, 0, packet.getLength());
+			final int stream = data.getInt();
+			final int seq = data.getInt();
+			final long timestamp = data.getLong();
+			final String key = "udp " + packet.getAddress() + ":" + packet.getPort() + "/" + stream;
+			UdpStream s = streams.get(key);
+
+			if (seq == UDP_SEQ_FIN) {
+				if ((s != null) && (data.remaining() >= 4)) {
+					// The client repeats the FIN, the first one ends the stream
+					streams.remove(key);
+					final long sent = data.getInt() & 0xFFFFFFFFL;
+					s.stats.recordLost(sent - s.nextSeq);
+					s.stats.finish();
+					log.info("TrafficServer: " + s.stats.getReport(true));
+				}
+				continue;
+			}
+			if (s == null) {
+				s = new UdpStream(key);
+				streams.put(key, s);
+			}
+			s.lastSeen = now;
+			if (seq < s.nextSeq) {
+				// Reordered or duplicated, a gap already counted it as lost
+				s.stats.recordLate();
+				continue;
+			}
+			s.stats.recordPacket(packet.getLength(), UDP_OVERHEAD);
+			s.stats.recordTransit(now - timestamp);
+			s.stats.recordLatency(now - timestamp);
+			if (seq > s.nextSeq) {
+				s.stats.recordLost(seq - s.nextSeq);
+			}
+			s.nextSeq = seq + 1;
+		}
+	}
+
+	/**
+	 * End the streams that have been idle longer than the idle timeout.
+	 * Losses at the end of such a stream are not known.
+	 * 
+	 * @param streams
+	 * @param now
+	 */
+	private void expireIdle(Map<String, UdpStream> streams, long now) {
+		final Iterator<UdpStream> i = streams.values().iterator();
+		while (i.hasNext()) {
+			final UdpStream s = i.next();
+			if (now - s.lastSeen > idleTimeout * 1000000L) {
+				i.remove();
+				s.stats.finish();
+				log.info("TrafficServer: " + s.stats.getReport(true) + ", no FIN");
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * 2008 - 2010 (c) Waterford Institute of Technology
+ *		   TSSG, EU ICT 4WARD
+ *
+ * 2010 (c) Pouzin Society
+ *   - Forked from EU ICT 4WARD Open Source Distribution.
+ *   - Organisation Strings updated to reflect fork.
+ *
+ *
+ * Author        : pphelan(at)tssg.org
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but 
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public 
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; If not, write to the Free Software Foundation, Inc., 
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package org.pouzinsociety.traffic.generator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Results of one traffic stream, or of several merged together. Latencies
+ * are kept in a fixed size random sample, so long runs need no more memory
+ * than short ones.
+ */
+public class TrafficStats {
+
+	/** Maximum number of latency samples kept */
+	private static final int MAX_SAMPLES = 8192;
+
+	private final String name;
+	private final Random random = new Random();
+	private long startTime = System.nanoTime();
+	private long endTime;
+	private long packets;
+	private long payloadBytes;
+	private long wireBytes;
+	private long lost;
+	private long late;
+	/** Interarrival jitter in ns (RFC 3550) */
+	private double jitter;
+	private long lastTransit;
+	private boolean hasTransit;
+	private long latencies;
+	private long minLatency = Long.MAX_VALUE;
+	private long[] samples = new long[MAX_SAMPLES];
+
+	/**
+	 * Create a new instance
+	 * 
+	 * @param name
+	 */
+	public TrafficStats(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * A message has been sent or received.
+	 * 
+	 * @param payload Number of application bytes
+	 * @param overhead Number of header bytes below the application
+	 */
+	public synchronized void recordPacket(int payload, int overhead) {
+		packets++;
+		payloadBytes += payload;
+		wireBytes += payload + overhead;
+	}
+
+	/**
+	 * Messages that have not arrived.
+	 * 
+	 * @param count
+	 */
+	public synchronized void recordLost(long count) {
+		lost += count;
+	}
+
+	/**
+	 * A message has arrived after a later one, or more than once. It is
+	 * not counted as a packet, and does not make up for a loss.
+	 */
+	public synchronized void recordLate() {
+		late++;
+	}
+
+	/**
+	 * A latency has been measured.
+	 * 
+	 * @param nanos
+	 */
+	public synchronized void recordLatency(long nanos) {
+		if (nanos < minLatency) {
+			minLatency = nanos;
+		}
+		// Reservoir sampling
+		if (latencies < MAX_SAMPLES) {
+			samples[(int) latencies] = nanos;
+		} else {
+			final long i = (long) (random.nextDouble() * (latencies + 1));
+			if (i < MAX_SAMPLES) {
+				samples[(int) i] = nanos;
+			}
+		}
+		latencies++;
+	}
+
+	/**
+	 * A datagram has arrived, update the jitter from its transit time. The
+	 * clocks of sender and receiver need not agree, only the differences
+	 * between transit times are used.
+	 * 
+	 * @param transit Arrival time minus the timestamp of the sender in ns
+	 */
+	public synchronized void recordTransit(long transit) {
+		if (hasTransit) {
+			final long d = Math.abs(transit - lastTransit);
+			jitter += (d - jitter) / 16;
+		}
+		lastTransit = transit;
+		hasTransit = true;
+	}
+
+	/**
+	 * The stream has ended.
+	 */
+	public synchronized void finish() {
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * Add the results of another stream to this one.
+	 * 
+	 * @param other
+	 */
+	public synchronized void merge(TrafficStats other) {
+		synchronized (other) {
+			startTime = Math.min(startTime, other.startTime);
+			endTime = Math.max(endTime, other.endTime);
+			packets += other.packets;
+			payloadBytes += other.payloadBytes;
+			wireBytes += other.wireBytes;
+			lost += other.lost;
+			late += other.late;
+			jitter = Math.max(jitter, other.jitter);
+			mergeSamples(other);
+			minLatency = Math.min(minLatency, other.minLatency);
+		}
+	}
+
+	/**
+	 * Merge the latency samples of another stream. While both fit they are
+	 * all kept. Otherwise each slot is filled from one of the two samples,
+	 * chosen in proportion to the number of latencies it stands for, so the
+	 * result is again a uniform sample of all latencies.
+	 * 
+	 * @param other
+	 */
+	private void mergeSamples(TrafficStats other) {
+		final int n1 = (int) Math.min(latencies, MAX_SAMPLES);
+		final int n2 = (int) Math.min(other.latencies, MAX_SAMPLES);
+		final long total = latencies + other.latencies;
+		if (total <= MAX_SAMPLES) {
+			System.arraycopy(other.samples, 0, samples, n1, n2);
+			latencies = total;
+			return;
+		}
+		final long[] a = shuffled(samples, n1);
+		final long[] b = shuffled(other.samples, n2);
+		int i1 = 0;
+		int i2 = 0;
+		for (int i = 0; i < MAX_SAMPLES; i++) {
+			final boolean first = (i2 == n2) || ((i1 < n1) &&
+					(random.nextDouble() * total < latencies));
+			samples[i] = first ? a[i1++] : b[i2++];
+		}
+		latencies = total;
+	}
+
+	/**
+	 * Gets a copy of the first n samples in random order.
+	 */
+	private long[] shuffled(long[] s, int n) {
+		final long[] copy = new long[n];
+		System.arraycopy(s, 0, copy, 0, n);
+		for (int i = n - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final long t = copy[i];
+			copy[i] = copy[j];
+			copy[j] = t;
+		}
+		return copy;
+	}
+
+	/**
+	 * Gets the latency at the given percentile.
+	 * 
+	 * @param sorted Sorted samples
+	 * @param percentile 0..100
+	 * @return Latency in ns
+	 */
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		final int i = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+	}
+
+	private static String ms(long nanos) {
+		return String.valueOf(nanos / 1000 / 1000.0);
+	}
+
+	/**
+	 * Gets a report of the results.
+	 * 
+	 * @param relative If true, latencies are one-way transit times between
+	 * unsynchronized clocks and are reported relative to the smallest one
+	 */
+	public synchronized String getReport(boolean relative) {
+		final long end = (endTime == 0) ? System.nanoTime() : endTime;
+		final double secs = Math.max(1, end - startTime) / 1e9;
+		final StringBuilder sb = new StringBuilder(name);
+		sb.append(": ").append(packets).append(" packets, ");
+		sb.append(payloadBytes).append(" bytes in ").append((float) secs).append("s, ");
+		sb.append("throughput ").append((float) (wireBytes * 8 / secs / 1e6)).append(" Mbit/s, ");
+		sb.append("goodput ").append((float) (payloadBytes * 8 / secs / 1e6)).append(" Mbit/s");
+		if (lost > 0 || hasTransit) {
+			final long expected = packets + lost;
+			sb.append(", lost ").append(lost).append('/').append(expected);
+			sb.append(" (").append((expected == 0) ? 0.0f : (float) (lost * 100.0 / expected))
+					.append("%)");
+		}
+		if (late > 0) {
+			sb.append(", late ").append(late);
+		}
+		if (hasTransit) {
+			sb.append(", jitter ").append(ms((long) jitter)).append("ms");
+		}
+		if (latencies > 0) {
+			final long[] sorted = new long[(int) Math.min(latencies, MAX_SAMPLES)];
+			System.arraycopy(samples, 0, sorted, 0, sorted.length);
+			Arrays.sort(sorted);
+			final long base = relative ? minLatency : 0;
+			sb.append(relative ? ", relative latency" : ", latency");
+			sb.append(" p50=").append(ms(percentile(sorted, 50) - base));
+			sb.append(" p90=").append(ms(percentile(sorted, 90) - base));
+			sb.append(" p99=").append(ms(percentile(sorted, 99) - base));
+			sb.append(" max=").append(ms(sorted[sorted.length - 1] - base)).append("ms");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return getReport(false);
+	}
+}